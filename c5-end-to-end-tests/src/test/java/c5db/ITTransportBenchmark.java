@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db;
+
+import c5db.client.C5NettyConnectionManager;
+import c5db.client.C5Transport;
+import c5db.client.ProtobufUtil;
+import c5db.client.SingleNodeTableInterface;
+import c5db.client.generated.Condition;
+import c5db.client.generated.Get;
+import c5db.client.generated.GetRequest;
+import c5db.client.generated.MutateRequest;
+import c5db.client.generated.MutationProto;
+import c5db.client.generated.RegionSpecifier;
+import c5db.client.generated.Response;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Runs the same pipelined put/get workload over the WebSocket transport and over the length-prefixed binary
+ * transport and logs the elapsed time of each.
+ */
+public class ITTransportBenchmark extends ClusterOrPseudoCluster {
+  private static final Logger LOG = LoggerFactory.getLogger(ITTransportBenchmark.class);
+  private static final int TO_SEND = 20000;
+  private static final int WINDOW = 1000;
+  private static final int VALUE_SIZE = 512;
+
+  @Test
+  public void compareWebsocketAndBinaryTransports() throws Exception {
+    RegionSpecifier regionSpecifier = new RegionSpecifier(RegionSpecifier.RegionSpecifierType.REGION_NAME,
+        ByteBuffer.wrap(table.getTableName()));
+    int websocketPort = getRegionServerPort();
+    int binaryPort = websocketPort + C5ServerConstants.BINARY_REGION_SERVER_PORT_OFFSET;
+
+    // Warm both paths up before timing anything
+    runWorkload(regionSpecifier, websocketPort, C5Transport.WEBSOCKET, TO_SEND / 10);
+    runWorkload(regionSpecifier, binaryPort, C5Transport.BINARY, TO_SEND / 10);
+
+    long websocketNanos = runWorkload(regionSpecifier, websocketPort, C5Transport.WEBSOCKET, TO_SEND);
+    long binaryNanos = runWorkload(regionSpecifier, binaryPort, C5Transport.BINARY, TO_SEND);
+
+    LOG.info("websocket: {}ms for {} puts + gets", TimeUnit.NANOSECONDS.toMillis(websocketNanos), TO_SEND);
+    LOG.info("binary:    {}ms for {} puts + gets", TimeUnit.NANOSECONDS.toMillis(binaryNanos), TO_SEND);
+  }
+
+  private long runWorkload(RegionSpecifier regionSpecifier, int port, C5Transport transport, int count)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    ByteBuffer cf = ByteBuffer.wrap(Bytes.toBytes("cf"));
+    ByteBuffer cq = ByteBuffer.wrap(Bytes.toBytes("cq"));
+    ByteBuffer value = ByteBuffer.wrap(new byte[VALUE_SIZE]);
+    MutationProto.ColumnValue.QualifierValue qualifierValue = new MutationProto.ColumnValue.QualifierValue(cq,
+        value,
+        0l,
+        null);
+
+    SingleNodeTableInterface singleNodeTable = new SingleNodeTableInterface(C5TestServerConstants.LOCALHOST,
+        port,
+        new C5NettyConnectionManager(transport));
+    try {
+      long start = System.nanoTime();
+      List<ListenableFuture<Response>> window = new ArrayList<>(WINDOW);
+      for (int i = 0; i != count; i++) {
+        MutationProto mutationProto = new MutationProto(ByteBuffer.wrap(Bytes.toBytes(i)),
+            MutationProto.MutationType.PUT,
+            Arrays.asList(new MutationProto.ColumnValue(cf, Arrays.asList(qualifierValue))),
+            0l,
+            new ArrayList<>(),
+            MutationProto.Durability.SKIP_WAL,
+            null,
+            1);
+        window.add(singleNodeTable.mutate(new MutateRequest(regionSpecifier, mutationProto, new Condition())));
+        if (window.size() == WINDOW) {
+          Futures.allAsList(window).get();
+          window.clear();
+        }
+      }
+      Futures.allAsList(window).get();
+      window.clear();
+
+      for (int i = 0; i != count; i++) {
+        Get get = ProtobufUtil.toGet(new org.apache.hadoop.hbase.client.Get(Bytes.toBytes(i)), false);
+        window.add(singleNodeTable.get(new GetRequest(regionSpecifier, get)));
+        if (window.size() == WINDOW) {
+          for (Response response : Futures.allAsList(window).get()) {
+            assertThat(response.getGet().getResult().getCellList().size(), is(1));
+          }
+          window.clear();
+        }
+      }
+      Futures.allAsList(window).get();
+      return System.nanoTime() - start;
+    } finally {
+      singleNodeTable.close();
+    }
+  }
+}
@@ -16,17 +16,14 @@
 
 package c5db.log;
 
-import c5db.generated.RegionWalEntry;
 import c5db.interfaces.replication.GeneralizedReplicator;
 import c5db.interfaces.replication.ReplicateSubmissionInfo;
-import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import io.protostuff.LinkBuffer;
-import io.protostuff.LowCopyProtostuffOutput;
 import org.apache.hadoop.fs.Syncable;
 import org.apache.hadoop.hbase.HRegionInfo;
 import org.apache.hadoop.hbase.HTableDescriptor;
-import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.TableName;
 import org.apache.hadoop.hbase.regionserver.wal.HLog;
 import org.apache.hadoop.hbase.regionserver.wal.WALActionsListener;
@@ -36,45 +33,72 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
 import java.util.UUID;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A distributed WriteAheadLog using c5's replication algorithm
+ * <p>
+ * HRegion decides from each mutation's durability whether to wait: SKIP_WAL edits are never appended here,
+ * ASYNC_WAL edits are appended but not synced, so they are acknowledged once submitted and replicate in the
+ * background, and SYNC_WAL and FSYNC_WAL edits are synced, i.e. acknowledged once a quorum has them.
  */
 public class OLogShim implements Syncable, HLog {
   private static final Logger LOG = LoggerFactory.getLogger(OLogShim.class);
 
   private static final int WAL_SYNC_TIMEOUT_SECONDS = 10;
-  private static final int MAX_APPENDS_OUTSTANDING = 1000;
+  // Appends which are never synced (ASYNC_WAL) replicate in the background; once this many are uncommitted,
+  // awaitAppendCapacity waits for the replicator to catch up
+  private static final long MAX_UNCOMMITTED_APPENDS = 10000;
+  // How many txids past a failed append its failure is remembered, failing the syncs of it and of later appends
+  private static final long FAILED_APPEND_RETENTION = 10000;
 
   private final AtomicLong logSeqNum = new AtomicLong(0);
   private final GeneralizedReplicator replicator;
 
-  // When logging, place all received futures in this queue. Then, when performing sync, wait
-  // for all those saved futures. To prevent this queue from growing without bound, the client
-  // of this class must sync regularly. That's something the client would need to do anyway in
-  // order to determine whether its writes are succeeding.
-  private final BlockingQueue<ListenableFuture<ReplicateSubmissionInfo>> appendFutures =
-      new ArrayBlockingQueue<>(MAX_APPENDS_OUTSTANDING);
-
+  // Each append gets the next txid, in the order the appends are submitted to the replicator. An append is resolved
+  // once it has committed or failed; the highest txid up to which every append is resolved is a watermark which a
+  // sync waits to pass. Resolutions can arrive out of order, so those above the watermark are held until the ones
+  // below them arrive.
+  private final Object appendLock = new Object();
+  private final Object watermarkLock = new Object();
+  private long lastAppendedTxid = 0;
+  private long resolvedTxid = 0;
+  private final NavigableSet<Long> resolvedAboveWatermark = new TreeSet<>();
+  // Appends which failed to replicate, by txid. A sync fails if any append up to its txid failed, as long as the
+  // failure is remembered: until the watermark is FAILED_APPEND_RETENTION txids past it.
+  private final ConcurrentSkipListMap<Long, Throwable> failedAppends = new ConcurrentSkipListMap<>();
+
+  private final boolean compressEdits;
 
   public OLogShim(GeneralizedReplicator replicator) {
+    this(replicator, false);
+  }
+
+  /**
+   * @param compressEdits Whether to dictionary compress the edits written to the replicated log.
+   */
+  public OLogShim(GeneralizedReplicator replicator, boolean compressEdits) {
     this.replicator = replicator;
+    this.compressEdits = compressEdits;
   }
 
-  //TODO fix so we don't always insert a huge amount of data
+  /**
+   * HRegion calls this holding its updates lock, so every edit already appended has a lower sequence number than the
+   * one returned, which the flushed store files are marked with. Replay of the log can then skip the edits at or
+   * below a region's flushed sequence number.
+   */
   @Override
   public Long startCacheFlush(byte[] encodedRegionName) {
-    return (long) 0;
+    return obtainSeqNum();
   }
 
   @Override
@@ -147,27 +171,96 @@ public class OLogShim implements Syncable, HLog {
     this.sync();
   }
 
+  /**
+   * Waits until every append up to txid has committed. Fails if any of them failed, even though later appends may
+   * have committed since.
+   */
   @Override
   public void sync(long txid) throws IOException {
-    this.sync();
+    awaitResolved(txid, true);
+    throwIfFailed(failedAppends.headMap(txid, true));
+  }
+
+  /**
+   * Waits until few enough appends are uncommitted to take more. Appends themselves never wait for the replicator,
+   * because HRegion makes them holding row locks and its updates lock; a writer calls this before handing HRegion
+   * its next batch instead.
+   */
+  public void awaitAppendCapacity() throws IOException {
+    final long txid;
+    synchronized (appendLock) {
+      txid = lastAppendedTxid - MAX_UNCOMMITTED_APPENDS;
+    }
+    if (txid > 0) {
+      // A failed append has left the replicator as surely as a committed one, so it makes room all the same
+      awaitResolved(txid, false);
+    }
+  }
+
+  private void awaitResolved(long txid, boolean failFast) throws IOException {
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAL_SYNC_TIMEOUT_SECONDS);
+    synchronized (watermarkLock) {
+      while (resolvedTxid < txid) {
+        if (failFast) {
+          throwIfFailed(failedAppends.headMap(txid, true));
+        }
+        final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remainingMillis <= 0) {
+          throw new IOException("Timed out in OLogShim waiting for txid " + txid
+              + "; resolved through " + resolvedTxid);
+        }
+        try {
+          watermarkLock.wait(remainingMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted in OLogShim waiting for txid " + txid);
+        }
+      }
+    }
   }
 
   @Override
   public void sync() throws IOException {
-    // TODO how should this handle a case where some writes succeed and others fail?
-    // TODO currently it throws an exception, but that can lead to the appearance that a successful write failed
-    List<ListenableFuture<ReplicateSubmissionInfo>> appendFutureList = new ArrayList<>();
-    appendFutures.drainTo(appendFutureList);
+    final long txid;
+    synchronized (appendLock) {
+      txid = lastAppendedTxid;
+    }
+    sync(txid);
+  }
 
-    try {
-      for (ListenableFuture<ReplicateSubmissionInfo> appendFuture : appendFutureList) {
-        appendFuture
-            .get(WAL_SYNC_TIMEOUT_SECONDS, TimeUnit.SECONDS)
-            .completedFuture.get(WAL_SYNC_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+  private static void throwIfFailed(Map<Long, Throwable> failures) throws IOException {
+    for (Map.Entry<Long, Throwable> failure : failures.entrySet()) {
+      throw new IOException("Error encountered while waiting within OLogShim#sync: append of txid "
+          + failure.getKey() + " failed", failure.getValue());
+    }
+  }
+
+  private void committed(long txid) {
+    resolved(txid);
+  }
+
+  private void failed(long txid, Throwable cause) {
+    // Recorded before the watermark can pass it, so that no sync waiting on it can miss it
+    failedAppends.put(txid, cause);
+    resolved(txid);
+  }
+
+  private void resolved(long txid) {
+    final long watermark;
+    synchronized (watermarkLock) {
+      resolvedAboveWatermark.add(txid);
+      final long previousWatermark = resolvedTxid;
+      while (!resolvedAboveWatermark.isEmpty() && resolvedAboveWatermark.first() == resolvedTxid + 1) {
+        resolvedTxid = resolvedAboveWatermark.pollFirst();
+      }
+      // A failed append wakes the syncs waiting on it even if the watermark could not move
+      watermarkLock.notifyAll();
+      if (resolvedTxid == previousWatermark) {
+        return;
       }
-    } catch (InterruptedException | ExecutionException | TimeoutException e) {
-      throw new IOException("Error encountered while waiting within OLogShim#sync", e);
+      watermark = resolvedTxid;
     }
+    failedAppends.headMap(watermark - FAILED_APPEND_RETENTION, true).clear();
   }
 
   @Override
@@ -216,17 +309,46 @@ public class OLogShim implements Syncable, HLog {
                            WALEdit edit, List<UUID> clusterIds,
                            long now,
                            HTableDescriptor htd) throws IOException {
+    final long sequenceNumber = obtainSeqNum();
+    final List<ByteBuffer> entryBytes = compressEdits
+        ? WalEditCodec.encodeCompressed(info.getRegionNameAsString(), sequenceNumber, edit)
+        : WalEditCodec.encode(info.getRegionNameAsString(), sequenceNumber, edit);
+    final long txid;
+    final ListenableFuture<ReplicateSubmissionInfo> appendFuture;
     try {
-      List<ByteBuffer> entryBytes = serializeWalEdit(info.getRegionNameAsString(), edit);
-
-      // our replicator knows what quorumId/tabletId we are.
-      ListenableFuture<ReplicateSubmissionInfo> appendFuture = replicator.replicate(entryBytes);
-      appendFutures.add(appendFuture);
-
+      // Txids must follow the order of the replicator's log, so they are assigned as the entry is submitted
+      synchronized (appendLock) {
+        // our replicator knows what quorumId/tabletId we are.
+        appendFuture = replicator.replicate(entryBytes);
+        txid = ++lastAppendedTxid;
+      }
     } catch (GeneralizedReplicator.InvalidReplicatorStateException | InterruptedException e) {
       throw new IOException(e);
     }
-    return 0;
+
+    Futures.addCallback(appendFuture, new FutureCallback<ReplicateSubmissionInfo>() {
+      @Override
+      public void onSuccess(ReplicateSubmissionInfo submission) {
+        Futures.addCallback(submission.completedFuture, new FutureCallback<Object>() {
+          @Override
+          public void onSuccess(Object result) {
+            committed(txid);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            failed(txid, t);
+          }
+        });
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        failed(txid, t);
+      }
+    });
+
+    return txid;
   }
 
   // TODO XXX passthrough no longer valid, this call does the wrong thing now.
@@ -243,34 +365,4 @@ public class OLogShim implements Syncable, HLog {
     appendNoSync(info, tableName, edits, null, now, htd);
     this.sync();
   }
-
-  private static List<ByteBuffer> serializeWalEdit(String regionInfo, WALEdit edit) throws IOException {
-    final List<ByteBuffer> buffers = new ArrayList<>();
-
-    for (KeyValue keyValue : edit.getKeyValues()) {
-      @SuppressWarnings("deprecation")
-      final RegionWalEntry entry = new RegionWalEntry(
-          regionInfo,
-          ByteBuffer.wrap(keyValue.getRow()),
-          ByteBuffer.wrap(keyValue.getFamily()),
-          ByteBuffer.wrap(keyValue.getQualifier()),
-          ByteBuffer.wrap(keyValue.getValue()),
-          keyValue.getTimestamp());
-      addLengthPrependedEntryBuffersToList(entry, buffers);
-    }
-    return buffers;
-  }
-
-  private static void addLengthPrependedEntryBuffersToList(RegionWalEntry entry, List<ByteBuffer> buffers)
-      throws IOException {
-    LinkBuffer entryBuffer = new LinkBuffer();
-    LowCopyProtostuffOutput lcpo = new LowCopyProtostuffOutput(entryBuffer);
-    RegionWalEntry.getSchema().writeTo(lcpo, entry);
-
-    final int length = Ints.checkedCast(lcpo.buffer.size());
-    final LinkBuffer lengthBuf = new LinkBuffer().writeVarInt32(length);
-
-    buffers.addAll(lengthBuf.finish());
-    buffers.addAll(entryBuffer.finish());
-  }
-}
\ No newline at end of file
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Reads back the entries of a replicated log which are stored on this node.
+ */
+public interface ReplicatedLogReader {
+  /**
+   * @param quorumId The quorum whose log to read.
+   * @return the data of each entry, oldest first, as it was handed to the replicator. An iterator which reads the log
+   * as it goes throws UncheckedIOException if it can't.
+   */
+  Iterator<ByteBuffer> read(String quorumId) throws IOException;
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.log;
+
+import c5db.generated.RegionWalEdit;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Ints;
+import io.protostuff.ByteBufferInput;
+import io.protostuff.LinkBuffer;
+import io.protostuff.LowCopyProtostuffOutput;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.regionserver.wal.ReplicatedWalCompression;
+import org.apache.hadoop.hbase.regionserver.wal.WALEdit;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes a WALEdit as one length-prefixed RegionWalEdit for the replicated log, and decodes it again.
+ * <p>
+ * The region name and the edit's sequence number are written once per edit, and each cell as the KeyValue bytes it
+ * already has. Those bytes are referenced from the cell's backing array rather than copied, so the LinkBuffer they
+ * are written through only copies cells too small to be worth a buffer of their own.
+ * <p>
+ * Edits may instead be dictionary compressed, which writes each repeated row, family or qualifier as a two byte
+ * reference, at the cost of copying the cells. The dictionaries start empty for every edit, so each log entry can
+ * be decoded on its own: a follower need not have seen the entries before it, whatever the replicator does with
+ * log segments, truncation or a change of leader.
+ */
+public class WalEditCodec {
+  private static final ThreadLocal<ReplicatedWalCompression> COMPRESSION = new ThreadLocal<>();
+
+  private WalEditCodec() {
+  }
+
+  public static List<ByteBuffer> encode(String regionInfo, long sequenceNumber, WALEdit edit) throws IOException {
+    final List<KeyValue> keyValues = edit.getKeyValues();
+    final List<ByteBuffer> cells = new ArrayList<>(keyValues.size());
+    for (KeyValue keyValue : keyValues) {
+      cells.add(ByteBuffer.wrap(keyValue.getBuffer(), keyValue.getOffset(), keyValue.getLength()));
+    }
+    return lengthPrefixed(new RegionWalEdit(regionInfo, cells, null, sequenceNumber));
+  }
+
+  public static List<ByteBuffer> encodeCompressed(String regionInfo, long sequenceNumber, WALEdit edit)
+      throws IOException {
+    final List<KeyValue> keyValues = edit.getKeyValues();
+    int estimatedSize = 0;
+    for (KeyValue keyValue : keyValues) {
+      estimatedSize += keyValue.getLength();
+    }
+
+    final ReplicatedWalCompression compression = compression();
+    compression.reset();
+    final ByteArrayDataOutput out = ByteStreams.newDataOutput(estimatedSize);
+    for (KeyValue keyValue : keyValues) {
+      compression.write(out, keyValue);
+    }
+    return lengthPrefixed(new RegionWalEdit(regionInfo, null, ByteBuffer.wrap(out.toByteArray()), sequenceNumber));
+  }
+
+  private static List<ByteBuffer> lengthPrefixed(RegionWalEdit walEdit) throws IOException {
+    final LinkBuffer editBuffer = new LinkBuffer();
+    final LowCopyProtostuffOutput lcpo = new LowCopyProtostuffOutput(editBuffer);
+    RegionWalEdit.getSchema().writeTo(lcpo, walEdit);
+
+    final int length = Ints.checkedCast(lcpo.buffer.size());
+    final List<ByteBuffer> buffers = new ArrayList<>(new LinkBuffer().writeVarInt32(length).finish());
+    buffers.addAll(editBuffer.finish());
+    return buffers;
+  }
+
+  /**
+   * Decodes the next edit, advancing the buffer past it.
+   */
+  public static RegionWalEdit decode(ByteBuffer buffer) throws IOException {
+    final int length = readVarInt32(buffer);
+    final ByteBuffer editBuffer = buffer.slice();
+    editBuffer.limit(length);
+    buffer.position(buffer.position() + length);
+
+    final RegionWalEdit edit = RegionWalEdit.getSchema().newMessage();
+    RegionWalEdit.getSchema().mergeFrom(new ByteBufferInput(editBuffer, false), edit);
+    return edit;
+  }
+
+  public static List<KeyValue> keyValues(RegionWalEdit edit) throws IOException {
+    if (edit.getCompressedKeyValues() != null) {
+      return decompress(edit.getCompressedKeyValues());
+    }
+    final List<ByteBuffer> cells = edit.getKeyValueList();
+    if (cells == null) {
+      return new ArrayList<>();
+    }
+    final List<KeyValue> keyValues = new ArrayList<>(cells.size());
+    for (ByteBuffer cell : cells) {
+      final byte[] bytes = new byte[cell.remaining()];
+      cell.duplicate().get(bytes);
+      keyValues.add(new KeyValue(bytes));
+    }
+    return keyValues;
+  }
+
+  private static List<KeyValue> decompress(ByteBuffer compressed) throws IOException {
+    final byte[] bytes = new byte[compressed.remaining()];
+    compressed.duplicate().get(bytes);
+    final ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+    final DataInputStream dataIn = new DataInputStream(in);
+
+    final ReplicatedWalCompression compression = compression();
+    compression.reset();
+    final List<KeyValue> keyValues = new ArrayList<>();
+    while (in.available() > 0) {
+      keyValues.add(compression.read(dataIn));
+    }
+    return keyValues;
+  }
+
+  private static ReplicatedWalCompression compression() throws IOException {
+    ReplicatedWalCompression compression = COMPRESSION.get();
+    if (compression == null) {
+      compression = new ReplicatedWalCompression();
+      COMPRESSION.set(compression);
+    }
+    return compression;
+  }
+
+  private static int readVarInt32(ByteBuffer buffer) throws IOException {
+    int result = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      final byte b = buffer.get();
+      result |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return result;
+      }
+    }
+    throw new IOException("Malformed length prefix in replicated WAL entry");
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.log;
+
+import c5db.generated.RegionWalEdit;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Durability;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.regionserver.HRegionInterface;
+import org.apache.hadoop.hbase.regionserver.OperationStatus;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Rebuilds a region's memstore from its replicated log when the region is opened, so that edits which were
+ * acknowledged but not yet flushed survive a restart.
+ * <p>
+ * Only the edits after the region's flushed sequence number are replayed, so the work is bounded by the unflushed
+ * data rather than by the length of the log. Mutations are spread over several lanes by row and each lane applies
+ * its own in batches, in log order, so the edits to any one row are applied in the order they were made. Replayed
+ * mutations skip the WAL; they are in the log already.
+ */
+public class WalEditReplayer {
+  private static final Logger LOG = LoggerFactory.getLogger(WalEditReplayer.class);
+  private static final int MUTATIONS_PER_BATCH = 1000;
+  private static final int BATCHES_QUEUED_PER_LANE = 2;
+
+  private final HRegionInterface region;
+  private final String regionName;
+  private final long flushedSequenceNumber;
+  private final int lanes;
+
+  /**
+   * @param flushedSequenceNumber Edits at or below this sequence number are in the region's store files.
+   * @param lanes                 How many batches of mutations may be applied at once.
+   */
+  public WalEditReplayer(HRegionInterface region, String regionName, long flushedSequenceNumber, int lanes) {
+    this.region = region;
+    this.regionName = regionName;
+    this.flushedSequenceNumber = flushedSequenceNumber;
+    this.lanes = Math.max(1, lanes);
+  }
+
+  /**
+   * @param entries The data of each log entry, oldest first.
+   * @return the highest sequence number replayed, or the flushed sequence number if there was nothing to replay.
+   */
+  public long replay(Iterator<ByteBuffer> entries) throws IOException {
+    final List<ExecutorService> laneExecutors = new ArrayList<>(lanes);
+    for (int i = 0; i < lanes; i++) {
+      laneExecutors.add(Executors.newSingleThreadExecutor());
+    }
+    final Semaphore queuedBatches = new Semaphore(lanes * BATCHES_QUEUED_PER_LANE);
+    final List<List<Mutation>> pendingBatches = new ArrayList<>(lanes);
+    for (int i = 0; i < lanes; i++) {
+      pendingBatches.add(new ArrayList<>());
+    }
+    final List<Future<?>> appliedBatches = new ArrayList<>();
+
+    long highestSequenceNumber = flushedSequenceNumber;
+    long replayedEdits = 0;
+    try {
+      while (entries.hasNext()) {
+        final ByteBuffer entry = entries.next().duplicate();
+        while (entry.hasRemaining()) {
+          final RegionWalEdit edit = WalEditCodec.decode(entry);
+          if (!regionName.equals(edit.getRegionInfo()) || edit.getSequenceNumber() <= flushedSequenceNumber) {
+            continue;
+          }
+          highestSequenceNumber = Math.max(highestSequenceNumber, edit.getSequenceNumber());
+          replayedEdits++;
+
+          for (Mutation mutation : toMutations(WalEditCodec.keyValues(edit))) {
+            final int lane = (Bytes.hashCode(mutation.getRow()) & Integer.MAX_VALUE) % lanes;
+            final List<Mutation> batch = pendingBatches.get(lane);
+            batch.add(mutation);
+            if (batch.size() >= MUTATIONS_PER_BATCH) {
+              appliedBatches.add(apply(laneExecutors.get(lane), queuedBatches, batch));
+              pendingBatches.set(lane, new ArrayList<>());
+            }
+          }
+        }
+      }
+      for (int lane = 0; lane < lanes; lane++) {
+        if (!pendingBatches.get(lane).isEmpty()) {
+          appliedBatches.add(apply(laneExecutors.get(lane), queuedBatches, pendingBatches.get(lane)));
+        }
+      }
+      for (Future<?> appliedBatch : appliedBatches) {
+        appliedBatch.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted replaying the log of " + regionName);
+    } catch (ExecutionException e) {
+      throw new IOException("Unable to replay the log of " + regionName, e.getCause());
+    } catch (UncheckedIOException e) {
+      // Readers which page the log in lazily can only fail from within the iterator
+      throw e.getCause();
+    } finally {
+      laneExecutors.forEach(ExecutorService::shutdownNow);
+    }
+
+    LOG.info("Replayed {} edits into {}, through sequence number {}", replayedEdits, regionName,
+        highestSequenceNumber);
+    return highestSequenceNumber;
+  }
+
+  private Future<?> apply(ExecutorService lane, Semaphore queuedBatches, List<Mutation> batch)
+      throws InterruptedException {
+    // Reading the log is quicker than applying it; don't let the batches waiting to be applied pile up
+    queuedBatches.acquire();
+    return lane.submit(() -> {
+      try {
+        final OperationStatus[] statuses = region.batchMutate(batch.toArray(new Mutation[batch.size()]));
+        for (OperationStatus status : statuses) {
+          if (status.getOperationStatusCode() != HConstants.OperationStatusCode.SUCCESS) {
+            throw new IOException("Replayed mutation not applied: " + status.getOperationStatusCode() + " "
+                + status.getExceptionMsg());
+          }
+        }
+        return null;
+      } finally {
+        queuedBatches.release();
+      }
+    });
+  }
+
+  /**
+   * Groups an edit's cells back into mutations, one for each run of puts or deletes to the same row.
+   */
+  private static List<Mutation> toMutations(List<KeyValue> keyValues) throws IOException {
+    final List<Mutation> mutations = new ArrayList<>();
+    Mutation current = null;
+    for (KeyValue keyValue : keyValues) {
+      final boolean isDelete = KeyValue.isDelete(keyValue.getTypeByte());
+      if (current == null
+          || isDelete != (current instanceof Delete)
+          || !Bytes.equals(current.getRow(), 0, current.getRow().length,
+          keyValue.getRowArray(), keyValue.getRowOffset(), keyValue.getRowLength())) {
+        current = isDelete ? new Delete(keyValue.getRow()) : new Put(keyValue.getRow());
+        current.setDurability(Durability.SKIP_WAL);
+        mutations.add(current);
+      }
+      if (isDelete) {
+        ((Delete) current).addDeleteMarker(keyValue);
+      } else {
+        ((Put) current).add(keyValue);
+      }
+    }
+    return mutations;
+  }
+}
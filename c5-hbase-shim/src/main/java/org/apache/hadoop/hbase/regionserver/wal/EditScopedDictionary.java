@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.apache.hadoop.hbase.regionserver.wal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compression dictionary for a single replicated WAL edit. Unlike {@link LRUDictionary} it allocates its entries
+ * as they are added, so clearing it between edits costs only what the edit used. Once full it stops adding entries,
+ * on the writing and reading side alike.
+ */
+class EditScopedDictionary implements Dictionary {
+  private final List<byte[]> entries = new ArrayList<>();
+  private final Map<ByteBuffer, Short> indexes = new HashMap<>();
+  private int capacity = 0;
+
+  public EditScopedDictionary() {
+  }
+
+  @Override
+  public void init(int initialSize) {
+    capacity = initialSize;
+  }
+
+  @Override
+  public byte[] getEntry(short idx) {
+    return idx >= 0 && idx < entries.size() ? entries.get(idx) : null;
+  }
+
+  @Override
+  public short findEntry(byte[] data, int offset, int length) {
+    final Short idx = indexes.get(ByteBuffer.wrap(data, offset, length));
+    if (idx != null) {
+      return idx;
+    }
+    addEntry(data, offset, length);
+    return NOT_IN_DICTIONARY;
+  }
+
+  @Override
+  public short addEntry(byte[] data, int offset, int length) {
+    if (length <= 0 || entries.size() >= capacity) {
+      return NOT_IN_DICTIONARY;
+    }
+    final byte[] entry = new byte[length];
+    System.arraycopy(data, offset, entry, 0, length);
+    final short idx = (short) entries.size();
+    entries.add(entry);
+    indexes.put(ByteBuffer.wrap(entry), idx);
+    return idx;
+  }
+
+  @Override
+  public void clear() {
+    entries.clear();
+    indexes.clear();
+  }
+}
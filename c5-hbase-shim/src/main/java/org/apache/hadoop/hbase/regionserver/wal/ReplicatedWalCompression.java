@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package org.apache.hadoop.hbase.regionserver.wal;
+
+import org.apache.hadoop.hbase.KeyValue;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Dictionary compresses the row, family and qualifier of the KeyValues of replicated WAL edits, using HLog's
+ * compression. It lives in this package because that compression is package private.
+ * <p>
+ * Not thread safe. Both sides must {@link #reset()} at the same points in the stream of KeyValues.
+ */
+@SuppressWarnings("deprecation")
+public class ReplicatedWalCompression {
+  private final CompressionContext context;
+
+  public ReplicatedWalCompression() throws IOException {
+    try {
+      // No region or table names are compressed, so those dictionaries get the minimal size edits recovery uses
+      context = new CompressionContext(EditScopedDictionary.class, true);
+    } catch (ReflectiveOperationException | SecurityException e) {
+      throw new IOException("Unable to create a WAL compression context", e);
+    }
+  }
+
+  public void reset() {
+    context.clear();
+  }
+
+  public void write(DataOutput out, KeyValue keyValue) throws IOException {
+    KeyValueCompression.writeKV(out, keyValue, context);
+  }
+
+  public KeyValue read(DataInput in) throws IOException {
+    return KeyValueCompression.readKV(in, context);
+  }
+}
@@ -19,6 +19,7 @@ package c5db.log;
 import c5db.interfaces.replication.GeneralizedReplicator;
 import c5db.interfaces.replication.ReplicateSubmissionInfo;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
 import org.apache.hadoop.hbase.HRegionInfo;
 import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.KeyValue;
@@ -42,8 +43,13 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static c5db.FutureActions.returnFutureWithValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
 
 public class OLogShimTest {
 
@@ -107,20 +113,85 @@ public class OLogShimTest {
     hLog.sync();
   }
 
+  @Test
+  public void appendsAreGivenIncreasingTxids() throws Exception {
+    long firstTxid = havingAppendedAndReceivedResponse(hLog, aSuccessResponseWithSeqNum(1));
+    long secondTxid = havingAppendedAndReceivedResponse(hLog, aSuccessResponseWithSeqNum(2));
+
+    assertThat(secondTxid, is(greaterThan(firstTxid)));
+  }
 
-  private void havingAppendedAndReceivedResponse(HLog hLog, ReplicateSubmissionInfo submissionInfo) throws Exception {
+  @Test(timeout = 3000)
+  public void syncOfATxidDoesNotWaitForLaterAppends() throws Exception {
     context.checking(new Expectations() {{
-      allowing(replicator).replicate(with(anyData()));
-      will(returnFutureWithValue(submissionInfo));
+      oneOf(replicator).replicate(with(anyData()));
+      will(returnFutureWithValue(aSuccessResponseWithSeqNum(1)));
+      oneOf(replicator).replicate(with(anyData()));
+      will(returnFutureWithValue(aPendingResponseWithSeqNum(2)));
     }});
 
+    long firstTxid =
+        hLog.appendNoSync(info, tableName, aWalEditWithMultipleKeyValues(), aClusterIdList(), currentTime(), descriptor);
     hLog.appendNoSync(info, tableName, aWalEditWithMultipleKeyValues(), aClusterIdList(), currentTime(), descriptor);
+
+    hLog.sync(firstTxid);
+  }
+
+  @Test(expected = IOException.class, timeout = 3000)
+  public void aSyncFailsIfAnEarlierAppendFailedEvenThoughItsOwnCommitted() throws Exception {
+    havingAppendedAndReceivedResponse(hLog, aFailureResponseWithSeqNum(1));
+    long laterTxid = havingAppendedAndReceivedResponse(hLog, aSuccessResponseWithSeqNum(2));
+
+    hLog.sync(laterTxid); // exception
+  }
+
+  @Test(timeout = 3000)
+  public void aSyncWaitsForEarlierAppendsWhichHaveNotYetCommitted() throws Exception {
+    SettableFuture<Void> earlierCommit = SettableFuture.create();
+    havingAppendedAndReceivedResponse(hLog, new ReplicateSubmissionInfo(1, earlierCommit));
+    long laterTxid = havingAppendedAndReceivedResponse(hLog, aSuccessResponseWithSeqNum(2));
+
+    CountDownLatch synced = new CountDownLatch(1);
+    Thread syncer = new Thread(() -> {
+      try {
+        hLog.sync(laterTxid);
+        synced.countDown();
+      } catch (IOException ignore) {
+      }
+    });
+    syncer.start();
+
+    assertThat(synced.await(200, TimeUnit.MILLISECONDS), is(false));
+    earlierCommit.set(null);
+    assertThat(synced.await(2, TimeUnit.SECONDS), is(true));
+  }
+
+  @Test(expected = IOException.class, timeout = 3000)
+  public void theSyncOfAFailedAppendFailsEvenOnceLaterAppendsHaveCommitted() throws Exception {
+    long failedTxid = havingAppendedAndReceivedResponse(hLog, aFailureResponseWithSeqNum(1));
+    havingAppendedAndReceivedResponse(hLog, aSuccessResponseWithSeqNum(2));
+
+    hLog.sync(failedTxid); // exception
+  }
+
+  private long havingAppendedAndReceivedResponse(HLog hLog, ReplicateSubmissionInfo submissionInfo) throws Exception {
+    context.checking(new Expectations() {{
+      oneOf(replicator).replicate(with(anyData()));
+      will(returnFutureWithValue(submissionInfo));
+    }});
+
+    return hLog.appendNoSync(info, tableName, aWalEditWithMultipleKeyValues(), aClusterIdList(), currentTime(),
+        descriptor);
   }
 
   private ReplicateSubmissionInfo aSuccessResponseWithSeqNum(long seqNum) {
     return new ReplicateSubmissionInfo(seqNum, Futures.immediateFuture(null));
   }
 
+  private ReplicateSubmissionInfo aPendingResponseWithSeqNum(long seqNum) {
+    return new ReplicateSubmissionInfo(seqNum, SettableFuture.create());
+  }
+
   private ReplicateSubmissionInfo aFailureResponseWithSeqNum(long seqNum) {
     return new ReplicateSubmissionInfo(seqNum, Futures.immediateFailedFuture(new IOException()));
   }
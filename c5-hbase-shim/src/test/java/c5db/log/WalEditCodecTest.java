@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.log;
+
+import c5db.generated.RegionWalEdit;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.regionserver.wal.WALEdit;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+public class WalEditCodecTest {
+
+  @Test
+  public void anEditDecodesToTheRegionAndKeyValuesItWasEncodedFrom() throws Exception {
+    final WALEdit edit = aWalEditWithKeyValues(3);
+
+    final RegionWalEdit decoded = WalEditCodec.decode(concatenate(WalEditCodec.encode("region", 1, edit)));
+
+    assertThat(decoded.getRegionInfo(), is(equalTo("region")));
+    assertThat(WalEditCodec.keyValues(decoded), is(equalTo(edit.getKeyValues())));
+  }
+
+  @Test
+  public void aCompressedEditDecodesToTheKeyValuesItWasEncodedFrom() throws Exception {
+    final WALEdit edit = aWalEditWithKeyValues(3);
+
+    final RegionWalEdit decoded = WalEditCodec.decode(concatenate(WalEditCodec.encodeCompressed("region", 1, edit)));
+
+    assertThat(decoded.getRegionInfo(), is(equalTo("region")));
+    assertThat(WalEditCodec.keyValues(decoded), is(equalTo(edit.getKeyValues())));
+  }
+
+  @Test
+  public void compressingAWideEditWritesItsRepeatedRowAndFamilyOnce() throws Exception {
+    final WALEdit edit = aWalEditWithKeyValues(100);
+
+    final int plainSize = concatenate(WalEditCodec.encode("region", 1, edit)).remaining();
+    final int compressedSize = concatenate(WalEditCodec.encodeCompressed("region", 1, edit)).remaining();
+
+    assertThat(compressedSize, is(lessThan(plainSize)));
+  }
+
+  @Test
+  public void consecutiveEditsDecodeInTurn() throws Exception {
+    final ByteBuffer log = ByteBuffer.allocate(4096);
+    log.put(concatenate(WalEditCodec.encode("first", 1, aWalEditWithKeyValues(1))));
+    log.put(concatenate(WalEditCodec.encode("second", 1, aWalEditWithKeyValues(2))));
+    log.flip();
+
+    assertThat(WalEditCodec.decode(log).getRegionInfo(), is(equalTo("first")));
+    assertThat(WalEditCodec.keyValues(WalEditCodec.decode(log)).size(), is(2));
+    assertThat(log.hasRemaining(), is(false));
+  }
+
+  private static WALEdit aWalEditWithKeyValues(int count) {
+    final WALEdit edit = new WALEdit();
+    for (int i = 0; i < count; i++) {
+      edit.add(new KeyValue(Bytes.toBytes("row"), Bytes.toBytes("f"), Bytes.toBytes("q" + i), i, new byte[128]));
+    }
+    return edit;
+  }
+
+  private static ByteBuffer concatenate(List<ByteBuffer> buffers) {
+    final ByteBuffer whole = ByteBuffer.allocate(buffers.stream().mapToInt(ByteBuffer::remaining).sum());
+    buffers.forEach(buffer -> whole.put(buffer.duplicate()));
+    whole.flip();
+    return whole;
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.log;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Durability;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.regionserver.HRegionInterface;
+import org.apache.hadoop.hbase.regionserver.OperationStatus;
+import org.apache.hadoop.hbase.regionserver.wal.WALEdit;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.integration.junit4.JUnitRuleMockery;
+import org.jmock.lib.action.CustomAction;
+import org.jmock.lib.concurrent.Synchroniser;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+public class WalEditReplayerTest {
+  @Rule
+  public JUnitRuleMockery context = new JUnitRuleMockery() {{
+    setThreadingPolicy(new Synchroniser());
+  }};
+
+  private final HRegionInterface region = context.mock(HRegionInterface.class);
+  private final List<Mutation> applied = Collections.synchronizedList(new ArrayList<>());
+
+  @Test
+  public void onlyEditsOfTheRegionNewerThanItsStoreFilesAreReplayed() throws Exception {
+    context.checking(new Expectations() {{
+      allowing(region).batchMutate(with(any(Mutation[].class)));
+      will(recordMutations());
+    }});
+
+    final long replayedThrough = new WalEditReplayer(region, "region", 5, 2).replay(Arrays.asList(
+        entry("region", 4, "flushedRow"),
+        entry("region", 6, "unflushedRow"),
+        entry("anotherRegion", 7, "anotherRegionsRow"),
+        entry("region", 8, "laterRow")).iterator());
+
+    assertThat(replayedThrough, is(8L));
+    assertThat(appliedRows(), is(equalTo(Arrays.asList("laterRow", "unflushedRow"))));
+  }
+
+  @Test
+  public void replayedMutationsSkipTheWal() throws Exception {
+    context.checking(new Expectations() {{
+      oneOf(region).batchMutate(with(any(Mutation[].class)));
+      will(recordMutations());
+    }});
+
+    new WalEditReplayer(region, "region", 0, 1).replay(Arrays.asList(entry("region", 1, "row")).iterator());
+
+    assertThat(applied.get(0).getDurability(), is(Durability.SKIP_WAL));
+  }
+
+  @Test
+  public void withNothingToReplayTheFlushedSequenceNumberIsReturned() throws Exception {
+    final long replayedThrough = new WalEditReplayer(region, "region", 5, 2).replay(
+        Collections.<ByteBuffer>emptyIterator());
+
+    assertThat(replayedThrough, is(5L));
+  }
+
+  private CustomAction recordMutations() {
+    return new CustomAction("record mutations") {
+      @Override
+      public Object invoke(Invocation invocation) throws Throwable {
+        final Mutation[] mutations = (Mutation[]) invocation.getParameter(0);
+        applied.addAll(Arrays.asList(mutations));
+        final OperationStatus[] statuses = new OperationStatus[mutations.length];
+        Arrays.fill(statuses, new OperationStatus(HConstants.OperationStatusCode.SUCCESS));
+        return statuses;
+      }
+    };
+  }
+
+  private List<String> appliedRows() {
+    final List<String> rows = new ArrayList<>();
+    applied.forEach(mutation -> rows.add(Bytes.toString(mutation.getRow())));
+    Collections.sort(rows);
+    return rows;
+  }
+
+  private static ByteBuffer entry(String regionName, long sequenceNumber, String row) throws Exception {
+    final WALEdit edit = new WALEdit();
+    edit.add(new KeyValue(Bytes.toBytes(row), Bytes.toBytes("f"), Bytes.toBytes("q"), Bytes.toBytes("value")));
+
+    final List<ByteBuffer> buffers = WalEditCodec.encode(regionName, sequenceNumber, edit);
+    final ByteBuffer entry = ByteBuffer.allocate(buffers.stream().mapToInt(ByteBuffer::remaining).sum());
+    buffers.forEach(buffer -> entry.put(buffer.duplicate()));
+    entry.flip();
+    return entry;
+  }
+}
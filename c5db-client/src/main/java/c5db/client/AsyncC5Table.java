@@ -0,0 +1,317 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client;
+
+import c5db.client.generated.MultiRequest;
+import c5db.client.generated.MutateRequest;
+import c5db.client.generated.MutationProto;
+import c5db.client.generated.RegionAction;
+import c5db.client.generated.Response;
+import c5db.client.generated.ResultOrException;
+import c5db.client.generated.ScanRequest;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import io.protostuff.ByteString;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.client.RowMutations;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A non-blocking client for one table. Every operation returns as soon as its request is sent, with a future which
+ * completes once the response arrives and has been converted to HBase client types.
+ * <p>
+ * Responses are converted, and the returned futures completed, on the callback executor. By default that is the
+ * connection's event loop, so callbacks must not block; pass an executor to run them elsewhere. Each operation fails
+ * with a {@link TimeoutException} if it is not answered in time. A timed out call is abandoned by the caller only:
+ * the request may still be applied on the server.
+ */
+public class AsyncC5Table implements AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(AsyncC5Table.class);
+  private final TableInterface c5AsyncDatabase;
+  private final byte[] tableName;
+  private final Executor callbackExecutor;
+  private volatile long defaultTimeoutMillis = C5Constants.TIMEOUT;
+
+  public AsyncC5Table(String hostname, int port, ByteString tableName)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    this(hostname, port, tableName, MoreExecutors.sameThreadExecutor());
+  }
+
+  /**
+   * @param callbackExecutor Where responses are converted and the returned futures completed.
+   */
+  public AsyncC5Table(String hostname, int port, ByteString tableName, Executor callbackExecutor)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    this(new RoutingTableInterface(hostname, port), tableName, callbackExecutor);
+  }
+
+  AsyncC5Table(TableInterface c5AsyncDatabase, ByteString tableName, Executor callbackExecutor) {
+    this.c5AsyncDatabase = c5AsyncDatabase;
+    this.tableName = tableName.toByteArray();
+    this.callbackExecutor = callbackExecutor;
+  }
+
+  /**
+   * Sets the timeout of the operations which are not given one.
+   */
+  public void setDefaultTimeout(long timeout, TimeUnit unit) {
+    this.defaultTimeoutMillis = unit.toMillis(timeout);
+  }
+
+  public ListenableFuture<Result> get(Get get) {
+    return get(get, defaultTimeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public ListenableFuture<Result> get(Get get, long timeout, TimeUnit unit) {
+    try {
+      return whenAnswered(c5AsyncDatabase.get(RequestConverter.buildGetRequest(tableName, get, false),
+              unit.toMillis(timeout)),
+          response -> ProtobufUtil.toResult(response.getGet().getResult()));
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  public ListenableFuture<Boolean> exists(Get get) {
+    return exists(get, defaultTimeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public ListenableFuture<Boolean> exists(Get get, long timeout, TimeUnit unit) {
+    try {
+      return whenAnswered(c5AsyncDatabase.get(RequestConverter.buildGetRequest(tableName, get, true),
+              unit.toMillis(timeout)),
+          response -> response.getGet().getResult().getExists());
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+
+  /**
+   * Reads the gets in MULTI calls of at most {@link C5Constants#MAX_ACTIONS_PER_MULTI}, all sent at once. The
+   * results are in the order of the gets.
+   */
+  public ListenableFuture<Result[]> get(List<Get> gets) {
+    return get(gets, defaultTimeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public ListenableFuture<Result[]> get(List<Get> gets, long timeout, TimeUnit unit) {
+    final List<ListenableFuture<Response>> responses = new ArrayList<>();
+    try {
+      for (RegionAction regionAction : MultiCalls.buildGetActions(tableName, gets, false)) {
+        responses.add(c5AsyncDatabase.multiRequest(new MultiRequest(Arrays.asList(regionAction)),
+            unit.toMillis(timeout)));
+      }
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+
+    return whenAnswered(Futures.allAsList(responses), replies -> {
+      final Result[] results = new Result[gets.size()];
+      for (Response response : replies) {
+        for (ResultOrException resultOrException : MultiCalls.resultsOf(response)) {
+          results[resultOrException.getIndex()] = ProtobufUtil.toResult(resultOrException.getResult());
+        }
+      }
+      return results;
+    });
+  }
+
+  public ListenableFuture<Void> put(Put put) {
+    return put(put, defaultTimeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public ListenableFuture<Void> put(Put put, long timeout, TimeUnit unit) {
+    return mutate(RequestConverter.buildMutateRequest(tableName, MutationProto.MutationType.PUT, put), timeout, unit);
+  }
+
+  public ListenableFuture<Void> delete(Delete delete) {
+    return delete(delete, defaultTimeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public ListenableFuture<Void> delete(Delete delete, long timeout, TimeUnit unit) {
+    return mutate(RequestConverter.buildMutateRequest(tableName, MutationProto.MutationType.DELETE, delete),
+        timeout,
+        unit);
+  }
+
+  /**
+   * Applies the puts and deletes in non-atomic MULTI calls, all sent at once. The future fails with a
+   * {@link RetriesExhaustedWithDetailsException} naming each mutation which could not be applied.
+   */
+  public ListenableFuture<Void> batch(List<? extends Mutation> mutations) {
+    return batch(mutations, defaultTimeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public ListenableFuture<Void> batch(List<? extends Mutation> mutations, long timeout, TimeUnit unit) {
+    final List<ListenableFuture<Response>> responses = new ArrayList<>();
+    final List<? extends List<? extends Mutation>> batches = MultiCalls.split(mutations);
+    try {
+      for (List<? extends Mutation> batch : batches) {
+        final RegionAction regionAction = RequestConverter.buildRegionAction(tableName, batch);
+        responses.add(c5AsyncDatabase.multiRequest(new MultiRequest(Arrays.asList(regionAction)),
+            unit.toMillis(timeout)));
+      }
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+
+    return whenAnswered(Futures.allAsList(responses), replies -> {
+      final List<Throwable> causes = new ArrayList<>();
+      final List<Row> failed = new ArrayList<>();
+      for (int i = 0; i < replies.size(); i++) {
+        MultiCalls.collectFailures(batches.get(i), replies.get(i), causes, failed);
+      }
+      if (!failed.isEmpty()) {
+        throw new RetriesExhaustedWithDetailsException(causes,
+            failed,
+            Collections.nCopies(failed.size(), Bytes.toString(tableName)));
+      }
+      return null;
+    });
+  }
+
+  public ListenableFuture<Void> mutateRow(RowMutations rowMutations) {
+    return mutateRow(rowMutations, defaultTimeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public ListenableFuture<Void> mutateRow(RowMutations rowMutations, long timeout, TimeUnit unit) {
+    final RegionAction regionAction;
+    try {
+      regionAction = RequestConverter.buildRegionAction(tableName, rowMutations);
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+    return whenAnswered(c5AsyncDatabase.multiRequest(new MultiRequest(Arrays.asList(regionAction)),
+        unit.toMillis(timeout)), response -> {
+      MultiCalls.checkRegionActions(response);
+      return null;
+    });
+  }
+
+  /**
+   * @return whether the put was applied, which it is only if the cell holds the value.
+   */
+  public ListenableFuture<Boolean> checkAndPut(byte[] row, byte[] family, byte[] qualifier, byte[] value, Put put) {
+    return checkAndMutate(RequestConverter.buildMutateRequest(tableName,
+        MutationProto.MutationType.PUT,
+        put,
+        RequestConverter.buildCondition(row, family, qualifier, value)));
+  }
+
+  /**
+   * @return whether the delete was applied, which it is only if the cell holds the value.
+   */
+  public ListenableFuture<Boolean> checkAndDelete(byte[] row, byte[] family, byte[] qualifier, byte[] value,
+                                                  Delete delete) {
+    return checkAndMutate(RequestConverter.buildMutateRequest(tableName,
+        MutationProto.MutationType.DELETE,
+        delete,
+        RequestConverter.buildCondition(row, family, qualifier, value)));
+  }
+
+  /**
+   * Opens a scanner. Iterating it blocks while it waits for rows, so it should not be read on the event loop.
+   */
+  public ListenableFuture<ResultScanner> getScanner(Scan scan) {
+    final ScanRequest scanRequest;
+    try {
+      scanRequest = new ScanRequest(RequestConverter.buildRegionSpecifier(tableName),
+          ProtobufUtil.toScan(scan),
+          0L,
+          C5Constants.DEFAULT_INIT_SCAN,
+          false,
+          0L);
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+    return whenAnswered(c5AsyncDatabase.scan(scanRequest, defaultTimeoutMillis), scanner -> scanner);
+  }
+
+  private ListenableFuture<Void> mutate(MutateRequest mutateRequest, long timeout, TimeUnit unit) {
+    return whenAnswered(c5AsyncDatabase.mutate(mutateRequest, unit.toMillis(timeout)), response -> {
+      if (!response.getMutate().getProcessed()) {
+        throw new IOException("Not processed");
+      }
+      return null;
+    });
+  }
+
+  private ListenableFuture<Boolean> checkAndMutate(MutateRequest mutateRequest) {
+    return whenAnswered(c5AsyncDatabase.mutate(mutateRequest, defaultTimeoutMillis),
+        response -> response.getMutate().getProcessed());
+  }
+
+  /**
+   * Converts the response on the callback executor. The call itself fails if it is not answered within the
+   * timeout it was sent with.
+   */
+  private <R, T> ListenableFuture<T> whenAnswered(ListenableFuture<R> response, ResponseConverter<R, T> converter) {
+    final SettableFuture<T> result = SettableFuture.create();
+    Futures.addCallback(response, new FutureCallback<R>() {
+      @Override
+      public void onSuccess(R answer) {
+        try {
+          result.set(converter.convert(answer));
+        } catch (IOException | RuntimeException e) {
+          result.setException(e);
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        result.setException(t);
+      }
+    }, callbackExecutor);
+    return result;
+  }
+
+  @Override
+  public void close() {
+    try {
+      c5AsyncDatabase.close();
+    } catch (Exception e) {
+      LOG.error("Error closing", e);
+    }
+  }
+
+  private interface ResponseConverter<R, T> {
+    T convert(R response) throws IOException;
+  }
+}
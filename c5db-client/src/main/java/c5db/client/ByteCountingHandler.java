@@ -0,0 +1,50 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+
+/**
+ * Counts the bytes going over the wire in either direction. Sits first in the pipeline, where only raw buffers pass.
+ */
+@ChannelHandler.Sharable
+class ByteCountingHandler extends ChannelDuplexHandler {
+  static final ByteCountingHandler INSTANCE = new ByteCountingHandler();
+
+  private ByteCountingHandler() {
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof ByteBuf) {
+      ClientMetrics.BYTES_RECEIVED.mark(((ByteBuf) msg).readableBytes());
+    }
+    super.channelRead(ctx, msg);
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+    if (msg instanceof ByteBuf) {
+      ClientMetrics.BYTES_SENT.mark(((ByteBuf) msg).readableBytes());
+    }
+    super.write(ctx, msg, promise);
+  }
+}
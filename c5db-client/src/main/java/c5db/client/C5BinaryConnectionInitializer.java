@@ -0,0 +1,50 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client;
+
+import c5db.client.codec.LengthPrefixedProtostuffDecoder;
+import c5db.client.codec.LengthPrefixedProtostuffEncoder;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.socket.SocketChannel;
+
+/**
+ * Initializes a raw TCP / length-prefixed protostuff pipeline for netty. This skips the HTTP codec, the
+ * websocket handshake and frame aggregation used by {@link C5ConnectionInitializer}.
+ */
+class C5BinaryConnectionInitializer extends C5ConnectionInitializer {
+
+  public C5BinaryConnectionInitializer() {
+    super(null);
+  }
+
+  @Override
+  protected void initChannel(SocketChannel ch) throws Exception {
+    final ChannelPipeline pipeline = ch.pipeline();
+    pipeline.addLast("byte-counter", ByteCountingHandler.INSTANCE);
+    pipeline.addLast("message-decoder", new LengthPrefixedProtostuffDecoder());
+    pipeline.addLast("message-encoder", new LengthPrefixedProtostuffEncoder());
+    pipeline.addLast("message-handler", new FutureBasedMessageHandler());
+  }
+
+  @Override
+  public ListenableFuture<?> handshakeFuture() {
+    // There is no handshake on the binary transport, the channel is usable as soon as it is connected
+    return Futures.immediateFuture(null);
+  }
+}
@@ -18,6 +18,7 @@ package c5db.client;
 
 import c5db.client.codec.WebsocketProtostuffDecoder;
 import c5db.client.codec.WebsocketProtostuffEncoder;
+import com.google.common.util.concurrent.ListenableFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
@@ -26,9 +27,6 @@ import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
 import io.netty.handler.codec.http.websocketx.WebSocketFrameAggregator;
 
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeoutException;
-
 /**
  * A simple helper class which initializes a websocket / protocol buffers (protostuff) handler
  * for netty.
@@ -47,6 +45,7 @@ class C5ConnectionInitializer extends ChannelInitializer<SocketChannel> {
   protected void initChannel(SocketChannel ch) throws Exception {
     decoder = new WebsocketProtostuffDecoder(handShaker);
     final ChannelPipeline pipeline = ch.pipeline();
+    pipeline.addLast("byte-counter", ByteCountingHandler.INSTANCE);
     pipeline.addLast("http-client", new HttpClientCodec());
     pipeline.addLast("aggregator", new HttpObjectAggregator(C5Constants.MAX_RESPONSE_SIZE));
     pipeline.addLast("websec-codec", new WebsocketProtostuffEncoder(handShaker));
@@ -55,7 +54,10 @@ class C5ConnectionInitializer extends ChannelInitializer<SocketChannel> {
     pipeline.addLast("message-handler", new FutureBasedMessageHandler());
   }
 
-  public void syncOnHandshake() throws InterruptedException, TimeoutException, ExecutionException {
-    decoder.syncOnHandshake();
+  /**
+   * Completes once the channel can carry calls. Only valid once the channel has been initialized.
+   */
+  public ListenableFuture<?> handshakeFuture() {
+    return decoder.handshakeFuture();
   }
 }
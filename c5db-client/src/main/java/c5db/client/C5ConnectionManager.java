@@ -16,13 +16,43 @@
 
 package c5db.client;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import io.netty.channel.Channel;
 
+import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 
 public interface C5ConnectionManager {
-  Channel getOrCreateChannel(byte tableName, byte row);
+  /**
+   * Finds the tablet holding the row without blocking the caller: from the cache, or else by reading the catalog
+   * tables in the background. The future fails with an IOException if no tablet with a leader holds the row.
+   */
+  ListenableFuture<RegionLocation> locateRegion(byte[] tableName, byte[] row);
+
+  /**
+   * Connects to the region server of the node, or to the bootstrap node if the node's address is not known.
+   */
+  Channel getOrCreateChannel(long nodeId) throws InterruptedException, ExecutionException, TimeoutException;
+
+  /**
+   * As {@link #getOrCreateChannel(long)}, without blocking the caller: a channel which is open already is returned
+   * straight away, and a new connection is waited for on the future. Safe to call from an event loop.
+   */
+  ListenableFuture<Channel> getOrCreateChannelAsync(long nodeId);
+
+  /**
+   * @return the locations of the tablets holding the rows from startRow up to stopRow, in row order. An empty stop
+   * row means the end of the table.
+   */
+  List<RegionLocation> locateRegions(byte[] tableName, byte[] startRow, byte[] stopRow)
+      throws InterruptedException, ExecutionException, TimeoutException, IOException;
+
+  /**
+   * Drops the cached location of the tablet holding the row, so the next request for it looks it up again.
+   */
+  void invalidateRegionLocation(byte[] tableName, byte[] row);
 
   Channel getOrCreateChannel(String host, int port) throws InterruptedException, ExecutionException, TimeoutException;
 
@@ -16,18 +16,63 @@
 
 package c5db.client;
 
+import org.apache.hadoop.hbase.util.Bytes;
+
 /**
  * A class to abstract all of the magic numbers for our client
  */
 public final class C5Constants {
   public static final int DEFAULT_INIT_SCAN = 100;
   public static final int MAX_REQUEST_SIZE = 1000000;
-  public static final int MAX_CACHE_SZ = MAX_REQUEST_SIZE * 2;
+  // The most bytes of scan results a scanner holds, buffered or expected from rows it has asked for
+  public static final long DEFAULT_SCANNER_BUFFER_BYTES = 32 * 1024 * 1024;
+  public static final String SCANNER_BUFFER_BYTES_PROPERTY_NAME = "c5.client.scannerBufferBytes";
+  // Tablets a scan spanning several of them reads at once
+  public static final int DEFAULT_SCAN_PARALLELISM = 4;
+  // How long a scanner waits for rows it has asked for before giving up
+  public static final long SCANNER_TIMEOUT_MILLIS = 60000;
   public static final int TEST_PORT = 31337;
   public static final long TIMEOUT = 10000;
   public static final int MAX_CONTENT_LENGTH_HTTP_AGG = 8192;
   public static final int MAX_RESPONSE_SIZE = Integer.MAX_VALUE;
+  public static final int LENGTH_FIELD_SIZE = 4;
+  // Largest Response accepted from a binary connection; a longer length prefix is a corrupt stream
+  public static final int MAX_BINARY_FRAME_SIZE = 64 * 1024 * 1024;
   public static final int IN_FLIGHT_CALLS = 100000;
+  // Batched operations are split into MULTI calls of at most this many actions, which are pipelined
+  public static final int MAX_ACTIONS_PER_MULTI = 1000;
+  // Buffered mutations are sent once they exceed this many bytes, unless auto flush is on
+  public static final long DEFAULT_WRITE_BUFFER_SIZE = 2 * 1024 * 1024;
+  // Background write buffer flushes beyond this many unanswered MULTI calls wait for the oldest to be answered
+  public static final int MAX_IN_FLIGHT_WRITE_BATCHES = 16;
+  // Full write buffers handed to the background flusher beyond this many, not yet sent, make the writer wait
+  public static final int MAX_QUEUED_WRITE_BUFFERS = 2;
+  // Connections the client keeps to each region server; calls go to the one with the fewest unanswered
+  public static final int DEFAULT_CHANNELS_PER_SERVER = 4;
+  // A connection which could not be made is retried after a delay which doubles up to the maximum
+  public static final long MIN_RECONNECT_BACKOFF_MILLIS = 100;
+  public static final long MAX_RECONNECT_BACKOFF_MILLIS = 10000;
+  // Slots in each connection's table of calls awaiting their responses; more calls than this in flight spill over
+  public static final int PENDING_CALL_SLOTS = 1024;
+  // Calls not answered within this long fail, and are forgotten
+  public static final long DEFAULT_CALL_TIMEOUT_MILLIS = 60000;
+  // Gets still unanswered at this percentile of recent get latencies are also sent to a replica; 0 is off
+  public static final String HEDGED_READ_PERCENTILE_PROPERTY_NAME = "c5.client.hedgedReadPercentile";
+  // Gets are not hedged until this many latencies have been measured
+  public static final long HEDGED_READ_MIN_SAMPLES = 100;
+  // The catalog tables the client reads tablet boundaries and leaders from
+  public static final String ROOT_TABLE_NAME = "hbase:root";
+  public static final String META_TABLE_NAME = "hbase:meta";
+  // The catalog column holding the node id of a tablet's leader, as written by the server
+  public static final byte[] LEADER_QUALIFIER = Bytes.toBytes("LEADER_QUALIFIER");
+  // The catalog column holding the "host:port" of the leader's region server, next to its node id
+  public static final byte[] LEADER_ADDRESS_QUALIFIER = Bytes.toBytes("LEADER_ADDRESS_QUALIFIER");
+  // The catalog column listing the nodes replicating a tablet, as comma separated "nodeId=host:port" or "nodeId"
+  public static final byte[] PEERS_QUALIFIER = Bytes.toBytes("PEERS_QUALIFIER");
+  // A region server's binary listener is at this offset from the port it advertises, which is its WebSocket one
+  public static final int BINARY_PORT_OFFSET = 10000;
+  // A table looked up in the catalog within this long is not looked up again for a row none of its tablets hold
+  public static final long LOCATION_MISS_TTL_MILLIS = 1000;
 
   private C5Constants() {
     throw new UnsupportedOperationException();
@@ -17,10 +17,20 @@
 package c5db.client;
 
 import c5db.client.codec.WebsocketProtostuffEncoder;
+import c5db.client.generated.ScanRequest;
+import c5db.client.scanner.ClientScanner;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
@@ -30,26 +40,81 @@ import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
 import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
 import io.netty.handler.codec.http.websocketx.WebSocketVersion;
-import org.mortbay.log.Log;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A class which manages all of the outbound connections from a client to a set of regions/tablets.
+ * <p>
+ * The first node connected to is the bootstrap node. Tablet locations are looked up through it: hbase:root names
+ * the leader of hbase:meta, and hbase:meta holds the boundaries, leader and replicas, with their addresses, of every
+ * user tablet. Lookups run on a background thread, one per table at a time, and callers wait on a future rather than
+ * a lock. Locations are cached until invalidated, and requests go straight to the tablet's leader when its address
+ * is known. A row which the last lookup of its table found no tablet for fails fast for
+ * {@link C5Constants#LOCATION_MISS_TTL_MILLIS} rather than being looked up again.
  */
 public class C5NettyConnectionManager implements C5ConnectionManager {
-  private final RegionChannelMap regionChannelMap = RegionChannelMap.INSTANCE;
+  // A table's rows in hbase:meta are "table,startKey,regionId", so they sort between these two suffixes
+  private static final byte[] META_ROW_FIRST_SUFFIX = Bytes.toBytes(",");
+  private static final byte[] META_ROW_LAST_SUFFIX = Bytes.toBytes("-");
+  private final Map<String, ChannelPool> channelPools = new ConcurrentHashMap<>();
+  private final RegionLocationCache regionLocationCache = new RegionLocationCache();
+  private final Map<Long, InetSocketAddress> nodeAddresses = new ConcurrentHashMap<>();
+  private final ConcurrentMap<ByteBuffer, TableLookup> tableLookups = new ConcurrentHashMap<>();
+  private final ExecutorService lookupExecutor =
+      Executors.newCachedThreadPool(new DefaultThreadFactory("c5-client-locator", true));
+  // Catalog lookups count down, so their command ids never meet those of the table interfaces sharing a channel
+  private final AtomicLong lookupCommandId = new AtomicLong(0);
   private final Bootstrap bootstrap = new Bootstrap();
 
   private final EventLoopGroup group = new NioEventLoopGroup();
+  private final C5Transport transport;
+  private final int channelsPerServer;
   private URI uri;
+  private volatile InetSocketAddress bootstrapAddress;
 
   public C5NettyConnectionManager() {
+    this(C5Transport.WEBSOCKET);
+  }
+
+  /**
+   * @param transport The wire transport to use. {@link C5Transport#BINARY} connections must be made to the region
+   *                  server's binary port.
+   */
+  public C5NettyConnectionManager(C5Transport transport) {
+    this(transport, C5Constants.DEFAULT_CHANNELS_PER_SERVER);
+  }
+
+  /**
+   * @param transport         The wire transport to use.
+   * @param channelsPerServer The most connections to open to each region server. Calls are spread over them, so
+   *                          that one busy connection, and its event loop, does not hold the others up.
+   */
+  public C5NettyConnectionManager(C5Transport transport, int channelsPerServer) {
+    this.transport = transport;
+    this.channelsPerServer = channelsPerServer;
     bootstrap.group(group);
     bootstrap.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
 
@@ -65,54 +130,297 @@ public class C5NettyConnectionManager implements C5ConnectionManager {
     return host + ":" + port;
   }
 
-  Channel connect(String host, int port)
-      throws InterruptedException, TimeoutException, ExecutionException {
-    final WebSocketClientHandshaker handShaker = WebSocketClientHandshakerFactory.newHandshaker(uri,
+  /**
+   * Starts connecting without waiting; the future completes once the channel is connected and, on the websocket
+   * transport, has completed its handshake.
+   */
+  ListenableFuture<Channel> connect(String host, int port) {
+    final C5ConnectionInitializer initializer;
+    if (transport == C5Transport.BINARY) {
+      initializer = new C5BinaryConnectionInitializer();
+    } else {
+      initializer = new C5ConnectionInitializer(newHandShaker());
+    }
+    // Pools connect concurrently, so each connection gets its own copy of the bootstrap
+    final ChannelFuture future = bootstrap.clone()
+        .channel(NioSocketChannel.class)
+        .handler(initializer)
+        .connect(host, port);
+
+    final SettableFuture<Channel> connected = SettableFuture.create();
+    future.addListener((ChannelFutureListener) connectFuture -> {
+      if (!connectFuture.isSuccess()) {
+        connected.setException(connectFuture.cause());
+        return;
+      }
+      final Channel channel = connectFuture.channel();
+      Futures.addCallback(initializer.handshakeFuture(), new FutureCallback<Object>() {
+        @Override
+        public void onSuccess(Object result) {
+          connected.set(channel);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          channel.close();
+          connected.setException(t);
+        }
+      });
+    });
+    return connected;
+  }
+
+  private WebSocketClientHandshaker newHandShaker() {
+    return WebSocketClientHandshakerFactory.newHandshaker(uri,
         WebSocketVersion.V13,
         null,
         false,
         new DefaultHttpHeaders());
-    final C5ConnectionInitializer initializer = new C5ConnectionInitializer(handShaker);
-    bootstrap.channel(NioSocketChannel.class).handler(initializer);
+  }
+
+  /**
+   * Tells the client where a node's region server listens, as advertised in the catalog. Tablets led by nodes without
+   * a known address are reached through the bootstrap node.
+   */
+  public void setNodeAddress(long nodeId, String host, int port) {
+    nodeAddresses.put(nodeId, InetSocketAddress.createUnresolved(host, port));
+  }
 
-    final ChannelFuture future = bootstrap.connect(host, port);
-    final Channel channel = future.sync().channel();
-    initializer.syncOnHandshake();
+  @Override
+  public List<RegionLocation> locateRegions(byte[] tableName, byte[] startRow, byte[] stopRow)
+      throws InterruptedException, ExecutionException, TimeoutException, IOException {
+    final List<RegionLocation> locations = new ArrayList<>();
+    byte[] row = startRow;
+    while (true) {
+      final RegionLocation location;
+      try {
+        location = locateRegion(tableName, row).get(C5Constants.TIMEOUT, TimeUnit.MILLISECONDS);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw e;
+      }
+      locations.add(location);
+      final byte[] endKey = location.getEndKey();
+      if (endKey.length == 0 || (stopRow.length != 0 && Bytes.compareTo(endKey, stopRow) >= 0)) {
+        return locations;
+      }
+      row = endKey;
+    }
+  }
 
-    return channel;
+  @Override
+  public void invalidateRegionLocation(byte[] tableName, byte[] row) {
+    regionLocationCache.invalidate(tableName, row);
+    // The tablet has moved, so the next request for it looks the table up again straight away
+    final TableLookup lookup = tableLookups.get(ByteBuffer.wrap(tableName));
+    if (lookup != null && lookup.task.isDone()) {
+      tableLookups.remove(ByteBuffer.wrap(tableName), lookup);
+    }
   }
 
   @Override
-  public Channel getOrCreateChannel(byte tableName, byte row) {
-    // look up the leader in the local meta cache
+  public ListenableFuture<RegionLocation> locateRegion(byte[] tableName, byte[] row) {
+    final RegionLocation cached = regionLocationCache.get(tableName, row);
+    if (cached != null) {
+      return Futures.immediateFuture(cached);
+    }
+
+    final AsyncFunction<Void, RegionLocation> locate = lookedUp -> {
+      final RegionLocation location = regionLocationCache.get(tableName, row);
+      if (location == null) {
+        return Futures.immediateFailedFuture(new IOException("No tablet of " + Bytes.toString(tableName)
+            + " with a leader holds row " + Bytes.toStringBinary(row)));
+      }
+      return Futures.immediateFuture(location);
+    };
+    return Futures.transform(lookUpTable(tableName), locate);
+  }
+
+  /**
+   * Starts a background lookup of the table's tablets, unless one is under way or finished too recently to look again.
+   */
+  private ListenableFuture<Void> lookUpTable(byte[] tableName) {
+    final ByteBuffer key = ByteBuffer.wrap(tableName);
+    while (true) {
+      final TableLookup previous = tableLookups.get(key);
+      if (previous != null && !previous.isExpired()) {
+        return previous.task;
+      }
+
+      final TableLookup lookup = new TableLookup(ListenableFutureTask.create(() -> {
+        cacheTabletLocations(tableName);
+        return null;
+      }));
+      final boolean started = previous == null
+          ? tableLookups.putIfAbsent(key, lookup) == null
+          : tableLookups.replace(key, previous, lookup);
+      if (started) {
+        lookupExecutor.execute(lookup.task);
+        return lookup.task;
+      }
+    }
+  }
 
-    return null;
+  /**
+   * Caches the location of every tablet of the table which currently has a leader, and the addresses of the leaders.
+   */
+  private void cacheTabletLocations(byte[] tableName)
+      throws InterruptedException, ExecutionException, TimeoutException, IOException {
+    if (bootstrapAddress == null) {
+      throw new IOException("Tablets can only be located once a node has been connected to");
+    }
+
+    Channel metaChannel = getOrCreateChannel(bootstrapAddress.getHostString(), bootstrapAddress.getPort());
+    for (Result result : scanCatalog(metaChannel, C5Constants.ROOT_TABLE_NAME, new Scan())) {
+      final byte[] metaLeader = result.getValue(HConstants.CATALOG_FAMILY, C5Constants.LEADER_QUALIFIER);
+      if (metaLeader != null) {
+        recordLeaderAddress(Bytes.toLong(metaLeader), result);
+        metaChannel = getOrCreateChannel(Bytes.toLong(metaLeader));
+      }
+    }
+
+    final Scan scan = new Scan(Bytes.add(tableName, META_ROW_FIRST_SUFFIX), Bytes.add(tableName, META_ROW_LAST_SUFFIX));
+    for (Result result : scanCatalog(metaChannel, C5Constants.META_TABLE_NAME, scan)) {
+      final byte[] regionInfoBytes = result.getValue(HConstants.CATALOG_FAMILY, HConstants.REGIONINFO_QUALIFIER);
+      final byte[] leader = result.getValue(HConstants.CATALOG_FAMILY, C5Constants.LEADER_QUALIFIER);
+      if (regionInfoBytes == null || leader == null) {
+        continue;
+      }
+      final HRegionInfo regionInfo = HRegionInfo.parseFromOrNull(regionInfoBytes);
+      if (regionInfo == null || regionInfo.isOffline() || regionInfo.isSplit()) {
+        continue;
+      }
+      recordLeaderAddress(Bytes.toLong(leader), result);
+      regionLocationCache.put(tableName, new RegionLocation(regionInfo.getRegionName(),
+          regionInfo.getStartKey(),
+          regionInfo.getEndKey(),
+          Bytes.toLong(leader),
+          recordReplicas(Bytes.toLong(leader), result)));
+    }
+  }
+
+  private List<Result> scanCatalog(Channel channel, String catalogTableName, Scan scan)
+      throws InterruptedException, ExecutionException, TimeoutException, IOException {
+    final MessageHandler handler = channel.pipeline().get(FutureBasedMessageHandler.class);
+    final ScanRequest scanRequest = new ScanRequest(RequestConverter.buildRegionSpecifier(Bytes.toBytes(catalogTableName)),
+        ProtobufUtil.toScan(scan),
+        0L,
+        C5Constants.DEFAULT_INIT_SCAN,
+        false,
+        0L);
+    final ClientScanner scanner = handler.callScan(ProtobufUtil.getScanCall(lookupCommandId.decrementAndGet(),
+        scanRequest), channel).get(C5Constants.TIMEOUT, TimeUnit.MILLISECONDS);
+
+    final List<Result> results = new ArrayList<>();
+    try {
+      for (Result result = scanner.next(); result != null; result = scanner.next()) {
+        results.add(result);
+      }
+    } finally {
+      scanner.close();
+    }
+    return results;
+  }
+
+  /**
+   * Remembers the "host:port" which the catalog row gives for the leader's region server, if it gives one.
+   */
+  private void recordLeaderAddress(long leader, Result result) {
+    final byte[] address = result.getValue(HConstants.CATALOG_FAMILY, C5Constants.LEADER_ADDRESS_QUALIFIER);
+    if (address == null) {
+      return;
+    }
+    final String hostAndPort = Bytes.toString(address);
+    final int colon = hostAndPort.lastIndexOf(':');
+    if (colon < 0) {
+      return;
+    }
+    setNodeAddress(leader, hostAndPort.substring(0, colon), Integer.parseInt(hostAndPort.substring(colon + 1)));
+  }
+
+  /**
+   * Remembers the addresses which the catalog row gives for the nodes replicating the tablet.
+   *
+   * @return the replicas other than the leader whose addresses are known, so that they can be read from.
+   */
+  private List<Long> recordReplicas(long leader, Result result) {
+    final byte[] peers = result.getValue(HConstants.CATALOG_FAMILY, C5Constants.PEERS_QUALIFIER);
+    if (peers == null) {
+      return Collections.emptyList();
+    }
+    final List<Long> replicas = new ArrayList<>();
+    for (String peer : Bytes.toString(peers).split(",")) {
+      final int equals = peer.indexOf('=');
+      final long nodeId = Long.parseLong(equals < 0 ? peer.trim() : peer.substring(0, equals).trim());
+      if (equals >= 0) {
+        final String hostAndPort = peer.substring(equals + 1);
+        final int colon = hostAndPort.lastIndexOf(':');
+        if (colon >= 0) {
+          setNodeAddress(nodeId, hostAndPort.substring(0, colon), Integer.parseInt(hostAndPort.substring(colon + 1)));
+        }
+      }
+      if (nodeId != leader && nodeAddresses.containsKey(nodeId)) {
+        replicas.add(nodeId);
+      }
+    }
+    return replicas;
+  }
+
+  @Override
+  public Channel getOrCreateChannel(long nodeId) throws InterruptedException, ExecutionException, TimeoutException {
+    return getOrCreateChannelAsync(nodeId).get(C5Constants.TIMEOUT, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public ListenableFuture<Channel> getOrCreateChannelAsync(long nodeId) {
+    final InetSocketAddress address = nodeAddresses.get(nodeId);
+    if (address == null) {
+      if (bootstrapAddress == null) {
+        return Futures.immediateFailedFuture(new IOException("No node has been connected to yet"));
+      }
+      return channelPool(bootstrapAddress.getHostString(), bootstrapAddress.getPort()).acquire();
+    }
+    // The catalog advertises the WebSocket port
+    final int port = transport == C5Transport.BINARY ? address.getPort() + C5Constants.BINARY_PORT_OFFSET
+        : address.getPort();
+    return channelPool(address.getHostString(), port).acquire();
   }
 
   @Override
   public Channel getOrCreateChannel(String host, int port)
       throws InterruptedException, ExecutionException, TimeoutException {
-    final String hash = getHostPortHash(host, port);
-    if (!regionChannelMap.containsKey(hash)) {
-      final Channel channel = connect(host, port);
-      regionChannelMap.put(hash, channel);
-      Log.warn("Channel" + channel);
-      return channel;
+    if (bootstrapAddress == null) {
+      bootstrapAddress = InetSocketAddress.createUnresolved(host, port);
     }
+    return channelPool(host, port).acquire().get(C5Constants.TIMEOUT, TimeUnit.MILLISECONDS);
+  }
 
-    Channel channel = regionChannelMap.get(hash);
+  private ChannelPool channelPool(String host, int port) {
+    final String hash = getHostPortHash(host, port);
+    return channelPools.computeIfAbsent(hash, key -> new ChannelPool(channelsPerServer, new ChannelPool.Connector() {
+      @Override
+      public ListenableFuture<Channel> connect() {
+        return C5NettyConnectionManager.this.connect(host, port);
+      }
 
-    // Clear stale channels
-    if (!(channel.isOpen() && channel.isActive() && isHandShakeConnected(channel))) {
-      closeChannel(host, port);
-      channel.disconnect();
-      channel = getOrCreateChannel(host, port);
-    }
+      @Override
+      public boolean isUsable(Channel channel) {
+        return channel.isOpen() && channel.isActive() && isHandShakeConnected(channel);
+      }
 
-    return channel;
+      @Override
+      public int outstandingCalls(Channel channel) {
+        return channel.pipeline().get(FutureBasedMessageHandler.class).outstandingCalls();
+      }
+    }));
   }
 
   private boolean isHandShakeConnected(Channel channel) {
+    if (transport == C5Transport.BINARY) {
+      return true;
+    }
     final ChannelPipeline pipeline = channel.pipeline();
     final WebsocketProtostuffEncoder encoder = pipeline.get(WebsocketProtostuffEncoder.class);
     return encoder.getHandShaker().isHandshakeComplete();
@@ -120,22 +428,48 @@ public class C5NettyConnectionManager implements C5ConnectionManager {
 
   @Override
   public void closeChannel(String host, int port) {
-    final String hash = getHostPortHash(host, port);
-    regionChannelMap.remove(hash);
+    final ChannelPool channelPool = channelPools.remove(getHostPortHash(host, port));
+    if (channelPool != null) {
+      channelPool.close();
+    }
   }
 
   @Override
   public void close() throws InterruptedException {
     final List<ChannelFuture> channels = new ArrayList<>();
-    for (Channel channel : regionChannelMap.getValues()) {
-      final ChannelFuture channelFuture = channel.close();
-      channels.add(channelFuture);
+    for (ChannelPool channelPool : channelPools.values()) {
+      channels.addAll(channelPool.close());
     }
 
-    regionChannelMap.clear();
+    channelPools.clear();
+    regionLocationCache.clear();
+    tableLookups.clear();
+    lookupExecutor.shutdownNow();
     for (ChannelFuture future : channels) {
       future.sync();
     }
     group.shutdownGracefully();
   }
+
+  /**
+   * A lookup of one table's tablets, kept after it finishes so that misses are not looked up again straight away.
+   */
+  private static class TableLookup {
+    private final ListenableFutureTask<Void> task;
+    private volatile long finishedNanos;
+    private volatile boolean finished = false;
+
+    private TableLookup(ListenableFutureTask<Void> task) {
+      this.task = task;
+      task.addListener(() -> {
+        finishedNanos = System.nanoTime();
+        finished = true;
+      }, MoreExecutors.sameThreadExecutor());
+    }
+
+    private boolean isExpired() {
+      return finished
+          && System.nanoTime() - finishedNanos > TimeUnit.MILLISECONDS.toNanos(C5Constants.LOCATION_MISS_TTL_MILLIS);
+    }
+  }
 }
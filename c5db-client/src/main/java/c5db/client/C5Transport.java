@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client;
+
+/**
+ * The wire transports a client can use to talk to a region server.
+ */
+public enum C5Transport {
+  /**
+   * HTTP upgraded to a WebSocket, protostuff messages in binary frames.
+   */
+  WEBSOCKET,
+  /**
+   * Raw TCP, protostuff messages each preceded by a four byte length field. Connects to the region server's
+   * binary port rather than its websocket port.
+   */
+  BINARY
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The connections from a client to one region server. Each call goes to the usable channel with the fewest
+ * unanswered calls. Channels are opened on demand, only once every open one has calls outstanding, up to the size
+ * of the pool. A channel found closed or broken is dropped and its slot reconnected; a slot whose connection failed
+ * is not retried until its backoff, which doubles with each failure, has passed.
+ * <p>
+ * Nothing here blocks: connections are made in the background, and a call only waits for one when no open channel
+ * can take it. So the pool may be used from an event loop, such as by the callback of an earlier call.
+ */
+class ChannelPool {
+  private final Connector connector;
+  private final Slot[] slots;
+  private volatile boolean closed = false;
+
+  /**
+   * How the pool opens, checks and weighs its channels.
+   */
+  interface Connector {
+    /**
+     * Starts a connection without waiting for it; the future completes once the channel can carry calls.
+     */
+    ListenableFuture<Channel> connect();
+
+    boolean isUsable(Channel channel);
+
+    int outstandingCalls(Channel channel);
+  }
+
+  ChannelPool(int size, Connector connector) {
+    this.connector = connector;
+    this.slots = new Slot[size];
+    for (int i = 0; i < size; i++) {
+      slots[i] = new Slot();
+    }
+  }
+
+  ListenableFuture<Channel> acquire() {
+    Channel leastLoaded = null;
+    int leastOutstanding = Integer.MAX_VALUE;
+    for (Slot slot : slots) {
+      final Channel channel = slot.usableChannel();
+      if (channel == null) {
+        continue;
+      }
+      final int outstanding = connector.outstandingCalls(channel);
+      if (outstanding < leastOutstanding) {
+        leastLoaded = channel;
+        leastOutstanding = outstanding;
+      }
+    }
+    if (leastLoaded != null && leastOutstanding == 0) {
+      return Futures.immediateFuture(leastLoaded);
+    }
+
+    // Every open channel is busy, or none is open: open another if a slot is free
+    ListenableFuture<Channel> connection = null;
+    Throwable lastFailure = null;
+    for (Slot slot : slots) {
+      connection = slot.connectIfFree();
+      if (connection != null) {
+        break;
+      }
+      lastFailure = slot.lastFailure != null ? slot.lastFailure : lastFailure;
+    }
+    // A busy channel is used rather than waiting for the new one, unless that is already open
+    if (connection != null && (connection.isDone() || leastLoaded == null)) {
+      return connection;
+    }
+    if (leastLoaded != null) {
+      return Futures.immediateFuture(leastLoaded);
+    }
+    return Futures.immediateFailedFuture(
+        new IOException("Unable to connect; every connection is failed or backing off", lastFailure));
+  }
+
+  List<ChannelFuture> close() {
+    closed = true;
+    final List<ChannelFuture> closeFutures = new ArrayList<>();
+    for (Slot slot : slots) {
+      final Channel channel = slot.channel;
+      slot.channel = null;
+      if (channel != null) {
+        closeFutures.add(channel.close());
+      }
+    }
+    return closeFutures;
+  }
+
+  private class Slot {
+    private volatile Channel channel;
+    private ListenableFuture<Channel> connecting;
+    private volatile Throwable lastFailure;
+    private long backoffMillis = 0;
+    private long nextAttemptMillis = 0;
+
+    private Channel usableChannel() {
+      final Channel current = channel;
+      if (current == null) {
+        return null;
+      }
+      if (connector.isUsable(current)) {
+        return current;
+      }
+      synchronized (this) {
+        if (channel == current) {
+          channel = null;
+          current.close();
+        }
+      }
+      return null;
+    }
+
+    /**
+     * @return the slot's connection if it is being made, or is started now; null if the slot holds a channel or is
+     * backing off.
+     */
+    private synchronized ListenableFuture<Channel> connectIfFree() {
+      if (channel != null) {
+        return null;
+      }
+      if (connecting != null) {
+        return connecting;
+      }
+      if (System.currentTimeMillis() < nextAttemptMillis) {
+        return null;
+      }
+
+      ListenableFuture<Channel> connection;
+      try {
+        connection = connector.connect();
+      } catch (RuntimeException e) {
+        connection = Futures.immediateFailedFuture(e);
+      }
+      connecting = connection;
+      Futures.addCallback(connection, new FutureCallback<Channel>() {
+        @Override
+        public void onSuccess(Channel connected) {
+          synchronized (Slot.this) {
+            connecting = null;
+            backoffMillis = 0;
+            lastFailure = null;
+            if (closed) {
+              connected.close();
+            } else {
+              channel = connected;
+            }
+          }
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          synchronized (Slot.this) {
+            connecting = null;
+            lastFailure = t;
+            backoffMillis = backoffMillis == 0
+                ? C5Constants.MIN_RECONNECT_BACKOFF_MILLIS
+                : Math.min(backoffMillis * 2, C5Constants.MAX_RECONNECT_BACKOFF_MILLIS);
+            nextAttemptMillis = System.currentTimeMillis() + backoffMillis;
+          }
+        }
+      });
+      return connection;
+    }
+  }
+}
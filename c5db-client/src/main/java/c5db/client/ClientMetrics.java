@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client;
+
+import c5db.client.generated.Call;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * The client's metrics, shared by every connection in the process. Attach a reporter to {@link #registry()} to
+ * publish them.
+ * <p>
+ * The call timers measure from a call being handed to its connection until it is answered, so they include the time
+ * spent queued in the client; the backpressure meters count the times a caller had to wait for earlier calls first.
+ */
+public final class ClientMetrics {
+  private static final MetricRegistry REGISTRY = new MetricRegistry();
+
+  private static final Timer GET_CALLS = REGISTRY.timer(name(ClientMetrics.class, "calls", "get"));
+  private static final Timer MUTATE_CALLS = REGISTRY.timer(name(ClientMetrics.class, "calls", "mutate"));
+  private static final Timer SCAN_CALLS = REGISTRY.timer(name(ClientMetrics.class, "calls", "scan"));
+  private static final Timer MULTI_CALLS = REGISTRY.timer(name(ClientMetrics.class, "calls", "multi"));
+
+  static final Counter IN_FLIGHT_CALLS = REGISTRY.counter(name(ClientMetrics.class, "calls", "in-flight"));
+  static final Meter TIMED_OUT_CALLS = REGISTRY.meter(name(ClientMetrics.class, "calls", "timed-out"));
+  static final Meter HEDGED_GETS = REGISTRY.meter(name(ClientMetrics.class, "calls", "hedged-get"));
+  static final Meter BYTES_SENT = REGISTRY.meter(name(ClientMetrics.class, "bytes", "sent"));
+  static final Meter BYTES_RECEIVED = REGISTRY.meter(name(ClientMetrics.class, "bytes", "received"));
+  static final Meter CALL_BACKPRESSURE = REGISTRY.meter(name(ClientMetrics.class, "backpressure", "calls"));
+  static final Meter WRITE_BUFFER_BACKPRESSURE =
+      REGISTRY.meter(name(ClientMetrics.class, "backpressure", "write-buffer"));
+
+  private ClientMetrics() {
+  }
+
+  public static MetricRegistry registry() {
+    return REGISTRY;
+  }
+
+  static Timer callTimer(Call.Command command) {
+    switch (command) {
+      case GET:
+        return GET_CALLS;
+      case MUTATE:
+        return MUTATE_CALLS;
+      case SCAN:
+        return SCAN_CALLS;
+      default:
+        return MULTI_CALLS;
+    }
+  }
+}
@@ -18,7 +18,6 @@ package c5db.client;
 
 import c5db.client.generated.ByteArrayComparable;
 import c5db.client.generated.Comparator;
-import c5db.client.generated.CompareType;
 import c5db.client.generated.Condition;
 import c5db.client.generated.GetRequest;
 import c5db.client.generated.MultiRequest;
@@ -26,16 +25,21 @@ import c5db.client.generated.MutateRequest;
 import c5db.client.generated.MutationProto;
 import c5db.client.generated.RegionAction;
 import c5db.client.generated.RegionSpecifier;
+import c5db.client.generated.Response;
+import c5db.client.generated.ResultOrException;
 import c5db.client.generated.ScanRequest;
-import c5db.client.scanner.ClientScanner;
-import c5db.client.scanner.ClientScannerManager;
+import c5db.client.scanner.ParallelClientScanner;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import io.protostuff.ByteString;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Mutation;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.client.Row;
 import org.apache.hadoop.hbase.client.RowMutations;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -44,10 +48,18 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
 
 
@@ -57,11 +69,25 @@ import java.util.concurrent.TimeoutException;
 public class FakeHTable implements AutoCloseable {
 
   private static final Logger LOG = LoggerFactory.getLogger(FakeHTable.class);
-  private final ClientScannerManager clientScannerManager = ClientScannerManager.INSTANCE;
   private byte[] regionName;
   private RegionSpecifier regionSpecifier;
   private TableInterface c5AsyncDatabase;
   public byte[] tableName;
+  private boolean autoFlush = true;
+  private long writeBufferSize = C5Constants.DEFAULT_WRITE_BUFFER_SIZE;
+  private long currentWriteBufferSize = 0;
+  private final List<Mutation> writeBuffer = new ArrayList<>();
+  // Full write buffers are sent, and the replies to them collected, on this thread, in the order they were filled
+  private final ExecutorService writeFlusher = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "FakeHTable-write-flusher");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final Deque<Future<?>> queuedWriteBuffers = new ArrayDeque<>();
+  // Confined to the writeFlusher
+  private final Deque<WriteBatch> inFlightWrites = new ArrayDeque<>();
+  private final List<Throwable> failedWriteCauses = new ArrayList<>();
+  private final List<Row> failedWrites = new ArrayList<>();
 
   /**
    * A mock HTable Client
@@ -70,7 +96,7 @@ public class FakeHTable implements AutoCloseable {
    */
   public FakeHTable(String hostname, int port, ByteString tableName)
       throws InterruptedException, TimeoutException, ExecutionException {
-    c5AsyncDatabase = new SingleNodeTableInterface(hostname, port);
+    c5AsyncDatabase = new RoutingTableInterface(hostname, port);
     this.tableName = tableName.toByteArray();
     regionName = tableName.toByteArray();
     regionSpecifier = new RegionSpecifier(RegionSpecifier.RegionSpecifierType.REGION_NAME, ByteBuffer.wrap(regionName));
@@ -97,12 +123,11 @@ public class FakeHTable implements AutoCloseable {
   }
 
   public Result[] get(List<Get> gets) throws IOException {
-    //TODO Batch get
-    final List<Result> results = new ArrayList<>();
-    for (Get get : gets) {
-      results.add(this.get(get));
+    final Result[] results = new Result[gets.size()];
+    for (ResultOrException resultOrException : multiGet(gets, false)) {
+      results[resultOrException.getIndex()] = ProtobufUtil.toResult(resultOrException.getResult());
     }
-    return results.toArray(new Result[results.size()]);
+    return results;
   }
 
   public boolean exists(final Get get) throws IOException {
@@ -115,26 +140,58 @@ public class FakeHTable implements AutoCloseable {
   }
 
   public ResultScanner getScanner(final Scan scan) throws IOException {
+    return getScanner(scan, C5Constants.DEFAULT_SCAN_PARALLELISM, true);
+  }
+
+  /**
+   * Scans across every tablet the scan's range covers, reading up to parallelism of them at once.
+   *
+   * @param ordered Whether rows must come back in row order. Unordered scans return rows as they arrive.
+   */
+  public ResultScanner getScanner(final Scan scan, int parallelism, boolean ordered) throws IOException {
     if (scan.getStartRow() != null && scan.getStartRow().length > 0
         && scan.getStopRow() != null && scan.getStopRow().length > 0
         && Bytes.compareTo(scan.getStartRow(), scan.getStopRow()) > 0) {
       throw new IOException("StopRow needs to be greater than StartRow");
     }
 
-    final ScanRequest scanRequest = new ScanRequest(regionSpecifier,
+    final byte[] startRow = scan.getStartRow() == null ? new byte[0] : scan.getStartRow();
+    final byte[] stopRow = scan.getStopRow() == null ? new byte[0] : scan.getStopRow();
+    final List<RegionLocation> locations = c5AsyncDatabase.locateRegions(tableName, startRow, stopRow);
+    if (locations.size() <= 1) {
+      return openScanner(regionSpecifier, scan);
+    }
+
+    // Each sub-scan names its own tablet, so the server reads that tablet rather than the table's first
+    final List<Scan> subScans = new ArrayList<>(locations.size());
+    final Map<Scan, RegionSpecifier> tablets = new IdentityHashMap<>();
+    for (RegionLocation location : locations) {
+      final Scan subScan = new Scan(scan);
+      if (Bytes.compareTo(location.getStartKey(), startRow) > 0) {
+        subScan.setStartRow(location.getStartKey());
+      }
+      final byte[] endKey = location.getEndKey();
+      if (endKey.length != 0 && (stopRow.length == 0 || Bytes.compareTo(endKey, stopRow) < 0)) {
+        subScan.setStopRow(endKey);
+      }
+      subScans.add(subScan);
+      tablets.put(subScan, RequestConverter.buildRegionSpecifier(location.getRegionName()));
+    }
+    return new ParallelClientScanner(subScans,
+        subScan -> openScanner(tablets.get(subScan), subScan),
+        parallelism,
+        ordered);
+  }
+
+  private ResultScanner openScanner(final RegionSpecifier region, final Scan scan) throws IOException {
+    final ScanRequest scanRequest = new ScanRequest(region,
         ProtobufUtil.toScan(scan),
         0L,
         C5Constants.DEFAULT_INIT_SCAN,
         false,
         0L);
-    ListenableFuture<ClientScanner> scanner;
     try {
-      Long scanResult = c5AsyncDatabase.scan(scanRequest).get();
-      scanner = clientScannerManager.get(scanResult);
-      if (scanner == null) {
-        throw new IOException("Unable to find scanner");
-      }
-      return scanner.get();
+      return c5AsyncDatabase.scan(scanRequest).get();
     } catch (ExecutionException | InterruptedException e) {
       throw new IOException(e);
     }
@@ -153,15 +210,40 @@ public class FakeHTable implements AutoCloseable {
   }
 
   public Boolean[] exists(List<Get> gets) throws IOException {
-    //TODO Batch get
-    final List<Boolean> results = new ArrayList<>();
-    for (Get get : gets) {
-      results.add(this.exists(get));
+    final Boolean[] results = new Boolean[gets.size()];
+    for (ResultOrException resultOrException : multiGet(gets, true)) {
+      results[resultOrException.getIndex()] = resultOrException.getResult().getExists();
     }
-    return results.toArray(new Boolean[results.size()]);
+    return results;
+  }
+
+  /**
+   * Reads all of the gets with as few round trips as possible: they are split into MULTI calls of at most
+   * {@link C5Constants#MAX_ACTIONS_PER_MULTI} which are all sent before waiting on any reply. Each returned
+   * ResultOrException carries the position of its Get in the list.
+   */
+  private List<ResultOrException> multiGet(List<Get> gets, boolean existenceOnly) throws IOException {
+    final List<ListenableFuture<Response>> responses = new ArrayList<>();
+    for (RegionAction regionAction : MultiCalls.buildGetActions(regionName, gets, existenceOnly)) {
+      responses.add(c5AsyncDatabase.multiRequest(new MultiRequest(Arrays.asList(regionAction))));
+    }
+
+    final List<ResultOrException> resultOrExceptions = new ArrayList<>(gets.size());
+    try {
+      for (Response response : Futures.allAsList(responses).get()) {
+        resultOrExceptions.addAll(MultiCalls.resultsOf(response));
+      }
+    } catch (InterruptedException | ExecutionException e) {
+      throw new IOException(e);
+    }
+    return resultOrExceptions;
   }
 
   public void put(Put put) throws IOException {
+    if (!autoFlush) {
+      bufferMutations(Arrays.asList(put));
+      return;
+    }
     MutateRequest mutateRequest = RequestConverter.buildMutateRequest(regionName, MutationProto.MutationType.PUT, put);
     try {
       if (!c5AsyncDatabase.mutate(mutateRequest).get().getMutate().getProcessed()) {
@@ -172,9 +254,14 @@ public class FakeHTable implements AutoCloseable {
     }
   }
 
+  /**
+   * Buffers the puts. With auto flush on they are sent straight away, batched into MULTI calls, and any failures
+   * are thrown; otherwise they are sent in the background once the write buffer is full.
+   */
   public void put(List<Put> puts) throws IOException {
-    for (Put put : puts) {
-      this.put(put);
+    bufferMutations(puts);
+    if (autoFlush) {
+      flushCommits();
     }
   }
 
@@ -191,9 +278,157 @@ public class FakeHTable implements AutoCloseable {
     }
   }
 
+  /**
+   * Buffers the deletes in the same way as {@link #put(java.util.List)}.
+   */
   public void delete(List<Delete> deletes) throws IOException {
-    for (Delete delete : deletes) {
-      this.delete(delete);
+    bufferMutations(deletes);
+    if (autoFlush) {
+      flushCommits();
+    }
+  }
+
+  public boolean isAutoFlush() {
+    return autoFlush;
+  }
+
+  /**
+   * Turning auto flush off buffers single puts as well as lists of puts and deletes, until the buffer exceeds
+   * {@link #getWriteBufferSize()} or {@link #flushCommits()} is called.
+   */
+  public void setAutoFlush(boolean autoFlush) {
+    this.autoFlush = autoFlush;
+  }
+
+  public long getWriteBufferSize() {
+    return writeBufferSize;
+  }
+
+  public void setWriteBufferSize(long writeBufferSize) throws IOException {
+    this.writeBufferSize = writeBufferSize;
+    if (currentWriteBufferSize > writeBufferSize) {
+      sendWriteBuffer();
+    }
+  }
+
+  /**
+   * Sends everything still buffered and waits for all outstanding buffered writes to be answered.
+   *
+   * @throws RetriesExhaustedWithDetailsException naming each mutation which failed since the last flushCommits.
+   */
+  public void flushCommits() throws IOException {
+    sendWriteBuffer();
+    final RetriesExhaustedWithDetailsException failure = await(writeFlusher.submit(this::awaitInFlightWrites));
+    queuedWriteBuffers.clear();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void bufferMutations(List<? extends Mutation> mutations) throws IOException {
+    for (Mutation mutation : mutations) {
+      writeBuffer.add(mutation);
+      currentWriteBufferSize += mutation.heapSize();
+    }
+    if (currentWriteBufferSize > writeBufferSize) {
+      sendWriteBuffer();
+    }
+  }
+
+  /**
+   * Hands the buffered mutations to the write flusher, which sends them as MULTI calls in the background, and
+   * starts a new buffer. Only waits if the flusher is still busy with as many earlier buffers as may be queued.
+   */
+  private void sendWriteBuffer() throws IOException {
+    if (writeBuffer.isEmpty()) {
+      return;
+    }
+    final List<Mutation> mutations = new ArrayList<>(writeBuffer);
+    writeBuffer.clear();
+    currentWriteBufferSize = 0;
+
+    while (!queuedWriteBuffers.isEmpty() && queuedWriteBuffers.peek().isDone()) {
+      queuedWriteBuffers.remove();
+    }
+    while (queuedWriteBuffers.size() >= C5Constants.MAX_QUEUED_WRITE_BUFFERS) {
+      ClientMetrics.WRITE_BUFFER_BACKPRESSURE.mark();
+      await(queuedWriteBuffers.remove());
+    }
+    queuedWriteBuffers.add(writeFlusher.submit(() -> send(mutations)));
+  }
+
+  private static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Runs on the writeFlusher. Sends mutations as MULTI calls without waiting for their replies, unless too many
+   * are unanswered already. A batch which cannot be sent at all is recorded as failed.
+   */
+  private void send(List<Mutation> mutations) {
+    for (List<Mutation> batch : MultiCalls.split(mutations)) {
+      while (inFlightWrites.size() >= C5Constants.MAX_IN_FLIGHT_WRITE_BATCHES) {
+        awaitOldestWriteBatch();
+      }
+      try {
+        final RegionAction regionAction = RequestConverter.buildRegionAction(regionName, batch);
+        inFlightWrites.add(new WriteBatch(batch,
+            c5AsyncDatabase.multiRequest(new MultiRequest(Arrays.asList(regionAction)))));
+      } catch (IOException | RuntimeException e) {
+        MultiCalls.failAll(batch, e, failedWriteCauses, failedWrites);
+      }
+    }
+  }
+
+  /**
+   * Runs on the writeFlusher. Waits for every outstanding buffered write, and hands back (and forgets) the
+   * mutations which failed since the last call.
+   */
+  private RetriesExhaustedWithDetailsException awaitInFlightWrites() {
+    while (!inFlightWrites.isEmpty()) {
+      awaitOldestWriteBatch();
+    }
+    if (failedWrites.isEmpty()) {
+      return null;
+    }
+    List<String> hosts = Collections.nCopies(failedWrites.size(), Bytes.toString(regionName));
+    RetriesExhaustedWithDetailsException e =
+        new RetriesExhaustedWithDetailsException(new ArrayList<>(failedWriteCauses), new ArrayList<>(failedWrites), hosts);
+    failedWriteCauses.clear();
+    failedWrites.clear();
+    return e;
+  }
+
+  /**
+   * Runs on the writeFlusher. Waits for the oldest outstanding buffered write, recording its failed mutations for
+   * the next flushCommits.
+   */
+  private void awaitOldestWriteBatch() {
+    final WriteBatch writeBatch = inFlightWrites.remove();
+    try {
+      MultiCalls.collectFailures(writeBatch.mutations, writeBatch.response.get(), failedWriteCauses, failedWrites);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      MultiCalls.failAll(writeBatch.mutations, e, failedWriteCauses, failedWrites);
+    } catch (ExecutionException e) {
+      MultiCalls.failAll(writeBatch.mutations, e.getCause(), failedWriteCauses, failedWrites);
+    }
+  }
+
+  private static class WriteBatch {
+    private final List<Mutation> mutations;
+    private final ListenableFuture<Response> response;
+
+    private WriteBatch(List<Mutation> mutations, ListenableFuture<Response> response) {
+      this.mutations = mutations;
+      this.response = response;
     }
   }
 
@@ -208,12 +443,7 @@ public class FakeHTable implements AutoCloseable {
   }
 
   public boolean checkAndPut(byte[] row, byte[] family, byte[] qualifier, byte[] value, Put put) throws IOException {
-
-    Condition condition = new Condition(ByteBuffer.wrap(row),
-        ByteBuffer.wrap(family),
-        ByteBuffer.wrap(qualifier),
-        CompareType.EQUAL,
-        toComparator(new ByteArrayComparable(ByteBuffer.wrap(value))));
+    Condition condition = RequestConverter.buildCondition(row, family, qualifier, value);
     MutateRequest mutateRequest = RequestConverter.buildMutateRequest(regionName,
         MutationProto.MutationType.PUT,
         put,
@@ -230,11 +460,7 @@ public class FakeHTable implements AutoCloseable {
 
   public boolean checkAndDelete(byte[] row, byte[] family, byte[] qualifier, byte[] value, Delete delete)
       throws IOException {
-    Condition condition = new Condition(ByteBuffer.wrap(row),
-        ByteBuffer.wrap(family),
-        ByteBuffer.wrap(qualifier),
-        CompareType.EQUAL,
-        toComparator(new ByteArrayComparable(ByteBuffer.wrap(value))));
+    Condition condition = RequestConverter.buildCondition(row, family, qualifier, value);
     MutateRequest mutateRequest = RequestConverter.buildMutateRequest(regionName,
         MutationProto.MutationType.DELETE,
         delete,
@@ -252,10 +478,16 @@ public class FakeHTable implements AutoCloseable {
 
   @Override
   public void close() {
+    try {
+      flushCommits();
+    } catch (IOException e) {
+      LOG.error("Error flushing buffered writes on close", e);
+    }
+    writeFlusher.shutdown();
     try {
       c5AsyncDatabase.close();
     } catch (Exception e) {
-      LOG.error("Error closing:" + e);
+      LOG.error("Error closing", e);
     }
   }
 
@@ -20,44 +20,69 @@ import c5db.client.generated.Call;
 import c5db.client.generated.Response;
 import c5db.client.scanner.ClientScanner;
 import c5db.client.scanner.ClientScannerManager;
+import com.codahale.metrics.Timer;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
 
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A simple handler to handle inbound responses from the C5 server.
+ * <p>
+ * Every call has a deadline. One wheel timer, shared by all connections, fails and forgets the calls whose response
+ * has not arrived by then, so a lost response neither hangs its caller nor leaks its entry. A call which failed on
+ * the server fails with a {@link RemoteCallException}.
  */
 public class FutureBasedMessageHandler extends SimpleChannelInboundHandler<Response> implements MessageHandler {
   private static final ClientScannerManager CLIENT_SCANNER_MANAGER = ClientScannerManager.INSTANCE;
-  private final ConcurrentHashMap<Long, SettableFuture<Response>> futures = new ConcurrentHashMap<>();
-  private final ConcurrentHashMap<Long, SettableFuture<Long>> scannerFutures = new ConcurrentHashMap<>();
+  private static final HashedWheelTimer CALL_TIMER =
+      new HashedWheelTimer(new DefaultThreadFactory("c5-client-call-timer", true), 10, TimeUnit.MILLISECONDS);
+  private final PendingCalls<Response> futures = new PendingCalls<>(C5Constants.PENDING_CALL_SLOTS);
+  private final PendingCalls<ClientScanner> scannerFutures = new PendingCalls<>(C5Constants.PENDING_CALL_SLOTS);
   private final AtomicLong inFlightCalls = new AtomicLong(0);
+  // Calls sent on this channel which have not been answered yet, for choosing the least loaded channel
+  private final AtomicInteger outstandingCalls = new AtomicInteger(0);
 
   @Override
   protected void channelRead0(ChannelHandlerContext ctx, Response msg) throws Exception {
+    if (msg.getException() != null) {
+      // The call failed on the server, so there is no response of its kind to hand on
+      final RemoteCallException failure = new RemoteCallException(msg.getException());
+      if (msg.getCommand() == Response.Command.SCAN) {
+        failCall(scannerFutures, msg.getCommandId(), failure);
+      } else {
+        failCall(futures, msg.getCommandId(), failure);
+      }
+      return;
+    }
+
     switch (msg.getCommand()) {
-      case MULTI:
-        futures.get(msg.getCommandId()).set(msg);
-        break;
-      case MUTATE:
-        futures.get(msg.getCommandId()).set(msg);
-        break;
       case SCAN:
         final long scannerId = msg.getScan().getScannerId();
-        ClientScanner clientScanner;
+        ClientScanner clientScanner = CLIENT_SCANNER_MANAGER.get(ctx.channel(), scannerId);
+        SettableFuture<ClientScanner> scannerFuture = null;
 
-        if (CLIENT_SCANNER_MANAGER.hasScanner(scannerId)) {
-          clientScanner = CLIENT_SCANNER_MANAGER.get(scannerId).get();
-        } else {
+        if (clientScanner == null) {
+          scannerFuture = scannerFutures.remove(msg.getCommandId());
+          if (scannerFuture == null) {
+            // The scanner has finished, or whoever opened it gave up waiting, so nobody will read these rows
+            break;
+          }
+          outstandingCalls.decrementAndGet();
           clientScanner = CLIENT_SCANNER_MANAGER.createAndGet(ctx.channel(), scannerId, msg.getCommandId());
-          scannerFutures.get(msg.getCommandId()).set(scannerId);
         }
 
         clientScanner.add(msg.getScan());
@@ -65,46 +90,133 @@ public class FutureBasedMessageHandler extends SimpleChannelInboundHandler<Respo
         if (!msg.getScan().getMoreResults()) {
           clientScanner.close();
         }
+        // Only hand the scanner out once it holds its first rows, so reading it straight away does not wait
+        if (scannerFuture != null) {
+          scannerFuture.set(clientScanner);
+        }
         break;
       default:
-        futures.get(msg.getCommandId()).set(msg);
+        final SettableFuture<Response> future = futures.remove(msg.getCommandId());
+        if (future != null) {
+          outstandingCalls.decrementAndGet();
+          future.set(msg);
+        }
         break;
     }
   }
 
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    // Nothing more will be answered on this channel, so fail whatever is still waiting rather than hang
+    final IOException closed = new IOException("Connection to " + ctx.channel().remoteAddress() + " closed");
+    futures.drain(future -> {
+      outstandingCalls.decrementAndGet();
+      future.setException(closed);
+    });
+    scannerFutures.drain(future -> {
+      outstandingCalls.decrementAndGet();
+      future.setException(closed);
+    });
+    super.channelInactive(ctx);
+  }
+
+  @Override
+  public int outstandingCalls() {
+    return outstandingCalls.get();
+  }
+
   @Override
   public ListenableFuture<Response> call(final Call request, final Channel channel) {
-    SettableFuture<Response> settableFuture = SettableFuture.create();
-    futures.put(request.getCommandId(), settableFuture);
+    return call(request, channel, C5Constants.DEFAULT_CALL_TIMEOUT_MILLIS);
+  }
+
+  @Override
+  public ListenableFuture<Response> call(final Call request, final Channel channel, long timeoutMillis) {
+    final SettableFuture<Response> settableFuture = register(futures, request, timeoutMillis);
     channel.writeAndFlush(request);
     return settableFuture;
   }
 
+  /**
+   * Registers a call awaiting its response. If none arrives within the timeout the call is forgotten and its future
+   * fails with a {@link TimeoutException}.
+   */
+  private <T> SettableFuture<T> register(final PendingCalls<T> pending,
+                                         final Call request,
+                                         final long timeoutMillis) {
+    final long commandId = request.getCommandId();
+    final SettableFuture<T> settableFuture = SettableFuture.create();
+    pending.put(commandId, settableFuture);
+    outstandingCalls.incrementAndGet();
+    ClientMetrics.IN_FLIGHT_CALLS.inc();
+    final Timer callTimer = ClientMetrics.callTimer(request.getCommand());
+    final long startNanos = System.nanoTime();
+
+    final Timeout deadline = CALL_TIMER.newTimeout(timeout -> {
+      if (pending.remove(commandId, settableFuture)) {
+        outstandingCalls.decrementAndGet();
+        ClientMetrics.TIMED_OUT_CALLS.mark();
+        settableFuture.setException(
+            new TimeoutException("No response to call " + commandId + " within " + timeoutMillis + "ms"));
+      }
+    }, timeoutMillis, TimeUnit.MILLISECONDS);
+    settableFuture.addListener(() -> {
+      deadline.cancel();
+      ClientMetrics.IN_FLIGHT_CALLS.dec();
+      callTimer.update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }, MoreExecutors.sameThreadExecutor());
+    return settableFuture;
+  }
+
   @Override
   public ListenableFuture<Response> buffer(final Call request, final Channel channel) {
-    SettableFuture<Response> settableFuture = SettableFuture.create();
-    futures.put(request.getCommandId(), settableFuture);
+    final SettableFuture<Response> settableFuture =
+        register(futures, request, C5Constants.DEFAULT_CALL_TIMEOUT_MILLIS);
     // Keep track of how many outstanding requests we have and limit it.
     ChannelFuture future = channel.write(request);
     future.addListener(objectFuture -> inFlightCalls.decrementAndGet());
 
     if (inFlightCalls.incrementAndGet() > C5Constants.IN_FLIGHT_CALLS) {
-      System.out.println("Backing off:" + C5Constants.IN_FLIGHT_CALLS);
+      ClientMetrics.CALL_BACKPRESSURE.mark();
       try {
         future.get();
-      } catch (InterruptedException | ExecutionException e) {
-        e.printStackTrace();
-        System.exit(1);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        fail(request.getCommandId(), settableFuture, e);
+      } catch (ExecutionException e) {
+        fail(request.getCommandId(), settableFuture, e.getCause());
       }
     }
 
     return settableFuture;
   }
 
+  /**
+   * Forgets a call which could not be sent and fails its future; the caller sees the error rather than a timeout.
+   */
+  private void fail(final long commandId, final SettableFuture<Response> settableFuture, final Throwable cause) {
+    if (futures.remove(commandId, settableFuture)) {
+      outstandingCalls.decrementAndGet();
+      settableFuture.setException(cause);
+    }
+  }
+
+  private <T> void failCall(final PendingCalls<T> pending, final long commandId, final Throwable cause) {
+    final SettableFuture<T> settableFuture = pending.remove(commandId);
+    if (settableFuture != null) {
+      outstandingCalls.decrementAndGet();
+      settableFuture.setException(cause);
+    }
+  }
+
+  @Override
+  public ListenableFuture<ClientScanner> callScan(final Call request, final Channel channel) {
+    return callScan(request, channel, C5Constants.DEFAULT_CALL_TIMEOUT_MILLIS);
+  }
+
   @Override
-  public ListenableFuture<Long> callScan(final Call request, final Channel channel) {
-    SettableFuture<Long> settableFuture = SettableFuture.create();
-    scannerFutures.put(request.getCommandId(), settableFuture);
+  public ListenableFuture<ClientScanner> callScan(final Call request, final Channel channel, long timeoutMillis) {
+    final SettableFuture<ClientScanner> settableFuture = register(scannerFutures, request, timeoutMillis);
     channel.writeAndFlush(request);
     return settableFuture;
   }
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Call latencies, counted in power of two microsecond buckets, for cheaply estimating a percentile from many
+ * threads. Once the counts grow large they are halved, so recent calls weigh more than old ones.
+ */
+class LatencyHistogram {
+  private static final int BUCKETS = 40;
+  private static final long DECAY_THRESHOLD = 1 << 16;
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong total = new AtomicLong(0);
+
+  void record(long nanos) {
+    final long micros = Math.max(1, nanos / 1000);
+    counts.incrementAndGet(Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros)));
+    if (total.incrementAndGet() >= DECAY_THRESHOLD) {
+      decay();
+    }
+  }
+
+  /**
+   * @param percentile Between 0 and 100.
+   * @return the upper bound, in microseconds, of the bucket holding the percentile, or -1 if fewer than minSamples
+   * latencies have been recorded.
+   */
+  long percentileMicros(double percentile, long minSamples) {
+    final long[] snapshot = new long[BUCKETS];
+    long samples = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      samples += snapshot[i];
+    }
+    if (samples < minSamples || samples == 0) {
+      return -1;
+    }
+
+    final long target = (long) Math.ceil(samples * percentile / 100);
+    long cumulative = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      cumulative += snapshot[i];
+      if (cumulative >= target) {
+        return 1L << (i + 1);
+      }
+    }
+    return 1L << BUCKETS;
+  }
+
+  private synchronized void decay() {
+    if (total.get() < DECAY_THRESHOLD) {
+      return;
+    }
+    long remaining = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      final long halved = counts.get(i) / 2;
+      counts.set(i, halved);
+      remaining += halved;
+    }
+    total.set(remaining);
+  }
+}
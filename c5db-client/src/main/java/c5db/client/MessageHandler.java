@@ -18,6 +18,7 @@ package c5db.client;
 
 import c5db.client.generated.Call;
 import c5db.client.generated.Response;
+import c5db.client.scanner.ClientScanner;
 import com.google.common.util.concurrent.ListenableFuture;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler;
@@ -27,7 +28,23 @@ public interface MessageHandler extends ChannelHandler, ChannelInboundHandler {
 
   ListenableFuture<Response> call(Call request, Channel channel);
 
+  /**
+   * Sends the call, failing the returned future with a {@link java.util.concurrent.TimeoutException} if it is not
+   * answered within the timeout.
+   */
+  ListenableFuture<Response> call(Call request, Channel channel, long timeoutMillis);
+
   ListenableFuture<Response> buffer(Call request, Channel channel);
 
-  ListenableFuture<Long> callScan(Call request, Channel channel);
+  /**
+   * Opens a scanner, whose future is set once its first rows arrive.
+   */
+  ListenableFuture<ClientScanner> callScan(Call request, Channel channel);
+
+  ListenableFuture<ClientScanner> callScan(Call request, Channel channel, long timeoutMillis);
+
+  /**
+   * @return how many calls sent through this handler are still waiting for their response.
+   */
+  int outstandingCalls();
 }
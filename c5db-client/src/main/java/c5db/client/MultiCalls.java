@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client;
+
+import c5db.client.generated.NameBytesPair;
+import c5db.client.generated.RegionAction;
+import c5db.client.generated.RegionActionResult;
+import c5db.client.generated.Response;
+import c5db.client.generated.ResultOrException;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Row;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits batches of gets and mutations into MULTI calls of at most {@link C5Constants#MAX_ACTIONS_PER_MULTI}
+ * actions and reads the replies, for the blocking and the non-blocking table alike.
+ */
+final class MultiCalls {
+
+  private MultiCalls() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * @return one RegionAction per MULTI call, each Action indexed by the position of its get in the list.
+   */
+  static List<RegionAction> buildGetActions(byte[] tableName, List<Get> gets, boolean existenceOnly)
+      throws IOException {
+    final List<RegionAction> regionActions = new ArrayList<>();
+    for (int start = 0; start < gets.size(); start += C5Constants.MAX_ACTIONS_PER_MULTI) {
+      final int end = Math.min(gets.size(), start + C5Constants.MAX_ACTIONS_PER_MULTI);
+      regionActions.add(RequestConverter.buildRegionAction(tableName, gets.subList(start, end), start, existenceOnly));
+    }
+    return regionActions;
+  }
+
+  /**
+   * @return copies of consecutive runs of the rows, one per MULTI call.
+   */
+  static <T> List<List<T>> split(List<T> rows) {
+    final List<List<T>> batches = new ArrayList<>();
+    for (int start = 0; start < rows.size(); start += C5Constants.MAX_ACTIONS_PER_MULTI) {
+      final int end = Math.min(rows.size(), start + C5Constants.MAX_ACTIONS_PER_MULTI);
+      batches.add(new ArrayList<>(rows.subList(start, end)));
+    }
+    return batches;
+  }
+
+  /**
+   * @return the results of a MULTI of gets.
+   * @throws IOException the first failure the reply carries, if any.
+   */
+  static List<ResultOrException> resultsOf(Response reply) throws IOException {
+    final List<ResultOrException> results = new ArrayList<>();
+    for (RegionActionResult regionActionResult : reply.getMulti().getRegionActionResultList()) {
+      if (regionActionResult.getException() != null) {
+        throw toIOException(regionActionResult.getException());
+      }
+      for (ResultOrException resultOrException : regionActionResult.getResultOrExceptionList()) {
+        if (resultOrException.getException() != null) {
+          throw toIOException(resultOrException.getException());
+        }
+        results.add(resultOrException);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Records each mutation of the batch which the reply to its MULTI says failed, with the reason.
+   */
+  static void collectFailures(List<? extends Row> batch, Response reply, List<Throwable> causes, List<Row> failed) {
+    for (RegionActionResult regionActionResult : reply.getMulti().getRegionActionResultList()) {
+      if (regionActionResult.getException() != null) {
+        failAll(batch, toIOException(regionActionResult.getException()), causes, failed);
+        continue;
+      }
+      for (ResultOrException resultOrException : regionActionResult.getResultOrExceptionList()) {
+        if (resultOrException.getException() != null) {
+          causes.add(toIOException(resultOrException.getException()));
+          failed.add(batch.get(resultOrException.getIndex()));
+        }
+      }
+    }
+  }
+
+  static void failAll(List<? extends Row> batch, Throwable cause, List<Throwable> causes, List<Row> failed) {
+    for (Row row : batch) {
+      causes.add(cause);
+      failed.add(row);
+    }
+  }
+
+  /**
+   * @throws IOException if any RegionAction of the MULTI failed as a whole.
+   */
+  static void checkRegionActions(Response reply) throws IOException {
+    for (RegionActionResult regionActionResult : reply.getMulti().getRegionActionResultList()) {
+      if (regionActionResult.getException() != null) {
+        throw toIOException(regionActionResult.getException());
+      }
+    }
+  }
+
+  static IOException toIOException(NameBytesPair exception) {
+    return new IOException(exception.getName() + ": " + Bytes.toString(exception.getValue().array()));
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * The futures of the calls on one connection which are waiting for their responses, by command id.
+ * <p>
+ * Command ids mostly count up, so a call is kept in a power of two ring at the slot its id maps to, without boxing
+ * the id or allocating an entry. A call whose slot is still held by an earlier one, which happens when ids from
+ * several sources share a connection or a call is slow to be answered, goes to an overflow map instead. A call is
+ * removed when it is answered, so the table stays as large as the number of calls in flight.
+ */
+class PendingCalls<T> {
+  // Holds a slot between claiming it and publishing its command id and future
+  private static final Object RESERVED = new Object();
+
+  private final int mask;
+  private final AtomicLongArray commandIds;
+  private final AtomicReferenceArray<Object> futures;
+  private final ConcurrentHashMap<Long, SettableFuture<T>> overflow = new ConcurrentHashMap<>();
+
+  /**
+   * @param slots The size of the ring, rounded up to a power of two.
+   */
+  PendingCalls(int slots) {
+    final int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+    this.mask = size - 1;
+    this.commandIds = new AtomicLongArray(size);
+    this.futures = new AtomicReferenceArray<>(size);
+  }
+
+  void put(long commandId, SettableFuture<T> future) {
+    final int slot = slot(commandId);
+    if (futures.compareAndSet(slot, null, RESERVED)) {
+      commandIds.set(slot, commandId);
+      futures.set(slot, future);
+    } else {
+      overflow.put(commandId, future);
+    }
+  }
+
+  /**
+   * @return the future of the call, which is no longer pending, or null if there was none.
+   */
+  @SuppressWarnings("unchecked")
+  SettableFuture<T> remove(long commandId) {
+    final int slot = slot(commandId);
+    final Object future = futures.get(slot);
+    // Once a future leaves its slot it never comes back, so if it is still there so is its command id
+    if (future != null && future != RESERVED && commandIds.get(slot) == commandId
+        && futures.compareAndSet(slot, future, null)) {
+      return (SettableFuture<T>) future;
+    }
+    return overflow.isEmpty() ? null : overflow.remove(commandId);
+  }
+
+  /**
+   * Removes the call only if it is still waiting on this future.
+   *
+   * @return whether it was removed.
+   */
+  boolean remove(long commandId, SettableFuture<T> future) {
+    final int slot = slot(commandId);
+    if (futures.get(slot) == future && commandIds.get(slot) == commandId
+        && futures.compareAndSet(slot, future, null)) {
+      return true;
+    }
+    return !overflow.isEmpty() && overflow.remove(commandId, future);
+  }
+
+  /**
+   * Removes every pending call, handing each one's future to the consumer.
+   */
+  @SuppressWarnings("unchecked")
+  void drain(Consumer<SettableFuture<T>> consumer) {
+    for (int slot = 0; slot <= mask; slot++) {
+      final Object future = futures.get(slot);
+      if (future != null && future != RESERVED && futures.compareAndSet(slot, future, null)) {
+        consumer.accept((SettableFuture<T>) future);
+      }
+    }
+    for (Long commandId : overflow.keySet()) {
+      final SettableFuture<T> future = overflow.remove(commandId);
+      if (future != null) {
+        consumer.accept(future);
+      }
+    }
+  }
+
+  private int slot(long commandId) {
+    return (int) commandId & mask;
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Where a tablet lives: the rows it holds, [startKey, endKey), the node which leads it, and the other nodes which
+ * replicate it and whose addresses are known. An empty end key means the tablet runs to the end of the table.
+ */
+public class RegionLocation {
+  private final byte[] regionName;
+  private final byte[] startKey;
+  private final byte[] endKey;
+  private final long leader;
+  private final List<Long> replicas;
+
+  public RegionLocation(byte[] regionName, byte[] startKey, byte[] endKey, long leader) {
+    this(regionName, startKey, endKey, leader, Collections.emptyList());
+  }
+
+  public RegionLocation(byte[] regionName, byte[] startKey, byte[] endKey, long leader, List<Long> replicas) {
+    this.regionName = regionName;
+    this.startKey = startKey;
+    this.endKey = endKey;
+    this.leader = leader;
+    this.replicas = replicas;
+  }
+
+  public byte[] getRegionName() {
+    return regionName;
+  }
+
+  public byte[] getStartKey() {
+    return startKey;
+  }
+
+  public byte[] getEndKey() {
+    return endKey;
+  }
+
+  public long getLeader() {
+    return leader;
+  }
+
+  /**
+   * @return the nodes other than the leader which hold a copy of the tablet and can be connected to.
+   */
+  public List<Long> getReplicas() {
+    return replicas;
+  }
+
+  public boolean containsRow(byte[] row) {
+    return Bytes.compareTo(row, startKey) >= 0
+        && (endKey.length == 0 || Bytes.compareTo(row, endKey) < 0);
+  }
+
+  @Override
+  public String toString() {
+    return Bytes.toStringBinary(regionName) + " led by " + leader;
+  }
+}
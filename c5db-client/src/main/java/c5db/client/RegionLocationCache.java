@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The client's cache of tablet locations, a range map per table keyed by each tablet's start key. Entries stay
+ * until a request to the tablet fails because it has moved, split or lost its leader, at which point the caller
+ * invalidates it and looks it up again.
+ */
+public class RegionLocationCache {
+  private final Map<ByteBuffer, ConcurrentSkipListMap<byte[], RegionLocation>> tables = new ConcurrentHashMap<>();
+
+  /**
+   * @return the cached location of the tablet holding the row, or null if there is none.
+   */
+  public RegionLocation get(byte[] tableName, byte[] row) {
+    final ConcurrentSkipListMap<byte[], RegionLocation> locations = tables.get(ByteBuffer.wrap(tableName));
+    if (locations == null) {
+      return null;
+    }
+    final Map.Entry<byte[], RegionLocation> entry = locations.floorEntry(row);
+    if (entry == null || !entry.getValue().containsRow(row)) {
+      return null;
+    }
+    return entry.getValue();
+  }
+
+  /**
+   * Caches a location, replacing any cached tablets whose rows overlap it.
+   */
+  public void put(byte[] tableName, RegionLocation location) {
+    final ConcurrentSkipListMap<byte[], RegionLocation> locations =
+        tables.computeIfAbsent(ByteBuffer.wrap(tableName), name -> new ConcurrentSkipListMap<>(Bytes.BYTES_COMPARATOR));
+
+    final Map.Entry<byte[], RegionLocation> before = locations.lowerEntry(location.getStartKey());
+    if (before != null && overlaps(before.getValue(), location)) {
+      locations.remove(before.getKey(), before.getValue());
+    }
+    final Map<byte[], RegionLocation> after = location.getEndKey().length == 0
+        ? locations.tailMap(location.getStartKey())
+        : locations.subMap(location.getStartKey(), location.getEndKey());
+    after.clear();
+    locations.put(location.getStartKey(), location);
+  }
+
+  /**
+   * Forgets the location of the tablet holding the row, if one is cached.
+   */
+  public void invalidate(byte[] tableName, byte[] row) {
+    final ConcurrentSkipListMap<byte[], RegionLocation> locations = tables.get(ByteBuffer.wrap(tableName));
+    if (locations == null) {
+      return;
+    }
+    final Map.Entry<byte[], RegionLocation> entry = locations.floorEntry(row);
+    if (entry != null && entry.getValue().containsRow(row)) {
+      locations.remove(entry.getKey(), entry.getValue());
+    }
+  }
+
+  public void clear() {
+    tables.clear();
+  }
+
+  private static boolean overlaps(RegionLocation earlier, RegionLocation later) {
+    return earlier.getEndKey().length == 0 || Bytes.compareTo(earlier.getEndKey(), later.getStartKey()) > 0;
+  }
+}
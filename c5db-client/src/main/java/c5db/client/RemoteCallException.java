@@ -0,0 +1,52 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client;
+
+import c5db.client.generated.NameBytesPair;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.io.IOException;
+
+/**
+ * A call which failed on the region server. The server sends the name of its exception and its message.
+ */
+public class RemoteCallException extends IOException {
+  static final String REGION_NOT_FOUND_EXCEPTION = "c5db.regionserver.RegionNotFoundException";
+  private final String exceptionName;
+
+  public RemoteCallException(NameBytesPair exception) {
+    super(exception.getName() + ": " + (exception.getValue() == null ? "" : Bytes.toString(toArray(exception))));
+    this.exceptionName = exception.getName();
+  }
+
+  public String getExceptionName() {
+    return exceptionName;
+  }
+
+  /**
+   * @return whether the server does not have the tablet the call was sent to, as when it has moved.
+   */
+  public boolean isRegionNotFound() {
+    return REGION_NOT_FOUND_EXCEPTION.equals(exceptionName);
+  }
+
+  private static byte[] toArray(NameBytesPair exception) {
+    final byte[] bytes = new byte[exception.getValue().remaining()];
+    exception.getValue().duplicate().get(bytes);
+    return bytes;
+  }
+}
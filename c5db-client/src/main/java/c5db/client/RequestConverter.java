@@ -17,6 +17,8 @@
 package c5db.client;
 
 import c5db.client.generated.Action;
+import c5db.client.generated.ByteArrayComparable;
+import c5db.client.generated.CompareType;
 import c5db.client.generated.Condition;
 import c5db.client.generated.GetRequest;
 import c5db.client.generated.MutateRequest;
@@ -118,20 +120,81 @@ public final class RequestConverter {
     final List<Action> actions = new ArrayList<>();
     int index = 0;
     for (Mutation mutation : rowMutations.getMutations()) {
-      MutationProto.MutationType mutateType;
-      if (mutation instanceof Put) {
-        mutateType = MutationProto.MutationType.PUT;
-      } else if (mutation instanceof Delete) {
-        mutateType = MutationProto.MutationType.DELETE;
-      } else {
-        throw new DoNotRetryIOException("RowMutations supports only put and delete, not "
-            + mutation.getClass().getName());
-      }
-      final MutationProto mp = ProtobufUtil.toMutation(mutateType, mutation);
+      final MutationProto mp = ProtobufUtil.toMutation(getMutationType(mutation), mutation);
       final Action action = new Action(++index, mp, new c5db.client.generated.Get());
       actions.add(action);
 
     }
     return new RegionAction(region, true, actions);
   }
+
+  /**
+   * Create a protocol buffer RegionAction which applies each of the mutations. The actions are not atomic; each
+   * Action's index is the position of its mutation in the list.
+   *
+   * @param regionName The region name the mutations apply to.
+   * @param mutations  The puts and deletes to apply.
+   * @return a data-laden RegionAction
+   */
+  public static RegionAction buildRegionAction(final byte[] regionName,
+                                               final List<? extends Mutation> mutations)
+      throws IOException {
+    final RegionSpecifier region = buildRegionSpecifier(regionName);
+    final List<Action> actions = new ArrayList<>(mutations.size());
+    int index = 0;
+    for (Mutation mutation : mutations) {
+      actions.add(new Action(index++, ProtobufUtil.toMutation(getMutationType(mutation), mutation), null));
+    }
+    return new RegionAction(region, false, actions);
+  }
+
+  /**
+   * Create a protocol buffer Condition which holds only if the cell's value equals the given value.
+   *
+   * @return a Condition for a check-and-mutate
+   */
+  public static Condition buildCondition(final byte[] row,
+                                         final byte[] family,
+                                         final byte[] qualifier,
+                                         final byte[] value) {
+    return new Condition(ByteBuffer.wrap(row),
+        ByteBuffer.wrap(family),
+        ByteBuffer.wrap(qualifier),
+        CompareType.EQUAL,
+        FakeHTable.toComparator(new ByteArrayComparable(ByteBuffer.wrap(value))));
+  }
+
+  private static MutationProto.MutationType getMutationType(final Mutation mutation) throws DoNotRetryIOException {
+    if (mutation instanceof Put) {
+      return MutationProto.MutationType.PUT;
+    } else if (mutation instanceof Delete) {
+      return MutationProto.MutationType.DELETE;
+    } else {
+      throw new DoNotRetryIOException("Only put and delete are supported, not " + mutation.getClass().getName());
+    }
+  }
+
+  /**
+   * Create a protocol buffer RegionAction which reads each of the gets. The actions are not atomic.
+   *
+   * @param regionName    The region name the gets apply to.
+   * @param gets          The gets to send.
+   * @param firstIndex    The index given to the first get's Action; the rest follow on from it, so that results
+   *                      can be placed back by index.
+   * @param existenceOnly indicate if check row existence only
+   * @return a data-laden RegionAction
+   */
+  public static RegionAction buildRegionAction(final byte[] regionName,
+                                               final List<Get> gets,
+                                               final int firstIndex,
+                                               final boolean existenceOnly)
+      throws IOException {
+    final RegionSpecifier region = buildRegionSpecifier(regionName);
+    final List<Action> actions = new ArrayList<>(gets.size());
+    int index = firstIndex;
+    for (Get get : gets) {
+      actions.add(new Action(index++, null, ProtobufUtil.toGet(get, existenceOnly)));
+    }
+    return new RegionAction(region, false, actions);
+  }
 }
@@ -0,0 +1,555 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client;
+
+import c5db.client.generated.Action;
+import c5db.client.generated.Call;
+import c5db.client.generated.GetRequest;
+import c5db.client.generated.MultiRequest;
+import c5db.client.generated.MultiResponse;
+import c5db.client.generated.MutateRequest;
+import c5db.client.generated.NameBytesPair;
+import c5db.client.generated.RegionAction;
+import c5db.client.generated.RegionActionResult;
+import c5db.client.generated.RegionSpecifier;
+import c5db.client.generated.Response;
+import c5db.client.generated.ResultOrException;
+import c5db.client.generated.ScanRequest;
+import c5db.client.scanner.ClientScanner;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import io.netty.channel.Channel;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static c5db.client.generated.Call.Command.GET;
+import static c5db.client.generated.Call.Command.MULTI;
+import static c5db.client.generated.Call.Command.MUTATE;
+import static c5db.client.generated.Call.Command.SCAN;
+
+/**
+ * A TableInterface which sends each request to the leader of the tablet holding its row, as located by the
+ * connection manager, naming the tablet by its region name. The actions of a MULTI are split between the tablets
+ * they belong to and their results put back together. When a node answers that it does not have a tablet, or does not
+ * answer in time, the tablet's cached location is dropped so the next request looks it up again. Requests wait for
+ * lookups without blocking the caller.
+ * <p>
+ * A table whose tablets cannot be located is served through the node first connected to.
+ * <p>
+ * Gets may be hedged, which is off by default: once a get has gone unanswered for longer than a chosen percentile of
+ * recent get latencies, it is also sent to another node replicating the tablet, and the first reply is used. This
+ * trims the tail left by a leader which stalls, at the cost of a few duplicate reads; a replica answers from its own
+ * copy of the tablet, which may not yet have the leader's latest writes.
+ */
+public class RoutingTableInterface implements TableInterface {
+  private static final Logger LOG = LoggerFactory.getLogger(RoutingTableInterface.class);
+  private static final HashedWheelTimer HEDGE_TIMER =
+      new HashedWheelTimer(new DefaultThreadFactory("c5-client-hedge-timer", true), 1, TimeUnit.MILLISECONDS);
+  private final AtomicLong commandId = new AtomicLong(0);
+  private final LatencyHistogram getLatencies = new LatencyHistogram();
+  private volatile double hedgedReadPercentile =
+      Double.parseDouble(System.getProperty(C5Constants.HEDGED_READ_PERCENTILE_PROPERTY_NAME, "0"));
+  private final C5ConnectionManager c5ConnectionManager;
+  private final Channel bootstrapChannel;
+
+  public RoutingTableInterface(String hostname, int port)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    this(hostname, port, new C5NettyConnectionManager());
+  }
+
+  public RoutingTableInterface(String hostname, int port, C5ConnectionManager c5ConnectionManager)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    this.c5ConnectionManager = c5ConnectionManager;
+    this.bootstrapChannel = c5ConnectionManager.getOrCreateChannel(hostname, port);
+  }
+
+  /**
+   * @param percentile The percentile of recent get latencies, between 0 and 100, after which an unanswered get is
+   *                   also sent to a replica; 0 turns hedging off.
+   */
+  public void setHedgedReadPercentile(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("percentile must be between 0 and 100: " + percentile);
+    }
+    this.hedgedReadPercentile = percentile;
+  }
+
+  @Override
+  public ListenableFuture<Response> get(GetRequest get) {
+    return get(get, C5Constants.DEFAULT_CALL_TIMEOUT_MILLIS);
+  }
+
+  @Override
+  public ListenableFuture<ClientScanner> scan(ScanRequest scanRequest) {
+    return scan(scanRequest, C5Constants.DEFAULT_CALL_TIMEOUT_MILLIS);
+  }
+
+  @Override
+  public ListenableFuture<Response> mutate(MutateRequest mutateRequest) {
+    return mutate(mutateRequest, C5Constants.DEFAULT_CALL_TIMEOUT_MILLIS);
+  }
+
+  @Override
+  public ListenableFuture<Response> multiRequest(MultiRequest multiRequest) {
+    return multiRequest(multiRequest, C5Constants.DEFAULT_CALL_TIMEOUT_MILLIS);
+  }
+
+  @Override
+  public ListenableFuture<Response> get(GetRequest get, long timeoutMillis) {
+    final AsyncFunction<Route, Response> send = route -> {
+      final long startNanos = System.nanoTime();
+      final ListenableFuture<Response> response = sendGet(get, route.region, route.channel, timeoutMillis);
+      response.addListener(() -> getLatencies.record(System.nanoTime() - startNanos),
+          MoreExecutors.sameThreadExecutor());
+
+      final long hedgeDelayMicros = hedgeDelayMicros();
+      return hedgeDelayMicros < 0 || route.replicas.isEmpty()
+          ? response
+          : hedge(get, route, response, hedgeDelayMicros, timeoutMillis);
+    };
+    return invalidatingOnFailure(Futures.transform(routeFor(get.getRegion(), get.getGet().getRow()), send),
+        get.getRegion(),
+        get.getGet().getRow());
+  }
+
+  private ListenableFuture<Response> sendGet(GetRequest get,
+                                             RegionSpecifier region,
+                                             Channel channel,
+                                             long timeoutMillis) {
+    return handler(channel).call(
+        new Call(GET, commandId.incrementAndGet(), new GetRequest(region, get.getGet()), null, null, null),
+        channel,
+        timeoutMillis);
+  }
+
+  /**
+   * @return how long a get may go unanswered before it is also sent to a replica, in microseconds, or -1 if gets are
+   * not hedged.
+   */
+  private long hedgeDelayMicros() {
+    final double percentile = hedgedReadPercentile;
+    return percentile > 0 ? getLatencies.percentileMicros(percentile, C5Constants.HEDGED_READ_MIN_SAMPLES) : -1;
+  }
+
+  /**
+   * Sends the get to one of the tablet's replicas as well if the leader has not answered it after the delay.
+   *
+   * @return the first reply to either, or the leader's failure; a replica which fails is ignored.
+   */
+  private ListenableFuture<Response> hedge(final GetRequest get,
+                                           final Route route,
+                                           ListenableFuture<Response> leaderResponse,
+                                           long delayMicros,
+                                           long timeoutMillis) {
+    final SettableFuture<Response> firstReply = SettableFuture.create();
+    Futures.addCallback(leaderResponse, new FutureCallback<Response>() {
+      @Override
+      public void onSuccess(Response reply) {
+        firstReply.set(reply);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        firstReply.setException(t);
+      }
+    });
+
+    final Timeout hedgeTimeout = HEDGE_TIMER.newTimeout(timeout -> {
+      if (firstReply.isDone()) {
+        return;
+      }
+      ClientMetrics.HEDGED_GETS.mark();
+      final long replica = route.replicas.get(ThreadLocalRandom.current().nextInt(route.replicas.size()));
+      // Connecting does not block, so the timer is not held up
+      final AsyncFunction<Channel, Response> send = channel -> sendGet(get, route.region, channel, timeoutMillis);
+      Futures.addCallback(Futures.transform(c5ConnectionManager.getOrCreateChannelAsync(replica), send),
+          new FutureCallback<Response>() {
+            @Override
+            public void onSuccess(Response reply) {
+              firstReply.set(reply);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              LOG.debug("A hedged get from {} failed on node {}",
+                  Bytes.toStringBinary(toBytes(route.region.getValue())), replica, t);
+            }
+          });
+    }, delayMicros, TimeUnit.MICROSECONDS);
+    firstReply.addListener(hedgeTimeout::cancel, MoreExecutors.sameThreadExecutor());
+    return firstReply;
+  }
+
+  @Override
+  public ListenableFuture<ClientScanner> scan(ScanRequest scanRequest, long timeoutMillis) {
+    final AsyncFunction<Route, ClientScanner> send = route -> {
+      final ScanRequest routed = new ScanRequest(route.region,
+          scanRequest.getScan(),
+          scanRequest.getScannerId(),
+          scanRequest.getNumberOfRows(),
+          scanRequest.getCloseScanner(),
+          scanRequest.getNextCallSeq());
+      return handler(route.channel).callScan(new Call(SCAN, commandId.incrementAndGet(), null, null, routed, null),
+          route.channel,
+          timeoutMillis);
+    };
+    final ByteBuffer startRow = scanRequest.getScan().getStartRow();
+    return invalidatingOnFailure(Futures.transform(routeFor(scanRequest.getRegion(), startRow), send),
+        scanRequest.getRegion(),
+        startRow);
+  }
+
+  @Override
+  public ListenableFuture<Response> mutate(MutateRequest mutateRequest, long timeoutMillis) {
+    final AsyncFunction<Route, Response> send = route -> {
+      final MutateRequest routed = new MutateRequest(route.region,
+          mutateRequest.getMutation(),
+          mutateRequest.getCondition());
+      return handler(route.channel).call(new Call(MUTATE, commandId.incrementAndGet(), null, routed, null, null),
+          route.channel,
+          timeoutMillis);
+    };
+    final ByteBuffer row = mutateRequest.getMutation().getRow();
+    return invalidatingOnFailure(Futures.transform(routeFor(mutateRequest.getRegion(), row), send),
+        mutateRequest.getRegion(),
+        row);
+  }
+
+  @Override
+  public ListenableFuture<Response> multiRequest(MultiRequest multiRequest, long timeoutMillis) {
+    final List<RegionAction> regionActions = multiRequest.getRegionActionList();
+    if (regionActions == null || regionActions.isEmpty()) {
+      return handler(bootstrapChannel).call(new Call(MULTI, commandId.incrementAndGet(), null, null, null, multiRequest),
+          bootstrapChannel,
+          timeoutMillis);
+    }
+
+    // One route per atomic RegionAction, and one per action of the others, in order
+    final List<ListenableFuture<Route>> routes = new ArrayList<>();
+    for (RegionAction regionAction : regionActions) {
+      final List<Action> actions = regionAction.getActionList();
+      if (regionAction.getAtomic() || actions == null || actions.isEmpty()) {
+        // An atomic RegionAction is confined to one row, so it goes to one tablet whole
+        final ByteBuffer row = actions == null || actions.isEmpty() ? null : rowOf(actions.get(0));
+        routes.add(routeFor(regionAction.getRegion(), row));
+      } else {
+        actions.forEach(action -> routes.add(routeFor(regionAction.getRegion(), rowOf(action))));
+      }
+    }
+
+    final AsyncFunction<List<Route>, Response> send = located -> send(regionActions, located, timeoutMillis);
+    return Futures.transform(Futures.allAsList(routes), send);
+  }
+
+  /**
+   * Splits the RegionActions between the tablets their rows were located in, sends one MULTI to each node, and puts
+   * the replies back together.
+   */
+  private ListenableFuture<Response> send(List<RegionAction> regionActions, List<Route> located, long timeoutMillis) {
+    final Map<Channel, List<RoutedRegionAction>> routes = new LinkedHashMap<>();
+    final Iterator<Route> nextRoute = located.iterator();
+    for (int i = 0; i < regionActions.size(); i++) {
+      final RegionAction regionAction = regionActions.get(i);
+      final List<Action> actions = regionAction.getActionList();
+      if (regionAction.getAtomic() || actions == null || actions.isEmpty()) {
+        final Route route = nextRoute.next();
+        route(routes, route, new RoutedRegionAction(i,
+            regionAction.getRegion(),
+            new RegionAction(route.region, regionAction.getAtomic(), actions)));
+        continue;
+      }
+
+      final Map<Route, List<Action>> actionsByTablet = new LinkedHashMap<>();
+      for (Action action : actions) {
+        actionsByTablet.computeIfAbsent(nextRoute.next(), route -> new ArrayList<>()).add(action);
+      }
+      for (Map.Entry<Route, List<Action>> entry : actionsByTablet.entrySet()) {
+        final RegionAction part = new RegionAction(entry.getKey().region, false, entry.getValue());
+        route(routes, entry.getKey(), new RoutedRegionAction(i, regionAction.getRegion(), part));
+      }
+    }
+
+    final List<ListenableFuture<Response>> responses = new ArrayList<>(routes.size());
+    final List<List<RoutedRegionAction>> sentParts = new ArrayList<>(routes.size());
+    for (Map.Entry<Channel, List<RoutedRegionAction>> route : routes.entrySet()) {
+      final List<RegionAction> parts = new ArrayList<>(route.getValue().size());
+      route.getValue().forEach(routed -> parts.add(routed.regionAction));
+      final Call call = new Call(MULTI, commandId.incrementAndGet(), null, null, null, new MultiRequest(parts));
+      final ListenableFuture<Response> response = handler(route.getKey()).call(call, route.getKey(), timeoutMillis);
+      Futures.addCallback(response, new FutureCallback<Response>() {
+        @Override
+        public void onSuccess(Response reply) {
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          if (isStaleLocation(t)) {
+            route.getValue().forEach(RoutingTableInterface.this::invalidate);
+          }
+        }
+      });
+      responses.add(response);
+      sentParts.add(route.getValue());
+    }
+
+    return Futures.transform(Futures.allAsList(responses), new Function<List<Response>, Response>() {
+      @Override
+      public Response apply(List<Response> replies) {
+        return mergeReplies(regionActions.size(), sentParts, replies);
+      }
+    });
+  }
+
+  @Override
+  public List<RegionLocation> locateRegions(byte[] tableName, byte[] startRow, byte[] stopRow) throws IOException {
+    try {
+      return c5ConnectionManager.locateRegions(tableName, startRow, stopRow);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted locating the tablets of " + Bytes.toString(tableName));
+    } catch (ExecutionException | TimeoutException e) {
+      throw new IOException(e);
+    } catch (IOException e) {
+      LOG.warn("Unable to locate the tablets of {}, treating it as one tablet", Bytes.toString(tableName), e);
+      return Arrays.asList(new RegionLocation(tableName, new byte[0], new byte[0], 0));
+    }
+  }
+
+  /**
+   * Puts the replies to the split MULTI back together as the reply to the one which was asked for.
+   */
+  private Response mergeReplies(int regionActionCount,
+                                List<List<RoutedRegionAction>> sentParts,
+                                List<Response> replies) {
+    final List<List<ResultOrException>> results = new ArrayList<>(regionActionCount);
+    final NameBytesPair[] regionExceptions = new NameBytesPair[regionActionCount];
+    for (int i = 0; i < regionActionCount; i++) {
+      results.add(new ArrayList<>());
+    }
+
+    for (int reply = 0; reply < replies.size(); reply++) {
+      final List<RegionActionResult> regionActionResults = replies.get(reply).getMulti().getRegionActionResultList();
+      final List<RoutedRegionAction> parts = sentParts.get(reply);
+      for (int part = 0; part < parts.size(); part++) {
+        final RoutedRegionAction routed = parts.get(part);
+        final RegionActionResult regionActionResult = regionActionResults.get(part);
+        final NameBytesPair exception = regionActionResult.getException();
+        if (exception == null) {
+          if (regionActionResult.getResultOrExceptionList() != null) {
+            results.get(routed.index).addAll(regionActionResult.getResultOrExceptionList());
+          }
+          continue;
+        }
+
+        if (RemoteCallException.REGION_NOT_FOUND_EXCEPTION.equals(exception.getName())) {
+          invalidate(routed);
+        }
+        if (routed.regionAction.getAtomic()) {
+          regionExceptions[routed.index] = exception;
+        } else {
+          for (Action action : routed.regionAction.getActionList()) {
+            results.get(routed.index).add(new ResultOrException(action.getIndex(), null, exception));
+          }
+        }
+      }
+    }
+
+    final List<RegionActionResult> merged = new ArrayList<>(regionActionCount);
+    for (int i = 0; i < regionActionCount; i++) {
+      merged.add(new RegionActionResult(results.get(i), regionExceptions[i]));
+    }
+    return new Response(Response.Command.MULTI,
+        replies.get(0).getCommandId(),
+        null,
+        null,
+        null,
+        new MultiResponse(merged),
+        null);
+  }
+
+  /**
+   * Drops the cached location of the row's tablet if the call finds that the tablet is not where it was, or goes
+   * unanswered, so the next call looks it up again.
+   */
+  private <T> ListenableFuture<T> invalidatingOnFailure(ListenableFuture<T> response,
+                                                        RegionSpecifier table,
+                                                        ByteBuffer row) {
+    Futures.addCallback(response, new FutureCallback<T>() {
+      @Override
+      public void onSuccess(T result) {
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        if (isStaleLocation(t)) {
+          c5ConnectionManager.invalidateRegionLocation(tableNameOf(table), toBytes(row));
+        }
+      }
+    });
+    return response;
+  }
+
+  private static boolean isStaleLocation(Throwable t) {
+    return t instanceof TimeoutException
+        || t instanceof RemoteCallException && ((RemoteCallException) t).isRegionNotFound();
+  }
+
+  private void invalidate(RoutedRegionAction routed) {
+    final byte[] tableName = tableNameOf(routed.table);
+    final List<Action> actions = routed.regionAction.getActionList();
+    if (actions != null) {
+      actions.forEach(action -> c5ConnectionManager.invalidateRegionLocation(tableName, toBytes(rowOf(action))));
+    }
+  }
+
+  /**
+   * Locates the tablet holding the row of the table which the specifier names, either by the table's name or by the
+   * region name of one of its tablets. A table whose tablets cannot be located is served through the bootstrap node,
+   * which is sent the specifier as it was given.
+   */
+  private ListenableFuture<Route> routeFor(RegionSpecifier table, ByteBuffer row) {
+    final byte[] tableName = tableNameOf(table);
+    // Connecting must not block: this may run on the event loop which completed an earlier call
+    final AsyncFunction<RegionLocation, Route> connect = location -> {
+      final Function<Channel, Route> toRoute = channel -> new Route(channel,
+          RequestConverter.buildRegionSpecifier(location.getRegionName()),
+          location.getReplicas());
+      return Futures.transform(c5ConnectionManager.getOrCreateChannelAsync(location.getLeader()), toRoute);
+    };
+    return Futures.withFallback(Futures.transform(c5ConnectionManager.locateRegion(tableName, toBytes(row)), connect),
+        t -> {
+          if (!(t instanceof IOException)) {
+            return Futures.immediateFailedFuture(t);
+          }
+          LOG.warn("Unable to locate a tablet of {}, sending through the bootstrap node", Bytes.toString(tableName), t);
+          return Futures.immediateFuture(new Route(bootstrapChannel, table));
+        });
+  }
+
+  private static MessageHandler handler(Channel channel) {
+    return channel.pipeline().get(FutureBasedMessageHandler.class);
+  }
+
+  private static void route(Map<Channel, List<RoutedRegionAction>> routes, Route route, RoutedRegionAction routed) {
+    routes.computeIfAbsent(route.channel, key -> new ArrayList<>()).add(routed);
+  }
+
+  private static ByteBuffer rowOf(Action action) {
+    return action.getMutation() != null ? action.getMutation().getRow() : action.getGet().getRow();
+  }
+
+  /**
+   * @return the table which the specifier names; a region name, "table,startKey,regionId", starts with it.
+   */
+  private static byte[] tableNameOf(RegionSpecifier specifier) {
+    final byte[] name = toBytes(specifier.getValue());
+    final int delimiter = Bytes.indexOf(name, (byte) ',');
+    return delimiter < 0 ? name : Arrays.copyOf(name, delimiter);
+  }
+
+  private static byte[] toBytes(ByteBuffer buffer) {
+    return buffer == null ? new byte[0] : buffer.array();
+  }
+
+  @Override
+  public void close() {
+    try {
+      c5ConnectionManager.close();
+    } catch (InterruptedException e) {
+      LOG.error("Unable to close, interrupted", e);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * The part of a RegionAction which is sent to one tablet, with the position and table of the RegionAction it came
+   * from.
+   */
+  private static class RoutedRegionAction {
+    private final int index;
+    private final RegionSpecifier table;
+    private final RegionAction regionAction;
+
+    private RoutedRegionAction(int index, RegionSpecifier table, RegionAction regionAction) {
+      this.index = index;
+      this.table = table;
+      this.regionAction = regionAction;
+    }
+  }
+
+  /**
+   * Where a request goes: the connection to the leader of its tablet, and the region name to send it with. The
+   * replicas a get may be hedged to are carried along, but take no part in telling routes apart.
+   */
+  private static class Route {
+    private final Channel channel;
+    private final RegionSpecifier region;
+    private final List<Long> replicas;
+
+    private Route(Channel channel, RegionSpecifier region) {
+      this(channel, region, Collections.emptyList());
+    }
+
+    private Route(Channel channel, RegionSpecifier region, List<Long> replicas) {
+      this.channel = channel;
+      this.region = region;
+      this.replicas = replicas;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Route)) {
+        return false;
+      }
+      final Route route = (Route) o;
+      return channel.equals(route.channel) && region.getValue().equals(route.region.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * channel.hashCode() + region.getValue().hashCode();
+    }
+  }
+}
@@ -22,11 +22,14 @@ import c5db.client.generated.MultiRequest;
 import c5db.client.generated.MutateRequest;
 import c5db.client.generated.Response;
 import c5db.client.generated.ScanRequest;
+import c5db.client.scanner.ClientScanner;
 import com.google.common.util.concurrent.ListenableFuture;
 import io.netty.channel.Channel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
@@ -70,7 +73,7 @@ public class SingleNodeTableInterface implements TableInterface {
   }
 
   @Override
-  public ListenableFuture<Long> scan(ScanRequest scanRequest) {
+  public ListenableFuture<ClientScanner> scan(ScanRequest scanRequest) {
     return handler.callScan(new Call(SCAN, commandId.incrementAndGet(), null, null, scanRequest, null), channel);
   }
 
@@ -84,6 +87,40 @@ public class SingleNodeTableInterface implements TableInterface {
     return handler.call(new Call(MULTI, commandId.incrementAndGet(), null, null, null, multiRequest), channel);
   }
 
+  @Override
+  public ListenableFuture<Response> get(GetRequest get, long timeoutMillis) {
+    return handler.call(new Call(GET, commandId.incrementAndGet(), get, null, null, null), channel, timeoutMillis);
+  }
+
+  @Override
+  public ListenableFuture<ClientScanner> scan(ScanRequest scanRequest, long timeoutMillis) {
+    return handler.callScan(new Call(SCAN, commandId.incrementAndGet(), null, null, scanRequest, null),
+        channel,
+        timeoutMillis);
+  }
+
+  @Override
+  public ListenableFuture<Response> mutate(MutateRequest mutateRequest, long timeoutMillis) {
+    return handler.call(new Call(MUTATE, commandId.incrementAndGet(), null, mutateRequest, null, null),
+        channel,
+        timeoutMillis);
+  }
+
+  @Override
+  public ListenableFuture<Response> multiRequest(MultiRequest multiRequest, long timeoutMillis) {
+    return handler.call(new Call(MULTI, commandId.incrementAndGet(), null, null, null, multiRequest),
+        channel,
+        timeoutMillis);
+  }
+
+  /**
+   * Everything is served by the one node, so the table is treated as a single tablet.
+   */
+  @Override
+  public List<RegionLocation> locateRegions(byte[] tableName, byte[] startRow, byte[] stopRow) {
+    return Arrays.asList(new RegionLocation(tableName, new byte[0], new byte[0], 0));
+  }
+
   @Override
   public void close() {
     try {
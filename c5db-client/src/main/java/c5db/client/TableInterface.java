@@ -22,17 +22,38 @@ import c5db.client.generated.MultiRequest;
 import c5db.client.generated.MutateRequest;
 import c5db.client.generated.Response;
 import c5db.client.generated.ScanRequest;
+import c5db.client.scanner.ClientScanner;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.io.IOException;
+import java.util.List;
+
 /**
  * A shared interface so that a user can interchange HTable and C5Table.
  */
 interface TableInterface extends AutoCloseable {
   ListenableFuture<Response> get(GetRequest get);
 
-  ListenableFuture<Long> scan(ScanRequest scanRequest);
+  ListenableFuture<ClientScanner> scan(ScanRequest scanRequest);
 
   ListenableFuture<Response> mutate(MutateRequest mutateRequest);
 
   ListenableFuture<Response> multiRequest(MultiRequest multiRequest);
+
+  /**
+   * Sends the get, failing the returned future with a {@link java.util.concurrent.TimeoutException} if it is not
+   * answered within the timeout. The other calls below take their timeouts in the same way.
+   */
+  ListenableFuture<Response> get(GetRequest get, long timeoutMillis);
+
+  ListenableFuture<ClientScanner> scan(ScanRequest scanRequest, long timeoutMillis);
+
+  ListenableFuture<Response> mutate(MutateRequest mutateRequest, long timeoutMillis);
+
+  ListenableFuture<Response> multiRequest(MultiRequest multiRequest, long timeoutMillis);
+
+  /**
+   * @return the tablets holding the rows from startRow up to stopRow, in row order.
+   */
+  List<RegionLocation> locateRegions(byte[] tableName, byte[] startRow, byte[] stopRow) throws IOException;
 }
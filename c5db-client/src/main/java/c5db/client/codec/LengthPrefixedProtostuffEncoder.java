@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client.codec;
+
+import c5db.client.C5Constants;
+import c5db.client.generated.Call;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToByteEncoder;
+import io.protostuff.LowCopyProtobufOutput;
+
+/**
+ * Writes Calls onto a raw TCP connection, each preceded by a four byte length field. No chunking is needed since
+ * there are no WebSocket frame limits on this transport.
+ */
+public class LengthPrefixedProtostuffEncoder extends MessageToByteEncoder<Call> {
+
+  @Override
+  protected void encode(ChannelHandlerContext channelHandlerContext,
+                        Call call,
+                        ByteBuf out) throws Exception {
+    final LowCopyProtobufOutput lcpo = new LowCopyProtobufOutput();
+    Call.getSchema().writeTo(lcpo, call);
+    final int size = (int) lcpo.buffer.size();
+
+    out.ensureWritable(size + C5Constants.LENGTH_FIELD_SIZE);
+    out.writeInt(size);
+    lcpo.buffer.finish().stream().forEach(out::writeBytes);
+  }
+}
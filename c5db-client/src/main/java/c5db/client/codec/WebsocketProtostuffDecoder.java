@@ -17,6 +17,7 @@
 package c5db.client.codec;
 
 import c5db.client.generated.Response;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
@@ -25,8 +26,8 @@ import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 import io.protostuff.ByteBufferInput;
 
+import java.nio.channels.ClosedChannelException;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -41,6 +42,19 @@ public class WebsocketProtostuffDecoder extends WebSocketClientProtocolHandler {
     this.handShaker = handShaker;
   }
 
+  @Override
+  public void channelActive(ChannelHandlerContext ctx) throws Exception {
+    super.channelActive(ctx);
+    final TimeoutException timeout = new TimeoutException("No websocket handshake within " + HANDSHAKE_TIMEOUT + "ms");
+    ctx.executor().schedule(() -> handshakeFuture.setException(timeout), HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    handshakeFuture.setException(new ClosedChannelException());
+    super.channelInactive(ctx);
+  }
+
   @Override
   public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
     if (evt instanceof ClientHandshakeStateEvent) {
@@ -65,9 +79,10 @@ public class WebsocketProtostuffDecoder extends WebSocketClientProtocolHandler {
     }
   }
 
-  public void syncOnHandshake() throws InterruptedException, ExecutionException, TimeoutException {
-    while (!this.handShaker.isHandshakeComplete()) {
-      handshakeFuture.get(HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS);
-    }
+  /**
+   * Completes once the websocket handshake has, or fails if the channel closes or the handshake times out first.
+   */
+  public ListenableFuture<Boolean> handshakeFuture() {
+    return handshakeFuture;
   }
 }
@@ -19,78 +19,140 @@ package c5db.client.scanner;
 import c5db.client.C5Constants;
 import c5db.client.ProtobufUtil;
 import c5db.client.RequestConverter;
+import c5db.client.generated.Cell;
+import c5db.client.generated.NameBytesPair;
 import c5db.client.generated.RegionSpecifier;
 import c5db.client.generated.ScanRequest;
 import c5db.client.generated.ScanResponse;
 import io.netty.channel.Channel;
 import org.apache.hadoop.hbase.client.AbstractClientScanner;
 import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.concurrent.ArrayBlockingQueue;
-
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Iterates the results of a scan on the server, prefetching rows ahead of the caller.
+ * <p>
+ * next() blocks until a row arrives. The rows buffered, together with those asked for but not yet received, are
+ * kept within a byte budget, using the average size of the rows seen so far. Each time the caller has to wait for
+ * rows the next request asks for twice as many, up to what the budget allows, so a fast consumer prefetches further
+ * ahead. Each time more rows are asked for while over half the budget is still buffered the request size halves
+ * again, so a consumer which slows down stops holding a large buffer.
+ */
 public class ClientScanner extends AbstractClientScanner {
-  private static final int QUEUE_SIZE = 100000;
+  private static final long DEFAULT_MAX_BUFFERED_BYTES = Long.getLong(C5Constants.SCANNER_BUFFER_BYTES_PROPERTY_NAME,
+      C5Constants.DEFAULT_SCANNER_BUFFER_BYTES);
+  // Per cell overhead on top of its row, family, qualifier and value
+  private static final int CELL_OVERHEAD_BYTES = 32;
+  // Queued once the server has no more results, to wake a waiting caller
+  private static final c5db.client.generated.Result END_OF_SCAN = new c5db.client.generated.Result();
   private final Channel ch;
   private final long scannerId;
-  private final ArrayBlockingQueue<c5db.client.generated.Result> scanResults
-      = new ArrayBlockingQueue<>(QUEUE_SIZE);
+  private final BlockingQueue<c5db.client.generated.Result> scanResults = new LinkedBlockingQueue<>();
   private final long commandId;
-  private boolean isClosed = false;
-
+  private final long maxBufferedBytes;
+  private final AtomicLong bufferedBytes = new AtomicLong(0);
+  private final AtomicLong outstandingRows = new AtomicLong(C5Constants.DEFAULT_INIT_SCAN);
+  private volatile boolean isClosed = false;
+  private volatile long averageRowBytes = 0;
+  private long receivedRows = 0;
+  private long receivedBytes = 0;
   private int requestSize = C5Constants.DEFAULT_INIT_SCAN;
-  private int outStandingRequests = C5Constants.DEFAULT_INIT_SCAN;
+  private boolean exhausted = false;
+  // Why the server ended the scan, if it failed; the caller sees it once the rows before it are taken
+  private volatile NameBytesPair failure = null;
 
   /**
    * Create a new ClientScanner for the specified table
    * Note that the passed {@link org.apache.hadoop.hbase.client.Scan}'s start row maybe changed changed.
    */
   ClientScanner(Channel channel, final long scannerId, final long commandId) {
+    this(channel, scannerId, commandId, DEFAULT_MAX_BUFFERED_BYTES);
+  }
+
+  ClientScanner(Channel channel, final long scannerId, final long commandId, final long maxBufferedBytes) {
     ch = channel;
     this.scannerId = scannerId;
     this.commandId = commandId;
+    this.maxBufferedBytes = maxBufferedBytes;
   }
 
   @Override
   public Result next() throws IOException {
-    if (this.isClosed && this.scanResults.isEmpty()) {
+    if (exhausted) {
       return null;
     }
 
-    c5db.client.generated.Result result;
-    do {
-      result = scanResults.poll();
-
-      if (!this.isClosed) {
-        // If we don't have enough pending outstanding increase our rate
-        if (this.outStandingRequests < .5 * requestSize && requestSize < C5Constants.MAX_REQUEST_SIZE) {
-          requestSize = requestSize * 2;
-        }
-        final int queueSpace = C5Constants.MAX_CACHE_SZ - this.scanResults.size();
-
-        // If we have plenty of room for another request
-        if (queueSpace * 1.5 > (requestSize + this.outStandingRequests)
-            // And we have less than two requests worth in the queue
-            && 2 * this.outStandingRequests < requestSize) {
-          getMoreRows();
-        }
+    c5db.client.generated.Result result = scanResults.poll();
+    if (result == null) {
+      // The caller is waiting on the server, so prefetch further ahead from now on
+      requestSize = Math.min(requestSize * 2, C5Constants.MAX_REQUEST_SIZE);
+      getMoreRowsIfRoom();
+      try {
+        result = scanResults.poll(C5Constants.SCANNER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for scanner " + scannerId);
+      }
+      if (result == null) {
+        throw new IOException("Timed out waiting for rows from scanner " + scannerId);
       }
-    } while (result == null && !this.isClosed);
+    }
 
-    if (result == null) {
+    if (result == END_OF_SCAN) {
+      exhausted = true;
+      if (failure != null) {
+        throw new IOException("Scanner " + scannerId + " failed on the server: " + failure.getName() + ": "
+            + (failure.getValue() == null ? "" : Bytes.toString(toArray(failure.getValue()))));
+      }
       return null;
     }
-
+    bufferedBytes.addAndGet(-sizeOf(result));
+    getMoreRowsIfRoom();
     return ProtobufUtil.toResult(result);
   }
 
-  private void getMoreRows() {
+  /**
+   * Asks for more rows once fewer than half a request's worth are outstanding, as many as fit in the byte budget.
+   * If more than half the budget is still buffered by then the caller is not keeping up, so the request size halves.
+   */
+  private void getMoreRowsIfRoom() {
+    if (isClosed) {
+      return;
+    }
+    final long outstanding = outstandingRows.get();
+    if (outstanding > requestSize / 2) {
+      return;
+    }
+
+    final long rowBytes = Math.max(averageRowBytes, 1);
+    final long buffered = bufferedBytes.get();
+    final long room = (maxBufferedBytes - buffered) / rowBytes - outstanding;
+    // With nothing buffered or on its way, ask for a row even if one is bigger than the budget
+    final long rows = outstanding == 0 && scanResults.isEmpty() ? Math.max(room, 1) : room;
+    if (rows <= 0) {
+      return;
+    }
+    if (buffered > maxBufferedBytes / 2) {
+      requestSize = Math.max(requestSize / 2, 1);
+    }
+    getMoreRows((int) Math.min(rows, requestSize));
+  }
+
+  private void getMoreRows(int rows) {
     //TODO getRegion shouldn't be needed and currently is hardcoded
     final RegionSpecifier regionSpecifier = RequestConverter.buildRegionSpecifier(new byte[]{});
 
-    final ScanRequest scanRequest = new ScanRequest(regionSpecifier, null, scannerId, requestSize, false, 0);
-    this.outStandingRequests += requestSize;
+    final ScanRequest scanRequest = new ScanRequest(regionSpecifier, null, scannerId, rows, false, 0);
+    outstandingRows.addAndGet(rows);
     ch.writeAndFlush(ProtobufUtil.getScanCall(commandId, scanRequest));
   }
 
@@ -110,16 +172,64 @@ public class ClientScanner extends AbstractClientScanner {
 
   @Override
   public void close() {
-    this.isClosed = true;
+    if (!this.isClosed) {
+      // Release the server side scanner now rather than leaving it to expire
+      final RegionSpecifier regionSpecifier = RequestConverter.buildRegionSpecifier(new byte[]{});
+      final ScanRequest scanRequest = new ScanRequest(regionSpecifier, null, scannerId, 0, true, 0);
+      ch.writeAndFlush(ProtobufUtil.getScanCall(commandId, scanRequest));
+      this.isClosed = true;
+      scanResults.clear();
+      scanResults.add(END_OF_SCAN);
+      ClientScannerManager.INSTANCE.remove(ch, scannerId, this);
+    }
   }
 
+  /**
+   * Called on the connection's event loop with each response from the server.
+   */
   public void add(ScanResponse response) {
-    for (c5db.client.generated.Result result : response.getResultsList()) {
-      scanResults.add(result);
-      this.outStandingRequests--;
+    if (response.getResultsList() != null) {
+      for (c5db.client.generated.Result result : response.getResultsList()) {
+        final long size = sizeOf(result);
+        receivedRows++;
+        receivedBytes += size;
+        bufferedBytes.addAndGet(size);
+        outstandingRows.decrementAndGet();
+        scanResults.add(result);
+      }
+      if (receivedRows > 0) {
+        averageRowBytes = receivedBytes / receivedRows;
+      }
+    }
+    if (response.getException() != null) {
+      failure = response.getException();
     }
-    if (!this.isClosed && !response.getMoreResults()) {
-      this.close();
+    if (!response.getMoreResults() && !this.isClosed) {
+      this.isClosed = true;
+      scanResults.add(END_OF_SCAN);
+      // The server has nothing more for this scanner, so later responses with its id belong to some other scanner
+      ClientScannerManager.INSTANCE.remove(ch, scannerId, this);
     }
   }
-}
\ No newline at end of file
+
+  private static byte[] toArray(ByteBuffer buffer) {
+    final byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+
+  private static long sizeOf(c5db.client.generated.Result result) {
+    long size = 0;
+    if (result.getCellList() != null) {
+      for (Cell cell : result.getCellList()) {
+        size += CELL_OVERHEAD_BYTES + remaining(cell.getRow()) + remaining(cell.getFamily())
+            + remaining(cell.getQualifier()) + remaining(cell.getValue());
+      }
+    }
+    return size;
+  }
+
+  private static int remaining(ByteBuffer buffer) {
+    return buffer == null ? 0 : buffer.remaining();
+  }
+}
@@ -16,36 +16,64 @@
 
 package c5db.client.scanner;
 
-import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.SettableFuture;
 import io.netty.channel.Channel;
 
 import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
 
+/**
+ * The open scanners, by the channel they were opened on and their id. Scanner ids are only unique to the server
+ * which handed them out, so two servers may both have a scanner with the same id. A scanner forgets itself once it
+ * is closed or has returned its last row.
+ */
 public enum ClientScannerManager {
   INSTANCE;
 
-  private final ConcurrentHashMap<Long, SettableFuture<ClientScanner>> scannerMap = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<ScannerKey, ClientScanner> scannerMap = new ConcurrentHashMap<>();
 
   public ClientScanner createAndGet(Channel channel, long scannerId, long commandId) throws IOException {
-    if (hasScanner(scannerId)) {
+    final ClientScanner scanner = new ClientScanner(channel, scannerId, commandId);
+    if (scannerMap.putIfAbsent(new ScannerKey(channel, scannerId), scanner) != null) {
       throw new IOException("Scanner already created");
     }
-
-    final ClientScanner scanner = new ClientScanner(channel, scannerId, commandId);
-    SettableFuture<ClientScanner> clientScannerSettableFuture = SettableFuture.create();
-    clientScannerSettableFuture.set(scanner);
-    scannerMap.put(scannerId, clientScannerSettableFuture);
     return scanner;
   }
 
-  public ListenableFuture<ClientScanner> get(long scannerId) throws ExecutionException, InterruptedException {
-    return scannerMap.get(scannerId);
+  /**
+   * @return the scanner with this id opened on this channel, or null if there is none or it has finished.
+   */
+  public ClientScanner get(Channel channel, long scannerId) {
+    return scannerMap.get(new ScannerKey(channel, scannerId));
+  }
+
+  void remove(Channel channel, long scannerId, ClientScanner scanner) {
+    scannerMap.remove(new ScannerKey(channel, scannerId), scanner);
   }
 
-  public boolean hasScanner(long scannerId) {
-    return scannerMap.containsKey(scannerId);
+  private static final class ScannerKey {
+    private final Channel channel;
+    private final long scannerId;
+
+    private ScannerKey(Channel channel, long scannerId) {
+      this.channel = channel;
+      this.scannerId = scannerId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof ScannerKey)) {
+        return false;
+      }
+      final ScannerKey other = (ScannerKey) o;
+      return scannerId == other.scannerId && channel.equals(other.channel);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * channel.hashCode() + (int) (scannerId ^ (scannerId >>> 32));
+    }
   }
 }
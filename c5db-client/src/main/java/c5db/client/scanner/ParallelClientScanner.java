@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client.scanner;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.hadoop.hbase.client.AbstractClientScanner;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Scans a key range which spans several tablets. The range is split into one sub-scan per tablet, and up to
+ * parallelism of them are read at once, each by its own thread, so their servers work side by side.
+ * <p>
+ * Ordered, the rows come back in row order: the sub-scans are handed out in tablet order, and each fills its own
+ * bounded buffer which is drained in turn. Unordered, every sub-scan feeds one shared buffer and rows come back as
+ * they arrive.
+ */
+public class ParallelClientScanner extends AbstractClientScanner {
+  // Rows each sub-scan may buffer ahead of the caller, or all of them together when unordered
+  private static final int BUFFERED_ROWS = 1000;
+  // Queued by a sub-scan once it has no more rows
+  private static final Result END_OF_SUB_SCAN = new Result();
+  private final ExecutorService executor;
+  private final List<BlockingQueue<Result>> buffers = new ArrayList<>();
+  private final int subScanCount;
+  private volatile IOException failure;
+  private int currentBuffer = 0;
+  private int finishedSubScans = 0;
+  private boolean closed = false;
+
+  /**
+   * Opens the scanner of one sub-scan.
+   */
+  public interface ScannerFactory {
+    ResultScanner open(Scan scan) throws IOException;
+  }
+
+  /**
+   * @param subScans    One scan per tablet, in row order.
+   * @param parallelism The most sub-scans read at once.
+   * @param ordered     Whether rows must come back in row order.
+   */
+  public ParallelClientScanner(List<Scan> subScans, ScannerFactory scannerFactory, int parallelism, boolean ordered) {
+    this.subScanCount = subScans.size();
+    this.executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, subScanCount)),
+        new DefaultThreadFactory("ParallelClientScanner", true));
+
+    final BlockingQueue<Result> sharedBuffer = ordered ? null : new ArrayBlockingQueue<>(BUFFERED_ROWS);
+    for (Scan subScan : subScans) {
+      final BlockingQueue<Result> buffer = ordered ? new ArrayBlockingQueue<>(BUFFERED_ROWS) : sharedBuffer;
+      if (ordered || buffers.isEmpty()) {
+        buffers.add(buffer);
+      }
+      // A fixed pool runs its tasks in the order they are submitted, so the first tablets are read first
+      executor.execute(() -> readSubScan(subScan, scannerFactory, buffer));
+    }
+    executor.shutdown();
+  }
+
+  private void readSubScan(Scan subScan, ScannerFactory scannerFactory, BlockingQueue<Result> buffer) {
+    try {
+      try (ResultScanner scanner = scannerFactory.open(subScan)) {
+        for (Result result = scanner.next(); result != null; result = scanner.next()) {
+          buffer.put(result);
+        }
+      } catch (IOException e) {
+        failure = e;
+      }
+      buffer.put(END_OF_SUB_SCAN);
+    } catch (InterruptedException e) {
+      // The scanner was closed while this sub-scan was waiting for room
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public Result next() throws IOException {
+    while (!closed && finishedSubScans < subScanCount) {
+      final Result result;
+      try {
+        result = buffers.get(currentBuffer).take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for scan results");
+      }
+
+      if (failure != null) {
+        final IOException e = failure;
+        close();
+        throw e;
+      }
+      if (result != END_OF_SUB_SCAN) {
+        return result;
+      }
+      finishedSubScans++;
+      if (buffers.size() > 1) {
+        currentBuffer++;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Result[] next(int nbRows) throws IOException {
+    final ArrayList<Result> resultSets = new ArrayList<>(nbRows);
+    for (int i = 0; i < nbRows; i++) {
+      final Result next = next();
+      if (next != null) {
+        resultSets.add(next);
+      } else {
+        break;
+      }
+    }
+    return resultSets.toArray(new Result[resultSets.size()]);
+  }
+
+  @Override
+  public void close() {
+    if (!closed) {
+      closed = true;
+      // Wakes any sub-scan blocked on a full buffer, which then closes its scanner
+      executor.shutdownNow();
+    }
+  }
+}
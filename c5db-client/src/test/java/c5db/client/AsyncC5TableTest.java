@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client;
+
+import c5db.client.generated.Cell;
+import c5db.client.generated.CellType;
+import c5db.client.generated.GetRequest;
+import c5db.client.generated.GetResponse;
+import c5db.client.generated.MutateRequest;
+import c5db.client.generated.MutateResponse;
+import c5db.client.generated.Response;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import io.protostuff.ByteString;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.jmock.Expectations;
+import org.jmock.integration.junit4.JUnitRuleMockery;
+import org.jmock.lib.concurrent.Synchroniser;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsInstanceOf.instanceOf;
+
+public class AsyncC5TableTest {
+  @Rule
+  public JUnitRuleMockery context = new JUnitRuleMockery() {{
+    setThreadingPolicy(new Synchroniser());
+  }};
+  private final TableInterface tableInterface = context.mock(TableInterface.class);
+  private final AtomicInteger callbacks = new AtomicInteger(0);
+  private final Executor countingExecutor = command -> {
+    callbacks.incrementAndGet();
+    command.run();
+  };
+  private final AsyncC5Table table = new AsyncC5Table(tableInterface, ByteString.copyFromUtf8("table"),
+      countingExecutor);
+  private final SettableFuture<Response> callFuture = SettableFuture.create();
+  private final byte[] row = Bytes.toBytes("row");
+
+  @After
+  public void after() throws Exception {
+    context.checking(new Expectations() {{
+      oneOf(tableInterface).close();
+    }});
+    table.close();
+  }
+
+  @Test
+  public void getsCompleteWithTheConvertedResultOnTheCallbackExecutor() throws Exception {
+    context.checking(new Expectations() {{
+      oneOf(tableInterface).get(with(any(GetRequest.class)), with(any(long.class)));
+      will(returnValue(callFuture));
+    }});
+
+    final ListenableFuture<Result> result = table.get(new Get(row));
+    final Cell cell = new Cell(ByteBuffer.wrap(row),
+        ByteBuffer.wrap(Bytes.toBytes("cf")),
+        ByteBuffer.wrap(Bytes.toBytes("cq")),
+        0L,
+        CellType.PUT,
+        ByteBuffer.wrap(Bytes.toBytes("value")));
+    final c5db.client.generated.Result protoResult = new c5db.client.generated.Result(Arrays.asList(cell), 1, false);
+    callFuture.set(new Response(Response.Command.GET, 1L, new GetResponse(protoResult), null, null, null, null));
+
+    assertThat(result.get().getRow(), is(row));
+    assertThat(callbacks.get(), is(1));
+  }
+
+  @Test
+  public void callsAreSentWithTheirTimeoutAndFailWhenItExpires() throws Exception {
+    context.checking(new Expectations() {{
+      oneOf(tableInterface).get(with(any(GetRequest.class)), with(equal(50L)));
+      will(returnValue(callFuture));
+    }});
+
+    final ListenableFuture<Result> result = table.get(new Get(row), 50, TimeUnit.MILLISECONDS);
+    callFuture.setException(new TimeoutException("No response to call 1 within 50ms"));
+
+    try {
+      result.get(5, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), is(instanceOf(TimeoutException.class)));
+      return;
+    }
+    throw new AssertionError("The get should have timed out");
+  }
+
+  @Test
+  public void putsWhichAreNotProcessedFail() throws Exception {
+    context.checking(new Expectations() {{
+      oneOf(tableInterface).mutate(with(any(MutateRequest.class)), with(any(long.class)));
+      will(returnValue(callFuture));
+    }});
+
+    final ListenableFuture<Void> result = table.put(new Put(row).add(Bytes.toBytes("cf"), Bytes.toBytes("cq"), row));
+    callFuture.set(new Response(Response.Command.MUTATE, 1L, null, new MutateResponse(null, false), null, null, null));
+
+    try {
+      result.get();
+    } catch (ExecutionException e) {
+      return;
+    }
+    throw new AssertionError("The put should have failed");
+  }
+}
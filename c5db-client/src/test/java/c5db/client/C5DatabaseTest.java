@@ -114,7 +114,8 @@ public class C5DatabaseTest {
 
     MutateRequest mutateRequest = new MutateRequest(regionSpecifier, new MutationProto(), null);
     singleNodeTableInterface.mutate(mutateRequest);
-    Response response = new Response(Response.Command.MUTATE, 1l, null, new MutateResponse(null, true), null, null);
+    Response response = new Response(Response.Command.MUTATE, 1l, null, new MutateResponse(null, true), null, null,
+        null);
     callFuture.set(response);
 
     Condition condition = new Condition();
@@ -127,7 +128,7 @@ public class C5DatabaseTest {
     });
 
     singleNodeTableInterface.mutate(mutateRequest);
-    response = new Response(Response.Command.MUTATE, 1l, null, new MutateResponse(null, true), null, null);
+    response = new Response(Response.Command.MUTATE, 1l, null, new MutateResponse(null, true), null, null, null);
     callFuture.set(response);
   }
 
@@ -147,7 +148,7 @@ public class C5DatabaseTest {
     Get get = new Get();
     GetRequest getRequest = new GetRequest(regionSpecifier, get);
     singleNodeTableInterface.get(getRequest);
-    Response response = new Response(Response.Command.GET, 1l, new GetResponse(null), null, null, null);
+    Response response = new Response(Response.Command.GET, 1l, new GetResponse(null), null, null, null, null);
     callFuture.set(response);
   }
 
@@ -178,9 +179,9 @@ public class C5DatabaseTest {
     boolean moreResults = false;
     int ttl = 0;
     List<Result> results = new ArrayList<>();
-    ScanResponse scanResponse = new ScanResponse(cellsPerResult, scannerId, moreResults, ttl, results);
+    ScanResponse scanResponse = new ScanResponse(cellsPerResult, scannerId, moreResults, ttl, results, null);
 
-    Response response = new Response(Response.Command.SCAN, 1l, null, null, scanResponse, null);
+    Response response = new Response(Response.Command.SCAN, 1l, null, null, scanResponse, null, null);
     callFuture.set(response);
   }
 
@@ -198,7 +199,7 @@ public class C5DatabaseTest {
 
     List<RegionActionResult> results = new ArrayList<>();
     MultiResponse multiResponse = new MultiResponse(results);
-    Response response = new Response(Response.Command.MULTI, 1l, null, null, null, multiResponse);
+    Response response = new Response(Response.Command.MULTI, 1l, null, null, null, multiResponse, null);
     callFuture.set(response);
   }
 
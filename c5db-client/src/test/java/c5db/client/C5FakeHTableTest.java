@@ -20,10 +20,17 @@ package c5db.client;
 import c5db.client.generated.Call;
 import c5db.client.generated.Cell;
 import c5db.client.generated.CellType;
+import c5db.client.generated.MultiResponse;
 import c5db.client.generated.MutateResponse;
+import c5db.client.generated.NameBytesPair;
+import c5db.client.generated.RegionActionResult;
 import c5db.client.generated.Response;
+import c5db.client.generated.ResultOrException;
+import c5db.client.generated.ScanRequest;
 import c5db.client.generated.ScanResponse;
+import c5db.client.scanner.ClientScanner;
 import c5db.client.scanner.ClientScannerManager;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.SettableFuture;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelPipeline;
@@ -33,11 +40,18 @@ import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.RetriesExhaustedWithDetailsException;
+import org.apache.hadoop.hbase.client.Row;
 import org.apache.hadoop.hbase.client.RowMutations;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+import org.hamcrest.TypeSafeMatcher;
 import org.jmock.Expectations;
+import org.jmock.api.Invocation;
 import org.jmock.integration.junit4.JUnitRuleMockery;
+import org.jmock.lib.action.CustomAction;
 import org.jmock.lib.concurrent.Synchroniser;
 import org.junit.After;
 import org.junit.Before;
@@ -51,9 +65,12 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.IsNull.nullValue;
 
 public class C5FakeHTableTest {
 
@@ -129,7 +146,8 @@ public class C5FakeHTableTest {
         will(returnValue(callFuture));
       }
     });
-    Response response = new Response(Response.Command.MUTATE, 1l, null, new MutateResponse(null, false), null, null);
+    Response response = new Response(Response.Command.MUTATE, 1l, null, new MutateResponse(null, false), null, null,
+        null);
     callFuture.set(response);
     hTable.put(new Put(row));
   }
@@ -143,7 +161,8 @@ public class C5FakeHTableTest {
         will(returnValue(callFuture));
       }
     });
-    Response response = new Response(Response.Command.MUTATE, 1l, null, new MutateResponse(null, true), null, null);
+    Response response = new Response(Response.Command.MUTATE, 1l, null, new MutateResponse(null, true), null, null,
+        null);
     callFuture.set(response);
     hTable.put(new Put(row));
   }
@@ -157,8 +176,7 @@ public class C5FakeHTableTest {
         will(returnValue(callFuture));
       }
     });
-    Response response = new Response(Response.Command.MUTATE, 1l, null, new MutateResponse(null, true), null, null);
-    callFuture.set(response);
+    callFuture.set(multiResponse(new ResultOrException(0, new c5db.client.generated.Result(), null)));
     hTable.put(Arrays.asList(new Put(row)));
   }
 
@@ -171,7 +189,8 @@ public class C5FakeHTableTest {
         will(returnValue(callFuture));
       }
     });
-    Response response = new Response(Response.Command.MUTATE, 1l, null, new MutateResponse(null, true), null, null);
+    Response response = new Response(Response.Command.MUTATE, 1l, null, new MutateResponse(null, true), null, null,
+        null);
     callFuture.set(response);
     hTable.delete(new Delete(row));
   }
@@ -185,12 +204,86 @@ public class C5FakeHTableTest {
         will(returnValue(callFuture));
       }
     });
-    Response response = new Response(Response.Command.MUTATE, 1l, null, new MutateResponse(null, true), null, null);
-    callFuture.set(response);
+    callFuture.set(multiResponse(new ResultOrException(0, new c5db.client.generated.Result(), null)));
     hTable.delete(Arrays.asList(new Delete(row)));
   }
 
 
+  @Test
+  public void bufferedPutsAreSentAsOneMultiOnFlushCommits() throws IOException {
+    context.checking(new Expectations() {
+      {
+        oneOf(messageHandler).call(with(any(Call.class)), with(any((Channel.class))));
+        will(returnValue(callFuture));
+      }
+    });
+    callFuture.set(multiResponse(
+        new ResultOrException(0, new c5db.client.generated.Result(), null),
+        new ResultOrException(1, new c5db.client.generated.Result(), null)));
+
+    hTable.setAutoFlush(false);
+    hTable.put(new Put(row).add(cf, cq, value));
+    hTable.put(new Put(Bytes.toBytes("row2")).add(cf, cq, value));
+    hTable.flushCommits();
+  }
+
+  @Test
+  public void aFullWriteBufferIsSentInTheBackground() throws IOException {
+    final AtomicReference<String> sendingThread = new AtomicReference<>();
+    context.checking(new Expectations() {
+      {
+        oneOf(messageHandler).call(with(any(Call.class)), with(any((Channel.class))));
+        will(new CustomAction("record the sending thread") {
+          @Override
+          public Object invoke(Invocation invocation) throws Throwable {
+            sendingThread.set(Thread.currentThread().getName());
+            return callFuture;
+          }
+        });
+      }
+    });
+
+    hTable.setAutoFlush(false);
+    hTable.setWriteBufferSize(1);
+    hTable.put(new Put(row).add(cf, cq, value));
+    callFuture.set(multiResponse(new ResultOrException(0, new c5db.client.generated.Result(), null)));
+    hTable.flushCommits();
+
+    assertThat(sendingThread.get(), is(not(Thread.currentThread().getName())));
+  }
+
+  @Test
+  public void flushCommitsReportsEachFailedMutation() throws IOException {
+    context.checking(new Expectations() {
+      {
+        oneOf(messageHandler).call(with(any(Call.class)), with(any((Channel.class))));
+        will(returnValue(callFuture));
+      }
+    });
+    NameBytesPair failure = new NameBytesPair("java.io.IOException", ByteBuffer.wrap(Bytes.toBytes("failed")));
+    callFuture.set(multiResponse(
+        new ResultOrException(0, new c5db.client.generated.Result(), null),
+        new ResultOrException(1, null, failure)));
+
+    Put failingPut = new Put(Bytes.toBytes("row2")).add(cf, cq, value);
+    hTable.setAutoFlush(false);
+    hTable.put(Arrays.asList(new Put(row).add(cf, cq, value), failingPut));
+    try {
+      hTable.flushCommits();
+    } catch (RetriesExhaustedWithDetailsException e) {
+      assertThat(e.getNumExceptions(), is(1));
+      assertThat(e.getRow(0), is((Row) failingPut));
+      return;
+    }
+    throw new AssertionError("flushCommits should have reported the failed put");
+  }
+
+  private static Response multiResponse(ResultOrException... resultOrExceptions) {
+    MultiResponse multiResponse = new MultiResponse(
+        Arrays.asList(new RegionActionResult(Arrays.asList(resultOrExceptions), null)));
+    return new Response(Response.Command.MULTI, 1l, null, null, null, multiResponse, null);
+  }
+
   @Test(expected = IOException.class)
   public void getShouldErrorWithNullResponse() throws IOException, InterruptedException, ExecutionException, TimeoutException {
     context.checking(new Expectations() {
@@ -203,9 +296,37 @@ public class C5FakeHTableTest {
     hTable.get(new Get(row));
   }
 
+  @Test
+  public void multiGetPlacesResultsByActionIndex() throws IOException {
+    context.checking(new Expectations() {
+      {
+        oneOf(messageHandler).call(with(any(Call.class)), with(any((Channel.class))));
+        will(returnValue(callFuture));
+      }
+    });
+
+    Cell cell = new Cell(
+        ByteBuffer.wrap(Bytes.toBytes("row2")),
+        ByteBuffer.wrap(cf),
+        ByteBuffer.wrap(cq),
+        0l,
+        CellType.PUT,
+        ByteBuffer.wrap(value));
+    List<ResultOrException> resultOrExceptions = Arrays.asList(
+        new ResultOrException(1, new c5db.client.generated.Result(Arrays.asList(cell), 1, true), null),
+        new ResultOrException(0, new c5db.client.generated.Result(new ArrayList<>(), 0, false), null));
+    MultiResponse multiResponse = new MultiResponse(Arrays.asList(new RegionActionResult(resultOrExceptions, null)));
+    callFuture.set(new Response(Response.Command.MULTI, 1l, null, null, null, multiResponse, null));
+
+    Result[] results = hTable.get(Arrays.asList(new Get(row), new Get(Bytes.toBytes("row2"))));
+    assertThat(results.length, is(2));
+    assertThat(results[0].isEmpty(), is(true));
+    assertThat(results[1].getRow(), is(Bytes.toBytes("row2")));
+  }
+
   @Test
   public void canScan() throws IOException, InterruptedException, ExecutionException {
-    SettableFuture<Long> callFuture = SettableFuture.create();
+    SettableFuture<ClientScanner> callFuture = SettableFuture.create();
     context.checking(new Expectations() {
       {
         oneOf(messageHandler).callScan(with(any(Call.class)), with(any((Channel.class))));
@@ -214,8 +335,8 @@ public class C5FakeHTableTest {
     });
 
     long scannerId = 10l;
-    ClientScannerManager.INSTANCE.createAndGet(channel, scannerId, 1);
-    callFuture.set(scannerId);
+    ClientScanner clientScanner = ClientScannerManager.INSTANCE.createAndGet(channel, scannerId, 1);
+    callFuture.set(clientScanner);
     ResultScanner scanner = hTable.getScanner(new Scan());
 
 
@@ -230,17 +351,17 @@ public class C5FakeHTableTest {
         ByteBuffer.wrap(Bytes.toBytes("value")));
     List<Cell> kv = Arrays.asList(cell);
     List<c5db.client.generated.Result> scanResults = Arrays.asList(new c5db.client.generated.Result(kv, 1, true));
-    ScanResponse scanResponse = new ScanResponse(cellsPerResult, scannerId, true, 0, scanResults);
+    ScanResponse scanResponse = new ScanResponse(cellsPerResult, scannerId, true, 0, scanResults, null);
 
-    ClientScannerManager.INSTANCE.get(scannerId).get().add(scanResponse);
+    clientScanner.add(scanResponse);
 
     kv = Arrays.asList(cell);
     scanResults = Arrays.asList(new c5db.client.generated.Result(kv, 1, true));
-    scanResponse = new ScanResponse(cellsPerResult, scannerId, false, 0, scanResults);
+    scanResponse = new ScanResponse(cellsPerResult, scannerId, false, 0, scanResults, null);
 
-    ClientScannerManager.INSTANCE.get(scannerId).get().add(scanResponse);
-    scanResponse = new ScanResponse(Arrays.asList(0), scannerId, false, 0, new ArrayList<>());
-    ClientScannerManager.INSTANCE.get(scannerId).get().add(scanResponse);
+    clientScanner.add(scanResponse);
+    scanResponse = new ScanResponse(Arrays.asList(0), scannerId, false, 0, new ArrayList<>(), null);
+    clientScanner.add(scanResponse);
     Result result;
     int counter = 0;
     do {
@@ -251,6 +372,70 @@ public class C5FakeHTableTest {
     assertThat(counter, is(3));
   }
 
+  @Test
+  public void eachSubScanOfATableWithTwoTabletsOnOneNodeNamesItsOwnTablet() throws Exception {
+    final TableInterface tableInterface = context.mock(TableInterface.class);
+    final FakeHTable twoTabletTable = new FakeHTable(tableInterface, ByteString.copyFromUtf8("twoTablets"));
+    final byte[] firstRegionName = Bytes.toBytes("twoTablets,,1");
+    final byte[] secondRegionName = Bytes.toBytes("twoTablets,m,2");
+    final long firstScannerId = 30L;
+    final long secondScannerId = 31L;
+    final ClientScanner firstScanner = ClientScannerManager.INSTANCE.createAndGet(channel, firstScannerId, 2);
+    final ClientScanner secondScanner = ClientScannerManager.INSTANCE.createAndGet(channel, secondScannerId, 3);
+    firstScanner.add(lastRowOf(firstScannerId, "a"));
+    secondScanner.add(lastRowOf(secondScannerId, "m"));
+
+    context.checking(new Expectations() {
+      {
+        oneOf(tableInterface).locateRegions(with(any(byte[].class)), with(any(byte[].class)), with(any(byte[].class)));
+        will(returnValue(Arrays.asList(
+            new RegionLocation(firstRegionName, new byte[0], Bytes.toBytes("m"), 1L),
+            new RegionLocation(secondRegionName, Bytes.toBytes("m"), new byte[0], 1L))));
+
+        oneOf(tableInterface).scan(with(aScanOfTablet(firstRegionName)));
+        will(returnValue(Futures.immediateFuture(firstScanner)));
+
+        oneOf(tableInterface).scan(with(aScanOfTablet(secondRegionName)));
+        will(returnValue(Futures.immediateFuture(secondScanner)));
+      }
+    });
+
+    try (ResultScanner scanner = twoTabletTable.getScanner(new Scan())) {
+      assertThat(scanner.next().getRow(), is(Bytes.toBytes("a")));
+      assertThat(scanner.next().getRow(), is(Bytes.toBytes("m")));
+      assertThat(scanner.next(), is(nullValue()));
+    }
+  }
+
+  private static ScanResponse lastRowOf(long scannerId, String row) {
+    final Cell cell = new Cell(ByteBuffer.wrap(Bytes.toBytes(row)),
+        ByteBuffer.wrap(Bytes.toBytes("cf")),
+        ByteBuffer.wrap(Bytes.toBytes("cq")),
+        0L,
+        CellType.PUT,
+        ByteBuffer.wrap(Bytes.toBytes("value")));
+    return new ScanResponse(Arrays.asList(1),
+        scannerId,
+        false,
+        0,
+        Arrays.asList(new c5db.client.generated.Result(Arrays.asList(cell), 1, true)),
+        null);
+  }
+
+  private static Matcher<ScanRequest> aScanOfTablet(byte[] regionName) {
+    return new TypeSafeMatcher<ScanRequest>() {
+      @Override
+      protected boolean matchesSafely(ScanRequest scanRequest) {
+        return scanRequest.getRegion().getValue().equals(ByteBuffer.wrap(regionName));
+      }
+
+      @Override
+      public void describeTo(Description description) {
+        description.appendText("a scan of tablet ").appendValue(Bytes.toStringBinary(regionName));
+      }
+    };
+  }
+
   @Test
   public void canMutateRow() throws IOException {
     context.checking(new Expectations() {
@@ -273,7 +458,8 @@ public class C5FakeHTableTest {
         will(returnValue(callFuture));
       }
     });
-    Response response = new Response(Response.Command.MUTATE, 1l, null, new MutateResponse(null, true), null, null);
+    Response response = new Response(Response.Command.MUTATE, 1l, null, new MutateResponse(null, true), null, null,
+        null);
     callFuture.set(response);
     hTable.checkAndPut(row, cf, cq, value, new Put(row));
   }
@@ -286,7 +472,8 @@ public class C5FakeHTableTest {
         will(returnValue(callFuture));
       }
     });
-    Response response = new Response(Response.Command.MUTATE, 1l, null, new MutateResponse(null, true), null, null);
+    Response response = new Response(Response.Command.MUTATE, 1l, null, new MutateResponse(null, true), null, null,
+        null);
     callFuture.set(response);
     hTable.checkAndDelete(row, cf, cq, value, new Delete(row));
   }
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import io.netty.channel.Channel;
+import org.jmock.Expectations;
+import org.jmock.integration.junit4.JUnitRuleMockery;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class ChannelPoolTest {
+  @Rule
+  public JUnitRuleMockery context = new JUnitRuleMockery();
+  private final ChannelPool.Connector connector = context.mock(ChannelPool.Connector.class);
+  private final Channel firstChannel = context.mock(Channel.class, "firstChannel");
+  private final Channel secondChannel = context.mock(Channel.class, "secondChannel");
+  private final ChannelPool channelPool = new ChannelPool(2, connector);
+
+  @Test
+  public void anIdleChannelIsReusedRatherThanOpeningAnother()
+      throws InterruptedException, ExecutionException {
+    context.checking(new Expectations() {{
+      oneOf(connector).connect();
+      will(returnValue(Futures.immediateFuture(firstChannel)));
+      allowing(connector).isUsable(firstChannel);
+      will(returnValue(true));
+      allowing(connector).outstandingCalls(firstChannel);
+      will(returnValue(0));
+    }});
+
+    assertThat(channelPool.acquire().get(), is(firstChannel));
+    assertThat(channelPool.acquire().get(), is(firstChannel));
+  }
+
+  @Test
+  public void callsGoToTheChannelWithTheFewestOutstanding()
+      throws InterruptedException, ExecutionException {
+    context.checking(new Expectations() {{
+      oneOf(connector).connect();
+      will(returnValue(Futures.immediateFuture(firstChannel)));
+      oneOf(connector).connect();
+      will(returnValue(Futures.immediateFuture(secondChannel)));
+      allowing(connector).isUsable(with(any(Channel.class)));
+      will(returnValue(true));
+      allowing(connector).outstandingCalls(firstChannel);
+      will(returnValue(5));
+      allowing(connector).outstandingCalls(secondChannel);
+      will(returnValue(2));
+    }});
+
+    assertThat(channelPool.acquire().get(), is(firstChannel));
+    assertThat(channelPool.acquire().get(), is(secondChannel));
+    // The pool is full, so the least loaded channel is shared
+    assertThat(channelPool.acquire().get(), is(secondChannel));
+  }
+
+  @Test
+  public void aBrokenChannelIsClosedAndReplaced() throws InterruptedException, ExecutionException {
+    context.checking(new Expectations() {{
+      oneOf(connector).connect();
+      will(returnValue(Futures.immediateFuture(firstChannel)));
+      oneOf(connector).isUsable(firstChannel);
+      will(returnValue(false));
+      oneOf(firstChannel).close();
+      oneOf(connector).connect();
+      will(returnValue(Futures.immediateFuture(secondChannel)));
+    }});
+
+    assertThat(channelPool.acquire().get(), is(firstChannel));
+    assertThat(channelPool.acquire().get(), is(secondChannel));
+  }
+
+  @Test(expected = ExecutionException.class)
+  public void aFailedConnectionIsNotRetriedUntilItsBackoffHasPassed()
+      throws InterruptedException, ExecutionException {
+    final ChannelPool singleChannelPool = new ChannelPool(1, connector);
+    context.checking(new Expectations() {{
+      oneOf(connector).connect();
+      will(returnValue(Futures.immediateFailedFuture(new IOException("refused"))));
+    }});
+
+    try {
+      singleChannelPool.acquire().get();
+    } catch (ExecutionException e) {
+      singleChannelPool.acquire().get();
+    }
+  }
+
+  @Test
+  public void aBusyChannelIsUsedWhileAnotherConnects() throws InterruptedException, ExecutionException {
+    final SettableFuture<Channel> secondConnection = SettableFuture.create();
+    context.checking(new Expectations() {{
+      oneOf(connector).connect();
+      will(returnValue(Futures.immediateFuture(firstChannel)));
+      oneOf(connector).connect();
+      will(returnValue(secondConnection));
+      allowing(connector).isUsable(with(any(Channel.class)));
+      will(returnValue(true));
+      allowing(connector).outstandingCalls(firstChannel);
+      will(returnValue(5));
+      allowing(connector).outstandingCalls(secondChannel);
+      will(returnValue(0));
+    }});
+
+    assertThat(channelPool.acquire().get(), is(firstChannel));
+    assertThat(channelPool.acquire().get(), is(firstChannel));
+
+    secondConnection.set(secondChannel);
+    assertThat(channelPool.acquire().get(), is(secondChannel));
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client;
+
+import c5db.client.generated.Call;
+import c5db.client.generated.NameBytesPair;
+import c5db.client.generated.Response;
+import com.google.common.util.concurrent.ListenableFuture;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.jmock.Expectations;
+import org.jmock.integration.junit4.JUnitRuleMockery;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsInstanceOf.instanceOf;
+
+public class FutureBasedMessageHandlerTest {
+  @Rule
+  public JUnitRuleMockery context = new JUnitRuleMockery();
+  private final Channel channel = context.mock(Channel.class);
+  private final ChannelHandlerContext ctx = context.mock(ChannelHandlerContext.class);
+  private final FutureBasedMessageHandler handler = new FutureBasedMessageHandler();
+
+  @Test
+  public void aCallWhichIsNotAnsweredInTimeFailsAndIsForgotten() throws InterruptedException {
+    context.checking(new Expectations() {{
+      oneOf(channel).writeAndFlush(with(any(Call.class)));
+    }});
+
+    final ListenableFuture<Response> response = handler.call(call(1), channel, 50);
+    assertThat(handler.outstandingCalls(), is(1));
+
+    try {
+      response.get(5, TimeUnit.SECONDS);
+      throw new AssertionError("expected the call to time out");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(TimeoutException.class));
+    } catch (TimeoutException e) {
+      throw new AssertionError("the call's deadline never fired");
+    }
+    assertThat(handler.outstandingCalls(), is(0));
+  }
+
+  @Test
+  public void aCallAnsweredInTimeIsNotFailedByItsDeadline() throws Exception {
+    context.checking(new Expectations() {{
+      oneOf(channel).writeAndFlush(with(any(Call.class)));
+    }});
+
+    final ListenableFuture<Response> response = handler.call(call(2), channel, 50);
+    final Response answer = new Response(Response.Command.GET, 2, null, null, null, null, null);
+    handler.channelRead0(ctx, answer);
+    Thread.sleep(100);
+
+    assertThat(response.get(), is(answer));
+    assertThat(handler.outstandingCalls(), is(0));
+  }
+
+  @Test
+  public void aCallWhichFailedOnTheServerFailsWithTheServersError() throws Exception {
+    context.checking(new Expectations() {{
+      oneOf(channel).writeAndFlush(with(any(Call.class)));
+    }});
+
+    final ListenableFuture<Response> response = handler.call(call(3), channel, 5000);
+    final NameBytesPair regionNotFound = new NameBytesPair("c5db.regionserver.RegionNotFoundException",
+        ByteBuffer.wrap(Bytes.toBytes("Unable to find specified tablet:movedTable")));
+    handler.channelRead0(ctx, new Response(Response.Command.GET, 3, null, null, null, null, regionNotFound));
+
+    try {
+      response.get();
+      throw new AssertionError("expected the call to fail");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(RemoteCallException.class));
+      assertThat(((RemoteCallException) e.getCause()).isRegionNotFound(), is(true));
+    }
+    assertThat(handler.outstandingCalls(), is(0));
+  }
+
+  private static Call call(long commandId) {
+    return new Call(Call.Command.GET, commandId, null, null, null, null);
+  }
+}
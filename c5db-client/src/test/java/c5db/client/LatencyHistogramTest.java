@@ -0,0 +1,49 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class LatencyHistogramTest {
+  private final LatencyHistogram histogram = new LatencyHistogram();
+
+  @Test
+  public void noPercentileIsGivenBeforeEnoughLatenciesAreRecorded() {
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+
+    assertThat(histogram.percentileMicros(50, 2), is(-1L));
+  }
+
+  @Test
+  public void aPercentileIsBoundedByTheBucketHoldingIt() {
+    for (int i = 0; i < 90; i++) {
+      histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+    }
+    for (int i = 0; i < 10; i++) {
+      histogram.record(TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    // 100us falls in [64, 128), 10ms in [8192, 16384)
+    assertThat(histogram.percentileMicros(90, 100), is(128L));
+    assertThat(histogram.percentileMicros(99, 100), is(16384L));
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+public class PendingCallsTest {
+  private final PendingCalls<String> pendingCalls = new PendingCalls<>(4);
+
+  @Test
+  public void aCallIsRemovedOnceByItsCommandId() {
+    final SettableFuture<String> future = SettableFuture.create();
+    pendingCalls.put(7, future);
+
+    assertThat(pendingCalls.remove(7), is(future));
+    assertThat(pendingCalls.remove(7), is(nullValue()));
+  }
+
+  @Test
+  public void callsWhoseSlotIsTakenAreStillFound() {
+    final SettableFuture<String> first = SettableFuture.create();
+    final SettableFuture<String> second = SettableFuture.create();
+    pendingCalls.put(1, first);
+    pendingCalls.put(5, second);
+
+    assertThat(pendingCalls.remove(5), is(second));
+    assertThat(pendingCalls.remove(1), is(first));
+  }
+
+  @Test
+  public void anotherCallsIdDoesNotRemoveTheCallInItsSlot() {
+    final SettableFuture<String> future = SettableFuture.create();
+    pendingCalls.put(2, future);
+
+    assertThat(pendingCalls.remove(6), is(nullValue()));
+    assertThat(pendingCalls.remove(6, future), is(false));
+    assertThat(pendingCalls.remove(2, future), is(true));
+  }
+
+  @Test
+  public void slotsAreReusedAsCallsAreAnswered() {
+    for (long commandId = 0; commandId < 1000; commandId++) {
+      final SettableFuture<String> future = SettableFuture.create();
+      pendingCalls.put(commandId, future);
+      assertThat(pendingCalls.remove(commandId), is(future));
+    }
+  }
+
+  @Test
+  public void drainingRemovesEveryPendingCall() {
+    for (long commandId = 0; commandId < 10; commandId++) {
+      pendingCalls.put(commandId, SettableFuture.create());
+    }
+    final List<SettableFuture<String>> drained = new ArrayList<>();
+    pendingCalls.drain(drained::add);
+
+    assertThat(drained.size(), is(10));
+    assertThat(pendingCalls.remove(3), is(nullValue()));
+  }
+}
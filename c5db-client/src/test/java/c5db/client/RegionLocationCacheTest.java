@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+public class RegionLocationCacheTest {
+  private static final byte[] TABLE = Bytes.toBytes("table");
+  private final RegionLocationCache regionLocationCache = new RegionLocationCache();
+
+  private static RegionLocation location(String startKey, String endKey, long leader) {
+    return new RegionLocation(Bytes.toBytes("table," + startKey + ",1"), Bytes.toBytes(startKey), Bytes.toBytes(endKey),
+        leader);
+  }
+
+  @Test
+  public void rowsAreLocatedInTheTabletWhoseRangeHoldsThem() {
+    regionLocationCache.put(TABLE, location("", "m", 1));
+    regionLocationCache.put(TABLE, location("m", "", 2));
+
+    assertThat(regionLocationCache.get(TABLE, Bytes.toBytes("a")).getLeader(), is(1L));
+    assertThat(regionLocationCache.get(TABLE, Bytes.toBytes("m")).getLeader(), is(2L));
+    assertThat(regionLocationCache.get(TABLE, Bytes.toBytes("z")).getLeader(), is(2L));
+  }
+
+  @Test
+  public void rowsInGapsBetweenCachedTabletsAreNotLocated() {
+    regionLocationCache.put(TABLE, location("", "c", 1));
+    regionLocationCache.put(TABLE, location("m", "", 2));
+
+    assertThat(regionLocationCache.get(TABLE, Bytes.toBytes("d")), is(nullValue()));
+    assertThat(regionLocationCache.get(Bytes.toBytes("otherTable"), Bytes.toBytes("a")), is(nullValue()));
+  }
+
+  @Test
+  public void aNewLocationReplacesTheTabletsItOverlaps() {
+    regionLocationCache.put(TABLE, location("", "", 1));
+    regionLocationCache.put(TABLE, location("", "m", 2));
+
+    assertThat(regionLocationCache.get(TABLE, Bytes.toBytes("a")).getLeader(), is(2L));
+    assertThat(regionLocationCache.get(TABLE, Bytes.toBytes("z")), is(nullValue()));
+  }
+
+  @Test
+  public void invalidatedLocationsAreForgotten() {
+    regionLocationCache.put(TABLE, location("", "m", 1));
+    regionLocationCache.put(TABLE, location("m", "", 2));
+
+    regionLocationCache.invalidate(TABLE, Bytes.toBytes("x"));
+
+    assertThat(regionLocationCache.get(TABLE, Bytes.toBytes("x")), is(nullValue()));
+    assertThat(regionLocationCache.get(TABLE, Bytes.toBytes("a")).getLeader(), is(1L));
+  }
+}
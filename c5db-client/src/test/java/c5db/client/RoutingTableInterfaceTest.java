@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client;
+
+import c5db.client.generated.Call;
+import c5db.client.generated.GetRequest;
+import c5db.client.generated.GetResponse;
+import c5db.client.generated.NameBytesPair;
+import c5db.client.generated.Response;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.jmock.Expectations;
+import org.jmock.States;
+import org.jmock.api.Action;
+import org.jmock.api.Invocation;
+import org.jmock.integration.junit4.JUnitRuleMockery;
+import org.jmock.lib.action.CustomAction;
+import org.jmock.lib.concurrent.Synchroniser;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class RoutingTableInterfaceTest {
+  private final Synchroniser synchroniser = new Synchroniser();
+  @Rule
+  public JUnitRuleMockery context = new JUnitRuleMockery() {{
+    setThreadingPolicy(synchroniser);
+  }};
+  private final C5ConnectionManager connectionManager = context.mock(C5ConnectionManager.class);
+  private final Channel leaderChannel = context.mock(Channel.class, "leaderChannel");
+  private final Channel replicaChannel = context.mock(Channel.class, "replicaChannel");
+  private final ChannelPipeline leaderPipeline = context.mock(ChannelPipeline.class, "leaderPipeline");
+  private final ChannelPipeline replicaPipeline = context.mock(ChannelPipeline.class, "replicaPipeline");
+  private final ChannelHandlerContext ctx = context.mock(ChannelHandlerContext.class);
+  private final FutureBasedMessageHandler leaderHandler = new FutureBasedMessageHandler();
+  private final FutureBasedMessageHandler replicaHandler = new FutureBasedMessageHandler();
+  private final AtomicLong leaderCommandId = new AtomicLong();
+  private final AtomicLong replicaCommandId = new AtomicLong();
+  private final States hedge = context.states("hedge").startsAs("not sent");
+  private final byte[] tableName = Bytes.toBytes("hedged");
+  private final byte[] regionName = Bytes.toBytes("hedged,,1");
+  private final long leader = 1;
+  private final long replica = 2;
+  private RoutingTableInterface tableInterface;
+
+  @Before
+  public void before() throws Exception {
+    context.checking(new Expectations() {{
+      oneOf(connectionManager).getOrCreateChannel("localhost", C5Constants.TEST_PORT);
+      will(returnValue(leaderChannel));
+
+      allowing(connectionManager).locateRegion(with(any(byte[].class)), with(any(byte[].class)));
+      will(returnValue(Futures.immediateFuture(
+          new RegionLocation(regionName, new byte[0], new byte[0], leader, Arrays.asList(replica)))));
+
+      allowing(connectionManager).getOrCreateChannelAsync(leader);
+      will(returnValue(Futures.immediateFuture(leaderChannel)));
+      allowing(leaderChannel).pipeline();
+      will(returnValue(leaderPipeline));
+      allowing(leaderPipeline).get(FutureBasedMessageHandler.class);
+      will(returnValue(leaderHandler));
+      allowing(leaderChannel).writeAndFlush(with(any(Call.class)));
+      will(recordCommandIdTo(leaderCommandId));
+
+      allowing(replicaChannel).pipeline();
+      will(returnValue(replicaPipeline));
+      allowing(replicaPipeline).get(FutureBasedMessageHandler.class);
+      will(returnValue(replicaHandler));
+    }});
+
+    tableInterface = new RoutingTableInterface("localhost", C5Constants.TEST_PORT, connectionManager);
+    // Enough promptly answered gets to hedge on
+    for (int i = 0; i < C5Constants.HEDGED_READ_MIN_SAMPLES; i++) {
+      final ListenableFuture<Response> response = tableInterface.get(getRequest());
+      leaderHandler.channelRead0(ctx, answerTo(leaderCommandId.get()));
+      response.get();
+    }
+  }
+
+  @Test
+  public void aGetWhichTheLeaderHasNotAnsweredPastThePercentileIsAlsoSentToAReplica() throws Exception {
+    expectAHedgedGet();
+    tableInterface.setHedgedReadPercentile(50);
+
+    final ListenableFuture<Response> response = tableInterface.get(getRequest());
+    synchroniser.waitUntil(hedge.is("sent"), 5000);
+    final Response replicaAnswer = answerTo(replicaCommandId.get());
+    replicaHandler.channelRead0(ctx, replicaAnswer);
+
+    assertThat(response.get(5, TimeUnit.SECONDS), is(replicaAnswer));
+  }
+
+  @Test
+  public void aReplicaWhichFailsTheHedgedGetLeavesItToTheLeader() throws Exception {
+    expectAHedgedGet();
+    tableInterface.setHedgedReadPercentile(50);
+
+    final ListenableFuture<Response> response = tableInterface.get(getRequest());
+    synchroniser.waitUntil(hedge.is("sent"), 5000);
+    replicaHandler.channelRead0(ctx, new Response(Response.Command.GET, replicaCommandId.get(), null, null, null,
+        null, new NameBytesPair(RemoteCallException.REGION_NOT_FOUND_EXCEPTION, ByteBuffer.wrap(new byte[0]))));
+    final Response leaderAnswer = answerTo(leaderCommandId.get());
+    leaderHandler.channelRead0(ctx, leaderAnswer);
+
+    assertThat(response.get(5, TimeUnit.SECONDS), is(leaderAnswer));
+  }
+
+  private void expectAHedgedGet() {
+    context.checking(new Expectations() {{
+      oneOf(connectionManager).getOrCreateChannelAsync(replica);
+      will(returnValue(Futures.immediateFuture(replicaChannel)));
+      oneOf(replicaChannel).writeAndFlush(with(any(Call.class)));
+      will(recordCommandIdTo(replicaCommandId));
+      then(hedge.is("sent"));
+    }});
+  }
+
+  private GetRequest getRequest() throws Exception {
+    return RequestConverter.buildGetRequest(tableName, new Get(Bytes.toBytes("row")), false);
+  }
+
+  private static Response answerTo(long commandId) {
+    return new Response(Response.Command.GET, commandId, new GetResponse(null), null, null, null, null);
+  }
+
+  private static Action recordCommandIdTo(AtomicLong commandId) {
+    return new CustomAction("record the command id") {
+      @Override
+      public Object invoke(Invocation invocation) throws Throwable {
+        commandId.set(((Call) invocation.getParameter(0)).getCommandId());
+        return null;
+      }
+    };
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client.scanner;
+
+import c5db.client.generated.Call;
+import c5db.client.generated.ScanResponse;
+import io.netty.channel.Channel;
+import org.jmock.Expectations;
+import org.jmock.integration.junit4.JUnitRuleMockery;
+import org.jmock.lib.concurrent.Synchroniser;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.hamcrest.core.IsSame.sameInstance;
+
+public class ClientScannerManagerTest {
+  @Rule
+  public JUnitRuleMockery context = new JUnitRuleMockery() {{
+    setThreadingPolicy(new Synchroniser());
+  }};
+  private final Channel firstChannel = context.mock(Channel.class, "firstChannel");
+  private final Channel secondChannel = context.mock(Channel.class, "secondChannel");
+  private final ClientScannerManager manager = ClientScannerManager.INSTANCE;
+
+  @Test
+  public void scannersWithTheSameIdOnDifferentChannelsAreKeptApart() throws IOException {
+    final ClientScanner first = manager.createAndGet(firstChannel, 40, 1);
+    final ClientScanner second = manager.createAndGet(secondChannel, 40, 2);
+
+    assertThat(first, is(not(sameInstance(second))));
+    assertThat(manager.get(firstChannel, 40), is(sameInstance(first)));
+    assertThat(manager.get(secondChannel, 40), is(sameInstance(second)));
+
+    first.add(new ScanResponse(new ArrayList<>(), 40L, false, 0, new ArrayList<>(), null));
+    second.add(new ScanResponse(new ArrayList<>(), 40L, false, 0, new ArrayList<>(), null));
+  }
+
+  @Test
+  public void anExhaustedScannerIsForgotten() throws IOException {
+    manager.createAndGet(firstChannel, 41, 1)
+        .add(new ScanResponse(new ArrayList<>(), 41L, false, 0, new ArrayList<>(), null));
+
+    assertThat(manager.get(firstChannel, 41), is(nullValue()));
+  }
+
+  @Test
+  public void aClosedScannerIsForgotten() throws IOException {
+    context.checking(new Expectations() {{
+      oneOf(firstChannel).writeAndFlush(with(any(Call.class)));
+    }});
+
+    manager.createAndGet(firstChannel, 42, 1).close();
+
+    assertThat(manager.get(firstChannel, 42), is(nullValue()));
+  }
+}
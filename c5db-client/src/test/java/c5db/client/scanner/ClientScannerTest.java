@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client.scanner;
+
+import c5db.client.C5Constants;
+import c5db.client.generated.Call;
+import c5db.client.generated.Cell;
+import c5db.client.generated.CellType;
+import c5db.client.generated.NameBytesPair;
+import c5db.client.generated.ScanResponse;
+import io.netty.channel.Channel;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.integration.junit4.JUnitRuleMockery;
+import org.jmock.lib.action.CustomAction;
+import org.jmock.lib.concurrent.Synchroniser;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+public class ClientScannerTest {
+  @Rule
+  public JUnitRuleMockery context = new JUnitRuleMockery() {{
+    setThreadingPolicy(new Synchroniser());
+  }};
+  private final Channel channel = context.mock(Channel.class);
+  private final ClientScanner clientScanner = new ClientScanner(channel, 1, 1);
+
+  private static ScanResponse scanResponse(int rows, boolean moreResults) {
+    final List<c5db.client.generated.Result> results = new ArrayList<>();
+    for (int i = 0; i < rows; i++) {
+      final Cell cell = new Cell(ByteBuffer.wrap(Bytes.toBytes("row" + i)),
+          ByteBuffer.wrap(Bytes.toBytes("cf")),
+          ByteBuffer.wrap(Bytes.toBytes("cq")),
+          0L,
+          CellType.PUT,
+          ByteBuffer.wrap(Bytes.toBytes("value")));
+      results.add(new c5db.client.generated.Result(Arrays.asList(cell), 1, false));
+    }
+    return new ScanResponse(new ArrayList<>(), 1L, moreResults, 0, results, null);
+  }
+
+  @Test
+  public void nextWaitsForRowsToArrive() throws IOException {
+    context.checking(new Expectations() {{
+      allowing(channel).writeAndFlush(with(any(Call.class)));
+    }});
+
+    new Thread(() -> {
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException ignored) {
+      }
+      clientScanner.add(scanResponse(1, false));
+    }).start();
+
+    final Result result = clientScanner.next();
+    assertThat(Bytes.toString(result.getRow()), is("row0"));
+    assertThat(clientScanner.next(), is(nullValue()));
+  }
+
+  @Test
+  public void aScanWhichFailedOnTheServerFailsOnceTheRowsBeforeItAreTaken() throws IOException {
+    context.checking(new Expectations() {{
+      allowing(channel).writeAndFlush(with(any(Call.class)));
+    }});
+
+    final ScanResponse lastResponse = scanResponse(1, false);
+    lastResponse.setException(new NameBytesPair(IOException.class.getName(),
+        ByteBuffer.wrap(Bytes.toBytes("store file missing"))));
+    clientScanner.add(lastResponse);
+
+    assertThat(Bytes.toString(clientScanner.next().getRow()), is("row0"));
+    try {
+      clientScanner.next();
+      throw new AssertionError("expected the scan to fail");
+    } catch (IOException e) {
+      assertThat(e.getMessage().contains("store file missing"), is(true));
+    }
+  }
+
+  @Test
+  public void noMoreRowsAreAskedForWhileHalfARequestIsStillOutstanding() throws IOException {
+    context.checking(new Expectations() {{
+      never(channel).writeAndFlush(with(any(Call.class)));
+    }});
+
+    clientScanner.add(scanResponse(C5Constants.DEFAULT_INIT_SCAN / 2 - 1, true));
+    for (int i = 0; i < C5Constants.DEFAULT_INIT_SCAN / 2 - 1; i++) {
+      clientScanner.next();
+    }
+  }
+
+  @Test
+  public void moreRowsAreAskedForOnceMostOfARequestHasArrived() throws IOException {
+    context.checking(new Expectations() {{
+      atLeast(1).of(channel).writeAndFlush(with(any(Call.class)));
+    }});
+
+    clientScanner.add(scanResponse(C5Constants.DEFAULT_INIT_SCAN, true));
+    clientScanner.next();
+  }
+
+  @Test
+  public void theRequestSizeHalvesWhenMoreRowsAreAskedForWhileTheBufferIsOverHalfFull() throws IOException {
+    // Room for about 177 rows; the first response holds 100, so over half the budget is buffered
+    final ClientScanner scanner = new ClientScanner(channel, 1, 1, 8000);
+    final List<Integer> requestedRows = new ArrayList<>();
+    context.checking(new Expectations() {{
+      oneOf(channel).writeAndFlush(with(any(Call.class)));
+      will(new CustomAction("record the rows asked for") {
+        @Override
+        public Object invoke(Invocation invocation) throws Throwable {
+          requestedRows.add(((Call) invocation.getParameter(0)).getScan().getNumberOfRows());
+          return null;
+        }
+      });
+    }});
+
+    scanner.add(scanResponse(C5Constants.DEFAULT_INIT_SCAN, true));
+    scanner.next();
+
+    // Without shrinking this would have asked for the 76 rows which still fit
+    assertThat(requestedRows, is(Arrays.asList(C5Constants.DEFAULT_INIT_SCAN / 2)));
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.client.scanner;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.AbstractClientScanner;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class ParallelClientScannerTest {
+  private static final byte[] CF = Bytes.toBytes("cf");
+  private final List<Scan> subScans = Arrays.asList(
+      new Scan(Bytes.toBytes("a"), Bytes.toBytes("d")),
+      new Scan(Bytes.toBytes("d"), Bytes.toBytes("g")),
+      new Scan(Bytes.toBytes("g")));
+
+  /**
+   * Serves each sub-scan the three rows from its start row, such as "a", "b" and "c".
+   */
+  private static ResultScanner rowsFrom(Scan scan) {
+    final List<Result> results = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      final byte[] row = new byte[]{(byte) (scan.getStartRow()[0] + i)};
+      results.add(Result.create(Arrays.<Cell>asList(new KeyValue(row, CF, CF, row))));
+    }
+    final Iterator<Result> iterator = results.iterator();
+    return new AbstractClientScanner() {
+      @Override
+      public Result next() {
+        return iterator.hasNext() ? iterator.next() : null;
+      }
+
+      @Override
+      public Result[] next(int nbRows) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  private static List<String> readRows(ResultScanner scanner) throws IOException {
+    final List<String> rows = new ArrayList<>();
+    for (Result result = scanner.next(); result != null; result = scanner.next()) {
+      rows.add(Bytes.toString(result.getRow()));
+    }
+    scanner.close();
+    return rows;
+  }
+
+  @Test
+  public void orderedScansReturnTheRowsOfEveryTabletInRowOrder() throws IOException {
+    final ParallelClientScanner scanner =
+        new ParallelClientScanner(subScans, ParallelClientScannerTest::rowsFrom, 2, true);
+
+    assertThat(readRows(scanner), is(Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h", "i")));
+  }
+
+  @Test
+  public void unorderedScansReturnTheRowsOfEveryTablet() throws IOException {
+    final ParallelClientScanner scanner =
+        new ParallelClientScanner(subScans, ParallelClientScannerTest::rowsFrom, 3, false);
+
+    final List<String> rows = readRows(scanner);
+    Collections.sort(rows);
+    assertThat(rows, is(Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h", "i")));
+  }
+
+  @Test(expected = IOException.class)
+  public void aFailedSubScanFailsTheScan() throws IOException {
+    final ParallelClientScanner scanner = new ParallelClientScanner(subScans, scan -> {
+      if (Bytes.equals(scan.getStartRow(), Bytes.toBytes("d"))) {
+        throw new IOException("tablet unavailable");
+      }
+      return rowsFrom(scan);
+    }, 2, true);
+
+    readRows(scanner);
+  }
+}
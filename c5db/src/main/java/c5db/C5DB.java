@@ -23,7 +23,6 @@ import c5db.interfaces.C5Server;
 import c5db.interfaces.server.CommandRpcRequest;
 import c5db.interfaces.server.ConfigKeyUpdated;
 import c5db.interfaces.server.ModuleStateChange;
-import c5db.log.LogFileService;
 import c5db.log.LogService;
 import c5db.messages.generated.CommandReply;
 import c5db.messages.generated.ModuleSubCommand;
@@ -37,6 +36,7 @@ import c5db.tablet.TabletService;
 import c5db.util.ExceptionHandlingBatchExecutor;
 import c5db.util.FiberOnly;
 import c5db.util.FiberSupplier;
+import c5db.util.NettyTransport;
 import c5db.webadmin.WebAdminService;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.AbstractService;
@@ -44,7 +44,6 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Service;
 import com.google.common.util.concurrent.SettableFuture;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.protostuff.Message;
 import org.jetlang.channels.Channel;
 import org.jetlang.channels.MemoryChannel;
@@ -61,7 +60,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
@@ -95,6 +93,9 @@ public class C5DB extends AbstractService implements C5Server {
   private PoolFiberFactory fiberPool;
   private EventLoopGroup bossGroup;
   private EventLoopGroup workerGroup;
+  private NettyTransport regionServerTransport;
+  private EventLoopGroup regionServerAcceptGroup;
+  private EventLoopGroup regionServerIoGroup;
 
   private final Map<ModuleType, C5Module> allModules = new HashMap<>();
   private final Map<ModuleType, Integer> onlineModuleToPortMap = new HashMap<>();
@@ -232,20 +233,25 @@ public class C5DB extends AbstractService implements C5Server {
 
   @Override
   protected void doStart() {
-    try {
-      // TODO this should be done as part of the log file service startup, if at all.
-      new LogFileService(configDirectory.getBaseConfigPath()).clearAllLogs();
-    } catch (IOException e) {
-      notifyFailed(e);
-    }
-
+    // The logs are kept across restarts; tablets replay their unflushed edits from them when they open.
     try {
       serverFiber = new ThreadFiber(new RunnableExecutorImpl(), "C5-Server", false);
       int processors = Runtime.getRuntime().availableProcessors();
       executor = Executors.newFixedThreadPool(processors);
       fiberPool = new PoolFiberFactory(executor);
-      bossGroup = new NioEventLoopGroup(processors / 3);
-      workerGroup = new NioEventLoopGroup(processors / 3);
+      int defaultIoThreads = Math.max(1, processors / 3);
+
+      // Discovery, replication and control RPC build NIO channels themselves, so they always share NIO loops
+      bossGroup = NettyTransport.NIO.newEventLoopGroup(1, "c5-control-accept");
+      workerGroup = NettyTransport.NIO.newEventLoopGroup(
+          Integer.getInteger(C5ServerConstants.CONTROL_PLANE_IO_THREADS_PROPERTY_NAME, defaultIoThreads),
+          "c5-control-io");
+
+      regionServerTransport = NettyTransport.choose(Boolean.getBoolean(C5ServerConstants.NETTY_EPOLL_PROPERTY_NAME));
+      regionServerAcceptGroup = regionServerTransport.newEventLoopGroup(1, "c5-region-accept");
+      regionServerIoGroup = regionServerTransport.newEventLoopGroup(
+          Integer.getInteger(C5ServerConstants.REGION_SERVER_IO_THREADS_PROPERTY_NAME, defaultIoThreads),
+          "c5-region-io");
 
       commandChannel.subscribe(serverFiber, message -> {
         try {
@@ -272,6 +278,10 @@ public class C5DB extends AbstractService implements C5Server {
     serverFiber.dispose();
     fiberPool.dispose();
     executor.shutdownNow();
+    regionServerAcceptGroup.shutdownGracefully();
+    regionServerIoGroup.shutdownGracefully();
+    bossGroup.shutdownGracefully();
+    workerGroup.shutdownGracefully();
     notifyStopped();
   }
 
@@ -430,7 +440,11 @@ public class C5DB extends AbstractService implements C5Server {
         break;
       }
       case RegionServer: {
-        C5Module module = new RegionServerService(bossGroup, workerGroup, modulePort, this);
+        C5Module module = new RegionServerService(regionServerAcceptGroup,
+            regionServerIoGroup,
+            regionServerTransport.serverChannelClass(),
+            modulePort,
+            this);
         startServiceModule(module);
 
         break;
@@ -21,6 +21,24 @@ import org.apache.hadoop.hbase.util.Bytes;
 public class C5ServerConstants {
   public static final int MAX_CALL_SIZE = Integer.MAX_VALUE;
   public static final long MAX_CONTENT_LENGTH_HTTP_AGG = 8192;
+  public static final int LENGTH_FIELD_SIZE = 4;
+  // Largest Call accepted on the binary listener; a longer length prefix is a corrupt or hostile stream
+  public static final int MAX_BINARY_FRAME_SIZE = 32 * 1024 * 1024;
+  // Calls queued per region dispatch stripe around which reading from the submitting channels is paused and resumed
+  public static final int REGION_DISPATCH_QUEUE_SIZE = 1024;
+  // Scanners not asked for more rows within this period are closed, reported to clients as ScanResponse.ttl
+  public static final int SCANNER_LEASE_TTL_MILLIS = 60000;
+  public static final long SCANNER_LEASE_CHECK_PERIOD_MILLIS = 5000;
+  // A scan response is cut at whichever of these it reaches first, unless the scan sets max_result_size
+  public static final int MAX_ROWS_PER_SCAN_RESPONSE = 1000;
+  public static final long DEFAULT_SCAN_MAX_RESULT_SIZE = 2 * 1024 * 1024;
+  // A region's group commit closes its batch at this many bytes of mutations, or once the first queued mutation has
+  // waited this long. A delay of 0 commits whatever queued up while the previous batch was being written.
+  public static final long GROUP_COMMIT_MAX_BATCH_BYTES = 4 * 1024 * 1024;
+  public static final long GROUP_COMMIT_MAX_DELAY_MICROS = 0;
+  // Responses to a connection are flushed together; these force a flush before the current batch ends
+  public static final long RESPONSE_FLUSH_THRESHOLD_BYTES = 64 * 1024;
+  public static final int RESPONSE_FLUSH_THRESHOLD_COUNT = 128;
 
   public static final String LOCALHOST = "localhost";
   public static final java.lang.String MIN_CLUSTER_SIZE = "minClusterSize";
@@ -30,6 +48,13 @@ public class C5ServerConstants {
 
   // We use this column qualifier in system tables to mark the leader
   public static final byte[] LEADER_QUALIFIER = Bytes.toBytes("LEADER_QUALIFIER");
+  // And this one for the "host:port" of the leader's region server, so clients can send to it directly
+  public static final byte[] LEADER_ADDRESS_QUALIFIER = Bytes.toBytes("LEADER_ADDRESS_QUALIFIER");
+  // And this one for the nodes replicating a user tablet, as comma separated "nodeId=host:port", or just "nodeId"
+  // where the address is not known, so clients can also read from a replica
+  public static final byte[] PEERS_QUALIFIER = Bytes.toBytes("PEERS_QUALIFIER");
+  // How long to wait on discovery for a leader's address before writing the leader without it
+  public static final long NODE_INFO_TIMEOUT_MILLIS = 5000;
 
   // Commands we pass to the command server
   public static final String START_META = "Start Meta";
@@ -49,9 +74,17 @@ public class C5ServerConstants {
 
   public static final int DEFAULT_REGION_SERVER_PORT_MIN = 8080;
   public static final int REGION_SERVER_PORT_RANGE = 1000;
+  // The binary (length-prefixed) region server listener binds at the websocket port plus this offset
+  public static final int BINARY_REGION_SERVER_PORT_OFFSET = 10000;
 
   public static final String CLUSTER_NAME_PROPERTY_NAME = "clusterName";
   public static final String WEB_SERVER_PORT_PROPERTY_NAME = "webServerPort";
   public static final String REGION_SERVER_PORT_PROPERTY_NAME = "regionServerPort";
   public static final String CONTROL_SERVER_PORT_PROPERTY_NAME = "controlServerPort";
+
+  // Netty tuning. Region server traffic runs on its own event loops, apart from the control plane
+  // (discovery, replication, control RPC), and may use the Linux native epoll transport.
+  public static final String NETTY_EPOLL_PROPERTY_NAME = "c5.netty.epoll";
+  public static final String REGION_SERVER_IO_THREADS_PROPERTY_NAME = "c5.regionServer.ioThreads";
+  public static final String CONTROL_PLANE_IO_THREADS_PROPERTY_NAME = "c5.controlPlane.ioThreads";
 }
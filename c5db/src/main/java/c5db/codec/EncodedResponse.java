@@ -0,0 +1,47 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.codec;
+
+import c5db.client.generated.Response;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.DefaultByteBufHolder;
+import io.protostuff.LowCopyProtobufOutput;
+
+import java.io.IOException;
+
+/**
+ * A Response which has already been serialized into protostuff wire format, for example by
+ * {@link ScanResponseWriter}. The outbound encoders frame the bytes as they are rather than serializing again.
+ */
+public class EncodedResponse extends DefaultByteBufHolder {
+
+  public EncodedResponse(ByteBuf data) {
+    super(data);
+  }
+
+  /**
+   * Serializes a Response into a buffer from the given allocator, as the outbound encoders would.
+   */
+  public static EncodedResponse encode(Response response, ByteBufAllocator alloc) throws IOException {
+    final LowCopyProtobufOutput lcpo = new LowCopyProtobufOutput();
+    Response.getSchema().writeTo(lcpo, response);
+    final ByteBuf byteBuf = alloc.ioBuffer((int) lcpo.buffer.size());
+    lcpo.buffer.finish().stream().forEach(byteBuf::writeBytes);
+    return new EncodedResponse(byteBuf);
+  }
+}
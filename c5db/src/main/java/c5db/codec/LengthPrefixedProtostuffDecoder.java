@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.codec;
+
+import c5db.C5ServerConstants;
+import c5db.client.generated.Call;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.protostuff.ByteBufferInput;
+
+/**
+ * A Protostuff decoder which reads Calls from a raw TCP stream where every Call is preceded by a four byte length
+ * field. Unlike the WebSocket path there is no HTTP codec or frame aggregation in front of it, and the frame is
+ * sliced out of the cumulation buffer rather than copied.
+ */
+public class LengthPrefixedProtostuffDecoder extends LengthFieldBasedFrameDecoder {
+
+  public LengthPrefixedProtostuffDecoder() {
+    super(C5ServerConstants.MAX_BINARY_FRAME_SIZE, 0, C5ServerConstants.LENGTH_FIELD_SIZE, 0,
+        C5ServerConstants.LENGTH_FIELD_SIZE);
+  }
+
+  @Override
+  protected Object decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+    final ByteBuf frame = (ByteBuf) super.decode(ctx, in);
+    if (frame == null) {
+      return null;
+    }
+
+    try {
+      final ByteBufferInput input = new ByteBufferInput(frame.nioBuffer(), false);
+      final Call newMsg = Call.getSchema().newMessage();
+      Call.getSchema().mergeFrom(input, newMsg);
+      return newMsg;
+    } finally {
+      frame.release();
+    }
+  }
+
+  @Override
+  protected ByteBuf extractFrame(ChannelHandlerContext ctx, ByteBuf buffer, int index, int length) {
+    return buffer.slice(index, length).retain();
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.codec;
+
+import c5db.C5ServerConstants;
+import c5db.client.generated.Response;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.protostuff.LowCopyProtobufOutput;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A Protostuff encoder which writes Responses onto a raw TCP stream, each preceded by a four byte length field.
+ * Responses are never chunked, so there is no need to split large responses across frames.
+ * <p>
+ * {@link EncodedResponse}s are already serialized, so only the length field is written and their bytes are passed
+ * along as they are.
+ */
+public class LengthPrefixedProtostuffEncoder extends MessageToMessageEncoder<Object> {
+
+  @Override
+  public boolean acceptOutboundMessage(Object msg) throws Exception {
+    return msg instanceof Response || msg instanceof EncodedResponse;
+  }
+
+  @Override
+  protected void encode(ChannelHandlerContext channelHandlerContext,
+                        Object msg,
+                        List<Object> out) throws IOException {
+    if (msg instanceof EncodedResponse) {
+      final ByteBuf content = ((EncodedResponse) msg).content();
+      final ByteBuf lengthField = channelHandlerContext.alloc().ioBuffer(C5ServerConstants.LENGTH_FIELD_SIZE);
+      lengthField.writeInt(content.readableBytes());
+      out.add(lengthField);
+      out.add(content.retain());
+      return;
+    }
+
+    final LowCopyProtobufOutput lcpo = new LowCopyProtobufOutput();
+    Response.getSchema().writeTo(lcpo, (Response) msg);
+    final int size = (int) lcpo.buffer.size();
+
+    final ByteBuf byteBuf = channelHandlerContext.alloc().ioBuffer(size + C5ServerConstants.LENGTH_FIELD_SIZE);
+    byteBuf.writeInt(size);
+    lcpo.buffer.finish().stream().forEach(byteBuf::writeBytes);
+    out.add(byteBuf);
+  }
+}
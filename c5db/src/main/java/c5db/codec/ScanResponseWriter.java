@@ -0,0 +1,251 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.codec;
+
+import c5db.client.generated.Response;
+import io.netty.buffer.ByteBuf;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streams a SCAN Response straight from HBase Cells into a ByteBuf, writing the protocol buffer wire format by
+ * hand so that no generated Cell, Result or ScanResponse objects (or ByteBuffer wrappers around the cell arrays)
+ * are created along the way.
+ * <p>
+ * The length of the nested ScanResponse is not known until the last row has been added, so five bytes are
+ * reserved for it up front and filled in with a padded varint when the response is finished.
+ */
+public class ScanResponseWriter {
+  private static final int WIRETYPE_VARINT = 0;
+  private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+  private static final int MAX_VARINT32_SIZE = 5;
+
+  // Response
+  private static final int RESPONSE_COMMAND = 1;
+  private static final int RESPONSE_COMMAND_ID = 2;
+  private static final int RESPONSE_SCAN = 5;
+  // ScanResponse
+  private static final int SCAN_CELLS_PER_RESULT = 1;
+  private static final int SCAN_SCANNER_ID = 2;
+  private static final int SCAN_MORE_RESULTS = 3;
+  private static final int SCAN_TTL = 4;
+  private static final int SCAN_RESULTS = 5;
+  private static final int SCAN_EXCEPTION = 6;
+  // NameBytesPair
+  private static final int EXCEPTION_NAME = 1;
+  private static final int EXCEPTION_VALUE = 2;
+  // Result
+  private static final int RESULT_CELL = 1;
+  private static final int RESULT_ASSOCIATED_CELL_COUNT = 2;
+  private static final int RESULT_EXISTS = 3;
+  // Cell
+  private static final int CELL_ROW = 1;
+  private static final int CELL_FAMILY = 2;
+  private static final int CELL_QUALIFIER = 3;
+  private static final int CELL_TIMESTAMP = 4;
+  private static final int CELL_TYPE = 5;
+  private static final int CELL_VALUE = 6;
+
+  private final ByteBuf buf;
+  private final int scanLengthIndex;
+  private int[] cellsPerResult = new int[16];
+  private int numberOfResults = 0;
+
+  public ScanResponseWriter(ByteBuf buf, long commandId) {
+    this.buf = buf;
+    writeTag(RESPONSE_COMMAND, WIRETYPE_VARINT);
+    writeVarint32(Response.Command.SCAN.getNumber());
+    writeTag(RESPONSE_COMMAND_ID, WIRETYPE_VARINT);
+    writeVarint64(commandId);
+    writeTag(RESPONSE_SCAN, WIRETYPE_LENGTH_DELIMITED);
+    scanLengthIndex = buf.writerIndex();
+    buf.writeZero(MAX_VARINT32_SIZE);
+  }
+
+  /**
+   * Appends one Result made up of the given cells.
+   */
+  public void addResult(List<Cell> cells) {
+    int resultSize = 0;
+    for (Cell cell : cells) {
+      final int cellSize = cellSize(cell);
+      resultSize += tagSize(RESULT_CELL) + varint32Size(cellSize) + cellSize;
+    }
+    resultSize += tagSize(RESULT_ASSOCIATED_CELL_COUNT) + varint32Size(cells.size());
+    resultSize += tagSize(RESULT_EXISTS) + 1;
+
+    writeTag(SCAN_RESULTS, WIRETYPE_LENGTH_DELIMITED);
+    writeVarint32(resultSize);
+    for (Cell cell : cells) {
+      writeTag(RESULT_CELL, WIRETYPE_LENGTH_DELIMITED);
+      writeVarint32(cellSize(cell));
+      writeCell(cell);
+    }
+    writeTag(RESULT_ASSOCIATED_CELL_COUNT, WIRETYPE_VARINT);
+    writeVarint32(cells.size());
+    writeTag(RESULT_EXISTS, WIRETYPE_VARINT);
+    buf.writeByte(cells.isEmpty() ? 0 : 1);
+
+    if (numberOfResults == cellsPerResult.length) {
+      cellsPerResult = Arrays.copyOf(cellsPerResult, cellsPerResult.length * 2);
+    }
+    cellsPerResult[numberOfResults++] = cells.size();
+  }
+
+  public int getNumberOfResults() {
+    return numberOfResults;
+  }
+
+  /**
+   * The number of bytes written so far, not counting the trailing fields added by {@link #finish}.
+   */
+  public int getSize() {
+    return buf.writerIndex();
+  }
+
+  /**
+   * Writes the trailing ScanResponse fields and fills in its length.
+   *
+   * @return The buffer, holding a complete serialized Response.
+   */
+  public ByteBuf finish(long scannerId, boolean moreResults, int ttl) {
+    writeTrailer(scannerId, moreResults, ttl);
+    return fillInLength();
+  }
+
+  /**
+   * Writes the trailing ScanResponse fields for a scan which failed, after the Results added so far, and fills in
+   * its length.
+   *
+   * @return The buffer, holding a complete serialized Response.
+   */
+  public ByteBuf finish(long scannerId, Throwable failure) {
+    writeTrailer(scannerId, false, 0);
+    final byte[] name = Bytes.toBytes(failure.getClass().getName());
+    final byte[] value = Bytes.toBytes(String.valueOf(failure.getMessage()));
+    writeTag(SCAN_EXCEPTION, WIRETYPE_LENGTH_DELIMITED);
+    writeVarint32(bytesFieldSize(EXCEPTION_NAME, name.length) + bytesFieldSize(EXCEPTION_VALUE, value.length));
+    writeBytesField(EXCEPTION_NAME, name, 0, name.length);
+    writeBytesField(EXCEPTION_VALUE, value, 0, value.length);
+    return fillInLength();
+  }
+
+  private void writeTrailer(long scannerId, boolean moreResults, int ttl) {
+    for (int i = 0; i < numberOfResults; i++) {
+      writeTag(SCAN_CELLS_PER_RESULT, WIRETYPE_VARINT);
+      writeVarint32(cellsPerResult[i]);
+    }
+    writeTag(SCAN_SCANNER_ID, WIRETYPE_VARINT);
+    writeVarint64(scannerId);
+    writeTag(SCAN_MORE_RESULTS, WIRETYPE_VARINT);
+    buf.writeByte(moreResults ? 1 : 0);
+    writeTag(SCAN_TTL, WIRETYPE_VARINT);
+    writeVarint32(ttl);
+  }
+
+  private ByteBuf fillInLength() {
+    int scanLength = buf.writerIndex() - scanLengthIndex - MAX_VARINT32_SIZE;
+    for (int i = 0; i < MAX_VARINT32_SIZE - 1; i++) {
+      buf.setByte(scanLengthIndex + i, (scanLength & 0x7F) | 0x80);
+      scanLength >>>= 7;
+    }
+    buf.setByte(scanLengthIndex + MAX_VARINT32_SIZE - 1, scanLength & 0x7F);
+    return buf;
+  }
+
+  private void writeCell(Cell cell) {
+    writeBytesField(CELL_ROW, cell.getRowArray(), cell.getRowOffset(), cell.getRowLength());
+    writeBytesField(CELL_FAMILY, cell.getFamilyArray(), cell.getFamilyOffset(), cell.getFamilyLength());
+    writeBytesField(CELL_QUALIFIER, cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength());
+    writeTag(CELL_TIMESTAMP, WIRETYPE_VARINT);
+    writeVarint64(cell.getTimestamp());
+    writeTag(CELL_TYPE, WIRETYPE_VARINT);
+    writeVarint32(cell.getTypeByte() & 0xFF);
+    writeBytesField(CELL_VALUE, cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
+  }
+
+  private static int cellSize(Cell cell) {
+    return bytesFieldSize(CELL_ROW, cell.getRowLength())
+        + bytesFieldSize(CELL_FAMILY, cell.getFamilyLength())
+        + bytesFieldSize(CELL_QUALIFIER, cell.getQualifierLength())
+        + tagSize(CELL_TIMESTAMP) + varint64Size(cell.getTimestamp())
+        + tagSize(CELL_TYPE) + varint32Size(cell.getTypeByte() & 0xFF)
+        + bytesFieldSize(CELL_VALUE, cell.getValueLength());
+  }
+
+  private void writeBytesField(int fieldNumber, byte[] array, int offset, int length) {
+    writeTag(fieldNumber, WIRETYPE_LENGTH_DELIMITED);
+    writeVarint32(length);
+    buf.writeBytes(array, offset, length);
+  }
+
+  private void writeTag(int fieldNumber, int wireType) {
+    writeVarint32((fieldNumber << 3) | wireType);
+  }
+
+  private void writeVarint32(int value) {
+    while ((value & ~0x7F) != 0) {
+      buf.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buf.writeByte(value);
+  }
+
+  private void writeVarint64(long value) {
+    while ((value & ~0x7FL) != 0) {
+      buf.writeByte(((int) value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buf.writeByte((int) value);
+  }
+
+  private static int bytesFieldSize(int fieldNumber, int length) {
+    return tagSize(fieldNumber) + varint32Size(length) + length;
+  }
+
+  private static int tagSize(int fieldNumber) {
+    return varint32Size(fieldNumber << 3);
+  }
+
+  private static int varint32Size(int value) {
+    if ((value & (0xffffffff << 7)) == 0) {
+      return 1;
+    }
+    if ((value & (0xffffffff << 14)) == 0) {
+      return 2;
+    }
+    if ((value & (0xffffffff << 21)) == 0) {
+      return 3;
+    }
+    if ((value & (0xffffffff << 28)) == 0) {
+      return 4;
+    }
+    return 5;
+  }
+
+  private static int varint64Size(long value) {
+    int size = 1;
+    while ((value & ~0x7FL) != 0) {
+      size++;
+      value >>>= 7;
+    }
+    return size;
+  }
+}
@@ -34,22 +34,33 @@ import java.util.List;
 /**
  * A specialized Protostuff encoder used to serialize Protostuff into a WebSocketStream and map them to a Response
  * object. Special care must be paid to handle chunking websocket files transparently for the user.
+ * <p>
+ * {@link EncodedResponse}s are already serialized, and their bytes are framed without being copied.
  */
-public class WebsocketProtostuffEncoder extends MessageToMessageEncoder<Response> {
+public class WebsocketProtostuffEncoder extends MessageToMessageEncoder<Object> {
 
   private static final long MAX_SIZE = C5ServerConstants.MAX_CONTENT_LENGTH_HTTP_AGG;
   private static final Logger LOG = LoggerFactory.getLogger(WebsocketProtostuffEncoder.class);
 
+  @Override
+  public boolean acceptOutboundMessage(Object msg) throws Exception {
+    return msg instanceof Response || msg instanceof EncodedResponse;
+  }
+
   @Override
   protected void encode(ChannelHandlerContext channelHandlerContext,
-                        Response response,
+                        Object msg,
                         List<Object> objects) throws IOException {
-    final LowCopyProtobufOutput lcpo = new LowCopyProtobufOutput();
-    Response.getSchema().writeTo(lcpo, response);
-    final long size = lcpo.buffer.size();
-
-    ByteBuf byteBuf = channelHandlerContext.alloc().buffer((int) size);
-    lcpo.buffer.finish().stream().forEach(byteBuf::writeBytes);
+    final ByteBuf byteBuf;
+    if (msg instanceof EncodedResponse) {
+      byteBuf = ((EncodedResponse) msg).content().retain();
+    } else {
+      final LowCopyProtobufOutput lcpo = new LowCopyProtobufOutput();
+      Response.getSchema().writeTo(lcpo, (Response) msg);
+      byteBuf = channelHandlerContext.alloc().buffer((int) lcpo.buffer.size());
+      lcpo.buffer.finish().stream().forEach(byteBuf::writeBytes);
+    }
+    final long size = byteBuf.readableBytes();
 
     if (size < MAX_SIZE) {
       final BinaryWebSocketFrame frame = new BinaryWebSocketFrame(byteBuf);
@@ -60,7 +71,7 @@ public class WebsocketProtostuffEncoder extends MessageToMessageEncoder<Response
       while (remaining > 0) {
         WebSocketFrame frame;
         if (remaining > MAX_SIZE) {
-          final ByteBuf slice = byteBuf.copy((int) (size - remaining), (int) MAX_SIZE);
+          final ByteBuf slice = byteBuf.slice((int) (size - remaining), (int) MAX_SIZE).retain();
           if (first) {
             frame = new BinaryWebSocketFrame(false, 0, slice);
             first = false;
@@ -69,11 +80,13 @@ public class WebsocketProtostuffEncoder extends MessageToMessageEncoder<Response
           }
           remaining -= MAX_SIZE;
         } else {
-          frame = new ContinuationWebSocketFrame(true, 0, byteBuf.copy((int) (size - remaining), (int) remaining));
+          final ByteBuf slice = byteBuf.slice((int) (size - remaining), (int) remaining).retain();
+          frame = new ContinuationWebSocketFrame(true, 0, slice);
           remaining = 0;
         }
         objects.add(frame);
       }
+      byteBuf.release();
     }
   }
 }
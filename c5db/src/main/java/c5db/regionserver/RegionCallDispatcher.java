@@ -0,0 +1,226 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.regionserver;
+
+import c5db.client.generated.Call;
+import c5db.client.generated.MultiRequest;
+import c5db.client.generated.RegionSpecifier;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands decoded Calls off the netty event loop onto a fixed set of single threaded, bounded executors. Calls are
+ * striped by region name, so calls against one region run in the order they arrived while a slow region only
+ * holds up the other regions that share its stripe.
+ * <p>
+ * When a stripe's queue passes its high water mark, the channel which submitted the call has autoRead turned off
+ * until the stripe drains back below its low water mark. A call submitted to a full queue, such as one decoded in
+ * the same read as the call which paused the channel, is rejected with a {@link RejectedExecutionException} and its
+ * channel paused; it is never run on the event loop, where it could overtake the calls queued before it. A channel
+ * paused by several stripes reads again once all of them drain.
+ */
+public class RegionCallDispatcher {
+  private static final Logger LOG = LoggerFactory.getLogger(RegionCallDispatcher.class);
+
+  private final Stripe[] stripes;
+  // How many stripes have paused each channel; it reads again when the last of them resumes it
+  private final ConcurrentMap<Channel, Integer> pauseCounts = new ConcurrentHashMap<>();
+
+  public RegionCallDispatcher(int numberOfStripes, int queueCapacity) {
+    if (numberOfStripes < 1) {
+      throw new IllegalArgumentException("numberOfStripes must be at least 1, not " + numberOfStripes);
+    }
+    // Below 4 the high water mark would not fall between the low water mark and the capacity
+    if (queueCapacity < 4) {
+      throw new IllegalArgumentException("queueCapacity must be at least 4, not " + queueCapacity);
+    }
+    stripes = new Stripe[numberOfStripes];
+    for (int i = 0; i < numberOfStripes; i++) {
+      stripes[i] = new Stripe(i, queueCapacity);
+    }
+  }
+
+  /**
+   * @throws RejectedExecutionException if the call's stripe is full, or shut down.
+   */
+  public void dispatch(ChannelHandlerContext ctx, Call call, Runnable task) {
+    final Stripe stripe = stripes[stripeIndex(regionOf(call))];
+    stripe.submit(ctx.channel(), task);
+  }
+
+  /**
+   * Runs the part of a call which is against one region on that region's stripe, in order with the region's other
+   * calls. The future fails with a {@link RejectedExecutionException} if the region's stripe is full.
+   */
+  public <T> ListenableFuture<T> dispatch(Channel channel, ByteBuffer region, Callable<T> task) {
+    final ListenableFutureTask<T> future = ListenableFutureTask.create(task);
+    try {
+      stripes[stripeIndex(region)].submit(channel, future);
+    } catch (RejectedExecutionException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+    return future;
+  }
+
+  public void shutdown() {
+    for (Stripe stripe : stripes) {
+      stripe.executor.shutdown();
+    }
+  }
+
+  private int stripeIndex(ByteBuffer region) {
+    if (region == null) {
+      return 0;
+    }
+    return (region.hashCode() & Integer.MAX_VALUE) % stripes.length;
+  }
+
+  static ByteBuffer regionOf(Call call) {
+    RegionSpecifier regionSpecifier = null;
+    switch (call.getCommand()) {
+      case GET:
+        if (call.getGet() != null) {
+          regionSpecifier = call.getGet().getRegion();
+        }
+        break;
+      case MUTATE:
+        if (call.getMutate() != null) {
+          regionSpecifier = call.getMutate().getRegion();
+        }
+        break;
+      case SCAN:
+        if (call.getScan() != null) {
+          regionSpecifier = call.getScan().getRegion();
+        }
+        break;
+      case MULTI:
+        final MultiRequest multi = call.getMulti();
+        if (multi != null && multi.getRegionActionList() != null && !multi.getRegionActionList().isEmpty()) {
+          regionSpecifier = multi.getRegionActionList().get(0).getRegion();
+        }
+        break;
+    }
+    return regionSpecifier == null ? null : regionSpecifier.getValue();
+  }
+
+  private void pause(Channel channel) {
+    pauseCounts.compute(channel, (pausedChannel, count) -> {
+      if (count == null) {
+        pausedChannel.config().setAutoRead(false);
+        return 1;
+      }
+      return count + 1;
+    });
+  }
+
+  private void resume(Channel channel) {
+    pauseCounts.computeIfPresent(channel, (pausedChannel, count) -> {
+      if (count == 1) {
+        pausedChannel.config().setAutoRead(true);
+        return null;
+      }
+      return count - 1;
+    });
+  }
+
+  private class Stripe {
+    private final int index;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final Set<Channel> pausedChannels = ConcurrentHashMap.newKeySet();
+    private final int highWaterMark;
+    private final int lowWaterMark;
+
+    Stripe(int index, int queueCapacity) {
+      this.index = index;
+      highWaterMark = queueCapacity * 3 / 4;
+      lowWaterMark = queueCapacity / 4;
+      executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<>(queueCapacity),
+          runnable -> {
+            Thread thread = new Thread(runnable, "region-dispatch-" + index);
+            thread.setDaemon(true);
+            return thread;
+          });
+    }
+
+    void submit(Channel channel, Runnable task) {
+      if (queued.incrementAndGet() >= highWaterMark) {
+        pauseChannel(channel);
+      }
+
+      try {
+        executor.execute(() -> {
+          try {
+            task.run();
+          } catch (Throwable t) {
+            LOG.error("Uncaught error while processing a call", t);
+          } finally {
+            if (queued.decrementAndGet() <= lowWaterMark && !pausedChannels.isEmpty()) {
+              resumeAll();
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        queued.decrementAndGet();
+        if (executor.isShutdown()) {
+          throw e;
+        }
+        // The queue is full, so the channel waits for it to drain
+        pauseChannel(channel);
+        throw new RejectedExecutionException("The call queue of region dispatch stripe " + index + " is full", e);
+      }
+    }
+
+    private synchronized void pauseChannel(Channel channel) {
+      if (pausedChannels.add(channel)) {
+        pause(channel);
+      }
+      // The stripe may have drained while we were pausing, in which case no one else will resume us
+      if (queued.get() <= lowWaterMark) {
+        resumeAll();
+      }
+    }
+
+    // Synchronized with pauseChannel, so a channel is never resumed by this stripe before it was paused by it
+    private synchronized void resumeAll() {
+      final Iterator<Channel> iterator = pausedChannels.iterator();
+      while (iterator.hasNext()) {
+        final Channel channel = iterator.next();
+        iterator.remove();
+        resume(channel);
+      }
+    }
+  }
+}
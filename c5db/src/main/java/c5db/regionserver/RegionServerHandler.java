@@ -25,39 +25,94 @@ import c5db.client.generated.MultiResponse;
 import c5db.client.generated.MutateRequest;
 import c5db.client.generated.MutateResponse;
 import c5db.client.generated.MutationProto;
+import c5db.client.generated.NameBytesPair;
 import c5db.client.generated.RegionAction;
 import c5db.client.generated.RegionActionResult;
 import c5db.client.generated.Response;
 import c5db.client.generated.ScanRequest;
+import c5db.client.generated.ScanResponse;
 import c5db.tablet.Region;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.regionserver.OperationStatus;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.jetlang.channels.Channel;
-import org.jetlang.channels.MemoryChannel;
-import org.jetlang.fibers.Fiber;
-import org.jetlang.fibers.ThreadFiber;
-import org.mortbay.log.Log;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * The main netty handler for the RegionServer functionality. Maps protocol buffer calls to an action against a HRegion
  * and then provides a response to the caller.
+ * <p>
+ * When constructed with a {@link RegionCallDispatcher} the region work is done on the dispatcher's threads rather
+ * than on the netty event loop.
+ * <p>
+ * A call which fails, including one against a region which is not here, is answered with a Response carrying the
+ * error, so the client can drop its cached location rather than wait out the call's deadline.
  */
 public class RegionServerHandler extends SimpleChannelInboundHandler<Call> {
+  private static final Logger LOG = LoggerFactory.getLogger(RegionServerHandler.class);
   private final RegionServerService regionServerService;
-  private final ScannerManager scanManager = ScannerManager.INSTANCE;
+  private final RegionCallDispatcher dispatcher;
+  private final ScannerManager scanManager;
+  private ResponseFlusher responseFlusher;
 
+  /**
+   * Creates a handler which processes calls on the thread that reads them.
+   */
   public RegionServerHandler(RegionServerService myService) {
+    this(myService, null);
+  }
+
+  public RegionServerHandler(RegionServerService myService, RegionCallDispatcher dispatcher) {
     this.regionServerService = myService;
+    this.dispatcher = dispatcher;
+    this.scanManager = myService.getScannerManager();
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    responseFlusher(ctx).readStarted();
+    super.channelRead(ctx, msg);
   }
 
   @Override
   public void channelRead0(final ChannelHandlerContext ctx, final Call call) throws Exception {
+    responseFlusher(ctx);
+    if (dispatcher == null || call.getCommand() == Call.Command.MULTI) {
+      // With a dispatcher, each RegionAction of a MULTI is dispatched to its own region's stripe from here, in the
+      // order the calls arrived
+      processCallOrFail(ctx, call);
+      return;
+    }
+
+    try {
+      dispatcher.dispatch(ctx, call, () -> processCallOrFail(ctx, call));
+    } catch (RejectedExecutionException e) {
+      // The region's queue is full and the channel has stopped reading; the client may send the call again
+      fail(call, e);
+    }
+  }
+
+  private void processCallOrFail(final ChannelHandlerContext ctx, final Call call) {
+    try {
+      processCall(ctx, call);
+    } catch (Exception e) {
+      fail(call, e);
+    }
+  }
+
+  private void processCall(final ChannelHandlerContext ctx, final Call call) throws Exception {
     switch (call.getCommand()) {
       case GET:
         get(ctx, call);
@@ -74,26 +129,59 @@ public class RegionServerHandler extends SimpleChannelInboundHandler<Call> {
     }
   }
 
-  private void multi(ChannelHandlerContext ctx, Call call) throws IOException, RegionNotFoundException {
+  private void multi(ChannelHandlerContext ctx, Call call) throws IOException {
     final MultiRequest request = call.getMulti();
 
-    List<RegionActionResult> regionActionResults = new ArrayList<>();
     if (request == null) {
       throw new IOException("Poorly specified multi. There is no actual get data in the RPC");
     }
-    for (RegionAction regionAction : request.getRegionActionList()) {
-      final Region region = regionServerService.getOnlineRegion(regionAction.getRegion());
-      RegionActionResult regionActionResponse = region.processRegionAction(regionAction);
-      regionActionResults.add(regionActionResponse);
+    final List<RegionAction> regionActions = request.getRegionActionList();
+    final List<ListenableFuture<RegionActionResult>> regionActionResults = new ArrayList<>(regionActions.size());
+    for (RegionAction regionAction : regionActions) {
+      final Region region;
+      try {
+        region = regionServerService.getOnlineRegion(regionAction.getRegion());
+      } catch (RegionNotFoundException e) {
+        // A region which is not here fails only its own actions, telling the client to look it up again
+        regionActionResults.add(Futures.immediateFuture(
+            new RegionActionResult(new ArrayList<>(), toNameBytesPair(e))));
+        continue;
+      }
+      regionActionResults.add(processRegionAction(ctx, region, regionAction));
     }
-    MultiResponse multiResponse = new MultiResponse(regionActionResults);
-    final Response response = new Response(Response.Command.MULTI,
-        call.getCommandId(),
-        null,
-        null,
-        null,
-        multiResponse);
-    ctx.writeAndFlush(response);
+
+    Futures.addCallback(Futures.allAsList(regionActionResults), new FutureCallback<List<RegionActionResult>>() {
+      @Override
+      public void onSuccess(List<RegionActionResult> results) {
+        final Response response = new Response(Response.Command.MULTI,
+            call.getCommandId(),
+            null,
+            null,
+            null,
+            new MultiResponse(results),
+            null);
+        responseFlusher.write(response);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        fail(call, t);
+      }
+    });
+  }
+
+  /**
+   * Each RegionAction is already batched inside its region. With a dispatcher it runs on its region's stripe, so
+   * independent regions proceed side by side while each region's calls stay in order.
+   */
+  private ListenableFuture<RegionActionResult> processRegionAction(ChannelHandlerContext ctx,
+                                                                   Region region,
+                                                                   RegionAction regionAction) {
+    if (dispatcher == null) {
+      return Futures.immediateFuture(region.processRegionAction(regionAction));
+    }
+    return dispatcher.dispatch(ctx.channel(), regionAction.getRegion().getValue(),
+        () -> region.processRegionAction(regionAction));
   }
 
   private void mutate(ChannelHandlerContext ctx, Call call) throws RegionNotFoundException, IOException {
@@ -104,29 +192,29 @@ public class RegionServerHandler extends SimpleChannelInboundHandler<Call> {
     }
 
     final Region region = regionServerService.getOnlineRegion(call.getMutate().getRegion());
-    if (mutateIn.getMutation().getMutateType().equals(MutationProto.MutationType.PUT) &&
+    final MutationProto.MutationType type = mutateIn.getMutation().getMutateType();
+    if ((type == MutationProto.MutationType.PUT || type == MutationProto.MutationType.DELETE) &&
         (mutateIn.getCondition() == null || mutateIn.getCondition().getRow() == null)) {
-      Futures.addCallback(region.batchMutate(mutateIn.getMutation()), new FutureCallback<Boolean>() {
+      Futures.addCallback(region.batchMutate(mutateIn.getMutation()), new FutureCallback<OperationStatus>() {
         @Override
-        public void onSuccess(Boolean result) {
-          MutateResponse mutateResponse = new MutateResponse(new c5db.client.generated.Result(), true);
+        public void onSuccess(OperationStatus result) {
+          boolean processed = result.getOperationStatusCode() == HConstants.OperationStatusCode.SUCCESS;
+          MutateResponse mutateResponse = new MutateResponse(new c5db.client.generated.Result(), processed);
           final Response response = new Response(Response.Command.MUTATE,
               call.getCommandId(),
               null,
               mutateResponse,
               null,
+              null,
               null);
-          ctx.writeAndFlush(response);
-
+          responseFlusher.write(response);
         }
 
         @Override
         public void onFailure(Throwable t) {
-          t.toString();
+          fail(call, t);
         }
       });
-      //TODO check success
-
     } else {
       boolean success = region.mutate(mutateIn.getMutation(), mutateIn.getCondition());
 
@@ -138,8 +226,9 @@ public class RegionServerHandler extends SimpleChannelInboundHandler<Call> {
           null,
           mutateResponse,
           null,
+          null,
           null);
-      ctx.writeAndFlush(response);
+      responseFlusher.write(response);
     }
   }
 
@@ -151,36 +240,38 @@ public class RegionServerHandler extends SimpleChannelInboundHandler<Call> {
       throw new IOException("Poorly specified scan. There is no actual get data in the RPC");
     }
 
-    final long scannerId;
-    scannerId = getScannerId(scanIn);
+    if (scanIn.getCloseScanner()) {
+      scanManager.closeScanner(scanIn.getScannerId());
+      final ScanResponse scanResponse = new ScanResponse(new ArrayList<>(),
+          scanIn.getScannerId(),
+          false,
+          0,
+          new ArrayList<>(),
+          null);
+      responseFlusher.write(
+          new Response(Response.Command.SCAN, call.getCommandId(), null, null, scanResponse, null, null));
+      return;
+    }
+
     final Integer numberOfRowsToSend = scanIn.getNumberOfRows();
-    Channel<Integer> channel = scanManager.getChannel(scannerId);
+    Channel<Integer> channel = null;
+    if (scanIn.getScannerId() > 0) {
+      channel = scanManager.getChannel(scanIn.getScannerId());
+    }
+
     // New Scanner
     if (null == channel) {
-      final Fiber fiber = new ThreadFiber();
-      fiber.start();
-      channel = new MemoryChannel<>();
+      if (scanIn.getScan() == null) {
+        throw new IOException("Unknown scanner " + scanIn.getScannerId() + ", it may have expired or been closed");
+      }
+      final long scannerId = scanManager.nextScannerId();
       Region region = regionServerService.getOnlineRegion(call.getScan().getRegion());
-      final ScanRunnable scanRunnable = new ScanRunnable(ctx, call, scannerId, region);
-      channel.subscribe(fiber, scanRunnable);
-      scanManager.addChannel(scannerId, channel);
+      final ScanRunnable scanRunnable = new ScanRunnable(ctx, responseFlusher, call, scannerId, region);
+      channel = scanManager.addScanner(scannerId, ctx, scanRunnable);
     }
     channel.publish(numberOfRowsToSend);
   }
 
-  private long getScannerId(ScanRequest scanIn) {
-    long scannerId;
-    if (scanIn.getScannerId() > 0) {
-      scannerId = scanIn.getScannerId();
-    } else {
-      // Make a scanner with an Id not 0
-      do {
-        scannerId = System.currentTimeMillis();
-      } while (scannerId == 0);
-    }
-    return scannerId;
-  }
-
   private void get(ChannelHandlerContext ctx, Call call) throws IOException, RegionNotFoundException {
     final GetRequest getRequest = call.getGet();
     if (getRequest == null) {
@@ -194,27 +285,82 @@ public class RegionServerHandler extends SimpleChannelInboundHandler<Call> {
     }
 
     if (getIn.getExistenceOnly()) {
-      final boolean exists = region.exists(getRequest.getGet());
-      final GetResponse getResponse = new GetResponse(new c5db.client.generated.Result(new ArrayList<>(), 0, exists));
-      final Response response = new Response(Response.Command.GET, call.getCommandId(), getResponse, null, null, null);
-      ctx.writeAndFlush(response);
+      Futures.addCallback(region.existsAsync(getIn), new FutureCallback<Boolean>() {
+        @Override
+        public void onSuccess(Boolean exists) {
+          final GetResponse getResponse = new GetResponse(new c5db.client.generated.Result(new ArrayList<>(), 0, exists));
+          final Response response =
+              new Response(Response.Command.GET, call.getCommandId(), getResponse, null, null, null, null);
+          responseFlusher.write(response);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          fail(call, t);
+        }
+      });
     } else {
-      final c5db.client.generated.Result getResult = region.get(getRequest.getGet());
-      final GetResponse getResponse = new GetResponse(getResult);
-      final Response response = new Response(Response.Command.GET, call.getCommandId(), getResponse, null, null, null);
-      ctx.writeAndFlush(response);
+      Futures.addCallback(region.getAsync(getIn), new FutureCallback<c5db.client.generated.Result>() {
+        @Override
+        public void onSuccess(c5db.client.generated.Result getResult) {
+          final GetResponse getResponse = new GetResponse(getResult);
+          final Response response =
+              new Response(Response.Command.GET, call.getCommandId(), getResponse, null, null, null, null);
+          responseFlusher.write(response);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          fail(call, t);
+        }
+      });
     }
   }
 
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    scanManager.closeScanners(ctx);
+    super.channelInactive(ctx);
+  }
+
   @Override
   public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
-    ctx.flush();
+    responseFlusher(ctx).readComplete();
+  }
+
+  /**
+   * The handler belongs to a single channel, so it has a single flusher, created on the event loop.
+   */
+  private ResponseFlusher responseFlusher(ChannelHandlerContext ctx) {
+    if (responseFlusher == null) {
+      responseFlusher = new ResponseFlusher(ctx);
+    }
+    return responseFlusher;
+  }
+
+  /**
+   * Answers the call with the error in place of its response.
+   */
+  private void fail(Call call, Throwable t) {
+    LOG.debug("Call {} failed", call.getCommandId(), t);
+    final Response response = new Response(Response.Command.valueOf(call.getCommand().name()),
+        call.getCommandId(),
+        null,
+        null,
+        null,
+        null,
+        toNameBytesPair(t));
+    responseFlusher.write(response);
+  }
+
+  private static NameBytesPair toNameBytesPair(Throwable t) {
+    return new NameBytesPair(t.getClass().getName(), ByteBuffer.wrap(Bytes.toBytes(String.valueOf(t.getMessage()))));
   }
 
   @Override
   public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
       throws Exception {
+    LOG.warn("Error on channel {}", ctx.channel(), cause);
     super.exceptionCaught(ctx, cause);
-    Log.warn(cause);
   }
 }
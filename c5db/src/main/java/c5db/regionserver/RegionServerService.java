@@ -18,6 +18,8 @@ package c5db.regionserver;
 
 import c5db.C5ServerConstants;
 import c5db.client.generated.RegionSpecifier;
+import c5db.codec.LengthPrefixedProtostuffDecoder;
+import c5db.codec.LengthPrefixedProtostuffEncoder;
 import c5db.codec.WebsocketProtostuffDecoder;
 import c5db.codec.WebsocketProtostuffEncoder;
 import c5db.interfaces.C5Module;
@@ -40,6 +42,7 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
@@ -52,10 +55,14 @@ import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The service handler for the RegionServer class. Responsible for handling the internal lifecycle
  * and attaching the netty infrastructure to the region server.
+ * <p>
+ * Two listeners are started: a WebSocket listener on {@link #port()} and a raw TCP listener speaking
+ * length-prefixed protostuff on {@link #binaryPort()}. Both feed the same {@link RegionServerHandler}.
  */
 public class RegionServerService extends AbstractService implements RegionServerModule {
   private static final Logger LOG = LoggerFactory.getLogger(RegionServerService.class);
@@ -63,27 +70,54 @@ public class RegionServerService extends AbstractService implements RegionServer
   private final Fiber fiber;
   private final EventLoopGroup acceptGroup;
   private final EventLoopGroup workerGroup;
+  private final Class<? extends ServerChannel> serverChannelClass;
   private final int port;
+  private final int binaryPort;
   private final C5Server server;
   private final ServerBootstrap bootstrap = new ServerBootstrap();
+  private final ServerBootstrap binaryBootstrap = new ServerBootstrap();
+  private final RegionCallDispatcher dispatcher;
+  private final ScannerManager scannerManager;
   private TabletModule tabletModule;
   private Channel listenChannel;
+  private Channel binaryListenChannel;
 
   public RegionServerService(EventLoopGroup acceptGroup,
                              EventLoopGroup workerGroup,
                              int port,
                              C5Server server) {
+    this(acceptGroup, workerGroup, NioServerSocketChannel.class, port, server);
+  }
+
+  /**
+   * @param serverChannelClass the listening channel type, which must match the transport of the event loop groups.
+   */
+  public RegionServerService(EventLoopGroup acceptGroup,
+                             EventLoopGroup workerGroup,
+                             Class<? extends ServerChannel> serverChannelClass,
+                             int port,
+                             C5Server server) {
     this.acceptGroup = acceptGroup;
     this.workerGroup = workerGroup;
+    this.serverChannelClass = serverChannelClass;
     this.port = port;
+    this.binaryPort = port + C5ServerConstants.BINARY_REGION_SERVER_PORT_OFFSET;
     this.server = server;
     this.fiber = server.getFiberSupplier().getNewFiber(this::notifyFailed);
     bootstrap.childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+    binaryBootstrap.childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+    this.dispatcher = new RegionCallDispatcher(Runtime.getRuntime().availableProcessors(),
+        C5ServerConstants.REGION_DISPATCH_QUEUE_SIZE);
+    this.scannerManager = new ScannerManager(server.getFiberSupplier(), C5ServerConstants.SCANNER_LEASE_TTL_MILLIS);
   }
 
   @Override
   protected void doStart() {
     fiber.start();
+    fiber.scheduleAtFixedRate(scannerManager::expireScanners,
+        C5ServerConstants.SCANNER_LEASE_CHECK_PERIOD_MILLIS,
+        C5ServerConstants.SCANNER_LEASE_CHECK_PERIOD_MILLIS,
+        TimeUnit.MILLISECONDS);
 
     fiber.execute(() -> {
       // we need the tablet module:
@@ -95,7 +129,7 @@ public class RegionServerService extends AbstractService implements RegionServer
           bootstrap.group(acceptGroup, workerGroup)
               .option(ChannelOption.SO_REUSEADDR, true)
               .childOption(ChannelOption.TCP_NODELAY, true)
-              .channel(NioServerSocketChannel.class)
+              .channel(serverChannelClass)
               .childHandler(new ChannelInitializer<SocketChannel>() {
                 @Override
                 protected void initChannel(SocketChannel ch) throws Exception {
@@ -105,7 +139,22 @@ public class RegionServerService extends AbstractService implements RegionServer
                   p.addLast("websocket-agg", new WebSocketFrameAggregator(C5ServerConstants.MAX_CALL_SIZE));
                   p.addLast("decoder", new WebsocketProtostuffDecoder("/websocket"));
                   p.addLast("encoder", new WebsocketProtostuffEncoder());
-                  p.addLast("handler", new RegionServerHandler(RegionServerService.this));
+                  p.addLast("handler", new RegionServerHandler(RegionServerService.this, dispatcher));
+                }
+              }
+              );
+
+          binaryBootstrap.group(acceptGroup, workerGroup)
+              .option(ChannelOption.SO_REUSEADDR, true)
+              .childOption(ChannelOption.TCP_NODELAY, true)
+              .channel(serverChannelClass)
+              .childHandler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) throws Exception {
+                  ChannelPipeline p = ch.pipeline();
+                  p.addLast("decoder", new LengthPrefixedProtostuffDecoder());
+                  p.addLast("encoder", new LengthPrefixedProtostuffEncoder());
+                  p.addLast("handler", new RegionServerHandler(RegionServerService.this, dispatcher));
                 }
               }
               );
@@ -115,7 +164,7 @@ public class RegionServerService extends AbstractService implements RegionServer
             public void operationComplete(ChannelFuture future) throws Exception {
               if (future.isSuccess()) {
                 listenChannel = future.channel();
-                notifyStarted();
+                bindBinaryListener();
               } else {
                 LOG.error("Unable to find Region Server to {} {}", port, future.cause());
                 notifyFailed(future.cause());
@@ -132,14 +181,33 @@ public class RegionServerService extends AbstractService implements RegionServer
     });
   }
 
+  private void bindBinaryListener() {
+    binaryBootstrap.bind(binaryPort).addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(ChannelFuture future) throws Exception {
+        if (future.isSuccess()) {
+          binaryListenChannel = future.channel();
+          notifyStarted();
+        } else {
+          LOG.error("Unable to bind binary Region Server to {} {}", binaryPort, future.cause());
+          listenChannel.close();
+          notifyFailed(future.cause());
+        }
+      }
+    });
+  }
+
   @Override
   protected void doStop() {
     try {
+      binaryListenChannel.close().get();
       listenChannel.close().get();
     } catch (InterruptedException | ExecutionException e) {
       e.printStackTrace();
       notifyFailed(e);
     }
+    dispatcher.shutdown();
+    scannerManager.closeAll();
 
     notifyStopped();
   }
@@ -159,21 +227,32 @@ public class RegionServerService extends AbstractService implements RegionServer
     return port;
   }
 
+  /**
+   * The port of the length-prefixed protostuff listener, which skips the HTTP/WebSocket codecs.
+   */
+  public int binaryPort() {
+    return binaryPort;
+  }
+
   @Override
   public String acceptCommand(String commandString) {
     return null;
   }
 
+  public ScannerManager getScannerManager() {
+    return scannerManager;
+  }
+
   public Region getOnlineRegion(RegionSpecifier regionSpecifier) throws RegionNotFoundException {
     ByteBuffer regionSpecifierBuffer = regionSpecifier.getValue();
     if (regionSpecifierBuffer == null) {
       throw new RegionNotFoundException("No region specifier specified in the request");
     }
 
-    String stringifiedRegion = Bytes.toString(regionSpecifierBuffer.array());
+    String stringifiedRegion = Bytes.toStringBinary(regionSpecifierBuffer.array());
     LOG.debug("get online region:" + stringifiedRegion);
 
-    Tablet tablet = tabletModule.getTablet(stringifiedRegion, ByteBuffer.wrap(new byte[]{0x00}));
+    Tablet tablet = tabletModule.getTablet(regionSpecifier);
     if (tablet == null) {
       throw new RegionNotFoundException("Unable to find specified tablet:" + stringifiedRegion);
     }
@@ -182,7 +261,7 @@ public class RegionServerService extends AbstractService implements RegionServer
 
   public String toString() {
 
-    return super.toString() + '{' + "port = " + port + '}';
+    return super.toString() + '{' + "port = " + port + ", binaryPort = " + binaryPort + '}';
   }
 
 }
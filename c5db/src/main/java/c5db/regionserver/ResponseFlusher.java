@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.regionserver;
+
+import c5db.C5ServerConstants;
+import c5db.client.generated.Response;
+import c5db.codec.EncodedResponse;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.EventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Coalesces the flushes of the responses written to one client connection.
+ * <p>
+ * Responses may be produced on any thread: the event loop, region dispatch threads, scanner fibers or the
+ * callbacks of region futures. Each one is written on the channel's event loop without a flush. Responses written
+ * while the channel is being read from are flushed when the read burst completes; any other responses are flushed
+ * by a single task queued behind them, so everything written before that task runs shares one flush (and syscall).
+ * A flush is also forced once the unflushed bytes or responses reach a threshold. A Response which is not yet
+ * serialized is encoded here, once, so that its bytes count towards the threshold like those of any other.
+ * <p>
+ * All state is confined to the event loop.
+ */
+public class ResponseFlusher {
+  private static final Logger LOG = LoggerFactory.getLogger(ResponseFlusher.class);
+
+  private final ChannelHandlerContext ctx;
+  private final EventExecutor executor;
+  private final Runnable scheduledFlush = this::scheduledFlush;
+  private boolean reading = false;
+  private boolean flushScheduled = false;
+  private long pendingBytes = 0;
+  private int pendingResponses = 0;
+
+  public ResponseFlusher(ChannelHandlerContext ctx) {
+    this.ctx = ctx;
+    this.executor = ctx.executor();
+  }
+
+  /**
+   * Writes a response, leaving the flush to be coalesced with those of other responses. May be called from any
+   * thread.
+   */
+  public void write(Object response) {
+    if (executor.inEventLoop()) {
+      writeInEventLoop(response);
+    } else {
+      executor.execute(() -> writeInEventLoop(response));
+    }
+  }
+
+  /**
+   * Called on the event loop as a read burst starts; the flush of responses written during it waits for
+   * {@link #readComplete()}.
+   */
+  public void readStarted() {
+    reading = true;
+  }
+
+  /**
+   * Called on the event loop when a read burst completes.
+   */
+  public void readComplete() {
+    reading = false;
+    flush();
+  }
+
+  private void writeInEventLoop(Object response) {
+    final Object message = encoded(response);
+    if (message instanceof ByteBufHolder) {
+      pendingBytes += ((ByteBufHolder) message).content().readableBytes();
+    }
+    pendingResponses++;
+    ctx.write(message);
+
+    if (pendingBytes >= C5ServerConstants.RESPONSE_FLUSH_THRESHOLD_BYTES
+        || pendingResponses >= C5ServerConstants.RESPONSE_FLUSH_THRESHOLD_COUNT) {
+      flush();
+    } else if (!reading && !flushScheduled) {
+      flushScheduled = true;
+      executor.execute(scheduledFlush);
+    }
+  }
+
+  private Object encoded(Object response) {
+    if (!(response instanceof Response)) {
+      return response;
+    }
+    try {
+      return EncodedResponse.encode((Response) response, ctx.alloc());
+    } catch (IOException e) {
+      // Left to the outbound encoder, which fails the write with the same error
+      LOG.error("Unable to encode response to command {}", ((Response) response).getCommandId(), e);
+      return response;
+    }
+  }
+
+  private void scheduledFlush() {
+    flushScheduled = false;
+    flush();
+  }
+
+  private void flush() {
+    if (pendingResponses == 0) {
+      return;
+    }
+    pendingBytes = 0;
+    pendingResponses = 0;
+    ctx.flush();
+  }
+}
@@ -208,8 +208,12 @@ public class ReverseProtobufUtil {
     Scan scan = new Scan(startRow, stopRow);
     scan.setCacheBlocks(proto.getCacheBlocks());
     scan.setMaxVersions(proto.getMaxVersions());
-    scan.setMaxResultsPerColumnFamily(proto.getStoreLimit());
-    scan.setRowOffsetPerColumnFamily(proto.getStoreOffset());
+    if (proto.getStoreLimit() != 0) {
+      scan.setMaxResultsPerColumnFamily(proto.getStoreLimit());
+    }
+    if (proto.getStoreOffset() != 0) {
+      scan.setRowOffsetPerColumnFamily(proto.getStoreOffset());
+    }
     scan.setLoadColumnFamiliesOnDemand(proto.getLoadColumnFamiliesOnDemand());
     if (proto.getTimeRange() != null) {
       c5db.client.generated.TimeRange timeRange = proto.getTimeRange();
@@ -221,8 +225,12 @@ public class ReverseProtobufUtil {
       c5db.client.generated.Filter filter = proto.getFilter();
       scan.setFilter(toFilter(filter));
     }
-    scan.setBatch(proto.getBatchSize());
-    scan.setMaxResultSize(proto.getMaxResultSize());
+    if (proto.getBatchSize() != 0) {
+      scan.setBatch(proto.getBatchSize());
+    }
+    if (proto.getMaxResultSize() != 0) {
+      scan.setMaxResultSize(proto.getMaxResultSize());
+    }
     scan.setSmall(proto.getSmall());
 
     if (proto.getAttributeList() != null) {
@@ -17,33 +17,52 @@
 package c5db.regionserver;
 
 
+import c5db.C5ServerConstants;
 import c5db.client.generated.Call;
-import c5db.client.generated.Response;
-import c5db.client.generated.Result;
-import c5db.client.generated.ScanResponse;
+import c5db.client.generated.Scan;
+import c5db.codec.EncodedResponse;
+import c5db.codec.ScanResponseWriter;
 import c5db.tablet.Region;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.regionserver.RegionScanner;
 import org.jetlang.core.Callback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Creates a runnable in the background so that the regionserver always has a setup of scanner results
  * ready to send back to the user. It directly sends the data back through netty back to the user.
+ * <p>
+ * Rows are streamed from the RegionScanner straight into a pooled ByteBuf by a {@link ScanResponseWriter}, so
+ * scanning a cell does not allocate any protocol objects.
+ * <p>
+ * Each number of rows the client asks for is added to a credit, and Results are sent until the credit runs out.
+ * A response is cut once it holds {@link C5ServerConstants#MAX_ROWS_PER_SCAN_RESPONSE} Results or passes the
+ * scan's max_result_size in bytes. Rows wider than the scan's batch_size arrive from the RegionScanner split over
+ * several Results.
+ * <p>
+ * Should the RegionScanner fail, the scanner is closed and its last response carries the error.
  */
 public class ScanRunnable implements Callback<Integer> {
+  private static final Logger LOG = LoggerFactory.getLogger(ScanRunnable.class);
   private final long scannerId;
   private final Call call;
   private final ChannelHandlerContext ctx;
+  private final ResponseFlusher responseFlusher;
   private final RegionScanner scanner;
-  private boolean close;
+  private final long maxResultSize;
+  private final List<Cell> rawCells = new ArrayList<>();
+  private long rowCredit = 0;
+  private volatile boolean close;
 
   public ScanRunnable(final ChannelHandlerContext ctx,
+                      final ResponseFlusher responseFlusher,
                       final Call call,
                       final long scannerId,
                       final Region region) throws IOException {
@@ -51,68 +70,97 @@ public class ScanRunnable implements Callback<Integer> {
     assert (call.getScan() != null);
 
     this.ctx = ctx;
+    this.responseFlusher = responseFlusher;
     this.call = call;
     this.scannerId = scannerId;
     this.scanner = region.getScanner(call.getScan().getScan());
+    this.maxResultSize = getMaxResultSize(call.getScan().getScan());
     this.close = false;
   }
 
+  private static long getMaxResultSize(Scan scan) {
+    if (scan == null || scan.getMaxResultSize() <= 0) {
+      return C5ServerConstants.DEFAULT_SCAN_MAX_RESULT_SIZE;
+    }
+    return scan.getMaxResultSize();
+  }
+
   @Override
-  public void onMessage(Integer numberOfMessagesToSend) {
+  public void onMessage(Integer numberOfRowsRequested) {
     if (this.close) {
       return;
     }
-    long numberOfMsgsLeft = numberOfMessagesToSend;
-    List<Result> scanResults = new ArrayList<>();
-    List<Integer> cellsPerResult = new ArrayList<>();
-    ByteBuffer previousRow = null;
-    while (!this.close && numberOfMsgsLeft > 0) {
-      int rowsToSend = 0;
-      boolean moreResults;
-      do {
-        List<Cell> rawCells = new ArrayList<>();
+    rowCredit += numberOfRowsRequested;
+    while (!this.close && rowCredit > 0) {
+      final ByteBuf buf = ctx.alloc().ioBuffer();
+      final ScanResponseWriter writer = new ScanResponseWriter(buf, call.getCommandId());
+      final ByteBuf response;
+      try {
+        final boolean moreResults = addResults(writer);
+        final int ttl = moreResults ? C5ServerConstants.SCANNER_LEASE_TTL_MILLIS : 0;
+        response = writer.finish(scannerId, moreResults, ttl);
+      } catch (IOException e) {
+        // Tell the client, with whatever rows it would have had anyway, rather than leave it waiting
+        LOG.warn("Scanner {} failed, closing it", scannerId, e);
+        close();
+        responseFlusher.write(new EncodedResponse(writer.finish(scannerId, e)));
+        return;
+      } catch (RuntimeException e) {
+        // The response may be half written, so it is dropped and the failure sent on its own
+        buf.release();
+        LOG.error("Scanner {} failed, closing it", scannerId, e);
+        close();
+        final ScanResponseWriter failure = new ScanResponseWriter(ctx.alloc().ioBuffer(), call.getCommandId());
+        responseFlusher.write(new EncodedResponse(failure.finish(scannerId, e)));
+        return;
+      }
+      responseFlusher.write(new EncodedResponse(response));
+    }
+  }
 
-        try {
-          // Arguably you should only return numberOfMessages, but I figure it can't hurt that
-          // much to pass them up
-          moreResults = scanner.nextRaw(rawCells);
-          if (!moreResults) {
-            this.scanner.close();
-            this.close = true;
-          }
-        } catch (IOException e) {
-          e.printStackTrace();
-          return;
-        }
+  /**
+   * Adds Results to the response until it is full, the row credit runs out or the scan ends.
+   *
+   * @return Whether the scan has more results.
+   */
+  private boolean addResults(ScanResponseWriter writer) throws IOException {
+    boolean moreResults;
+    do {
+      rawCells.clear();
+      // Each call hands back the cells of a single row, or of part of one when the scan has a batch size
+      moreResults = scanner.nextRaw(rawCells);
+      if (!moreResults) {
+        this.scanner.close();
+        this.close = true;
+      }
 
-        List<c5db.client.generated.Cell> cells = new ArrayList<>();
-        for (Cell cell : rawCells) {
-          ByteBuffer cellBufferRow = ByteBuffer.wrap(cell.getRowArray(), cell.getRowOffset(), cell.getRowLength());
-          // If we are not the first one and we are a different row than the previous
-          cells.add(ReverseProtobufUtil.toCell(cell));
+      if (!rawCells.isEmpty()) {
+        writer.addResult(rawCells);
+        rowCredit--;
+      }
+    } while (moreResults
+        && rowCredit > 0
+        && writer.getNumberOfResults() < C5ServerConstants.MAX_ROWS_PER_SCAN_RESPONSE
+        && writer.getSize() < maxResultSize);
+    return moreResults;
+  }
 
-          if (!(previousRow == null || previousRow.compareTo(cellBufferRow) == 0)) {
-            cellsPerResult.add(cells.size());
-            scanResults.add(new Result(cells, cells.size(), cells.size() > 0));
-            cells = new ArrayList<>();
-          }
-          previousRow = ByteBuffer.wrap(cell.getRowArray(), cell.getRowOffset(), cell.getRowLength());
-        }
-        // Add the last one
-        if (cells.size() > 0) {
-          cellsPerResult.add(cells.size());
-          scanResults.add(new Result(cells, cells.size(), cells.size() > 0));
-        }
-        rowsToSend++;
-        // Our super advanced scanning algorithm. Could be greatly improved
-      } while (moreResults && rowsToSend < 100 && numberOfMessagesToSend - rowsToSend > 0);
-      ScanResponse scanResponse = new ScanResponse(cellsPerResult, scannerId, moreResults, 0, scanResults);
-      Response response = new Response(Response.Command.SCAN, call.getCommandId(), null, null, scanResponse, null);
-      ctx.writeAndFlush(response);
-      numberOfMsgsLeft -= rowsToSend;
-    }
+  public boolean isClosed() {
+    return close;
   }
 
+  /**
+   * Releases the underlying RegionScanner. Must be called from the fiber the scanner runs on.
+   */
+  public void close() {
+    if (this.close) {
+      return;
+    }
+    this.close = true;
+    try {
+      this.scanner.close();
+    } catch (IOException e) {
+      LOG.warn("Failed to close scanner {}", scannerId, e);
+    }
+  }
 }
-
-
@@ -16,26 +16,139 @@
 
 package c5db.regionserver;
 
+import c5db.util.FiberSupplier;
+import io.netty.channel.ChannelHandlerContext;
 import org.jetlang.channels.Channel;
+import org.jetlang.channels.MemoryChannel;
+import org.jetlang.fibers.Fiber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A JVM wide mapping from scannerIds to netty channels so that a user can access the scanner channels.
+ * A per region server mapping from scannerIds to the scanners running on behalf of clients.
+ * <p>
+ * Every scanner runs on a fiber from the server's shared fiber pool and holds a lease. The lease is renewed every
+ * time the client asks for more rows; scanners whose lease has not been renewed within the ttl, scanners that have
+ * been exhausted, and scanners belonging to a closed client connection are closed and forgotten.
  */
-public enum ScannerManager {
-  INSTANCE;
+public class ScannerManager {
+  private static final Logger LOG = LoggerFactory.getLogger(ScannerManager.class);
 
-  private ConcurrentHashMap<Long, Channel<Integer>> scannerMap = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Long, ScannerLease> scannerMap = new ConcurrentHashMap<>();
+  // Seeded from the clock so that ids are unlikely to collide with those handed out by a previous run
+  private final AtomicLong scannerIdGenerator = new AtomicLong(System.currentTimeMillis());
+  private final FiberSupplier fiberSupplier;
+  private final long leaseTtlMillis;
 
-  ScannerManager() {
+  public ScannerManager(FiberSupplier fiberSupplier, long leaseTtlMillis) {
+    this.fiberSupplier = fiberSupplier;
+    this.leaseTtlMillis = leaseTtlMillis;
   }
 
+  public long nextScannerId() {
+    return scannerIdGenerator.incrementAndGet();
+  }
+
+  /**
+   * Registers a new scanner and starts it on a pooled fiber.
+   *
+   * @return The channel which, when published to, asks the scanner for that many more rows.
+   */
+  public Channel<Integer> addScanner(long scannerId, ChannelHandlerContext ctx, ScanRunnable scanRunnable) {
+    final Fiber fiber = fiberSupplier.getNewFiber(throwable -> {
+      LOG.error("Error in scanner {}", scannerId, throwable);
+      closeScanner(scannerId);
+    });
+    final Channel<Integer> channel = new MemoryChannel<>();
+    channel.subscribe(fiber, scanRunnable);
+    fiber.start();
+    scannerMap.put(scannerId, new ScannerLease(ctx, fiber, channel, scanRunnable));
+    return channel;
+  }
+
+  /**
+   * Renews the lease of a scanner and returns its channel, or null if there is no such scanner.
+   */
   public Channel<Integer> getChannel(long scannerId) {
-    return scannerMap.get(scannerId);
+    final ScannerLease lease = scannerMap.get(scannerId);
+    if (lease == null) {
+      return null;
+    }
+    lease.renew();
+    return lease.channel;
   }
 
-  public void addChannel(long scannerId, Channel<Integer> channel) {
-    scannerMap.put(scannerId, channel);
+  public long getLeaseTtlMillis() {
+    return leaseTtlMillis;
+  }
+
+  public void closeScanner(long scannerId) {
+    final ScannerLease lease = scannerMap.remove(scannerId);
+    if (lease != null) {
+      lease.close();
+    }
+  }
+
+  /**
+   * Closes every scanner opened through the given client connection.
+   */
+  public void closeScanners(ChannelHandlerContext ctx) {
+    scannerMap.forEach((scannerId, lease) -> {
+      if (lease.ctx == ctx) {
+        closeScanner(scannerId);
+      }
+    });
+  }
+
+  /**
+   * Closes scanners which have run to completion or whose lease has not been renewed within the ttl.
+   */
+  public void expireScanners() {
+    final long now = System.currentTimeMillis();
+    scannerMap.forEach((scannerId, lease) -> {
+      if (lease.scanRunnable.isClosed()) {
+        closeScanner(scannerId);
+      } else if (now - lease.lastRenewed > leaseTtlMillis) {
+        LOG.info("Scanner {} lease expired", scannerId);
+        closeScanner(scannerId);
+      }
+    });
+  }
+
+  public void closeAll() {
+    scannerMap.keySet().forEach(this::closeScanner);
+  }
+
+  private static class ScannerLease {
+    private final ChannelHandlerContext ctx;
+    private final Fiber fiber;
+    private final Channel<Integer> channel;
+    private final ScanRunnable scanRunnable;
+    private volatile long lastRenewed = System.currentTimeMillis();
+
+    private ScannerLease(ChannelHandlerContext ctx,
+                         Fiber fiber,
+                         Channel<Integer> channel,
+                         ScanRunnable scanRunnable) {
+      this.ctx = ctx;
+      this.fiber = fiber;
+      this.channel = channel;
+      this.scanRunnable = scanRunnable;
+    }
+
+    private void renew() {
+      lastRenewed = System.currentTimeMillis();
+    }
+
+    private void close() {
+      // The RegionScanner is only ever touched from its fiber, so close it there too
+      fiber.execute(() -> {
+        scanRunnable.close();
+        fiber.dispose();
+      });
+    }
   }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.tablet;
+
+import c5db.interfaces.LogModule;
+import c5db.interfaces.replication.ReplicatorLog;
+import c5db.log.ReplicatedLogReader;
+import c5db.replication.generated.LogEntry;
+import com.google.common.collect.AbstractIterator;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a quorum's entries back from this node's log, as the log module stored them, a page of entries at a time.
+ * Entries which carry no data, such as those the replicator writes for itself, are skipped.
+ */
+class LocalLogReader implements ReplicatedLogReader {
+  private static final long ENTRIES_PER_PAGE = 1000;
+  // Raft log indexes start from one
+  private static final long FIRST_INDEX = 1;
+
+  private final LogModule logModule;
+
+  LocalLogReader(LogModule logModule) {
+    this.logModule = logModule;
+  }
+
+  @Override
+  public Iterator<ByteBuffer> read(String quorumId) throws IOException {
+    final ReplicatorLog log = await(logModule.getReplicatorLog(quorumId), quorumId);
+    final long lastIndex = log.getLastIndex();
+
+    return new AbstractIterator<ByteBuffer>() {
+      private final Deque<LogEntry> page = new ArrayDeque<>();
+      private long nextIndex = FIRST_INDEX;
+
+      @Override
+      protected ByteBuffer computeNext() {
+        while (true) {
+          if (page.isEmpty()) {
+            if (nextIndex > lastIndex) {
+              return endOfData();
+            }
+            final long end = Math.min(nextIndex + ENTRIES_PER_PAGE, lastIndex + 1);
+            try {
+              page.addAll(await(log.getLogEntries(nextIndex, end), quorumId));
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+            nextIndex = end;
+            if (page.isEmpty()) {
+              return endOfData();
+            }
+          }
+          final ByteBuffer data = concatenate(page.removeFirst().getDataList());
+          if (data.hasRemaining()) {
+            return data;
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * The replicator may hand an entry's data back in other pieces than it was given; the edits are decoded from the
+   * whole of it.
+   */
+  private static ByteBuffer concatenate(List<ByteBuffer> pieces) {
+    if (pieces == null || pieces.isEmpty()) {
+      return ByteBuffer.allocate(0);
+    }
+    if (pieces.size() == 1) {
+      return pieces.get(0).duplicate();
+    }
+    int length = 0;
+    for (ByteBuffer piece : pieces) {
+      length += piece.remaining();
+    }
+    final ByteBuffer whole = ByteBuffer.allocate(length);
+    for (ByteBuffer piece : pieces) {
+      whole.put(piece.duplicate());
+    }
+    whole.flip();
+    return whole;
+  }
+
+  private static <T> T await(Future<T> future, String quorumId) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted reading the local log of " + quorumId);
+    } catch (ExecutionException e) {
+      throw new IOException("Unable to read the local log of " + quorumId, e.getCause());
+    }
+  }
+}
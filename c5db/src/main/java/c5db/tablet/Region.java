@@ -27,6 +27,7 @@ import com.google.common.util.concurrent.ListenableFuture;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HRegionInfo;
 import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.regionserver.OperationStatus;
 import org.apache.hadoop.hbase.regionserver.wal.HLog;
 
 import java.io.IOException;
@@ -39,7 +40,11 @@ import java.nio.file.Path;
  */
 public interface Region {
 
-  ListenableFuture<Boolean> batchMutate(MutationProto mutateProto) throws IOException;
+  /**
+   * Queues an unconditional put or delete to be written together with other pending mutations.
+   * The future completes with the mutation's own status.
+   */
+  ListenableFuture<OperationStatus> batchMutate(MutationProto mutateProto) throws IOException;
 
   /**
    * Creates instances of Region.  This exists to make mocking and testing
@@ -54,12 +59,25 @@ public interface Region {
 
   Result get(Get get) throws IOException;
 
+  /**
+   * Non-blocking get. Concurrent reads of the same region are coalesced, so callers should not
+   * assume each call reads the region on its own.
+   */
+  ListenableFuture<Result> getAsync(Get get);
+
+  ListenableFuture<Boolean> existsAsync(Get get);
+
   org.apache.hadoop.hbase.regionserver.RegionScanner getScanner(Scan scan) throws IOException;
 
   RegionActionResult processRegionAction(RegionAction regionAction);
 
   boolean rowInRange(byte[] row);
 
+  /**
+   * Stops the region's background work. Mutations queued but not yet written fail.
+   */
+  void close();
+
   /**
    * Constructor arguments basically.
    */
@@ -33,6 +33,7 @@ import c5db.util.FiberOnly;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.ListenableFuture;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.HRegionInfo;
 import org.apache.hadoop.hbase.HTableDescriptor;
 import org.jetlang.channels.Channel;
@@ -87,7 +88,7 @@ public class ReplicatedTablet implements c5db.interfaces.tablet.Tablet {
   // State
   private State tabletState;
 
-  private Region region;
+  private volatile Region region;
 
   public void setStateChangeChannel(Channel<TabletStateChange> stateChangeChannel) {
     this.stateChangeChannel = stateChangeChannel;
@@ -151,7 +152,8 @@ public class ReplicatedTablet implements c5db.interfaces.tablet.Tablet {
     replicatorEventChannel.subscribe(tabletFiber, this::tabletStateChangeCallback);
 
     // TODO this ThreadFiber is a workaround until issue 252 is fixed; at which point shim can use tabletFiber.
-    OLogShim shim = new OLogShim(new C5GeneralizedReplicator(replicator, shimFiber));
+    OLogShim shim = new OLogShim(new C5GeneralizedReplicator(replicator, shimFiber),
+        conf.getBoolean(HConstants.ENABLE_WAL_COMPRESSION, false));
     try {
       region = regionCreator.getHRegion(basePath, regionInfo, tableDescriptor, shim, conf);
       setTabletState(State.Open);
@@ -230,6 +232,7 @@ public class ReplicatedTablet implements c5db.interfaces.tablet.Tablet {
   private void handleFail(Throwable t) {
     tabletFiber.dispose();
     shimFiber.dispose();
+    closeRegion();
     setTabletStateFailed(t);
   }
 
@@ -251,6 +254,13 @@ public class ReplicatedTablet implements c5db.interfaces.tablet.Tablet {
   public void dispose() {
     this.tabletFiber.dispose();
     shimFiber.dispose();
+    closeRegion();
+  }
+
+  private void closeRegion() {
+    if (region != null) {
+      region.close();
+    }
   }
 
   @Override
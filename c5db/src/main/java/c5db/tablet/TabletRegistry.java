@@ -59,6 +59,7 @@ public class TabletRegistry {
   // contains tables, which contain tablets
 
   private final NonBlockingHashMap<String, ConcurrentSkipListMap<byte[], Tablet>> tables = new NonBlockingHashMap<>();
+  private final NonBlockingHashMap<ByteBuffer, Tablet> tabletsByRegionName = new NonBlockingHashMap<>();
   private final Channel<TabletStateChange> commonStateChangeChannel;
   private final ReplicationModule replicationModule;
   private final C5Server c5server;
@@ -104,7 +105,7 @@ public class TabletRegistry {
             legacyConf,
             replicationModule,
             regionCreator,
-            new UserTabletLeaderBehavior(c5server, regionInfo));
+            new UserTabletLeaderBehavior(c5server, regionInfo, peers));
         tablet.start();
         tablet.setStateChangeChannel(commonStateChangeChannel);
 
@@ -123,6 +124,7 @@ public class TabletRegistry {
         tablets.put(Bytes.add(Bytes.toBytes(regionInfo.getTable().toString()),
             Bytes.toBytes(","),
             regionInfo.getEndKey()), tablet);
+        tabletsByRegionName.put(ByteBuffer.wrap(regionInfo.getRegionName()), tablet);
       } catch (IOException | DeserializationException e) {
         LOG.error("Unable to start quorum, due to config error: " + quorum, e);
       }
@@ -154,7 +156,7 @@ public class TabletRegistry {
         legacyConf,
         replicationModule,
         regionCreator,
-        new UserTabletLeaderBehavior(c5server, regionInfo));
+        new UserTabletLeaderBehavior(c5server, regionInfo, peerList));
     tablet.setStateChangeChannel(commonStateChangeChannel);
     tablet.start();
     ConcurrentSkipListMap<byte[], Tablet> tablets;
@@ -177,6 +179,7 @@ public class TabletRegistry {
     if (replacement != null) {
       LOG.error("We replaced a tablet inadvertently" + replacement.toString());
     }
+    tabletsByRegionName.put(ByteBuffer.wrap(regionInfo.getRegionName()), tablet);
 
     return tablet;
   }
@@ -218,6 +221,17 @@ public class TabletRegistry {
     return tablet;
   }
 
+  /**
+   * @return the tablet with the region name, "table,startKey,regionId", which clients take from the catalog.
+   */
+  public Tablet getTabletByRegionName(byte[] regionName) throws RegionNotFoundException {
+    Tablet tablet = tabletsByRegionName.get(ByteBuffer.wrap(regionName));
+    if (tablet == null) {
+      throw new RegionNotFoundException("We couldn't find tablet: " + Bytes.toStringBinary(regionName));
+    }
+    return tablet;
+  }
+
   private void assureCorrectRequest(Tablet tablet, ByteBuffer row) throws RegionNotFoundException {
     if (!HRegion.rowIsInRange(tablet.getRegionInfo(), row.array())) {
       throw new RegionNotFoundException("We are trying to return a region which is not in range");
@@ -26,12 +26,17 @@ import c5db.interfaces.C5Module;
 import c5db.interfaces.C5Server;
 import c5db.interfaces.ControlModule;
 import c5db.interfaces.DiscoveryModule;
+import c5db.interfaces.LogModule;
 import c5db.interfaces.ReplicationModule;
 import c5db.interfaces.TabletModule;
 import c5db.interfaces.discovery.NodeInfo;
+import c5db.interfaces.discovery.NodeInfoReply;
 import c5db.interfaces.server.CommandRpcRequest;
 import c5db.interfaces.tablet.Tablet;
 import c5db.interfaces.tablet.TabletStateChange;
+import c5db.log.OLogShim;
+import c5db.log.ReplicatedLogReader;
+import c5db.log.WalEditReplayer;
 import c5db.messages.generated.CommandReply;
 import c5db.messages.generated.ModuleSubCommand;
 import c5db.messages.generated.ModuleType;
@@ -56,6 +61,7 @@ import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.exceptions.DeserializationException;
 import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.wal.HLog;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.jetbrains.annotations.NotNull;
 import org.jetlang.channels.Channel;
@@ -79,6 +85,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 /**
@@ -101,6 +109,7 @@ public class TabletService extends AbstractService implements TabletModule {
   protected TabletRegistry tabletRegistry;
   private Disposable newNodeWatcher = null;
   private ControlModule controlModule;
+  private ReplicatedLogReader localLogReader;
 
   public TabletService(C5Server server) {
     this.fiberSupplier = server.getFiberSupplier();
@@ -116,10 +125,12 @@ public class TabletService extends AbstractService implements TabletModule {
     fiber.execute(() -> {
       ListenableFuture<C5Module> discoveryService = server.getModule(ModuleType.Discovery);
       ListenableFuture<C5Module> controlService = server.getModule(ModuleType.ControlRpc);
+      ListenableFuture<C5Module> logService = server.getModule(ModuleType.Log);
 
       try {
         discoveryModule = (DiscoveryModule) discoveryService.get();
         controlModule = (ControlModule) controlService.get();
+        localLogReader = new LocalLogReader((LogModule) logService.get());
       } catch (InterruptedException | ExecutionException e) {
         notifyFailed(e);
         return;
@@ -139,8 +150,10 @@ public class TabletService extends AbstractService implements TabletModule {
                 ReplicatedTablet::new,
                 (basePath, regionInfo, tableDescriptor, log, conf) -> {
                   HRegionServicesBridge hRegionBridge = new HRegionServicesBridge(conf);
-                  return new HRegionBridge(HRegion.openHRegion(new org.apache.hadoop.fs.Path(basePath.toString()),
-                      regionInfo, tableDescriptor, log, conf, hRegionBridge, null));
+                  HRegion region = HRegion.openHRegion(new org.apache.hadoop.fs.Path(basePath.toString()),
+                      regionInfo, tableDescriptor, log, conf, hRegionBridge, null);
+                  recoverUnflushedEdits(region, log);
+                  return new HRegionBridge(region, fiberSupplier, log instanceof OLogShim ? (OLogShim) log : null);
                 }
             );
             try {
@@ -162,6 +175,20 @@ public class TabletService extends AbstractService implements TabletModule {
 
   }
 
+  /**
+   * Replays the edits in the tablet's local replicated log which are newer than its store files into its memstore,
+   * before the tablet is reported open.
+   */
+  private void recoverUnflushedEdits(HRegion region, HLog log) throws IOException {
+    final String regionName = region.getRegionInfo().getRegionNameAsString();
+    // The open sequence number is one past the highest in the region's store files
+    final WalEditReplayer replayer = new WalEditReplayer(region, regionName, region.getOpenSeqNum() - 1,
+        Runtime.getRuntime().availableProcessors());
+    final long replayedThrough = replayer.replay(localLogReader.read(regionName));
+    // Edits appended from now on, and the next flush, must be numbered after those replayed
+    log.setSequenceNumber(replayedThrough + 1);
+  }
+
   @FiberOnly
   private void startBootstrap() {
     final FutureCallback<ImmutableMap<Long, NodeInfo>> callback =
@@ -241,9 +268,21 @@ public class TabletService extends AbstractService implements TabletModule {
     return tabletRegistry.getTablet(tableName, row);
   }
 
+  /**
+   * A region name, "table,startKey,regionId", picks out one tablet. A bare table name, as sent by clients which have
+   * not located the tablet, picks out the table's first tablet.
+   */
   @Override
   public Tablet getTablet(RegionSpecifier regionSpecifier) throws RegionNotFoundException {
-    throw new RegionNotFoundException("Not supported");
+    ByteBuffer value = regionSpecifier.getValue();
+    if (value == null) {
+      throw new RegionNotFoundException("No region specifier specified in the request");
+    }
+    byte[] name = value.array();
+    if (Bytes.indexOf(name, (byte) HConstants.DELIMITER) >= 0) {
+      return tabletRegistry.getTabletByRegionName(name);
+    }
+    return tabletRegistry.getTablet(Bytes.toString(name), new byte[]{0x00});
   }
 
   @Override
@@ -324,7 +363,11 @@ public class TabletService extends AbstractService implements TabletModule {
     BASE64Decoder decoder = new BASE64Decoder();
     String createString = commandString.substring(commandString.indexOf(":") + 1);
     String[] splits = createString.split(",");
-    addLeaderEntryToMeta(Long.parseLong(splits[0]), HRegionInfo.parseFrom(decoder.decodeBuffer(splits[1])));
+    List<Long> peers = new ArrayList<>();
+    for (String s : Arrays.copyOfRange(splits, 2, splits.length)) {
+      peers.add(Long.parseLong(StringUtils.strip(s)));
+    }
+    addLeaderEntryToMeta(Long.parseLong(splits[0]), HRegionInfo.parseFrom(decoder.decodeBuffer(splits[1])), peers);
     return "OK";
   }
 
@@ -458,6 +501,7 @@ public class TabletService extends AbstractService implements TabletModule {
     }
     Put put = new Put(TabletNameHelpers.toBytes(tableName));
     put.add(HConstants.CATALOG_FAMILY, C5ServerConstants.LEADER_QUALIFIER, Bytes.toBytes(leader));
+    addLeaderAddress(put, leader);
     MutationProto mutation = ProtobufUtil.toMutation(MutationProto.MutationType.PUT, put);
     boolean processed = tablet.getRegion().mutate(mutation, new Condition());
     if (!processed) {
@@ -492,18 +536,69 @@ public class TabletService extends AbstractService implements TabletModule {
   }
 
 
-  private void addLeaderEntryToMeta(long leader, HRegionInfo hRegionInfo) throws IOException, RegionNotFoundException {
+  private void addLeaderEntryToMeta(long leader, HRegionInfo hRegionInfo, List<Long> peers)
+      throws IOException, RegionNotFoundException {
     Tablet tablet = this.tabletRegistry.getTablet("hbase:meta", new byte[]{0x00});
     if (tablet.getLeader() == server.getNodeId()) {
       Put put = new Put(hRegionInfo.getRegionName());
 
       put.add(HConstants.CATALOG_FAMILY, C5ServerConstants.LEADER_QUALIFIER, Bytes.toBytes(leader));
+      addLeaderAddress(put, leader);
+      addPeers(put, peers);
       tablet.getRegion().mutate(ProtobufUtil.toMutation(MutationProto.MutationType.PUT, put), new Condition());
     } else {
       throw new IOException("We are not meta, but we got the command to start it ");
     }
   }
 
+  /**
+   * Adds where the leader's region server listens, if discovery knows, so that clients can send to it directly
+   * rather than through the node they first connected to.
+   */
+  private void addLeaderAddress(Put put, long leader) {
+    String address = regionServerAddress(leader);
+    if (address != null) {
+      put.add(HConstants.CATALOG_FAMILY, C5ServerConstants.LEADER_ADDRESS_QUALIFIER, Bytes.toBytes(address));
+    }
+  }
+
+  /**
+   * Adds the nodes which replicate the tablet, with where their region servers listen if discovery knows, so that
+   * clients can read from a replica as well as from the leader.
+   */
+  private void addPeers(Put put, List<Long> peers) {
+    if (peers.isEmpty()) {
+      return;
+    }
+    List<String> entries = new ArrayList<>(peers.size());
+    for (Long peer : peers) {
+      String address = regionServerAddress(peer);
+      entries.add(address == null ? String.valueOf(peer) : peer + "=" + address);
+    }
+    put.add(HConstants.CATALOG_FAMILY, C5ServerConstants.PEERS_QUALIFIER,
+        Bytes.toBytes(StringUtils.join(entries, ",")));
+  }
+
+  /**
+   * @return the "host:port" of the node's region server, or null if discovery does not know it.
+   */
+  private String regionServerAddress(long nodeId) {
+    try {
+      NodeInfoReply nodeInfo = discoveryModule.getNodeInfo(nodeId, ModuleType.RegionServer)
+          .get(C5ServerConstants.NODE_INFO_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      if (nodeInfo.found && !nodeInfo.addresses.isEmpty()) {
+        return nodeInfo.addresses.get(0) + ":" + nodeInfo.port;
+      }
+      LOG.warn("No region server address known for node {}", nodeId);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.warn("Interrupted looking up the region server address of node {}", nodeId);
+    } catch (ExecutionException | TimeoutException e) {
+      LOG.warn("Unable to look up the region server address of node {}", nodeId, e);
+    }
+    return null;
+  }
+
   int getMinQuorumSize() {
     if (server.isSingleNodeMode()) {
       return 1;
@@ -16,6 +16,7 @@
 
 package c5db.tablet.hregionbridge;
 
+import c5db.C5ServerConstants;
 import c5db.client.generated.Action;
 import c5db.client.generated.Condition;
 import c5db.client.generated.Get;
@@ -25,12 +26,17 @@ import c5db.client.generated.RegionAction;
 import c5db.client.generated.RegionActionResult;
 import c5db.client.generated.Result;
 import c5db.client.generated.ResultOrException;
+import c5db.log.OLogShim;
 import c5db.regionserver.ReverseProtobufUtil;
 import c5db.tablet.Region;
+import c5db.util.FiberSupplier;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.client.Durability;
 import org.apache.hadoop.hbase.client.Mutation;
-import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.filter.ByteArrayComparable;
 import org.apache.hadoop.hbase.filter.CompareFilter;
@@ -40,9 +46,7 @@ import org.apache.hadoop.hbase.regionserver.OperationStatus;
 import org.apache.hadoop.hbase.regionserver.RegionScanner;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.util.StringUtils;
-import org.jetlang.core.RunnableExecutorImpl;
 import org.jetlang.fibers.Fiber;
-import org.jetlang.fibers.ThreadFiber;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -52,11 +56,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.concurrent.LinkedTransferQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Bridge between the (complex) HRegion and the rest of c5.
@@ -66,86 +70,220 @@ import java.util.stream.Collectors;
  */
 public class HRegionBridge implements Region {
   private static final Logger LOG = LoggerFactory.getLogger(HRegionBridge.class);
-  private final LinkedTransferQueue<Map.Entry<SettableFuture<Boolean>, MutationProto>> batchExecutor =
-      new LinkedTransferQueue<>();
+  private static final long FLUSH_INTERVAL_MILLIS = 1024;
+
+  private final Queue<PendingMutation> pendingMutations = new ConcurrentLinkedQueue<>();
+  private static final Function<org.apache.hadoop.hbase.client.Result, Result> TO_RESULT =
+      ReverseProtobufUtil::toResult;
+  private static final Function<org.apache.hadoop.hbase.client.Result, Boolean> TO_EXISTS =
+      result -> result.getExists() != null ? result.getExists() : !result.isEmpty();
+
   private final HRegionInterface theRegion;
-  private final Fiber batcher = new ThreadFiber(new RunnableExecutorImpl(), "HRegionBridge-batcher", false);
+  private final OLogShim wal;
+  private final RegionReadBatcher readBatcher;
+  private final long maxBatchBytes;
+  private final long maxBatchDelayNanos;
+  private long lastFlush = System.currentTimeMillis();
+  // Group commits run one at a time on this fiber, which shares the server's fiber pool rather than having a thread
+  private final Fiber committer;
+  private final AtomicBoolean commitScheduled = new AtomicBoolean(false);
+  private final AtomicLong queuedBytes = new AtomicLong(0);
+  private volatile boolean closed = false;
+
+  public HRegionBridge(final HRegionInterface theRegion, final FiberSupplier fiberSupplier) {
+    this(theRegion, fiberSupplier, null);
+  }
+
+  /**
+   * @param fiberSupplier the server's fibers, on which the region's group commits and batched reads are run.
+   * @param wal           the region's replicated log, if any; a group commit waits for it to have room before it
+   *                      is written.
+   */
+  public HRegionBridge(final HRegionInterface theRegion, final FiberSupplier fiberSupplier, final OLogShim wal) {
+    this(theRegion, fiberSupplier, wal, C5ServerConstants.GROUP_COMMIT_MAX_BATCH_BYTES,
+        C5ServerConstants.GROUP_COMMIT_MAX_DELAY_MICROS);
+  }
 
-  public HRegionBridge(final HRegionInterface theRegion) {
+  /**
+   * @param maxBatchBytes       a group commit is closed once its mutations reach this heap size.
+   * @param maxBatchDelayMicros how long a queued mutation may wait for more to join its group commit.
+   */
+  public HRegionBridge(final HRegionInterface theRegion,
+                       final FiberSupplier fiberSupplier,
+                       final OLogShim wal,
+                       long maxBatchBytes,
+                       long maxBatchDelayMicros) {
     this.theRegion = theRegion;
-    batcher.start();
-    batcher.scheduleAtFixedRate(() -> {
-      long begin = System.currentTimeMillis();
-      if (batchExecutor.size() == 0) {
-        return;
-      }
-      List<Map.Entry<SettableFuture<Boolean>, MutationProto>> arrayList = new ArrayList<>(10000);
-      batchExecutor.drainTo(arrayList, 10000);
-      batchMutateHelper(arrayList);
-      long time = System.currentTimeMillis() - begin;
-      if (begin % 1024 == 0) {
-        try {
-          theRegion.flushcache();
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
-      }
-      if (time > 100) {
-        LOG.error("batchMutate took longer than 100ms: {} ms for {} entries", time, arrayList.size());
-      }
-    }, 0l, 1l, TimeUnit.MILLISECONDS);
+    this.wal = wal;
+    this.maxBatchBytes = maxBatchBytes;
+    this.maxBatchDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxBatchDelayMicros);
+
+    this.committer = fiberSupplier.getNewFiber(throwable -> LOG.error("error in the group committer", throwable));
+    this.committer.start();
+    final Fiber reader = fiberSupplier.getNewFiber(throwable -> LOG.error("error in the region reader", throwable));
+    reader.start();
+    this.readBatcher = new RegionReadBatcher(theRegion, reader);
   }
 
-  private void batchMutateHelper(List<Map.Entry<SettableFuture<Boolean>, MutationProto>> message) {
+  /**
+   * Has a group commit run once the mutation just queued has waited the batch delay, or straight away if the
+   * mutations queued already fill a batch. Only one commit is scheduled at a time, and it takes whatever is queued
+   * by the time it runs.
+   */
+  private void scheduleCommit(long queuedBatchBytes) {
+    if (queuedBatchBytes >= maxBatchBytes || maxBatchDelayNanos <= 0) {
+      committer.execute(this::commitQueued);
+    } else if (commitScheduled.compareAndSet(false, true)) {
+      committer.schedule(this::commitQueued, maxBatchDelayNanos, TimeUnit.NANOSECONDS);
+    }
+  }
 
-    List<Put> puts = message.parallelStream()
-        .map(entry -> {
-          try {
-            return ReverseProtobufUtil.toPut(entry.getValue());
-          } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-          }
-        })
-        .collect(Collectors.toList());
+  /**
+   * Takes the queued mutations, up to the byte limit, and writes them with one HRegion batchMutate, i.e. one WAL
+   * append and sync. Mutations left queued are committed by the next run, which is had straight away.
+   * <p>
+   * A batch which fails in any way fails only its own mutations.
+   */
+  private void commitQueued() {
+    commitScheduled.set(false);
+    final List<PendingMutation> batch = new ArrayList<>();
+    long batchBytes = 0;
+    while (batchBytes < maxBatchBytes) {
+      final PendingMutation next = pendingMutations.poll();
+      if (next == null) {
+        break;
+      }
+      batch.add(next);
+      batchBytes += next.heapSize;
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    queuedBytes.addAndGet(-batchBytes);
 
-    OperationStatus[] mutationResult = null;
     try {
-      mutationResult = theRegion.batchMutate(puts.toArray(new Mutation[puts.size()]));
-    } catch (IOException e) {
-      crash(e);
+      commit(batch);
+    } catch (Throwable t) {
+      LOG.error("group commit of {} mutations failed", batch.size(), t);
+      batch.forEach(pending -> pending.future.setException(t));
+    }
+
+    if (!pendingMutations.isEmpty()) {
+      // These have waited for the batch before them to be written, which is as long as any group commit waits
+      committer.execute(this::commitQueued);
     }
+  }
+
+  /**
+   * Stops the committer and the reader. Mutations and reads still queued fail.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    committer.dispose();
+    readBatcher.close();
+
+    final IOException failure = new IOException("region is closed");
+    for (PendingMutation pending = pendingMutations.poll(); pending != null; pending = pendingMutations.poll()) {
+      pending.future.setException(failure);
+    }
+  }
 
-    Arrays.stream(mutationResult).parallel().forEach(operationStatus -> {
-      switch (operationStatus.getOperationStatusCode()) {
-        case SUCCESS:
-          break;
-        default:
-          crash("error! writing", operationStatus);
-          break;
+  private void commit(List<PendingMutation> batch) {
+    long begin = System.currentTimeMillis();
+    // HRegion syncs a whole batch if any mutation in it asks for a sync, so mutations which asked not to wait for
+    // the replicated log (ASYNC_WAL, SKIP_WAL) are not batched with ones which did. The batch is only cut where
+    // that changes, so mutations of a row are still applied in the order they were queued.
+    int start = 0;
+    for (int i = 1; i <= batch.size(); i++) {
+      if (i == batch.size()
+          || isUnsynced(batch.get(i).mutation.getDurability()) != isUnsynced(batch.get(start).mutation.getDurability())) {
+        batchMutate(batch.subList(start, i));
+        start = i;
       }
-    });
+    }
 
-    message.parallelStream().forEach(f -> f.getKey().set(true));
+    long now = System.currentTimeMillis();
+    if (now - lastFlush >= FLUSH_INTERVAL_MILLIS) {
+      lastFlush = now;
+      try {
+        theRegion.flushcache();
+      } catch (IOException e) {
+        LOG.error("error flushing region", e);
+      }
+    }
+    long time = now - begin;
+    if (time > 100) {
+      LOG.error("batchMutate took longer than 100ms: {} ms for {} entries", time, batch.size());
+    }
   }
 
-  private void crash(String s, OperationStatus operationStatus) {
-    LOG.error(s, operationStatus);
-    System.exit(0);
+  /**
+   * Every path which has HRegion append to the WAL waits here first: before HRegion takes any row locks or its
+   * updates lock, so that a replicator falling behind holds back writers rather than the whole region.
+   */
+  private void awaitAppendCapacity() throws IOException {
+    if (wal != null) {
+      wal.awaitAppendCapacity();
+    }
   }
 
-  private void crash(Throwable t) {
-    LOG.error("crashing due to exception", t);
-    System.exit(0);
+  private static boolean isUnsynced(Durability durability) {
+    return durability == Durability.SKIP_WAL || durability == Durability.ASYNC_WAL;
   }
 
+  private void batchMutate(List<PendingMutation> batch) {
+    Mutation[] mutations = new Mutation[batch.size()];
+    for (int i = 0; i < mutations.length; i++) {
+      mutations[i] = batch.get(i).mutation;
+    }
+
+    try {
+      awaitAppendCapacity();
+      OperationStatus[] statuses = theRegion.batchMutate(mutations);
+      for (int i = 0; i < statuses.length; i++) {
+        batch.get(i).future.set(statuses[i]);
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.error("batchMutate of {} mutations failed", batch.size(), e);
+      batch.forEach(pending -> pending.future.setException(e));
+    }
+  }
+
+  /**
+   * Queues an unconditional put or delete for the next group commit. The returned future completes with the
+   * mutation's own status from HRegion, or fails if the batch could not be written at all.
+   */
   @Override
-  public ListenableFuture<Boolean> batchMutate(MutationProto mutateProto) throws IOException {
-    SettableFuture<Boolean> future = SettableFuture.create();
-    batchExecutor.put(new TreeMap.SimpleEntry<>(future, mutateProto));
+  public ListenableFuture<OperationStatus> batchMutate(MutationProto mutateProto) throws IOException {
+    Mutation mutation = toMutation(mutateProto);
+    if (closed) {
+      throw new IOException("region is closed");
+    }
+    SettableFuture<OperationStatus> future = SettableFuture.create();
+    PendingMutation pending = new PendingMutation(mutation, future);
+    pendingMutations.add(pending);
+    // The region may have been closed, and what was queued failed, before this was queued
+    if (closed && pendingMutations.remove(pending)) {
+      future.setException(new IOException("region is closed"));
+      return future;
+    }
+    scheduleCommit(queuedBytes.addAndGet(pending.heapSize));
     return future;
   }
 
+  private static class PendingMutation {
+    private final Mutation mutation;
+    private final long heapSize;
+    private final SettableFuture<OperationStatus> future;
+
+    private PendingMutation(Mutation mutation, SettableFuture<OperationStatus> future) {
+      this.mutation = mutation;
+      this.heapSize = mutation.heapSize();
+      this.future = future;
+    }
+  }
+
   @Override
   public boolean mutate(MutationProto mutateProto, Condition condition) throws IOException {
     final MutationProto.MutationType type = mutateProto.getMutateType();
@@ -176,6 +314,7 @@ public class HRegionBridge implements Region {
     final CompareFilter.CompareOp compareOp = CompareFilter.CompareOp.valueOf(condition.getCompareType().name());
     final ByteArrayComparable comparator = ReverseProtobufUtil.toComparator(condition.getComparator());
 
+    awaitAppendCapacity();
     success = theRegion.checkAndMutate(row,
         cf,
         cq,
@@ -188,6 +327,7 @@ public class HRegionBridge implements Region {
 
   private boolean simplePut(MutationProto mutation) {
     try {
+      awaitAppendCapacity();
       theRegion.put(ReverseProtobufUtil.toPut(mutation));
     } catch (IOException e) {
       LOG.error("error in HRegionBridge#simplePut", e);
@@ -206,6 +346,7 @@ public class HRegionBridge implements Region {
     final CompareFilter.CompareOp compareOp = CompareFilter.CompareOp.valueOf(condition.getCompareType().name());
     final ByteArrayComparable comparator = ReverseProtobufUtil.toComparator(condition.getComparator());
 
+    awaitAppendCapacity();
     success = theRegion.checkAndMutate(row,
         cf,
         cq,
@@ -218,6 +359,7 @@ public class HRegionBridge implements Region {
 
   private boolean simpleDelete(MutationProto mutation) {
     try {
+      awaitAppendCapacity();
       theRegion.delete(ReverseProtobufUtil.toDelete(mutation));
     } catch (IOException e) {
       LOG.error("error in HRegionBridge#simpleDelete", e);
@@ -239,6 +381,16 @@ public class HRegionBridge implements Region {
     return ReverseProtobufUtil.toResult(theRegion.get(serverGet));
   }
 
+  @Override
+  public ListenableFuture<Result> getAsync(Get get) {
+    return Futures.transform(readBatcher.read(get), TO_RESULT);
+  }
+
+  @Override
+  public ListenableFuture<Boolean> existsAsync(Get get) {
+    return Futures.transform(readBatcher.read(get), TO_EXISTS);
+  }
+
   @Override
   public RegionScanner getScanner(c5db.client.generated.Scan scanIn) throws IOException {
     Scan scan = ReverseProtobufUtil.toScan(scanIn);
@@ -251,7 +403,7 @@ public class HRegionBridge implements Region {
     if (regionAction.getAtomic()) {
       regionActionResult = processActionsAtomically(regionAction);
     } else {
-      regionActionResult = processActionsInParallel(regionAction);
+      regionActionResult = processActionsInBatch(regionAction);
     }
     return regionActionResult;
   }
@@ -309,6 +461,7 @@ public class HRegionBridge implements Region {
     }
     MultiRowMutationProcessor proc = new MultiRowMutationProcessor(mutations, rowsToLock);
     try {
+      awaitAppendCapacity();
       theRegion.processRowsWithLocks(proc);
     } catch (IOException e) {
       return new RegionActionResult(new ArrayList<>(), buildException(e));
@@ -329,58 +482,146 @@ public class HRegionBridge implements Region {
     return new RegionActionResult(resultOrExceptions, null);
   }
 
-  private RegionActionResult processActionsInParallel(RegionAction regionAction) {
-    ResultOrException[] actionMap = regionAction
-        .getActionList()
-        .parallelStream()
-        .map(this::processAction)
-        .toArray(ResultOrException[]::new);
-    return new RegionActionResult(Arrays.asList(actionMap), null);
-  }
-
-  private ResultOrException processAction(Action action) {
-    boolean hasGet = false;
-    boolean hasMutation = false;
+  /**
+   * The actions of a non-atomic RegionAction are applied in order, as HBase's own multi does. Consecutive puts and
+   * deletes are handed to HRegion as one batchMutate, so they share row locking, a single WAL append and a single
+   * sync; consecutive gets are answered together at one MVCC read point by a {@link OnePassGetReader}. A get
+   * therefore sees the mutations listed before it, and none of those after it.
+   */
+  private RegionActionResult processActionsInBatch(RegionAction regionAction) {
+    final List<Action> actions = regionAction.getActionList();
+    final ResultOrException[] results = new ResultOrException[actions.size()];
+    final List<Integer> mutationPositions = new ArrayList<>();
+    final List<Mutation> mutations = new ArrayList<>();
+    final List<Integer> getPositions = new ArrayList<>();
+
+    for (int i = 0; i < actions.size(); i++) {
+      final Action action = actions.get(i);
+      final boolean hasGet = action.getGet() != null;
+      final boolean hasMutation = action.getMutation() != null;
 
-    if (action.getGet() != null) {
-      hasGet = true;
+      if (hasGet && hasMutation) {
+        String errorMsg = "We have mutations and a get, this is an invalid action";
+        results[i] = new ResultOrException(action.getIndex(), null, buildException(new IOException(errorMsg)));
+      } else if (hasGet) {
+        applyMutations(actions, mutationPositions, mutations, results);
+        getPositions.add(i);
+      } else if (hasMutation) {
+        answerGets(actions, getPositions, results);
+        try {
+          mutations.add(toMutation(action.getMutation()));
+          mutationPositions.add(i);
+        } catch (IOException e) {
+          results[i] = new ResultOrException(action.getIndex(), null, buildException(e));
+        }
+      } else {
+        String errorMsg = "We have a blank action. Please supply get or mutate";
+        results[i] = new ResultOrException(action.getIndex(), null, buildException(new IOException(errorMsg)));
+      }
     }
+    applyMutations(actions, mutationPositions, mutations, results);
+    answerGets(actions, getPositions, results);
 
-    if (action.getMutation() != null) {
-      hasMutation = true;
+    return new RegionActionResult(Arrays.asList(results), null);
+  }
+
+  /**
+   * Applies the mutations gathered so far with one batchMutate, and forgets them.
+   */
+  private void applyMutations(List<Action> actions,
+                              List<Integer> mutationPositions,
+                              List<Mutation> mutations,
+                              ResultOrException[] results) {
+    if (mutations.isEmpty()) {
+      return;
+    }
+    try {
+      awaitAppendCapacity();
+      OperationStatus[] statuses = theRegion.batchMutate(mutations.toArray(new Mutation[mutations.size()]));
+      for (int j = 0; j < statuses.length; j++) {
+        final int position = mutationPositions.get(j);
+        final OperationStatus status = statuses[j];
+        if (status.getOperationStatusCode() == HConstants.OperationStatusCode.SUCCESS) {
+          results[position] = new ResultOrException(actions.get(position).getIndex(), new Result(), null);
+        } else {
+          IOException e = new IOException("Mutation not processed: "
+              + status.getOperationStatusCode() + " " + status.getExceptionMsg());
+          results[position] = new ResultOrException(actions.get(position).getIndex(), null, buildException(e));
+        }
+      }
+    } catch (IOException e) {
+      NameBytesPair exception = buildException(e);
+      for (int position : mutationPositions) {
+        results[position] = new ResultOrException(actions.get(position).getIndex(), null, exception);
+      }
     }
+    mutationPositions.clear();
+    mutations.clear();
+  }
 
-    if (hasGet && hasMutation) {
-      String errorMsg = "We have mutations and a get, this is an invalid action";
-      NameBytesPair exception = buildException(new IOException(errorMsg));
-      return new ResultOrException(action.getIndex(), null, exception);
-    } else if (hasGet) {
-      Result result = null;
-      NameBytesPair nameBytesPair = null;
+  /**
+   * Answers the gets gathered so far, and forgets them. Those a {@link OnePassGetReader} can read share its read
+   * point; any other get, such as one with a filter, is read on its own first.
+   */
+  private void answerGets(List<Action> actions, List<Integer> getPositions, ResultOrException[] results) {
+    if (getPositions.isEmpty()) {
+      return;
+    }
+    final List<Integer> onePassPositions = new ArrayList<>();
+    final List<org.apache.hadoop.hbase.client.Get> onePassGets = new ArrayList<>();
+    for (int position : getPositions) {
+      final Action action = actions.get(position);
       try {
-        result = get(action.getGet());
+        final org.apache.hadoop.hbase.client.Get serverGet = ReverseProtobufUtil.toGet(action.getGet());
+        if (OnePassGetReader.canRead(serverGet)) {
+          onePassPositions.add(position);
+          onePassGets.add(serverGet);
+        } else {
+          results[position] = answerGet(action, serverGet);
+        }
       } catch (IOException e) {
-        nameBytesPair = buildException(e);
+        results[position] = new ResultOrException(action.getIndex(), null, buildException(e));
       }
-      return new ResultOrException(action.getIndex(), result, nameBytesPair);
-    } else if (hasMutation) {
-      Result result = null;
-      NameBytesPair nameBytesPair = null;
+    }
+
+    if (!onePassGets.isEmpty()) {
       try {
-        boolean processed = mutate(action.getMutation(), new Condition());
-        if (!processed) {
-          throw new IOException("Mutation not processed");
-        } else {
-          result = new Result();
+        final List<org.apache.hadoop.hbase.client.Result> read = OnePassGetReader.read(theRegion, onePassGets);
+        for (int j = 0; j < read.size(); j++) {
+          final int position = onePassPositions.get(j);
+          results[position] = new ResultOrException(actions.get(position).getIndex(),
+              ReverseProtobufUtil.toResult(read.get(j)),
+              null);
         }
       } catch (IOException e) {
-        nameBytesPair = buildException(e);
+        // Such as a family the table does not have; reading each get on its own fails only the gets at fault
+        LOG.debug("reading {} gets in one pass failed, reading them one at a time", onePassGets.size(), e);
+        for (int j = 0; j < onePassGets.size(); j++) {
+          final int position = onePassPositions.get(j);
+          results[position] = answerGet(actions.get(position), onePassGets.get(j));
+        }
       }
-      return new ResultOrException(action.getIndex(), result, nameBytesPair);
-    } else {
-      String errorMsg = "We have a blank action. Please supply get or mutate";
-      NameBytesPair exception = buildException(new IOException(errorMsg));
-      return new ResultOrException(action.getIndex(), null, exception);
+    }
+    getPositions.clear();
+  }
+
+  private ResultOrException answerGet(Action action, org.apache.hadoop.hbase.client.Get serverGet) {
+    try {
+      return new ResultOrException(action.getIndex(), ReverseProtobufUtil.toResult(theRegion.get(serverGet)), null);
+    } catch (IOException e) {
+      return new ResultOrException(action.getIndex(), null, buildException(e));
+    }
+  }
+
+  private Mutation toMutation(MutationProto mutation) throws IOException {
+    final MutationProto.MutationType type = mutation.getMutateType();
+    switch (type) {
+      case PUT:
+        return ReverseProtobufUtil.toPut(mutation);
+      case DELETE:
+        return ReverseProtobufUtil.toDelete(mutation);
+      default:
+        throw new IOException("multi supports put and/or delete, not " + type.name());
     }
   }
 
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.tablet.hregionbridge;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.regionserver.HRegionInterface;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+
+/**
+ * Answers a number of Gets against one region from a single RegionScanner, so they are all read at the scanner's
+ * MVCC read point. The scan covers the union of the rows, families, versions and time ranges asked for; the Gets
+ * are visited in row order, the scanner reseeking from row to row, and each Get's own columns, time range and
+ * versions are picked out of its row's cells.
+ * <p>
+ * A Get with a filter, a per family limit or offset, or asking for the closest row before cannot be answered this
+ * way, see {@link #canRead}.
+ */
+final class OnePassGetReader {
+  private static final Logger LOG = LoggerFactory.getLogger(OnePassGetReader.class);
+
+  private OnePassGetReader() {
+    throw new UnsupportedOperationException();
+  }
+
+  static boolean canRead(Get get) {
+    return get.getFilter() == null
+        && !get.isClosestRowBefore()
+        && get.getMaxResultsPerColumnFamily() < 0
+        && get.getRowOffsetPerColumnFamily() == 0;
+  }
+
+  /**
+   * @param gets Gets which {@link #canRead} answer.
+   * @return their Results, in the order of the Gets.
+   */
+  static List<Result> read(HRegionInterface region, List<Get> gets) throws IOException {
+    final List<Integer> byRow = new ArrayList<>(gets.size());
+    for (int i = 0; i < gets.size(); i++) {
+      byRow.add(i);
+    }
+    byRow.sort(Comparator.comparing(i -> gets.get(i).getRow(), Bytes.BYTES_COMPARATOR));
+
+    final Result[] results = new Result[gets.size()];
+    final RegionScanner scanner = region.getScanner(unionOf(gets,
+        gets.get(byRow.get(0)).getRow(),
+        gets.get(byRow.get(byRow.size() - 1)).getRow()));
+    try {
+      byte[] scannedRow = null;
+      List<Cell> scannedCells = Collections.emptyList();
+      boolean moreRows = true;
+
+      for (int position : byRow) {
+        final Get get = gets.get(position);
+        final byte[] row = get.getRow();
+        if (scannedRow == null || Bytes.compareTo(scannedRow, row) < 0) {
+          scannedRow = null;
+          scannedCells = new ArrayList<>();
+          if (moreRows) {
+            scanner.reseek(row);
+            moreRows = scanner.nextRaw(scannedCells);
+            if (!scannedCells.isEmpty()) {
+              scannedRow = CellUtil.cloneRow(scannedCells.get(0));
+            }
+          }
+        }
+        // The scanner may have landed on a later row, which a following Get could still want
+        final List<Cell> cells = Bytes.equals(scannedRow, row) ? select(get, scannedCells) : Collections.emptyList();
+        results[position] = Result.create(cells, get.isCheckExistenceOnly() ? !cells.isEmpty() : null);
+      }
+    } finally {
+      try {
+        scanner.close();
+      } catch (IOException e) {
+        LOG.error("error closing the scanner of a read of {} rows", gets.size(), e);
+      }
+    }
+    return Arrays.asList(results);
+  }
+
+  private static Scan unionOf(List<Get> gets, byte[] firstRow, byte[] lastRow) throws IOException {
+    // The stop row is exclusive, so stop just past the last row asked for
+    final Scan scan = new Scan(firstRow, Bytes.add(lastRow, new byte[]{0}));
+    // A Get of the whole row needs every family, which is what a scan without any asks for
+    final boolean allFamilies = gets.stream().anyMatch(get -> !get.hasFamilies());
+    int maxVersions = 1;
+    long minStamp = Long.MAX_VALUE;
+    long maxStamp = 0;
+    for (Get get : gets) {
+      if (!allFamilies) {
+        get.familySet().forEach(scan::addFamily);
+      }
+      maxVersions = Math.max(maxVersions, get.getMaxVersions());
+      minStamp = Math.min(minStamp, get.getTimeRange().getMin());
+      maxStamp = Math.max(maxStamp, get.getTimeRange().getMax());
+    }
+    scan.setMaxVersions(maxVersions);
+    scan.setTimeRange(minStamp, maxStamp);
+    return scan;
+  }
+
+  /**
+   * Picks the cells a Get asks for out of the cells scanned from its row, which are sorted by column and then
+   * newest first.
+   */
+  private static List<Cell> select(Get get, List<Cell> rowCells) {
+    final Map<byte[], NavigableSet<byte[]>> families = get.getFamilyMap();
+    final List<Cell> cells = new ArrayList<>();
+    Cell column = null;
+    int versions = 0;
+    for (Cell cell : rowCells) {
+      if (get.hasFamilies()) {
+        final byte[] family = CellUtil.cloneFamily(cell);
+        if (!families.containsKey(family)) {
+          continue;
+        }
+        final NavigableSet<byte[]> qualifiers = families.get(family);
+        if (qualifiers != null && !qualifiers.contains(CellUtil.cloneQualifier(cell))) {
+          continue;
+        }
+      }
+      if (!get.getTimeRange().withinTimeRange(cell.getTimestamp())) {
+        continue;
+      }
+      if (column == null || !CellUtil.matchingFamily(column, cell) || !CellUtil.matchingQualifier(column, cell)) {
+        column = cell;
+        versions = 0;
+      }
+      if (++versions <= get.getMaxVersions()) {
+        cells.add(cell);
+      }
+    }
+    return cells;
+  }
+}
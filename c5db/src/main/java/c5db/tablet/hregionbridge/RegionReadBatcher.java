@@ -0,0 +1,183 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.tablet.hregionbridge;
+
+import c5db.client.generated.Get;
+import c5db.regionserver.ReverseProtobufUtil;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import io.protostuff.LinkedBuffer;
+import io.protostuff.ProtobufIOUtil;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.regionserver.HRegionInterface;
+import org.jetlang.fibers.Fiber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves the point reads of one region, one batch at a time, on a fiber of the server's shared pool.
+ * <p>
+ * Identical Gets which are queued at the same time share one read and one result. Once the reader picks up a
+ * batch, the Gets in it which a {@link OnePassGetReader} can answer are read together from one RegionScanner, so at
+ * a single MVCC read point. Any other Get is handed to HRegion.get on its own.
+ */
+class RegionReadBatcher {
+  private static final Logger LOG = LoggerFactory.getLogger(RegionReadBatcher.class);
+  private static final int MAX_READS_PER_BATCH = 1024;
+
+  private final HRegionInterface theRegion;
+  private final Fiber reader;
+  private final AtomicBoolean serveScheduled = new AtomicBoolean(false);
+  private final BlockingQueue<PendingRead> pendingReads = new LinkedBlockingQueue<>();
+  // Reads which are queued but not yet picked up by the reader, by their serialized Get
+  private final Map<ByteBuffer, PendingRead> queuedReads = new HashMap<>();
+  private boolean closed = false;
+
+  /**
+   * @param reader a started fiber, which the batcher runs its reads on and disposes of when it is closed.
+   */
+  RegionReadBatcher(HRegionInterface theRegion, Fiber reader) {
+    this.theRegion = theRegion;
+    this.reader = reader;
+  }
+
+  /**
+   * Stops the reader; reads still queued fail.
+   */
+  void close() {
+    reader.dispose();
+    final IOException failure = new IOException("region reader stopped");
+    synchronized (queuedReads) {
+      closed = true;
+      queuedReads.clear();
+      for (PendingRead read = pendingReads.poll(); read != null; read = pendingReads.poll()) {
+        read.future.setException(failure);
+      }
+    }
+  }
+
+  ListenableFuture<Result> read(Get get) {
+    final ByteBuffer key = ByteBuffer.wrap(ProtobufIOUtil.toByteArray(get, Get.getSchema(), LinkedBuffer.allocate(256)));
+    final PendingRead pending;
+    synchronized (queuedReads) {
+      if (closed) {
+        return Futures.immediateFailedFuture(new IOException("region reader stopped"));
+      }
+      final PendingRead queued = queuedReads.get(key);
+      if (queued != null) {
+        return queued.future;
+      }
+      try {
+        pending = new PendingRead(key, ReverseProtobufUtil.toGet(get));
+      } catch (IOException e) {
+        return Futures.immediateFailedFuture(e);
+      }
+      queuedReads.put(key, pending);
+      pendingReads.add(pending);
+    }
+    scheduleServe();
+    return pending.future;
+  }
+
+  private void scheduleServe() {
+    if (serveScheduled.compareAndSet(false, true)) {
+      reader.execute(this::serveQueued);
+    }
+  }
+
+  private void serveQueued() {
+    serveScheduled.set(false);
+    final List<PendingRead> batch = new ArrayList<>();
+    pendingReads.drainTo(batch, MAX_READS_PER_BATCH);
+    if (batch.isEmpty()) {
+      return;
+    }
+    // A read arriving from now on may follow a write these have not seen, so it must not join them
+    synchronized (queuedReads) {
+      batch.forEach(read -> queuedReads.remove(read.key));
+    }
+    serve(batch);
+
+    if (!pendingReads.isEmpty()) {
+      scheduleServe();
+    }
+  }
+
+  private void serve(List<PendingRead> batch) {
+    final List<PendingRead> onePassReads = new ArrayList<>();
+    for (PendingRead read : batch) {
+      if (OnePassGetReader.canRead(read.get)) {
+        onePassReads.add(read);
+      } else {
+        serveAlone(read);
+      }
+    }
+
+    if (onePassReads.size() == 1) {
+      serveAlone(onePassReads.get(0));
+    } else if (onePassReads.size() > 1) {
+      serveInOnePass(onePassReads);
+    }
+  }
+
+  private void serveAlone(PendingRead read) {
+    try {
+      read.future.set(theRegion.get(read.get));
+    } catch (IOException | RuntimeException e) {
+      read.future.setException(e);
+    }
+  }
+
+  private void serveInOnePass(List<PendingRead> reads) {
+    final List<org.apache.hadoop.hbase.client.Get> gets = new ArrayList<>(reads.size());
+    reads.forEach(read -> gets.add(read.get));
+    final List<Result> results;
+    try {
+      results = OnePassGetReader.read(theRegion, gets);
+    } catch (IOException | RuntimeException e) {
+      // Such as a family the table does not have; reading each Get on its own fails only the reads at fault
+      LOG.debug("batched read of {} rows failed, reading them one at a time", reads.size(), e);
+      reads.forEach(this::serveAlone);
+      return;
+    }
+    for (int i = 0; i < reads.size(); i++) {
+      reads.get(i).future.set(results.get(i));
+    }
+  }
+
+  private static class PendingRead {
+    private final ByteBuffer key;
+    private final org.apache.hadoop.hbase.client.Get get;
+    private final SettableFuture<Result> future = SettableFuture.create();
+
+    private PendingRead(ByteBuffer key, org.apache.hadoop.hbase.client.Get get) {
+      this.key = key;
+      this.get = get;
+    }
+  }
+}
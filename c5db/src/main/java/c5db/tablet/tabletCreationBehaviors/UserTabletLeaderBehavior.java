@@ -35,22 +35,41 @@ import sun.misc.BASE64Encoder;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 
 public class UserTabletLeaderBehavior implements StartableTabletBehavior {
   private final ModuleInformationProvider moduleInformationProvider;
   private final HRegionInfo hRegionInfo;
+  private final List<Long> peers;
 
   public UserTabletLeaderBehavior(ModuleInformationProvider moduleInformationProvider, HRegionInfo hRegionInfo) {
+    this(moduleInformationProvider, hRegionInfo, Collections.emptyList());
+  }
+
+  public UserTabletLeaderBehavior(ModuleInformationProvider moduleInformationProvider,
+                                  HRegionInfo hRegionInfo,
+                                  List<Long> peers) {
     this.moduleInformationProvider = moduleInformationProvider;
     this.hRegionInfo = hRegionInfo;
+    this.peers = peers;
   }
 
-  private static String generateCommandString(long nodeId, HRegionInfo hRegionInfo) {
+  private static String generateCommandString(long nodeId, HRegionInfo hRegionInfo, List<Long> peers) {
     BASE64Encoder encoder = new BASE64Encoder();
-    String hRegionInfoStr = encoder.encodeBuffer(hRegionInfo.toByteArray());
-    return C5ServerConstants.SET_USER_LEADER + ":" + nodeId + "," + hRegionInfoStr;
+    StringBuilder stringBuilder = new StringBuilder();
+    stringBuilder.append(C5ServerConstants.SET_USER_LEADER);
+    stringBuilder.append(":");
+    stringBuilder.append(nodeId);
+    stringBuilder.append(",");
+    stringBuilder.append(encoder.encodeBuffer(hRegionInfo.toByteArray()));
+
+    for (Long peer : peers) {
+      stringBuilder.append(",");
+      stringBuilder.append(peer);
+    }
+    return stringBuilder.toString();
   }
 
   @Override
@@ -65,7 +84,7 @@ public class UserTabletLeaderBehavior implements StartableTabletBehavior {
       scanner.nextRaw(results);
 
       long leader = TabletLeaderBehaviorHelper.getLeaderFromResults(results);
-      String commandString = generateCommandString(leader, hRegionInfo);
+      String commandString = generateCommandString(leader, hRegionInfo, peers);
       ModuleSubCommand moduleSubCommand = new ModuleSubCommand(ModuleType.Tablet, commandString);
       CommandRpcRequest<ModuleSubCommand> commandCommandRpcRequest = new CommandRpcRequest<>(leader, moduleSubCommand);
       TabletLeaderBehaviorHelper.sendRequest(commandCommandRpcRequest, moduleInformationProvider);
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.util;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses between netty's NIO transport and the Linux native epoll transport. Event loop groups and
+ * server channels must come from the same transport, so both are created through here.
+ * <p>
+ * Epoll is only used when asked for and when its native library loads; otherwise this falls back to NIO.
+ */
+public enum NettyTransport {
+  NIO,
+  EPOLL;
+
+  private static final Logger LOG = LoggerFactory.getLogger(NettyTransport.class);
+
+  /**
+   * @param preferEpoll whether the native transport was asked for.
+   * @return EPOLL if it was asked for and is usable on this machine, else NIO.
+   */
+  public static NettyTransport choose(boolean preferEpoll) {
+    if (!preferEpoll) {
+      return NIO;
+    }
+    try {
+      // Loads the native library; fails on anything other than Linux, or without the native jar
+      new EpollEventLoopGroup(1).shutdownGracefully();
+      return EPOLL;
+    } catch (Throwable t) {
+      LOG.warn("native epoll transport unavailable, using NIO", t);
+      return NIO;
+    }
+  }
+
+  public EventLoopGroup newEventLoopGroup(int threads, String threadNamePrefix) {
+    DefaultThreadFactory threadFactory = new DefaultThreadFactory(threadNamePrefix, true);
+    switch (this) {
+      case EPOLL:
+        return new EpollEventLoopGroup(threads, threadFactory);
+      default:
+        return new NioEventLoopGroup(threads, threadFactory);
+    }
+  }
+
+  public Class<? extends ServerChannel> serverChannelClass() {
+    switch (this) {
+      case EPOLL:
+        return EpollServerSocketChannel.class;
+      default:
+        return NioServerSocketChannel.class;
+    }
+  }
+}
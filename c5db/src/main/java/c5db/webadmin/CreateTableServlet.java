@@ -25,6 +25,7 @@ import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HRegionInfo;
 import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Durability;
 import sun.misc.BASE64Encoder;
 
 import javax.servlet.ServletException;
@@ -48,8 +49,9 @@ public class CreateTableServlet extends HttpServlet {
 
   @Override
   protected void doPost(HttpServletRequest req, HttpServletResponse response) throws ServletException, IOException {
-    // only parameter that matters: table-name
+    // table-name is required; durability, the default for the table's mutations, is optional
     String tableNameFromParam = req.getParameter("tablename");
+    String durabilityFromParam = req.getParameter("durability");
 
     System.out.println("SERVLET: CREATE TABLE!" + tableNameFromParam);
 
@@ -66,6 +68,15 @@ public class CreateTableServlet extends HttpServlet {
     TableName tableName = TableName.valueOf(tableNameFromParam);
     HTableDescriptor tableDescriptor = new HTableDescriptor(tableName);
     tableDescriptor.addFamily(new HColumnDescriptor("cf"));
+    if (durabilityFromParam != null && !durabilityFromParam.equals("")) {
+      try {
+        tableDescriptor.setDurability(Durability.valueOf(durabilityFromParam));
+      } catch (IllegalArgumentException e) {
+        response.getWriter().printf("BAD_DURABILITY");
+        response.getWriter().flush();
+        return;
+      }
+    }
     HRegionInfo regionInfo = new HRegionInfo(tableName, new byte[]{0}, new byte[]{}, false, 1);
     String peerString = String.valueOf(server.getNodeId());
 
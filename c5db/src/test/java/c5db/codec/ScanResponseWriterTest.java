@@ -0,0 +1,137 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.codec;
+
+import c5db.client.generated.CellType;
+import c5db.client.generated.Response;
+import c5db.client.generated.Result;
+import c5db.client.generated.ScanResponse;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.protostuff.ByteBufferInput;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ScanResponseWriterTest {
+
+  @Test
+  public void writesAResponseWhichDecodesToTheScannedCells() throws IOException {
+    KeyValue first = new KeyValue(Bytes.toBytes("row1"), Bytes.toBytes("cf"), Bytes.toBytes("cq1"), 1l,
+        Bytes.toBytes("value1"));
+    KeyValue second = new KeyValue(Bytes.toBytes("row1"), Bytes.toBytes("cf"), Bytes.toBytes("cq2"), 2l,
+        new byte[1024]);
+    KeyValue third = new KeyValue(Bytes.toBytes("row2"), Bytes.toBytes("cf"), Bytes.toBytes("cq1"), Long.MAX_VALUE,
+        Bytes.toBytes("value3"));
+
+    ByteBuf buf = Unpooled.buffer();
+    ScanResponseWriter writer = new ScanResponseWriter(buf, 42l);
+    writer.addResult(Arrays.<Cell>asList(first, second));
+    writer.addResult(Arrays.<Cell>asList(third));
+    writer.finish(1234567890123l, true, 60000);
+
+    Response response = decode(buf);
+    assertThat(response.getCommand(), is(Response.Command.SCAN));
+    assertThat(response.getCommandId(), is(42l));
+
+    ScanResponse scanResponse = response.getScan();
+    assertThat(scanResponse.getScannerId(), is(1234567890123l));
+    assertThat(scanResponse.getMoreResults(), is(true));
+    assertThat(scanResponse.getTtl(), is(60000));
+    assertThat(scanResponse.getCellsPerResultList(), is(equalTo(Arrays.asList(2, 1))));
+
+    List<Result> results = scanResponse.getResultsList();
+    assertThat(results.size(), is(2));
+    assertThat(results.get(0).getAssociatedCellCount(), is(2));
+    assertThat(results.get(0).getExists(), is(true));
+    assertCellMatches(results.get(0).getCellList().get(0), first);
+    assertCellMatches(results.get(0).getCellList().get(1), second);
+    assertCellMatches(results.get(1).getCellList().get(0), third);
+  }
+
+  @Test
+  public void writesAnEmptyFinalResponse() throws IOException {
+    ByteBuf buf = Unpooled.buffer();
+    new ScanResponseWriter(buf, 1l).finish(7l, false, 0);
+
+    ScanResponse scanResponse = decode(buf).getScan();
+    assertThat(scanResponse.getScannerId(), is(7l));
+    assertThat(scanResponse.getMoreResults(), is(false));
+    assertThat(scanResponse.getResultsList() == null || scanResponse.getResultsList().isEmpty(), is(true));
+  }
+
+  @Test
+  public void writesTheFailureOfAScanAfterTheResultsBeforeIt() throws IOException {
+    ByteBuf buf = Unpooled.buffer();
+    ScanResponseWriter writer = new ScanResponseWriter(buf, 1l);
+    writer.addResult(Arrays.<Cell>asList(new KeyValue(Bytes.toBytes("row1"), Bytes.toBytes("cf"), Bytes.toBytes("cq"),
+        Bytes.toBytes("value"))));
+    writer.finish(7l, new IOException("store file missing"));
+
+    ScanResponse scanResponse = decode(buf).getScan();
+    assertThat(scanResponse.getMoreResults(), is(false));
+    assertThat(scanResponse.getResultsList().size(), is(1));
+    assertThat(scanResponse.getException().getName(), is(IOException.class.getName()));
+    assertThat(scanResponse.getException().getValue(),
+        is(equalTo(ByteBuffer.wrap(Bytes.toBytes("store file missing")))));
+  }
+
+  @Test
+  public void canWriteManyResults() throws IOException {
+    ByteBuf buf = Unpooled.buffer();
+    ScanResponseWriter writer = new ScanResponseWriter(buf, 1l);
+    List<Cell> cells = new ArrayList<>();
+    for (int i = 0; i != 10000; i++) {
+      cells.clear();
+      cells.add(new KeyValue(Bytes.toBytes(i), Bytes.toBytes("cf"), Bytes.toBytes("cq"), Bytes.toBytes(i)));
+      writer.addResult(cells);
+    }
+    writer.finish(1l, true, 0);
+
+    ScanResponse scanResponse = decode(buf).getScan();
+    assertThat(scanResponse.getResultsList().size(), is(10000));
+    assertThat(scanResponse.getResultsList().get(9999).getCellList().get(0).getValue(),
+        is(equalTo(ByteBuffer.wrap(Bytes.toBytes(9999)))));
+  }
+
+  private static Response decode(ByteBuf buf) throws IOException {
+    ByteBufferInput input = new ByteBufferInput(buf.nioBuffer(), false);
+    Response response = Response.getSchema().newMessage();
+    Response.getSchema().mergeFrom(input, response);
+    return response;
+  }
+
+  private static void assertCellMatches(c5db.client.generated.Cell cell, KeyValue keyValue) {
+    assertThat(cell.getRow(), is(equalTo(ByteBuffer.wrap(keyValue.getRow()))));
+    assertThat(cell.getFamily(), is(equalTo(ByteBuffer.wrap(keyValue.getFamily()))));
+    assertThat(cell.getQualifier(), is(equalTo(ByteBuffer.wrap(keyValue.getQualifier()))));
+    assertThat(cell.getTimestamp(), is(keyValue.getTimestamp()));
+    assertThat(cell.getCellType(), is(CellType.PUT));
+    assertThat(cell.getValue(), is(equalTo(ByteBuffer.wrap(keyValue.getValue()))));
+  }
+}
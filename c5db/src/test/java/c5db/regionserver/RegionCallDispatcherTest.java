@@ -0,0 +1,237 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.regionserver;
+
+import c5db.client.generated.Call;
+import c5db.client.generated.Get;
+import c5db.client.generated.GetRequest;
+import c5db.client.generated.RegionSpecifier;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelHandlerContext;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.integration.junit4.JUnitRuleMockery;
+import org.jmock.lib.action.CustomAction;
+import org.jmock.lib.concurrent.Synchroniser;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class RegionCallDispatcherTest {
+  @Rule
+  public JUnitRuleMockery context = new JUnitRuleMockery() {{
+    setThreadingPolicy(new Synchroniser());
+  }};
+
+  private final ChannelHandlerContext ctx = context.mock(ChannelHandlerContext.class);
+  private final Channel channel = context.mock(Channel.class);
+  private final ChannelConfig channelConfig = context.mock(ChannelConfig.class);
+  private final Call call = getCall("testTable");
+
+  private RegionCallDispatcher dispatcher;
+
+  @After
+  public void after() {
+    if (dispatcher != null) {
+      dispatcher.shutdown();
+    }
+  }
+
+  @Test
+  public void callsAgainstTheSameRegionRunInOrder() throws InterruptedException {
+    dispatcher = new RegionCallDispatcher(4, 1024);
+    context.checking(new Expectations() {{
+      allowing(ctx).channel();
+      will(returnValue(channel));
+    }});
+
+    final int numberOfCalls = 100;
+    final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+    final CountDownLatch latch = new CountDownLatch(numberOfCalls);
+    for (int i = 0; i < numberOfCalls; i++) {
+      final int callNumber = i;
+      dispatcher.dispatch(ctx, call, () -> {
+        order.add(callNumber);
+        latch.countDown();
+      });
+    }
+
+    assertThat(latch.await(5, TimeUnit.SECONDS), is(true));
+    for (int i = 0; i < numberOfCalls; i++) {
+      assertThat(order.get(i), is(equalTo(i)));
+    }
+  }
+
+  @Test
+  public void aBackedUpRegionStopsReadingFromTheChannelUntilItDrains() throws InterruptedException {
+    dispatcher = new RegionCallDispatcher(1, 8);
+    final CountDownLatch blockStripe = new CountDownLatch(1);
+    final CountDownLatch drained = new CountDownLatch(1);
+
+    context.checking(new Expectations() {{
+      allowing(ctx).channel();
+      will(returnValue(channel));
+
+      allowing(channel).config();
+      will(returnValue(channelConfig));
+
+      oneOf(channelConfig).setAutoRead(false);
+      oneOf(channelConfig).setAutoRead(true);
+    }});
+
+    dispatcher.dispatch(ctx, call, () -> {
+      try {
+        blockStripe.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    for (int i = 0; i < 6; i++) {
+      dispatcher.dispatch(ctx, call, () -> {
+      });
+    }
+    dispatcher.dispatch(ctx, getCall("anotherTable"), drained::countDown);
+
+    blockStripe.countDown();
+    assertThat(drained.await(5, TimeUnit.SECONDS), is(true));
+  }
+
+  @Test
+  public void aChannelPausedByTwoStripesReadsAgainOnlyOnceBothDrain() throws InterruptedException {
+    dispatcher = new RegionCallDispatcher(2, 8);
+    final CountDownLatch blockFirstStripe = new CountDownLatch(1);
+    final CountDownLatch blockSecondStripe = new CountDownLatch(1);
+    final CountDownLatch firstStripeDrained = new CountDownLatch(1);
+    final CountDownLatch resumed = new CountDownLatch(1);
+
+    context.checking(new Expectations() {{
+      allowing(ctx).channel();
+      will(returnValue(channel));
+
+      allowing(channel).config();
+      will(returnValue(channelConfig));
+
+      oneOf(channelConfig).setAutoRead(false);
+      oneOf(channelConfig).setAutoRead(true);
+      will(new CustomAction("note the channel resumed") {
+        @Override
+        public Object invoke(Invocation invocation) throws Throwable {
+          resumed.countDown();
+          return null;
+        }
+      });
+    }});
+
+    // "tableA" and "tableB" fall on different stripes of two
+    fillStripe(getCall("tableA"), blockFirstStripe);
+    fillStripe(getCall("tableB"), blockSecondStripe);
+    dispatcher.dispatch(ctx, getCall("tableA"), firstStripeDrained::countDown);
+
+    blockFirstStripe.countDown();
+    assertThat(firstStripeDrained.await(5, TimeUnit.SECONDS), is(true));
+    assertThat(resumed.await(100, TimeUnit.MILLISECONDS), is(false));
+
+    blockSecondStripe.countDown();
+    assertThat(resumed.await(5, TimeUnit.SECONDS), is(true));
+  }
+
+  @Test
+  public void aCallToAFullRegionQueueIsRejectedAndTheChannelReadsAgainOnceItDrains() throws InterruptedException {
+    dispatcher = new RegionCallDispatcher(1, 4);
+    final CountDownLatch blockStripe = new CountDownLatch(1);
+    final CountDownLatch resumed = new CountDownLatch(1);
+
+    context.checking(new Expectations() {{
+      allowing(ctx).channel();
+      will(returnValue(channel));
+
+      allowing(channel).config();
+      will(returnValue(channelConfig));
+
+      oneOf(channelConfig).setAutoRead(false);
+      oneOf(channelConfig).setAutoRead(true);
+      will(new CustomAction("note the channel resumed") {
+        @Override
+        public Object invoke(Invocation invocation) throws Throwable {
+          resumed.countDown();
+          return null;
+        }
+      });
+    }});
+
+    dispatcher.dispatch(ctx, call, () -> {
+      try {
+        blockStripe.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    for (int i = 0; i < 4; i++) {
+      dispatcher.dispatch(ctx, call, () -> {
+      });
+    }
+    try {
+      dispatcher.dispatch(ctx, call, () -> {
+      });
+      throw new AssertionError("expected the call to be rejected");
+    } catch (RejectedExecutionException expected) {
+    }
+
+    blockStripe.countDown();
+    assertThat(resumed.await(5, TimeUnit.SECONDS), is(true));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void aQueueCapacityWithNoRoomBetweenItsWaterMarksIsRefused() {
+    new RegionCallDispatcher(1, 3);
+  }
+
+  private void fillStripe(Call call, CountDownLatch block) {
+    dispatcher.dispatch(ctx, call, () -> {
+      try {
+        block.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    for (int i = 0; i < 6; i++) {
+      dispatcher.dispatch(ctx, call, () -> {
+      });
+    }
+  }
+
+  private static Call getCall(String regionName) {
+    RegionSpecifier regionSpecifier = new RegionSpecifier(RegionSpecifier.RegionSpecifierType.REGION_NAME,
+        ByteBuffer.wrap(Bytes.toBytes(regionName)));
+    GetRequest getRequest = new GetRequest(regionSpecifier, new Get());
+    return new Call(Call.Command.GET, 1, getRequest, null, null, null);
+  }
+}
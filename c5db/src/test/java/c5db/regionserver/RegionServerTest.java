@@ -34,6 +34,7 @@ import c5db.client.generated.RegionSpecifier;
 import c5db.client.generated.Response;
 import c5db.client.generated.Scan;
 import c5db.client.generated.ScanRequest;
+import c5db.codec.EncodedResponse;
 import c5db.interfaces.C5Server;
 import c5db.interfaces.TabletModule;
 import c5db.interfaces.tablet.Tablet;
@@ -41,17 +42,29 @@ import c5db.messages.generated.ModuleType;
 import c5db.tablet.Region;
 import c5db.util.ExceptionHandlingBatchExecutor;
 import c5db.util.FiberSupplier;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Service;
 import com.google.common.util.concurrent.SettableFuture;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.protostuff.ByteBufferInput;
+import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.regionserver.OperationStatus;
 import org.apache.hadoop.hbase.regionserver.RegionScanner;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+import org.hamcrest.TypeSafeMatcher;
 import org.jetlang.fibers.PoolFiberFactory;
 import org.jmock.Expectations;
+import org.jmock.api.Invocation;
 import org.jmock.integration.junit4.JUnitRuleMockery;
+import org.jmock.lib.action.CustomAction;
 import org.jmock.lib.concurrent.Synchroniser;
 import org.junit.After;
 import org.junit.Before;
@@ -64,9 +77,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
 
 public class RegionServerTest {
   @Rule
@@ -98,6 +116,12 @@ public class RegionServerTest {
     context.checking(new Expectations() {{
       allowing(server).getFiberSupplier();
       will(returnValue(fiberSupplier));
+
+      allowing(ctx).executor();
+      will(returnValue(ImmediateEventExecutor.INSTANCE));
+      allowing(ctx).alloc();
+      will(returnValue(UnpooledByteBufAllocator.DEFAULT));
+      allowing(ctx).flush();
     }});
     regionServerService = new RegionServerService(acceptConnectionGroup,
         ioWorkerGroup,
@@ -123,34 +147,70 @@ public class RegionServerTest {
     fiberFactoryExecutor.shutdownNow();
   }
 
-  @Test(expected = RegionNotFoundException.class)
-  public void shouldThrowErrorWhenInvalidRegionSpecifierSpecified() throws Exception {
+  @Test
+  public void shouldAnswerACallWithAnInvalidRegionSpecifierWithRegionNotFound() throws Exception {
     RegionSpecifier regionSpecifier = new RegionSpecifier(RegionSpecifier.RegionSpecifierType.REGION_NAME, null);
     Get get = new Get();
     GetRequest getRequest = new GetRequest(regionSpecifier, get);
+    context.checking(new Expectations() {{
+      oneOf(ctx).write(with(aResponseFailedWith(Response.Command.GET, RegionNotFoundException.class)));
+    }});
+
     regionServerHandler.channelRead0(ctx, new Call(Call.Command.GET, 1, getRequest, null, null, null));
   }
 
-  @Test(expected = IOException.class)
+  @Test
+  public void shouldAnswerAGetOfARegionWhichIsNotHereWithRegionNotFound() throws Exception {
+    RegionSpecifier regionSpecifier = new RegionSpecifier(RegionSpecifier.RegionSpecifierType.REGION_NAME,
+        ByteBuffer.wrap(Bytes.toBytes("movedTable")));
+    Get get = ProtobufUtil.toGet(new org.apache.hadoop.hbase.client.Get(Bytes.toBytes("fakeRow")), false);
+    context.checking(new Expectations() {{
+      oneOf(tabletModule).getTablet(with(any(RegionSpecifier.class)));
+      will(throwException(new RegionNotFoundException("Unable to find specified tablet:movedTable")));
+
+      oneOf(ctx).write(with(aResponseFailedWith(Response.Command.GET, RegionNotFoundException.class)));
+    }});
+
+    regionServerHandler.channelRead0(ctx,
+        new Call(Call.Command.GET, 1, new GetRequest(regionSpecifier, get), null, null, null));
+  }
+
+  @Test
   public void shouldHandleGetCommandRequestWithNullArgument() throws Exception {
+    context.checking(new Expectations() {{
+      oneOf(ctx).write(with(aResponseFailedWith(Response.Command.GET, IOException.class)));
+    }});
+
     regionServerHandler.channelRead0(ctx, new Call(Call.Command.GET, 1, null, null, null, null));
   }
 
 
-  @Test(expected = IOException.class)
+  @Test
   public void shouldHandleMutateWithNullArguments() throws Exception {
+    context.checking(new Expectations() {{
+      oneOf(ctx).write(with(aResponseFailedWith(Response.Command.MUTATE, IOException.class)));
+    }});
+
     regionServerHandler.channelRead0(ctx, new Call(Call.Command.MUTATE, 1, null, null, null, null));
   }
 
 
-  @Test(expected = IOException.class)
+  @Test
   public void shouldHandleMultiWithNullArgument() throws Exception {
+    context.checking(new Expectations() {{
+      oneOf(ctx).write(with(aResponseFailedWith(Response.Command.MULTI, IOException.class)));
+    }});
+
     regionServerHandler.channelRead0(ctx, new Call(Call.Command.MULTI, 1, null, null, null, null));
   }
 
 
-  @Test(expected = IOException.class)
+  @Test
   public void shouldHandleScanCommandRequestWithNullArgument() throws Exception {
+    context.checking(new Expectations() {{
+      oneOf(ctx).write(with(aResponseFailedWith(Response.Command.SCAN, IOException.class)));
+    }});
+
     regionServerHandler.channelRead0(ctx, new Call(Call.Command.SCAN, 1, null, null, null, null));
   }
 
@@ -162,7 +222,7 @@ public class RegionServerTest {
     ScanRequest scanRequest = new ScanRequest(regionSpecifier, new Scan(), 10l, 10, false, 11l);
     RegionScanner regionScanner = context.mock(RegionScanner.class);
     context.checking(new Expectations() {{
-      oneOf(tabletModule).getTablet(with(any(String.class)), with(any(ByteBuffer.class)));
+      oneOf(tabletModule).getTablet(with(any(RegionSpecifier.class)));
       will(returnValue(tablet));
 
       oneOf(tablet).getRegion();
@@ -174,7 +234,7 @@ public class RegionServerTest {
       allowing(regionScanner).nextRaw(with(any(List.class)));
       will(returnValue(false));
 
-      allowing(ctx).writeAndFlush(with(any(Response.class)));
+      allowing(ctx).write(with(any(EncodedResponse.class)));
 
       allowing(regionScanner).close();
     }});
@@ -194,16 +254,16 @@ public class RegionServerTest {
 
     c5db.client.generated.Result result = new c5db.client.generated.Result();
     context.checking(new Expectations() {{
-      oneOf(tabletModule).getTablet(with(any(String.class)), with(any(ByteBuffer.class)));
+      oneOf(tabletModule).getTablet(with(any(RegionSpecifier.class)));
       will(returnValue(tablet));
 
       oneOf(tablet).getRegion();
       will(returnValue(region));
 
-      oneOf(region).get(with(any(Get.class)));
-      will(returnValue(result));
+      oneOf(region).getAsync(with(any(Get.class)));
+      will(returnValue(Futures.immediateFuture(result)));
 
-      oneOf(ctx).writeAndFlush(with(any(Response.class)));
+      oneOf(ctx).write(with(any(EncodedResponse.class)));
 
     }});
 
@@ -220,16 +280,16 @@ public class RegionServerTest {
     GetRequest getRequest = new GetRequest(regionSpecifier, get);
 
     context.checking(new Expectations() {{
-      oneOf(tabletModule).getTablet(with(any(String.class)), with(any(ByteBuffer.class)));
+      oneOf(tabletModule).getTablet(with(any(RegionSpecifier.class)));
       will(returnValue(tablet));
 
       oneOf(tablet).getRegion();
       will(returnValue(region));
 
-      oneOf(region).exists(with(any(Get.class)));
-      will(returnValue(true));
+      oneOf(region).existsAsync(with(any(Get.class)));
+      will(returnValue(Futures.immediateFuture(true)));
 
-      oneOf(ctx).writeAndFlush(with(any(Response.class)));
+      oneOf(ctx).write(with(any(EncodedResponse.class)));
 
     }});
 
@@ -248,16 +308,16 @@ public class RegionServerTest {
     GetRequest getRequest = new GetRequest(regionSpecifier, get);
 
     context.checking(new Expectations() {{
-      oneOf(tabletModule).getTablet(with(any(String.class)), with(any(ByteBuffer.class)));
+      oneOf(tabletModule).getTablet(with(any(RegionSpecifier.class)));
       will(returnValue(tablet));
 
       oneOf(tablet).getRegion();
       will(returnValue(region));
 
-      oneOf(region).exists(with(any(Get.class)));
-      will(returnValue(false));
+      oneOf(region).existsAsync(with(any(Get.class)));
+      will(returnValue(Futures.immediateFuture(false)));
 
-      oneOf(ctx).writeAndFlush(with(any(Response.class)));
+      oneOf(ctx).write(with(any(EncodedResponse.class)));
 
     }});
 
@@ -274,10 +334,10 @@ public class RegionServerTest {
     MutationProto mutation = ProtobufUtil.toMutation(MutationProto.MutationType.PUT, new Put(Bytes.toBytes("fakeRow")));
     MutateRequest mutateRequest = new MutateRequest(regionSpecifier, mutation, new Condition());
 
-    SettableFuture<Boolean> mutateSuccess = SettableFuture.create();
+    SettableFuture<OperationStatus> mutateSuccess = SettableFuture.create();
 
     context.checking(new Expectations() {{
-      oneOf(tabletModule).getTablet(with(any(String.class)), with(any(ByteBuffer.class)));
+      oneOf(tabletModule).getTablet(with(any(RegionSpecifier.class)));
       will(returnValue(tablet));
 
       oneOf(tablet).getRegion();
@@ -290,10 +350,10 @@ public class RegionServerTest {
 
     context.checking(new Expectations() {
       {
-        allowing(ctx).writeAndFlush(with(any(Response.class)));
+        allowing(ctx).write(with(any(EncodedResponse.class)));
       }
     });
-    mutateSuccess.set(true);
+    mutateSuccess.set(new OperationStatus(HConstants.OperationStatusCode.SUCCESS));
 
   }
 
@@ -312,7 +372,7 @@ public class RegionServerTest {
     MutateRequest mutateRequest = new MutateRequest(regionSpecifier, mutation, condition);
 
     context.checking(new Expectations() {{
-      oneOf(tabletModule).getTablet(with(any(String.class)), with(any(ByteBuffer.class)));
+      oneOf(tabletModule).getTablet(with(any(RegionSpecifier.class)));
       will(returnValue(tablet));
 
       oneOf(tablet).getRegion();
@@ -321,7 +381,7 @@ public class RegionServerTest {
       oneOf(region).mutate(with(any(MutationProto.class)), with(any(Condition.class)));
       will(returnValue(true));
 
-      oneOf(ctx).writeAndFlush(with(any(Response.class)));
+      oneOf(ctx).write(with(any(EncodedResponse.class)));
 
     }});
 
@@ -347,7 +407,7 @@ public class RegionServerTest {
     MultiRequest multiRequest = new MultiRequest(regionActionList);
 
     context.checking(new Expectations() {{
-      exactly(4).of(tabletModule).getTablet(with(any(String.class)), with(any(ByteBuffer.class)));
+      exactly(4).of(tabletModule).getTablet(with(any(RegionSpecifier.class)));
       will(returnValue(tablet));
 
       exactly(4).of(tablet).getRegion();
@@ -356,11 +416,83 @@ public class RegionServerTest {
       exactly(4).of(region).processRegionAction(with(any(RegionAction.class)));
       will(returnValue(new RegionActionResult()));
 
-      oneOf(ctx).writeAndFlush(with(any(Response.class)));
+      oneOf(ctx).write(with(any(EncodedResponse.class)));
 
     }});
 
     regionServerHandler.channelRead0(ctx, new Call(Call.Command.MULTI, 1, null, null, null, multiRequest));
   }
 
-}
\ No newline at end of file
+  @Test
+  public void shouldRunEachRegionActionOfAMultiOnItsRegionsStripe() throws Exception {
+    final RegionCallDispatcher dispatcher = new RegionCallDispatcher(2, 1024);
+    final RegionServerHandler dispatchingHandler = new RegionServerHandler(regionServerService, dispatcher);
+    final Channel channel = context.mock(Channel.class);
+    final CountDownLatch responded = new CountDownLatch(1);
+    final MutationProto mutation =
+        ProtobufUtil.toMutation(MutationProto.MutationType.PUT, new Put(Bytes.toBytes("fakeRow")));
+
+    // "tableA" and "tableB" fall on different stripes of two
+    final List<RegionAction> regionActionList = new ArrayList<>();
+    for (String regionName : Arrays.asList("tableA", "tableB")) {
+      RegionSpecifier regionSpecifier = new RegionSpecifier(RegionSpecifier.RegionSpecifierType.REGION_NAME,
+          ByteBuffer.wrap(Bytes.toBytes(regionName)));
+      regionActionList.add(new RegionAction(regionSpecifier, false, Arrays.asList(new Action(0, mutation, null))));
+    }
+
+    context.checking(new Expectations() {{
+      allowing(ctx).channel();
+      will(returnValue(channel));
+
+      exactly(2).of(tabletModule).getTablet(with(any(RegionSpecifier.class)));
+      will(returnValue(tablet));
+
+      exactly(2).of(tablet).getRegion();
+      will(returnValue(region));
+
+      exactly(2).of(region).processRegionAction(with(any(RegionAction.class)));
+      will(returnValue(new RegionActionResult()));
+
+      oneOf(ctx).write(with(any(EncodedResponse.class)));
+      will(new CustomAction("note the response") {
+        @Override
+        public Object invoke(Invocation invocation) throws Throwable {
+          responded.countDown();
+          return null;
+        }
+      });
+    }});
+
+    try {
+      dispatchingHandler.channelRead0(ctx,
+          new Call(Call.Command.MULTI, 1, null, null, null, new MultiRequest(regionActionList)));
+      assertThat(responded.await(5, TimeUnit.SECONDS), is(true));
+    } finally {
+      dispatcher.shutdown();
+    }
+  }
+
+  private static Matcher<EncodedResponse> aResponseFailedWith(Response.Command command,
+                                                              Class<? extends Exception> exceptionClass) {
+    return new TypeSafeMatcher<EncodedResponse>() {
+      @Override
+      protected boolean matchesSafely(EncodedResponse encodedResponse) {
+        final Response response = new Response();
+        try {
+          Response.getSchema().mergeFrom(new ByteBufferInput(encodedResponse.content().nioBuffer(), false), response);
+        } catch (IOException e) {
+          return false;
+        }
+        return response.getCommand() == command
+            && response.getException() != null
+            && response.getException().getName().equals(exceptionClass.getName());
+      }
+
+      @Override
+      public void describeTo(Description description) {
+        description.appendText("a ").appendValue(command).appendText(" response failed with ")
+            .appendText(exceptionClass.getName());
+      }
+    };
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.regionserver;
+
+import c5db.C5ServerConstants;
+import c5db.client.generated.NameBytesPair;
+import c5db.client.generated.Response;
+import c5db.codec.EncodedResponse;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import org.jmock.Expectations;
+import org.jmock.integration.junit4.JUnitRuleMockery;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class ResponseFlusherTest {
+  @Rule
+  public JUnitRuleMockery context = new JUnitRuleMockery();
+  private final ChannelHandlerContext ctx = context.mock(ChannelHandlerContext.class);
+  private ResponseFlusher responseFlusher;
+
+  @Before
+  public void before() {
+    context.checking(new Expectations() {{
+      allowing(ctx).executor();
+      will(returnValue(ImmediateEventExecutor.INSTANCE));
+      allowing(ctx).alloc();
+      will(returnValue(UnpooledByteBufAllocator.DEFAULT));
+    }});
+    responseFlusher = new ResponseFlusher(ctx);
+  }
+
+  @Test
+  public void responsesWrittenDuringAReadBurstShareOneFlush() {
+    context.checking(new Expectations() {{
+      exactly(3).of(ctx).write(with(any(EncodedResponse.class)));
+      oneOf(ctx).flush();
+    }});
+
+    responseFlusher.readStarted();
+    responseFlusher.write(new Response());
+    responseFlusher.write(new Response());
+    responseFlusher.write(new Response());
+    responseFlusher.readComplete();
+  }
+
+  @Test
+  public void responsesWrittenOutsideAReadBurstAreFlushedWithoutWaitingForOne() {
+    context.checking(new Expectations() {{
+      oneOf(ctx).write(with(any(EncodedResponse.class)));
+      oneOf(ctx).flush();
+    }});
+
+    responseFlusher.write(new Response());
+  }
+
+  @Test
+  public void aReadBurstIsFlushedEarlyOnceTheByteThresholdIsReached() {
+    context.checking(new Expectations() {{
+      oneOf(ctx).write(with(any(EncodedResponse.class)));
+      oneOf(ctx).flush();
+    }});
+
+    responseFlusher.readStarted();
+    responseFlusher.write(new EncodedResponse(
+        Unpooled.buffer().writeZero((int) C5ServerConstants.RESPONSE_FLUSH_THRESHOLD_BYTES)));
+    responseFlusher.readComplete();
+  }
+
+  @Test
+  public void theBytesOfResponsesWhichAreNotYetEncodedCountTowardsTheThreshold() {
+    context.checking(new Expectations() {{
+      oneOf(ctx).write(with(any(EncodedResponse.class)));
+      oneOf(ctx).flush();
+    }});
+
+    NameBytesPair largeException = new NameBytesPair("java.io.IOException",
+        ByteBuffer.allocate((int) C5ServerConstants.RESPONSE_FLUSH_THRESHOLD_BYTES));
+    responseFlusher.readStarted();
+    responseFlusher.write(new Response(Response.Command.GET, 1, null, null, null, null, largeException));
+    responseFlusher.readComplete();
+  }
+}
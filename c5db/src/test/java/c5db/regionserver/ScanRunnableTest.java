@@ -18,11 +18,13 @@ package c5db.regionserver;
 
 import c5db.client.generated.Call;
 import c5db.client.generated.RegionSpecifier;
-import c5db.client.generated.Response;
 import c5db.client.generated.Scan;
 import c5db.client.generated.ScanRequest;
+import c5db.codec.EncodedResponse;
 import c5db.tablet.Region;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.concurrent.ImmediateEventExecutor;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.regionserver.RegionScanner;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -38,6 +40,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 import static c5db.regionserver.AddElementsActionReturnTrue.addElements;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
 
 public class ScanRunnableTest {
   private final RegionScanner regionScanner;
@@ -47,6 +51,7 @@ public class ScanRunnableTest {
   }};
   private final ChannelHandlerContext ctx = context.mock(ChannelHandlerContext.class);
   private final Region region = context.mock(Region.class);
+  private ResponseFlusher responseFlusher;
   private ScanRunnable scanRunnable;
 
   public ScanRunnableTest() {
@@ -68,10 +73,18 @@ public class ScanRunnableTest {
         oneOf(region).getScanner(with(any(Scan.class)));
         will(returnValue(regionScanner));
 
+        allowing(ctx).alloc();
+        will(returnValue(UnpooledByteBufAllocator.DEFAULT));
+
+        allowing(ctx).executor();
+        will(returnValue(ImmediateEventExecutor.INSTANCE));
+        allowing(ctx).flush();
+
       }
     });
 
-    scanRunnable = new ScanRunnable(ctx, call, scannerId, region);
+    responseFlusher = new ResponseFlusher(ctx);
+    scanRunnable = new ScanRunnable(ctx, responseFlusher, call, scannerId, region);
 
   }
 
@@ -87,7 +100,7 @@ public class ScanRunnableTest {
       {
         oneOf(regionScanner).nextRaw(with(any(List.class)));
         will(addElements(keyValue));
-        oneOf(ctx).writeAndFlush(with(any(Response.class)));
+        oneOf(ctx).write(with(any(EncodedResponse.class)));
       }
     });
 
@@ -112,12 +125,108 @@ public class ScanRunnableTest {
       {
         exactly(3).of(regionScanner).nextRaw(with(any(List.class)));
         will(addElements(kvs.toArray()));
-        oneOf(ctx).writeAndFlush(with(any(Response.class)));
+        oneOf(ctx).write(with(any(EncodedResponse.class)));
       }
     });
 
     scanRunnable.onMessage(3);
   }
 
+  @Test
+  public void responsesAreCutOnceTheyReachTheMaxResultSize() throws IOException {
+    Scan scan = new Scan();
+    scan.setMaxResultSize(1000);
+    ScanRunnable sizedScanRunnable = newScanRunnable(scan);
+
+    byte[] cf = Bytes.toBytes("cf");
+    byte[] cq = Bytes.toBytes("cq");
+    KeyValue firstRow = new KeyValue(Bytes.toBytes("row1"), cf, cq, new byte[600]);
+    KeyValue secondRow = new KeyValue(Bytes.toBytes("row2"), cf, cq, new byte[600]);
+    KeyValue thirdRow = new KeyValue(Bytes.toBytes("row3"), cf, cq, new byte[600]);
+
+    context.checking(new Expectations() {
+      {
+        oneOf(regionScanner).nextRaw(with(any(List.class)));
+        will(addElements(firstRow));
+        oneOf(regionScanner).nextRaw(with(any(List.class)));
+        will(addElements(secondRow));
+        oneOf(regionScanner).nextRaw(with(any(List.class)));
+        will(addElements(thirdRow));
+        exactly(2).of(ctx).write(with(any(EncodedResponse.class)));
+      }
+    });
+
+    sizedScanRunnable.onMessage(3);
+  }
+
+  @Test
+  public void requestedRowsAreACreditCarriedAcrossRequests() throws IOException {
+    byte[] cf = Bytes.toBytes("cf");
+    byte[] cq = Bytes.toBytes("cq");
+    byte[] value = Bytes.toBytes("value");
+
+    context.checking(new Expectations() {
+      {
+        exactly(2).of(regionScanner).nextRaw(with(any(List.class)));
+        will(addElements(new KeyValue(Bytes.toBytes("row"), cf, cq, value)));
+        oneOf(ctx).write(with(any(EncodedResponse.class)));
+      }
+    });
+    scanRunnable.onMessage(2);
+
+    context.checking(new Expectations() {
+      {
+        oneOf(regionScanner).nextRaw(with(any(List.class)));
+        will(addElements(new KeyValue(Bytes.toBytes("row"), cf, cq, value)));
+        oneOf(ctx).write(with(any(EncodedResponse.class)));
+      }
+    });
+    scanRunnable.onMessage(1);
+  }
+
+  @Test
+  public void aFailingScannerIsClosedAndItsFailureSentToTheClient() throws IOException {
+    context.checking(new Expectations() {
+      {
+        oneOf(regionScanner).nextRaw(with(any(List.class)));
+        will(throwException(new IOException("store file missing")));
+        oneOf(regionScanner).close();
+        oneOf(ctx).write(with(any(EncodedResponse.class)));
+      }
+    });
+
+    scanRunnable.onMessage(1);
+    assertThat(scanRunnable.isClosed(), is(true));
+
+    // Nothing more is read or sent once the scanner has failed
+    scanRunnable.onMessage(1);
+  }
+
+  @Test
+  public void aScannerWhichThrowsAnUncheckedExceptionIsClosedAndItsFailureSentToTheClient() throws IOException {
+    context.checking(new Expectations() {
+      {
+        oneOf(regionScanner).nextRaw(with(any(List.class)));
+        will(throwException(new IllegalStateException("scanner in a bad state")));
+        oneOf(regionScanner).close();
+        oneOf(ctx).write(with(any(EncodedResponse.class)));
+      }
+    });
+
+    scanRunnable.onMessage(1);
+    assertThat(scanRunnable.isClosed(), is(true));
+  }
 
+  private ScanRunnable newScanRunnable(Scan scan) throws IOException {
+    long scannerId = 2000;
+    ScanRequest scanRequest = new ScanRequest(new RegionSpecifier(), scan, scannerId, 100, false, 0);
+    Call call = new Call(Call.Command.SCAN, 2000, null, null, scanRequest, null);
+    context.checking(new Expectations() {
+      {
+        oneOf(region).getScanner(with(any(Scan.class)));
+        will(returnValue(regionScanner));
+      }
+    });
+    return new ScanRunnable(ctx, responseFlusher, call, scannerId, region);
+  }
 }
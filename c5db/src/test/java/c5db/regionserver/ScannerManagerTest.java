@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014 WANdisco
+ *
+ *  WANdisco licenses this file to you under the Apache License,
+ *  version 2.0 (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *  WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *  License for the specific language governing permissions and limitations
+ *  under the License.
+ */
+
+package c5db.regionserver;
+
+import c5db.client.generated.Call;
+import c5db.client.generated.RegionSpecifier;
+import c5db.client.generated.Scan;
+import c5db.client.generated.ScanRequest;
+import c5db.tablet.Region;
+import c5db.util.ExceptionHandlingBatchExecutor;
+import c5db.util.FiberSupplier;
+import io.netty.channel.ChannelHandlerContext;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.jetlang.fibers.PoolFiberFactory;
+import org.jmock.Expectations;
+import org.jmock.States;
+import org.jmock.integration.junit4.JUnitRuleMockery;
+import org.jmock.lib.concurrent.Synchroniser;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ScannerManagerTest {
+  private final Synchroniser synchroniser = new Synchroniser();
+  @Rule
+  public JUnitRuleMockery context = new JUnitRuleMockery() {{
+    setThreadingPolicy(synchroniser);
+  }};
+
+  private final ChannelHandlerContext ctx = context.mock(ChannelHandlerContext.class);
+  private final Region region = context.mock(Region.class);
+  private final RegionScanner regionScanner = context.mock(RegionScanner.class);
+  private final States scanner = context.states("scanner").startsAs("open");
+
+  private final ExecutorService fiberFactoryExecutor = Executors.newFixedThreadPool(2);
+  private final PoolFiberFactory fiberFactory = new PoolFiberFactory(fiberFactoryExecutor);
+  private final FiberSupplier fiberSupplier = (throwableConsumer) ->
+      fiberFactory.create(new ExceptionHandlingBatchExecutor(throwableConsumer));
+
+  @After
+  public void after() {
+    fiberFactory.dispose();
+    fiberFactoryExecutor.shutdownNow();
+  }
+
+  @Test
+  public void scannerIdsAreUniqueAndNonZero() {
+    ScannerManager scannerManager = new ScannerManager(fiberSupplier, 1000);
+    Set<Long> ids = new HashSet<>();
+    for (int i = 0; i != 1000; i++) {
+      long scannerId = scannerManager.nextScannerId();
+      assertThat(scannerId > 0, is(true));
+      assertThat(ids.add(scannerId), is(true));
+    }
+  }
+
+  @Test
+  public void scannersAreClosedWhenTheirConnectionCloses() throws Exception {
+    ScannerManager scannerManager = new ScannerManager(fiberSupplier, 60000);
+    long scannerId = addScanner(scannerManager);
+
+    scannerManager.closeScanners(ctx);
+
+    synchroniser.waitUntil(scanner.is("closed"));
+    assertThat(scannerManager.getChannel(scannerId), is(nullValue()));
+  }
+
+  @Test
+  public void scannersAreClosedWhenAskedTo() throws Exception {
+    ScannerManager scannerManager = new ScannerManager(fiberSupplier, 60000);
+    long scannerId = addScanner(scannerManager);
+
+    scannerManager.closeScanner(scannerId);
+
+    synchroniser.waitUntil(scanner.is("closed"));
+    assertThat(scannerManager.getChannel(scannerId), is(nullValue()));
+  }
+
+  @Test
+  public void scannersAreClosedWhenTheirLeaseExpires() throws Exception {
+    ScannerManager scannerManager = new ScannerManager(fiberSupplier, 0);
+    long scannerId = addScanner(scannerManager);
+
+    Thread.sleep(5);
+    scannerManager.expireScanners();
+
+    synchroniser.waitUntil(scanner.is("closed"));
+    assertThat(scannerManager.getChannel(scannerId), is(nullValue()));
+  }
+
+  private long addScanner(ScannerManager scannerManager) throws IOException {
+    context.checking(new Expectations() {{
+      oneOf(region).getScanner(with(any(Scan.class)));
+      will(returnValue(regionScanner));
+
+      oneOf(regionScanner).close();
+      then(scanner.is("closed"));
+    }});
+
+    long scannerId = scannerManager.nextScannerId();
+    ScanRequest scanRequest = new ScanRequest(new RegionSpecifier(), new Scan(), scannerId, 100, false, 0);
+    Call call = new Call(Call.Command.SCAN, 1, null, null, scanRequest, null);
+    scannerManager.addScanner(scannerId, ctx, new ScanRunnable(ctx, call, scannerId, region));
+    return scannerId;
+  }
+}
@@ -16,6 +16,7 @@
 
 package c5db.tablet;
 
+import c5db.C5ServerConstants;
 import c5db.client.FakeHTable;
 import c5db.client.ProtobufUtil;
 import c5db.client.generated.Action;
@@ -29,27 +30,46 @@ import c5db.client.generated.RegionActionResult;
 import c5db.client.generated.RegionSpecifier;
 import c5db.client.generated.Scan;
 import c5db.tablet.hregionbridge.HRegionBridge;
+import c5db.util.ExceptionHandlingBatchExecutor;
+import c5db.util.FiberSupplier;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Durability;
 import org.apache.hadoop.hbase.client.Mutation;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.filter.CompareFilter;
 import org.apache.hadoop.hbase.regionserver.HRegionInterface;
 import org.apache.hadoop.hbase.regionserver.MultiRowMutationProcessor;
+import org.apache.hadoop.hbase.regionserver.OperationStatus;
 import org.apache.hadoop.hbase.regionserver.RegionScanner;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.hamcrest.core.IsNull;
+import org.jetlang.fibers.PoolFiberFactory;
 import org.jmock.Expectations;
+import org.jmock.Sequence;
+import org.jmock.api.Invocation;
 import org.jmock.integration.junit4.JUnitRuleMockery;
+import org.jmock.lib.action.CustomAction;
 import org.jmock.lib.concurrent.Synchroniser;
+import org.junit.After;
 import org.junit.Ignore;
 import org.junit.Rule;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
@@ -61,7 +81,19 @@ public class HRegionBridgeTest {
   }};
 
   private final HRegionInterface hRegionInterface = context.mock(HRegionInterface.class);
-  private final HRegionBridge hRegionBridge = new HRegionBridge(hRegionInterface);
+
+  private final ExecutorService fiberFactoryExecutor = Executors.newFixedThreadPool(2);
+  private final PoolFiberFactory fiberFactory = new PoolFiberFactory(fiberFactoryExecutor);
+  private final FiberSupplier fiberSupplier = (throwableConsumer) ->
+      fiberFactory.create(new ExceptionHandlingBatchExecutor(throwableConsumer));
+  private final HRegionBridge hRegionBridge = new HRegionBridge(hRegionInterface, fiberSupplier);
+
+  @After
+  public void after() {
+    hRegionBridge.close();
+    fiberFactory.dispose();
+    fiberFactoryExecutor.shutdownNow();
+  }
 
   @Test
   public void shouldBeAbleToMutate() throws Exception {
@@ -223,6 +255,20 @@ public class HRegionBridgeTest {
 
   }
 
+  @Test
+  public void shouldServeAsyncExistsThroughTheReadBatcher() throws Exception {
+    Result result = Result.create(new ArrayList<>());
+    result.setExists(true);
+    context.checking(new Expectations() {
+      {
+        oneOf(hRegionInterface).get(with(any(org.apache.hadoop.hbase.client.Get.class)));
+        will(returnValue(result));
+      }
+    });
+    Get get = ProtobufUtil.toGet(new org.apache.hadoop.hbase.client.Get(Bytes.toBytes("fakeRow")), true);
+    assertThat(hRegionBridge.existsAsync(get).get(5, TimeUnit.SECONDS), is(true));
+  }
+
   @Test
   public void shouldEasilyDoSimpleAtomicMutationMulti() throws Exception {
     ByteBuffer regionLocation = ByteBuffer.wrap(Bytes.toBytes("testTable"));
@@ -423,7 +469,8 @@ public class HRegionBridgeTest {
 
     context.checking(new Expectations() {
       {
-        oneOf(hRegionInterface).put(with(any(Put.class)));
+        oneOf(hRegionInterface).batchMutate(with(any(Mutation[].class)));
+        will(returnValue(successes(1)));
       }
     });
 
@@ -445,7 +492,8 @@ public class HRegionBridgeTest {
 
     context.checking(new Expectations() {
       {
-        exactly(3).of(hRegionInterface).put(with(any(Put.class)));
+        oneOf(hRegionInterface).batchMutate(with(any(Mutation[].class)));
+        will(returnValue(successes(3)));
       }
     });
 
@@ -470,9 +518,8 @@ public class HRegionBridgeTest {
 
     context.checking(new Expectations() {
       {
-        oneOf(hRegionInterface).delete(with(any(Delete.class)));
-        oneOf(hRegionInterface).delete(with(any(Delete.class)));
-        oneOf(hRegionInterface).delete(with(any(Delete.class)));
+        oneOf(hRegionInterface).batchMutate(with(any(Mutation[].class)));
+        will(returnValue(successes(3)));
       }
     });
 
@@ -500,7 +547,8 @@ public class HRegionBridgeTest {
 
     context.checking(new Expectations() {
       {
-        exactly(3).of(hRegionInterface).put(with(any(Put.class)));
+        oneOf(hRegionInterface).batchMutate(with(any(Mutation[].class)));
+        will(returnValue(successes(3)));
 
       }
     });
@@ -528,7 +576,8 @@ public class HRegionBridgeTest {
 
     context.checking(new Expectations() {
       {
-        exactly(3).of(hRegionInterface).delete(with(any(Delete.class)));
+        oneOf(hRegionInterface).batchMutate(with(any(Mutation[].class)));
+        will(returnValue(successes(3)));
 
       }
     });
@@ -574,15 +623,40 @@ public class HRegionBridgeTest {
     MutationProto mutationDelete = ProtobufUtil.toMutation(MutationProto.MutationType.DELETE, new Delete(Bytes.toBytes("fakeRow")));
     Get get = ProtobufUtil.toGet(new org.apache.hadoop.hbase.client.Get(Bytes.toBytes("fakeRow2")), false);
     Get exists = ProtobufUtil.toGet(new org.apache.hadoop.hbase.client.Get(Bytes.toBytes("fakeRow2")), true);
-    Result result = Result.create(new ArrayList<>());
-    result.setExists(true);
+    RegionScanner mockScanner = context.mock(RegionScanner.class);
+    Sequence inActionOrder = context.sequence("in action order");
 
     context.checking(new Expectations() {
       {
-        oneOf(hRegionInterface).delete(with(any(Delete.class)));
-        oneOf(hRegionInterface).put(with(any(Put.class)));
-        exactly(2).of(hRegionInterface).get(with(any(org.apache.hadoop.hbase.client.Get.class)));
-        will(returnValue(result));
+        oneOf(hRegionInterface).getScanner(with(any(org.apache.hadoop.hbase.client.Scan.class)));
+        inSequence(inActionOrder);
+        will(returnValue(mockScanner));
+        oneOf(mockScanner).reseek(Bytes.toBytes("fakeRow2"));
+        inSequence(inActionOrder);
+        oneOf(mockScanner).nextRaw(with(any(List.class)));
+        inSequence(inActionOrder);
+        will(returnValue(false));
+        oneOf(mockScanner).close();
+        inSequence(inActionOrder);
+
+        oneOf(hRegionInterface).batchMutate(with(any(Mutation[].class)));
+        inSequence(inActionOrder);
+        will(returnValue(successes(1)));
+
+        oneOf(hRegionInterface).getScanner(with(any(org.apache.hadoop.hbase.client.Scan.class)));
+        inSequence(inActionOrder);
+        will(returnValue(mockScanner));
+        oneOf(mockScanner).reseek(Bytes.toBytes("fakeRow2"));
+        inSequence(inActionOrder);
+        oneOf(mockScanner).nextRaw(with(any(List.class)));
+        inSequence(inActionOrder);
+        will(returnValue(false));
+        oneOf(mockScanner).close();
+        inSequence(inActionOrder);
+
+        oneOf(hRegionInterface).batchMutate(with(any(Mutation[].class)));
+        inSequence(inActionOrder);
+        will(returnValue(successes(1)));
       }
     });
 
@@ -599,4 +673,273 @@ public class HRegionBridgeTest {
     assertThat(actions.getResultOrExceptionList().size(), is(4));
   }
 
-}
\ No newline at end of file
+  @Test
+  public void shouldAnswerConsecutiveGetsOfANonAtomicMultiFromOneScanner() throws Exception {
+    ByteBuffer regionLocation = ByteBuffer.wrap(Bytes.toBytes("testTable"));
+    RegionSpecifier regionSpecifier = new RegionSpecifier(RegionSpecifier.RegionSpecifierType.REGION_NAME,
+        regionLocation);
+
+    byte[] family = Bytes.toBytes("cf");
+    byte[] qualifier = Bytes.toBytes("cq");
+    Get getOfRow2 = ProtobufUtil.toGet(new org.apache.hadoop.hbase.client.Get(Bytes.toBytes("row2")), false);
+    Get getOfRow1 = ProtobufUtil.toGet(new org.apache.hadoop.hbase.client.Get(Bytes.toBytes("row1")), false);
+    Get getOfRow3 = ProtobufUtil.toGet(new org.apache.hadoop.hbase.client.Get(Bytes.toBytes("row3")), true);
+    RegionScanner mockScanner = context.mock(RegionScanner.class);
+
+    context.checking(new Expectations() {
+      {
+        oneOf(hRegionInterface).getScanner(with(any(org.apache.hadoop.hbase.client.Scan.class)));
+        will(returnValue(mockScanner));
+        allowing(mockScanner).reseek(with(any(byte[].class)));
+        oneOf(mockScanner).nextRaw(with(any(List.class)));
+        will(new CustomAction("scan row1") {
+          @Override
+          @SuppressWarnings("unchecked")
+          public Object invoke(Invocation invocation) throws Throwable {
+            ((List<Cell>) invocation.getParameter(0)).add(
+                new KeyValue(Bytes.toBytes("row1"), family, qualifier, Bytes.toBytes("value1")));
+            return true;
+          }
+        });
+        oneOf(mockScanner).nextRaw(with(any(List.class)));
+        will(new CustomAction("scan row3, as row2 has no cells") {
+          @Override
+          @SuppressWarnings("unchecked")
+          public Object invoke(Invocation invocation) throws Throwable {
+            ((List<Cell>) invocation.getParameter(0)).add(
+                new KeyValue(Bytes.toBytes("row3"), family, qualifier, Bytes.toBytes("value3")));
+            return false;
+          }
+        });
+        oneOf(mockScanner).close();
+      }
+    });
+
+    RegionActionResult actions = hRegionBridge.processRegionAction(new RegionAction(regionSpecifier,
+        false,
+        Arrays.asList(
+            new Action(0, null, getOfRow2),
+            new Action(1, null, getOfRow1),
+            new Action(2, null, getOfRow3))
+    ));
+
+    assertThat(actions.getException(), IsNull.nullValue());
+    assertThat(actions.getResultOrExceptionList().get(0).getResult().getCellList().size(), is(0));
+    assertThat(actions.getResultOrExceptionList().get(1).getResult().getCellList().size(), is(1));
+    assertThat(actions.getResultOrExceptionList().get(2).getResult().getExists(), is(true));
+  }
+
+  @Test
+  public void shouldReportFailedMutationsOfANonAtomicMultiPerAction() throws Exception {
+    ByteBuffer regionLocation = ByteBuffer.wrap(Bytes.toBytes("testTable"));
+    RegionSpecifier regionSpecifier = new RegionSpecifier(RegionSpecifier.RegionSpecifierType.REGION_NAME,
+        regionLocation);
+
+    MutationProto mutation = ProtobufUtil.toMutation(MutationProto.MutationType.PUT, new Put(Bytes.toBytes("fakeRow")));
+
+    context.checking(new Expectations() {
+      {
+        oneOf(hRegionInterface).batchMutate(with(any(Mutation[].class)));
+        will(returnValue(new OperationStatus[]{
+            new OperationStatus(HConstants.OperationStatusCode.SUCCESS),
+            new OperationStatus(HConstants.OperationStatusCode.SANITY_CHECK_FAILURE, "bad family")}));
+      }
+    });
+
+    RegionActionResult actions = hRegionBridge.processRegionAction(new RegionAction(regionSpecifier,
+        false,
+        Arrays.asList(
+            new Action(0, mutation, null),
+            new Action(1, mutation, null))
+    ));
+    assertThat(actions.getException(), IsNull.nullValue());
+    assertThat(actions.getResultOrExceptionList().get(0).getException(), IsNull.nullValue());
+    assertThat(actions.getResultOrExceptionList().get(1).getException(), IsNull.notNullValue());
+  }
+
+  @Test
+  public void queuedMutationsCompleteWithTheirOwnStatus() throws Exception {
+    MutationProto put = ProtobufUtil.toMutation(MutationProto.MutationType.PUT, new Put(Bytes.toBytes("fakeRow")));
+    MutationProto delete = ProtobufUtil.toMutation(MutationProto.MutationType.DELETE,
+        new Delete(Bytes.toBytes("fakeRow")));
+
+    context.checking(new Expectations() {
+      {
+        allowing(hRegionInterface).batchMutate(with(any(Mutation[].class)));
+        will(new CustomAction("fail deletes") {
+          @Override
+          public Object invoke(Invocation invocation) throws Throwable {
+            Mutation[] mutations = (Mutation[]) invocation.getParameter(0);
+            OperationStatus[] statuses = new OperationStatus[mutations.length];
+            for (int i = 0; i < mutations.length; i++) {
+              statuses[i] = new OperationStatus(mutations[i] instanceof Delete
+                  ? HConstants.OperationStatusCode.FAILURE
+                  : HConstants.OperationStatusCode.SUCCESS);
+            }
+            return statuses;
+          }
+        });
+      }
+    });
+
+    ListenableFuture<OperationStatus> putStatus = hRegionBridge.batchMutate(put);
+    ListenableFuture<OperationStatus> deleteStatus = hRegionBridge.batchMutate(delete);
+
+    assertThat(putStatus.get(5, TimeUnit.SECONDS).getOperationStatusCode(),
+        is(HConstants.OperationStatusCode.SUCCESS));
+    assertThat(deleteStatus.get(5, TimeUnit.SECONDS).getOperationStatusCode(),
+        is(HConstants.OperationStatusCode.FAILURE));
+  }
+
+  @Test
+  public void queuedMutationsWhichNeedNoSyncAreNotBatchedWithOnesWhichDo() throws Exception {
+    Put asyncPut = new Put(Bytes.toBytes("asyncRow"));
+    asyncPut.setDurability(Durability.ASYNC_WAL);
+    Put syncPut = new Put(Bytes.toBytes("syncRow"));
+    syncPut.setDurability(Durability.SYNC_WAL);
+
+    context.checking(new Expectations() {
+      {
+        allowing(hRegionInterface).batchMutate(with(any(Mutation[].class)));
+        will(new CustomAction("check the batch's durabilities") {
+          @Override
+          public Object invoke(Invocation invocation) throws Throwable {
+            Mutation[] mutations = (Mutation[]) invocation.getParameter(0);
+            for (Mutation mutation : mutations) {
+              assertThat(mutation.getDurability(), is(mutations[0].getDurability()));
+            }
+            return successes(mutations.length);
+          }
+        });
+      }
+    });
+
+    ListenableFuture<OperationStatus> asyncStatus =
+        hRegionBridge.batchMutate(ProtobufUtil.toMutation(MutationProto.MutationType.PUT, asyncPut));
+    ListenableFuture<OperationStatus> syncStatus =
+        hRegionBridge.batchMutate(ProtobufUtil.toMutation(MutationProto.MutationType.PUT, syncPut));
+
+    assertThat(asyncStatus.get(5, TimeUnit.SECONDS).getOperationStatusCode(),
+        is(HConstants.OperationStatusCode.SUCCESS));
+    assertThat(syncStatus.get(5, TimeUnit.SECONDS).getOperationStatusCode(),
+        is(HConstants.OperationStatusCode.SUCCESS));
+  }
+
+  @Test
+  public void queuedMutationsOfARowAreWrittenInOrderWhateverTheirDurability() throws Exception {
+    final List<Durability> written = new CopyOnWriteArrayList<>();
+    context.checking(new Expectations() {
+      {
+        allowing(hRegionInterface).batchMutate(with(any(Mutation[].class)));
+        will(new CustomAction("record the order of the mutations") {
+          @Override
+          public Object invoke(Invocation invocation) throws Throwable {
+            Mutation[] mutations = (Mutation[]) invocation.getParameter(0);
+            for (Mutation mutation : mutations) {
+              written.add(mutation.getDurability());
+            }
+            return successes(mutations.length);
+          }
+        });
+      }
+    });
+
+    final List<Durability> queued = Arrays.asList(Durability.SYNC_WAL, Durability.ASYNC_WAL, Durability.SYNC_WAL);
+    final List<ListenableFuture<OperationStatus>> statuses = new ArrayList<>();
+    for (Durability durability : queued) {
+      Put put = new Put(Bytes.toBytes("row"));
+      put.setDurability(durability);
+      statuses.add(hRegionBridge.batchMutate(ProtobufUtil.toMutation(MutationProto.MutationType.PUT, put)));
+    }
+    for (ListenableFuture<OperationStatus> status : statuses) {
+      status.get(5, TimeUnit.SECONDS);
+    }
+
+    assertThat(written, is(queued));
+  }
+
+  @Test
+  public void theCommitterKeepsCommittingAfterABatchFailsUnexpectedly() throws Exception {
+    MutationProto put = ProtobufUtil.toMutation(MutationProto.MutationType.PUT, new Put(Bytes.toBytes("fakeRow")));
+
+    context.checking(new Expectations() {
+      {
+        oneOf(hRegionInterface).batchMutate(with(any(Mutation[].class)));
+        will(throwException(new IllegalStateException("unexpected")));
+
+        oneOf(hRegionInterface).batchMutate(with(any(Mutation[].class)));
+        will(returnValue(successes(1)));
+      }
+    });
+
+    try {
+      hRegionBridge.batchMutate(put).get(5, TimeUnit.SECONDS);
+      throw new AssertionError("expected the first batch to fail");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause() instanceof IllegalStateException, is(true));
+    }
+    assertThat(hRegionBridge.batchMutate(put).get(5, TimeUnit.SECONDS).getOperationStatusCode(),
+        is(HConstants.OperationStatusCode.SUCCESS));
+  }
+
+  @Test
+  public void mutationsQueuedWithinTheBatchDelayAreCommittedTogether() throws Exception {
+    HRegionBridge delayingBridge = new HRegionBridge(hRegionInterface, fiberSupplier, null,
+        C5ServerConstants.GROUP_COMMIT_MAX_BATCH_BYTES, TimeUnit.MILLISECONDS.toMicros(200));
+
+    context.checking(new Expectations() {
+      {
+        oneOf(hRegionInterface).batchMutate(with(any(Mutation[].class)));
+        will(new CustomAction("check both mutations are in one batch") {
+          @Override
+          public Object invoke(Invocation invocation) throws Throwable {
+            Mutation[] mutations = (Mutation[]) invocation.getParameter(0);
+            assertThat(mutations.length, is(2));
+            return successes(mutations.length);
+          }
+        });
+      }
+    });
+
+    try {
+      List<ListenableFuture<OperationStatus>> statuses = new ArrayList<>();
+      for (String row : Arrays.asList("row1", "row2")) {
+        statuses.add(delayingBridge.batchMutate(
+            ProtobufUtil.toMutation(MutationProto.MutationType.PUT, new Put(Bytes.toBytes(row)))));
+      }
+      for (ListenableFuture<OperationStatus> status : statuses) {
+        assertThat(status.get(5, TimeUnit.SECONDS).getOperationStatusCode(),
+            is(HConstants.OperationStatusCode.SUCCESS));
+      }
+    } finally {
+      delayingBridge.close();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void mutationsCannotBeQueuedOnceTheRegionIsClosed() throws Exception {
+    hRegionBridge.close();
+
+    hRegionBridge.batchMutate(ProtobufUtil.toMutation(MutationProto.MutationType.PUT, new Put(Bytes.toBytes("row"))));
+  }
+
+  @Test(expected = ExecutionException.class)
+  public void queuedMutationsFailWhenTheirBatchCannotBeWritten() throws Exception {
+    MutationProto put = ProtobufUtil.toMutation(MutationProto.MutationType.PUT, new Put(Bytes.toBytes("fakeRow")));
+
+    context.checking(new Expectations() {
+      {
+        oneOf(hRegionInterface).batchMutate(with(any(Mutation[].class)));
+        will(throwException(new IOException("WAL unavailable")));
+      }
+    });
+
+    hRegionBridge.batchMutate(put).get(5, TimeUnit.SECONDS);
+  }
+
+  private static OperationStatus[] successes(int count) {
+    OperationStatus[] statuses = new OperationStatus[count];
+    Arrays.fill(statuses, new OperationStatus(HConstants.OperationStatusCode.SUCCESS));
+    return statuses;
+  }
+}
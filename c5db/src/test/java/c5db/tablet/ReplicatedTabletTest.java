@@ -154,6 +154,8 @@ public class ReplicatedTabletTest {
       allowing(replicator).getCommitNoticeChannel();
 
       allowing(replicator).getId();
+
+      allowing(region).close();
     }});
   }
 
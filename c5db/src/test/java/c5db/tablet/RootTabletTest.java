@@ -141,6 +141,8 @@ public class RootTabletTest {
         allowing(replicator).getCommitNoticeChannel();
 
         allowing(replicator).getId();
+
+        allowing(region).close();
       }
     });
   }
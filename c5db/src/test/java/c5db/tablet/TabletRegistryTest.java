@@ -21,6 +21,7 @@ import c5db.interfaces.C5Server;
 import c5db.interfaces.ReplicationModule;
 import c5db.interfaces.tablet.Tablet;
 import c5db.interfaces.tablet.TabletStateChange;
+import c5db.regionserver.RegionNotFoundException;
 import c5db.tablet.tabletCreationBehaviors.StartableTabletBehavior;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -28,6 +29,8 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HRegionInfo;
 import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.jetlang.channels.Channel;
 import org.jmock.Expectations;
 import org.jmock.integration.junit4.JUnitRuleMockery;
@@ -38,6 +41,10 @@ import org.junit.Test;
 import java.io.IOException;
 import java.util.List;
 
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsSame.sameInstance;
+
 /**
  *
  */
@@ -135,4 +142,62 @@ public class TabletRegistryTest {
 
     tabletRegistry.startTablet(rootRegionInfo, rootTableDescriptor, peerList);
   }
+
+  @Test
+  public void shouldFindEachOfTwoTabletsOfATableByItsRegionName() throws Throwable {
+    TableName tableName = TableName.valueOf("twoTablets");
+    HTableDescriptor tableDescriptor = new HTableDescriptor(tableName);
+    HRegionInfo firstRegionInfo = new HRegionInfo(tableName, new byte[0], Bytes.toBytes("m"), false, 1);
+    HRegionInfo secondRegionInfo = new HRegionInfo(tableName, Bytes.toBytes("m"), new byte[0], false, 2);
+    Tablet firstTablet = context.mock(Tablet.class, "firstTablet");
+    Tablet secondTablet = context.mock(Tablet.class, "secondTablet");
+
+    context.checking(new Expectations() {{
+      allowing(configDirectory).writePeersToFile(with(any(String.class)), with(any(List.class)));
+      allowing(configDirectory).writeBinaryData(with(any(String.class)), with(any(String.class)),
+          with(any(byte[].class)));
+      allowing(configDirectory).getBaseConfigPath();
+
+      startsTablet(firstRegionInfo, tableDescriptor, firstTablet);
+      startsTablet(secondRegionInfo, tableDescriptor, secondTablet);
+    }
+
+      private void startsTablet(HRegionInfo regionInfo, HTableDescriptor tableDescriptor, Tablet tablet) {
+        oneOf(tabletFactory).create(
+            with(equal(c5server)),
+            with(equal(regionInfo)),
+            with(equal(tableDescriptor)),
+            with(peerList),
+            with.is(anything()), /* base path */
+            with.is(anything()), /* legacy conf */
+            with(same(replicationModule)),
+            with(same(regionCreator)),
+            with(any(StartableTabletBehavior.class)));
+        will(returnValue(tablet));
+
+        oneOf(tablet).setStateChangeChannel(DO_NOT_CARE_STATE_CHANGE_CHANNEL);
+        oneOf(tablet).start();
+      }
+    });
+
+    tabletRegistry.startTablet(rootRegionInfo, rootTableDescriptor, peerList);
+    tabletRegistry.startTablet(firstRegionInfo, tableDescriptor, peerList);
+    tabletRegistry.startTablet(secondRegionInfo, tableDescriptor, peerList);
+
+    assertThat(tabletRegistry.getTabletByRegionName(firstRegionInfo.getRegionName()), is(sameInstance(firstTablet)));
+    assertThat(tabletRegistry.getTabletByRegionName(secondRegionInfo.getRegionName()), is(sameInstance(secondTablet)));
+  }
+
+  @Test(expected = RegionNotFoundException.class)
+  public void shouldNotFindATabletByARegionNameItDoesNotHave() throws Throwable {
+    context.checking(new Expectations() {{
+      allowing(configDirectory).writePeersToFile(with(any(String.class)), with(any(List.class)));
+      allowing(configDirectory).writeBinaryData(with(any(String.class)), with(any(String.class)),
+          with(any(byte[].class)));
+      allowing(configDirectory).getBaseConfigPath();
+    }});
+
+    tabletRegistry.startTablet(rootRegionInfo, rootTableDescriptor, peerList);
+    tabletRegistry.getTabletByRegionName(Bytes.toBytes("twoTablets,m,2"));
+  }
 }
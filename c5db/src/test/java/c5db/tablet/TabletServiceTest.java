@@ -20,6 +20,7 @@ import c5db.ConfigDirectory;
 import c5db.interfaces.C5Server;
 import c5db.interfaces.ControlModule;
 import c5db.interfaces.DiscoveryModule;
+import c5db.interfaces.LogModule;
 import c5db.interfaces.ReplicationModule;
 import c5db.interfaces.discovery.NewNodeVisible;
 import c5db.interfaces.tablet.Tablet;
@@ -57,6 +58,7 @@ public class TabletServiceTest {
   DiscoveryModule discoveryModule = context.mock(DiscoveryModule.class);
   ControlModule controlModule = context.mock(ControlModule.class);
   ReplicationModule replicationModule = context.mock(ReplicationModule.class);
+  LogModule logModule = context.mock(LogModule.class);
   ConfigDirectory configDirectory = context.mock(ConfigDirectory.class);
 
   C5Server c5Server = context.mock(C5Server.class);
@@ -79,6 +81,9 @@ public class TabletServiceTest {
         oneOf(c5Server).getModule(ModuleType.ControlRpc);
         will(returnFutureWithValue(controlModule));
 
+        oneOf(c5Server).getModule(ModuleType.Log);
+        will(returnFutureWithValue(logModule));
+
         oneOf(c5Server).getModule(ModuleType.Replication);
         will(returnFutureWithValue(replicationModule));
 